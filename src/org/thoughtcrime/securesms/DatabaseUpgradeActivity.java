@@ -38,6 +38,7 @@ import org.thoughtcrime.securesms.database.MmsDatabase;
 import org.thoughtcrime.securesms.database.MmsDatabase.Reader;
 import org.thoughtcrime.securesms.database.PushDatabase;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
+import org.thoughtcrime.securesms.jobs.AttachmentDeduplicationJob;
 import org.thoughtcrime.securesms.jobs.AttachmentDownloadJob;
 import org.thoughtcrime.securesms.jobs.CreateSignedPreKeyJob;
 import org.thoughtcrime.securesms.jobs.DirectoryRefreshJob;
@@ -91,6 +92,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
   public static final int UNIDENTIFIED_DELIVERY                = 422;
   public static final int SIGNALING_KEY_DEPRECATION            = 447;
   public static final int CONVERSATION_SEARCH                  = 455;
+  public static final int ATTACHMENT_DEDUPLICATION             = 507;
 
   private static final SortedSet<Integer> UPGRADE_VERSIONS = new TreeSet<Integer>() {{
     add(NO_MORE_KEY_EXCHANGE_PREFIX_VERSION);
@@ -119,6 +121,7 @@ public class DatabaseUpgradeActivity extends BaseActivity {
     add(UNIDENTIFIED_DELIVERY);
     add(SIGNALING_KEY_DEPRECATION);
     add(CONVERSATION_SEARCH);
+    add(ATTACHMENT_DEDUPLICATION);
   }};
 
   private MasterSecret masterSecret;
@@ -373,6 +376,13 @@ public class DatabaseUpgradeActivity extends BaseActivity {
                           .add(new RefreshAttributesJob());
       }
 
+      if (params[0] < ATTACHMENT_DEDUPLICATION) {
+        Log.i(TAG, "Scheduling an AttachmentDeduplicationJob for attachments stored before deduplication.");
+        ApplicationContext.getInstance(context)
+                          .getJobManager()
+                          .add(new AttachmentDeduplicationJob());
+      }
+
       return null;
     }
 
@@ -47,6 +47,7 @@ import org.greenrobot.eventbus.EventBus;
 import org.greenrobot.eventbus.Subscribe;
 import org.greenrobot.eventbus.ThreadMode;
 import org.thoughtcrime.securesms.animation.AnimationCompleteListener;
+import org.thoughtcrime.securesms.backup.BackupKeyDerivation;
 import org.thoughtcrime.securesms.backup.FullBackupBase;
 import org.thoughtcrime.securesms.backup.FullBackupImporter;
 import org.thoughtcrime.securesms.components.LabeledEditText;
@@ -63,6 +64,7 @@ import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.IdentityDatabase;
 import org.thoughtcrime.securesms.database.NoExternalStorageException;
 import org.thoughtcrime.securesms.gcm.FcmUtil;
+import org.thoughtcrime.securesms.jobs.AttachmentDeduplicationJob;
 import org.thoughtcrime.securesms.jobs.DirectoryRefreshJob;
 import org.thoughtcrime.securesms.jobs.RotateCertificateJob;
 import org.thoughtcrime.securesms.lock.RegistrationLockReminders;
@@ -375,17 +377,22 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
 
                 FullBackupImporter.importFile(context,
                                               AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                              database, backup.getFile(), passphrase);
+                                              database, backup.getFiles(), passphrase, RegistrationActivity.this::isFinishing);
 
                 DatabaseFactory.upgradeRestored(context, database);
                 NotificationChannels.restoreContactNotificationChannels(context);
 
+                ApplicationContext.getInstance(context).getJobManager().add(new AttachmentDeduplicationJob());
+
                 TextSecurePreferences.setBackupEnabled(context, true);
                 TextSecurePreferences.setBackupPassphrase(context, passphrase);
                 return BackupImportResult.SUCCESS;
               } catch (FullBackupImporter.DatabaseDowngradeException e) {
                 Log.w(TAG, "Failed due to the backup being from a newer version of Signal.", e);
                 return BackupImportResult.FAILURE_VERSION_DOWNGRADE;
+              } catch (BackupKeyDerivation.CanceledException e) {
+                Log.i(TAG, "Restore canceled, the screen was closed.");
+                return BackupImportResult.CANCELED;
               } catch (IOException e) {
                 Log.w(TAG, e);
                 return BackupImportResult.FAILURE_UNKNOWN;
@@ -408,6 +415,8 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
                 case FAILURE_UNKNOWN:
                   Toast.makeText(RegistrationActivity.this, R.string.RegistrationActivity_incorrect_backup_passphrase, Toast.LENGTH_LONG).show();
                   break;
+                case CANCELED:
+                  break;
               }
             }
           }.execute();
@@ -1119,6 +1128,6 @@ public class RegistrationActivity extends BaseActionBarActivity implements Verif
   }
 
   private enum BackupImportResult {
-    SUCCESS, FAILURE_VERSION_DOWNGRADE, FAILURE_UNKNOWN
+    SUCCESS, FAILURE_VERSION_DOWNGRADE, FAILURE_UNKNOWN, CANCELED
   }
 }
@@ -4,11 +4,14 @@ package org.thoughtcrime.securesms.attachments;
 import android.content.Context;
 import android.net.Uri;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
 
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.util.Hex;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
@@ -21,104 +24,227 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 import java.security.MessageDigest;
+import java.util.HashMap;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 import java.util.StringTokenizer;
+import java.util.concurrent.ExecutorService;
 
 /**
+ * Serves a single attachment over HTTP on the loopback interface, for media players that can only
+ * play from a URL.
+ *
+ * Every started AttachmentServer is registered under its own random token with one shared
+ * listener, which hands each connection to a small pool so that concurrent range requests are
+ * served in parallel. The listener is closed again once nothing is registered.
+ *
  * @author      Stefan "frostymarvelous" Froelich <stefan d0t froelich At whisppa DoT com>
  */
-public class AttachmentServer implements Runnable {
+public class AttachmentServer {
 
   private static final String TAG = AttachmentServer.class.getSimpleName();
 
-  private final Context      context;
-  private final Attachment   attachment;
-  private final ServerSocket socket;
-  private final int          port;
-  private final String       auth;
+  private static final int MAX_CONNECTIONS = 4;
 
-  private volatile boolean isRunning;
+  private static final ExecutorService executor = SignalExecutors.newCachedBoundedExecutor("signal-AttachmentServer", MAX_CONNECTIONS);
 
-  public AttachmentServer(Context context, Attachment attachment)
-      throws IOException
-  {
-    try {
-      this.context      = context;
-      this.attachment   = attachment;
-      this.socket       = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
-      this.port         = socket.getLocalPort();
-      this.auth         = Hex.toStringCondensed(Util.getSecretBytes(16));
-
-      this.socket.setSoTimeout(5000);
-    } catch (UnknownHostException e) {
-      throw new AssertionError(e);
-    }
+  private static Listener listener;
+
+  private final Context    context;
+  private final Attachment attachment;
+  private final String     auth;
+
+  private int port;
+
+  public AttachmentServer(Context context, Attachment attachment) {
+    this.context    = context.getApplicationContext();
+    this.attachment = attachment;
+    this.auth       = Hex.toStringCondensed(Util.getSecretBytes(16));
   }
 
   public Uri getUri() {
     return Uri.parse(String.format(Locale.ROOT, "http://127.0.0.1:%d/%s", port, auth));
   }
 
-  public void start() {
-    isRunning = true;
-    new Thread(this).start();
+  public void start() throws IOException {
+    synchronized (AttachmentServer.class) {
+      if (listener == null) {
+        listener = new Listener();
+        listener.start();
+      }
+
+      listener.register("/" + auth, this);
+      port = listener.getPort();
+    }
   }
 
   public void stop() {
-    isRunning = false;
+    synchronized (AttachmentServer.class) {
+      if (listener != null && listener.unregister("/" + auth)) {
+        listener.close();
+        listener = null;
+      }
+    }
+  }
+
+  /**
+   * Parses the first range of a Range header, e.g. "bytes=100-", "bytes=100-199" or "bytes=-100".
+   *
+   * @return The first and last byte of the range, or null if the range can't be satisfied.
+   */
+  @VisibleForTesting
+  static @Nullable long[] parseRange(@NonNull String range, long size) {
+    if (!range.startsWith("bytes=")) {
+      return null;
+    }
+
+    String first = range.substring(6);
+    int    comma = first.indexOf(',');
+
+    if (comma >= 0) {
+      first = first.substring(0, comma);
+    }
+
+    int dash = first.indexOf('-');
+
+    if (dash < 0) {
+      return null;
+    }
+
+    try {
+      String startValue = first.substring(0, dash).trim();
+      String endValue   = first.substring(dash + 1).trim();
+      long   start;
+      long   end;
+
+      if (startValue.isEmpty()) {
+        long suffix = Long.parseLong(endValue);
+
+        if (suffix <= 0) return null;
+
+        start = Math.max(0, size - suffix);
+        end   = size - 1;
+      } else {
+        start = Long.parseLong(startValue);
+        end   = endValue.isEmpty() ? size - 1 : Math.min(Long.parseLong(endValue), size - 1);
+      }
+
+      if (start < 0 || start >= size || end < start) {
+        return null;
+      }
+
+      return new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
   }
 
-  @Override
-  public void run() {
-    while (isRunning) {
-      Socket client = null;
+  private static class Listener implements Runnable {
+
+    private final ServerSocket                  socket;
+    private final Map<String, AttachmentServer> servers = new HashMap<>();
 
+    Listener() throws IOException {
       try {
-        client = socket.accept();
+        this.socket = new ServerSocket(0, 0, InetAddress.getByAddress(new byte[]{127, 0, 0, 1}));
+      } catch (UnknownHostException e) {
+        throw new AssertionError(e);
+      }
+    }
 
-        if (client != null) {
-          StreamToMediaPlayerTask task = new StreamToMediaPlayerTask(client, "/" + auth);
+    void start() {
+      new Thread(this, "signal-AttachmentServerListener").start();
+    }
 
-          if (task.processRequest()) {
-            task.execute();
-          }
-        }
+    int getPort() {
+      return socket.getLocalPort();
+    }
 
-      } catch (SocketTimeoutException e) {
-        Log.w(TAG, e);
+    void register(@NonNull String path, @NonNull AttachmentServer server) {
+      servers.put(path, server);
+    }
+
+    /**
+     * @return True if the last registered server was removed.
+     */
+    boolean unregister(@NonNull String path) {
+      return servers.remove(path) != null && servers.isEmpty();
+    }
+
+    void close() {
+      try {
+        socket.close();
       } catch (IOException e) {
-        Log.e(TAG, "Error connecting to client", e);
-      } finally {
-        try {if (client != null) client.close();} catch (IOException e) {}
+        Log.w(TAG, e);
       }
     }
 
-    Log.d(TAG, "Proxy interrupted. Shutting down.");
-  }
+    private @Nullable AttachmentServer getServer(@Nullable String path) {
+      if (path == null) {
+        return null;
+      }
 
+      synchronized (AttachmentServer.class) {
+        for (Map.Entry<String, AttachmentServer> entry : servers.entrySet()) {
+          if (MessageDigest.isEqual(path.getBytes(), entry.getKey().getBytes())) {
+            return entry.getValue();
+          }
+        }
+      }
 
-  private class StreamToMediaPlayerTask {
+      return null;
+    }
 
-    private final @NonNull Socket client;
-    private final @NonNull String auth;
+    @Override
+    public void run() {
+      while (!socket.isClosed()) {
+        try {
+          Socket client = socket.accept();
+          executor.execute(new StreamToMediaPlayerTask(this, client));
+        } catch (SocketException e) {
+          Log.d(TAG, "Listener closed.");
+        } catch (IOException e) {
+          Log.e(TAG, "Error connecting to client", e);
+        }
+      }
+
+      Log.d(TAG, "Proxy interrupted. Shutting down.");
+    }
+  }
+
+  private static class StreamToMediaPlayerTask implements Runnable {
+
+    private final @NonNull Listener listener;
+    private final @NonNull Socket   client;
 
-    private long       cbSkip;
     private Properties parameters;
     private Properties request;
     private Properties requestHeaders;
-//    private String filePath;
 
-    public StreamToMediaPlayerTask(@NonNull Socket client, @NonNull String auth) {
-      this.client = client;
-      this.auth   = auth;
+    StreamToMediaPlayerTask(@NonNull Listener listener, @NonNull Socket client) {
+      this.listener = listener;
+      this.client   = client;
     }
 
-    public boolean processRequest() throws IOException {
+    @Override
+    public void run() {
+      try {
+        AttachmentServer server = processRequest();
+
+        if (server != null) {
+          execute(server);
+        }
+      } catch (IOException e) {
+        Log.e(TAG, "Error serving client", e);
+      } finally {
+        try {client.close();} catch (IOException e) {}
+      }
+    }
+
+    private @Nullable AttachmentServer processRequest() throws IOException {
             InputStream is         = client.getInputStream();
       final int         bufferSize = 8192;
             byte[]      buffer     = new byte[bufferSize];
@@ -155,96 +281,82 @@ public class AttachmentServer implements Runnable {
         Log.i(TAG, "Header: " + e.getKey() + " : " + e.getValue());
       }
 
-      String range = requestHeaders.getProperty("range");
-
-      if (range != null) {
-        Log.i(TAG, "range is: " + range);
-        range = range.substring(6);
-        int charPos = range.indexOf('-');
-        if (charPos > 0) {
-          range = range.substring(0, charPos);
-        }
-        cbSkip = Long.parseLong(range);
-        Log.i(TAG, "range found!! " + cbSkip);
-      }
-
       if (!"GET".equals(request.get("method"))) {
         Log.e(TAG, "Only GET is supported: " + request.get("method"));
-        return false;
+        return null;
       }
 
-      String receivedAuth = request.getProperty("uri");
+      AttachmentServer server = listener.getServer(request.getProperty("uri"));
 
-      if (receivedAuth == null || !MessageDigest.isEqual(receivedAuth.getBytes(), auth.getBytes())) {
+      if (server == null) {
         Log.w(TAG, "Bad auth token!");
-        return false;
+        return null;
       }
 
-//      filePath = request.getProperty("uri");
-
-      return true;
+      return server;
     }
 
-    protected void execute() throws IOException {
-      InputStream inputStream = PartAuthority.getAttachmentStream(context, attachment.getDataUri());
-      long        fileSize    = attachment.getSize();
+    private void execute(@NonNull AttachmentServer server) throws IOException {
+      Attachment attachment = server.attachment;
+      long       fileSize   = attachment.getSize();
+      String     range      = requestHeaders.getProperty("range");
+      long       start      = 0;
+      long       end        = fileSize - 1;
 
       String headers = "";
-      if (cbSkip > 0) {// It is a seek or skip request if there's a Range
-        // header
+      if (range != null) {
+        Log.i(TAG, "range is: " + range);
+
+        long[] bounds = parseRange(range, fileSize);
+
+        if (bounds == null) {
+          headers += "HTTP/1.1 416 Range Not Satisfiable\r\n";
+          headers += "Content-Range: bytes */" + fileSize + "\r\n";
+          headers += "Connection: close\r\n";
+          headers += "\r\n";
+
+          client.getOutputStream().write(headers.getBytes());
+          return;
+        }
+
+        start = bounds[0];
+        end   = bounds[1];
+
         headers += "HTTP/1.1 206 Partial Content\r\n";
         headers += "Content-Type: " + attachment.getContentType() + "\r\n";
         headers += "Accept-Ranges: bytes\r\n";
-        headers += "Content-Length: " + (fileSize - cbSkip) + "\r\n";
-        headers += "Content-Range: bytes " + cbSkip + "-" + (fileSize - 1) + "/" + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
+        headers += "Content-Length: " + (end - start + 1) + "\r\n";
+        headers += "Content-Range: bytes " + start + "-" + end + "/" + fileSize + "\r\n";
+        headers += "Connection: close\r\n";
         headers += "\r\n";
       } else {
         headers += "HTTP/1.1 200 OK\r\n";
         headers += "Content-Type: " + attachment.getContentType() + "\r\n";
         headers += "Accept-Ranges: bytes\r\n";
         headers += "Content-Length: " + fileSize + "\r\n";
-        headers += "Connection: Keep-Alive\r\n";
+        headers += "Connection: close\r\n";
         headers += "\r\n";
       }
 
       Log.i(TAG, "headers: " + headers);
 
-      OutputStream output = null;
       byte[] buff = new byte[64 * 1024];
-      try {
-        output = new BufferedOutputStream(client.getOutputStream(), 32 * 1024);
-        output.write(headers.getBytes());
 
-        inputStream.skip(cbSkip);
-//        dataSource.skipFully(data, cbSkip);//try to skip as much as possible
+      try (InputStream  inputStream = PartAuthority.getAttachmentStream(server.context, attachment.getDataUri(), start);
+           OutputStream output      = new BufferedOutputStream(client.getOutputStream(), 32 * 1024))
+      {
+        output.write(headers.getBytes());
 
         // Loop as long as there's stuff to send and client has not closed
-        int cbRead;
-        while (!client.isClosed() && (cbRead = inputStream.read(buff, 0, buff.length)) != -1) {
+        long remaining = end - start + 1;
+        int  cbRead;
+        while (remaining > 0 && !client.isClosed() && (cbRead = inputStream.read(buff, 0, (int) Math.min(buff.length, remaining))) != -1) {
           output.write(buff, 0, cbRead);
+          remaining -= cbRead;
         }
-      }
-      catch (SocketException socketException) {
+      } catch (SocketException socketException) {
         Log.e(TAG, "SocketException() thrown, proxy client has probably closed. This can exit harmlessly");
       }
-      catch (Exception e) {
-        Log.e(TAG, "Exception thrown from streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-      }
-
-      // Cleanup
-      try {
-        if (output != null) {
-          output.close();
-        }
-        client.close();
-      }
-      catch (IOException e) {
-        Log.e(TAG, "IOException while cleaning up streaming task:");
-        Log.e(TAG, e.getClass().getName() + " : " + e.getLocalizedMessage());
-        e.printStackTrace();
-      }
     }
 
     /**
@@ -367,4 +479,4 @@ public class AttachmentServer implements Runnable {
       }
     }
   }
-}
\ No newline at end of file
+}
@@ -78,6 +78,7 @@ public class BackupDialog {
                      BackupPassphrase.set(context, null);
                      TextSecurePreferences.setBackupEnabled(context, false);
                      BackupUtil.deleteAllBackups();
+                     BackupManifest.clear(context);
                      preference.setChecked(false);
                    })
                    .create()
@@ -0,0 +1,276 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.io.IOException;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Derives the 32 byte backup key from a passphrase. The scheme used by a backup is recorded in
+ * its header, so older backups without the field are always read with {@link #LEGACY}.
+ */
+public final class BackupKeyDerivation {
+
+  /** 250,000 rounds of salted, iterated SHA-512. Readable by every version of the app. */
+  public static final int LEGACY = 0;
+
+  /** scrypt (RFC 7914) with N = 2^14, r = 8, p = 1, which needs 16MB of memory per derivation. */
+  public static final int SCRYPT = 1;
+
+  private static final int KEY_LENGTH = 32;
+
+  private static final int LEGACY_ITERATIONS    = 250000;
+  private static final int CANCELATION_INTERVAL = 1000;
+
+  private static final int SCRYPT_N = 1 << 14;
+  private static final int SCRYPT_R = 8;
+  private static final int SCRYPT_P = 1;
+
+  private BackupKeyDerivation() {}
+
+  public static @NonNull byte[] deriveKey(@NonNull String passphrase,
+                                          @Nullable byte[] salt,
+                                          int keyDerivation,
+                                          @Nullable CancelationSignal cancelationSignal)
+      throws IOException
+  {
+    byte[] input = passphrase.replace(" ", "").getBytes();
+
+    switch (keyDerivation) {
+      case LEGACY: return deriveLegacy(input, salt, cancelationSignal);
+      case SCRYPT: return scrypt(input, salt != null ? salt : new byte[0], SCRYPT_N, SCRYPT_R, SCRYPT_P, KEY_LENGTH, cancelationSignal);
+      default:     throw new IOException("Unsupported key derivation: " + keyDerivation);
+    }
+  }
+
+  /**
+   * Equivalent to hashing (salt || hash || input) repeatedly, where hash starts out as the input,
+   * but digests into a single buffer rather than allocating a new array for every round.
+   */
+  private static @NonNull byte[] deriveLegacy(@NonNull byte[] input, @Nullable byte[] salt, @Nullable CancelationSignal cancelationSignal)
+      throws CanceledException
+  {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-512");
+      byte[]        hash   = new byte[digest.getDigestLength()];
+
+      if (salt != null) digest.update(salt);
+
+      digest.update(input);
+      digest.update(input);
+      digest.digest(hash, 0, hash.length);
+
+      for (int i = 1; i < LEGACY_ITERATIONS; i++) {
+        if (i % CANCELATION_INTERVAL == 0) throwIfCanceled(cancelationSignal);
+
+        digest.update(hash);
+        digest.update(input);
+        digest.digest(hash, 0, hash.length);
+      }
+
+      return Arrays.copyOf(hash, KEY_LENGTH);
+    } catch (NoSuchAlgorithmException | DigestException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  static @NonNull byte[] scrypt(@NonNull byte[] passphrase, @NonNull byte[] salt, int n, int r, int p, int length,
+                                @Nullable CancelationSignal cancelationSignal)
+      throws CanceledException
+  {
+    if (n < 2 || (n & (n - 1)) != 0) {
+      throw new IllegalArgumentException("N must be a power of 2 greater than 1!");
+    }
+
+    HmacSha256 hmac       = new HmacSha256(passphrase);
+    int        blockWords = 32 * r;
+    byte[]     blocks     = pbkdf2(hmac, salt, p * 128 * r);
+    int[]      x          = new int[blockWords];
+    int[]      v          = new int[blockWords * n];
+    int[]      scratch    = new int[16];
+
+    for (int i = 0; i < p; i++) {
+      int offset = i * 128 * r;
+
+      for (int j = 0; j < blockWords; j++) {
+        x[j] = readIntLittleEndian(blocks, offset + j * 4);
+      }
+
+      romix(x, v, scratch, n, r, cancelationSignal);
+
+      for (int j = 0; j < blockWords; j++) {
+        writeIntLittleEndian(x[j], blocks, offset + j * 4);
+      }
+    }
+
+    return pbkdf2(hmac, blocks, length);
+  }
+
+  private static void romix(int[] x, int[] v, int[] scratch, int n, int r, @Nullable CancelationSignal cancelationSignal)
+      throws CanceledException
+  {
+    int   blockWords = 32 * r;
+    int[] y          = new int[blockWords];
+
+    for (int i = 0; i < n; i++) {
+      if (i % CANCELATION_INTERVAL == 0) throwIfCanceled(cancelationSignal);
+
+      System.arraycopy(x, 0, v, i * blockWords, blockWords);
+      blockMix(x, y, scratch, r);
+    }
+
+    for (int i = 0; i < n; i++) {
+      if (i % CANCELATION_INTERVAL == 0) throwIfCanceled(cancelationSignal);
+
+      int j = x[(2 * r - 1) * 16] & (n - 1);
+
+      for (int k = 0; k < blockWords; k++) {
+        x[k] ^= v[j * blockWords + k];
+      }
+
+      blockMix(x, y, scratch, r);
+    }
+  }
+
+  private static void blockMix(int[] b, int[] y, int[] x, int r) {
+    System.arraycopy(b, (2 * r - 1) * 16, x, 0, 16);
+
+    for (int i = 0; i < 2 * r; i++) {
+      for (int k = 0; k < 16; k++) {
+        x[k] ^= b[i * 16 + k];
+      }
+
+      salsa20_8(x);
+
+      int destination = (i % 2 == 0 ? i / 2 : r + i / 2) * 16;
+      System.arraycopy(x, 0, y, destination, 16);
+    }
+
+    System.arraycopy(y, 0, b, 0, 32 * r);
+  }
+
+  private static void salsa20_8(int[] b) {
+    int x0  = b[0],  x1  = b[1],  x2  = b[2],  x3  = b[3];
+    int x4  = b[4],  x5  = b[5],  x6  = b[6],  x7  = b[7];
+    int x8  = b[8],  x9  = b[9],  x10 = b[10], x11 = b[11];
+    int x12 = b[12], x13 = b[13], x14 = b[14], x15 = b[15];
+
+    for (int i = 0; i < 8; i += 2) {
+      x4  ^= Integer.rotateLeft(x0  + x12, 7);  x8  ^= Integer.rotateLeft(x4  + x0,  9);
+      x12 ^= Integer.rotateLeft(x8  + x4,  13); x0  ^= Integer.rotateLeft(x12 + x8,  18);
+      x9  ^= Integer.rotateLeft(x5  + x1,  7);  x13 ^= Integer.rotateLeft(x9  + x5,  9);
+      x1  ^= Integer.rotateLeft(x13 + x9,  13); x5  ^= Integer.rotateLeft(x1  + x13, 18);
+      x14 ^= Integer.rotateLeft(x10 + x6,  7);  x2  ^= Integer.rotateLeft(x14 + x10, 9);
+      x6  ^= Integer.rotateLeft(x2  + x14, 13); x10 ^= Integer.rotateLeft(x6  + x2,  18);
+      x3  ^= Integer.rotateLeft(x15 + x11, 7);  x7  ^= Integer.rotateLeft(x3  + x15, 9);
+      x11 ^= Integer.rotateLeft(x7  + x3,  13); x15 ^= Integer.rotateLeft(x11 + x7,  18);
+      x1  ^= Integer.rotateLeft(x0  + x3,  7);  x2  ^= Integer.rotateLeft(x1  + x0,  9);
+      x3  ^= Integer.rotateLeft(x2  + x1,  13); x0  ^= Integer.rotateLeft(x3  + x2,  18);
+      x6  ^= Integer.rotateLeft(x5  + x4,  7);  x7  ^= Integer.rotateLeft(x6  + x5,  9);
+      x4  ^= Integer.rotateLeft(x7  + x6,  13); x5  ^= Integer.rotateLeft(x4  + x7,  18);
+      x11 ^= Integer.rotateLeft(x10 + x9,  7);  x8  ^= Integer.rotateLeft(x11 + x10, 9);
+      x9  ^= Integer.rotateLeft(x8  + x11, 13); x10 ^= Integer.rotateLeft(x9  + x8,  18);
+      x12 ^= Integer.rotateLeft(x15 + x14, 7);  x13 ^= Integer.rotateLeft(x12 + x15, 9);
+      x14 ^= Integer.rotateLeft(x13 + x12, 13); x15 ^= Integer.rotateLeft(x14 + x13, 18);
+    }
+
+    b[0]  += x0;  b[1]  += x1;  b[2]  += x2;  b[3]  += x3;
+    b[4]  += x4;  b[5]  += x5;  b[6]  += x6;  b[7]  += x7;
+    b[8]  += x8;  b[9]  += x9;  b[10] += x10; b[11] += x11;
+    b[12] += x12; b[13] += x13; b[14] += x14; b[15] += x15;
+  }
+
+  /**
+   * PBKDF2-HMAC-SHA256 with a single iteration, which is all scrypt needs.
+   */
+  private static @NonNull byte[] pbkdf2(@NonNull HmacSha256 hmac, @NonNull byte[] salt, int length) {
+    byte[] output = new byte[length];
+    byte[] index  = new byte[4];
+
+    for (int block = 1, offset = 0; offset < length; block++, offset += 32) {
+      index[0] = (byte) (block >>> 24);
+      index[1] = (byte) (block >>> 16);
+      index[2] = (byte) (block >>> 8);
+      index[3] = (byte) block;
+
+      byte[] u = hmac.mac(salt, index);
+      System.arraycopy(u, 0, output, offset, Math.min(32, length - offset));
+    }
+
+    return output;
+  }
+
+  private static int readIntLittleEndian(byte[] input, int offset) {
+    return (input[offset] & 0xff) | (input[offset + 1] & 0xff) << 8 | (input[offset + 2] & 0xff) << 16 | (input[offset + 3] & 0xff) << 24;
+  }
+
+  private static void writeIntLittleEndian(int value, byte[] output, int offset) {
+    output[offset]     = (byte) value;
+    output[offset + 1] = (byte) (value >>> 8);
+    output[offset + 2] = (byte) (value >>> 16);
+    output[offset + 3] = (byte) (value >>> 24);
+  }
+
+  static void throwIfCanceled(@Nullable CancelationSignal cancelationSignal) throws CanceledException {
+    if (cancelationSignal != null && cancelationSignal.isCanceled()) {
+      throw new CanceledException();
+    }
+  }
+
+  /**
+   * HMAC-SHA256 over a fixed key. {@link javax.crypto.Mac} refuses empty keys, which a passphrase
+   * of only spaces would produce.
+   */
+  private static class HmacSha256 {
+
+    private static final int BLOCK_SIZE = 64;
+
+    private final MessageDigest digest;
+    private final byte[]        innerPad;
+    private final byte[]        outerPad;
+
+    HmacSha256(@NonNull byte[] key) {
+      try {
+        this.digest   = MessageDigest.getInstance("SHA-256");
+        this.innerPad = new byte[BLOCK_SIZE];
+        this.outerPad = new byte[BLOCK_SIZE];
+
+        byte[] blockKey = key.length > BLOCK_SIZE ? digest.digest(key) : key;
+
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+          byte keyByte = i < blockKey.length ? blockKey[i] : 0;
+          innerPad[i] = (byte) (keyByte ^ 0x36);
+          outerPad[i] = (byte) (keyByte ^ 0x5c);
+        }
+      } catch (NoSuchAlgorithmException e) {
+        throw new AssertionError(e);
+      }
+    }
+
+    byte[] mac(@NonNull byte[] first, @NonNull byte[] second) {
+      digest.update(innerPad);
+      digest.update(first);
+      digest.update(second);
+
+      byte[] inner = digest.digest();
+
+      digest.update(outerPad);
+      return digest.digest(inner);
+    }
+  }
+
+  public interface CancelationSignal {
+    boolean isCanceled();
+  }
+
+  public static class CanceledException extends IOException {
+    CanceledException() {
+      super("Backup canceled");
+    }
+  }
+}
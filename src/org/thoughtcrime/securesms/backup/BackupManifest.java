@@ -0,0 +1,319 @@
+package org.thoughtcrime.securesms.backup;
+
+
+import android.content.Context;
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.Conversions;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Describes the database as it was written into the most recent local backup, so that the next
+ * backup can be written as a delta that only holds what changed since then. Every exported row is
+ * recorded by its rowid and a digest of its contents.
+ *
+ * A backup chain is one full backup followed by any number of deltas, each of which names the
+ * header IV of the backup before it as its parent.
+ */
+public class BackupManifest {
+
+  private static final String TAG = BackupManifest.class.getSimpleName();
+
+  private static final String FILE_NAME      = "backup_manifest";
+  private static final int    FORMAT_VERSION = 1;
+
+  /**
+   * A full backup is written once a chain has this many deltas, so that a restore never has to
+   * replay an unbounded number of files.
+   */
+  private static final int MAX_DELTA_COUNT = 6;
+
+  private final int                     databaseVersion;
+  private final byte[]                  schemaDigest;
+  private final byte[]                  iv;
+  private final List<String>            parentFiles;
+  private final Map<String, RowDigests> tables;
+
+  private String fileName;
+
+  BackupManifest(int databaseVersion,
+                 @NonNull byte[] schemaDigest,
+                 @NonNull byte[] iv,
+                 @NonNull List<String> parentFiles,
+                 @NonNull Map<String, RowDigests> tables)
+  {
+    this.databaseVersion = databaseVersion;
+    this.schemaDigest    = schemaDigest;
+    this.iv              = iv;
+    this.parentFiles     = parentFiles;
+    this.tables          = tables;
+  }
+
+  /**
+   * @return The manifest of the most recent backup if the next backup can be a delta against it,
+   *         otherwise null.
+   */
+  public static @Nullable BackupManifest getForIncrementalBackup(@NonNull Context context, @NonNull File backupDirectory) {
+    BackupManifest manifest = read(context);
+
+    if (manifest == null) {
+      return null;
+    }
+
+    if (manifest.parentFiles.size() >= MAX_DELTA_COUNT) {
+      Log.i(TAG, "Backup chain is complete, next backup will be a full backup.");
+      return null;
+    }
+
+    for (String file : manifest.getChain()) {
+      if (!new File(backupDirectory, file).exists()) {
+        Log.w(TAG, "Backup chain is missing " + file + ", next backup will be a full backup.");
+        return null;
+      }
+    }
+
+    return manifest;
+  }
+
+  public static void clear(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (file.exists() && !file.delete()) {
+      Log.w(TAG, "Failed to delete backup manifest.");
+    }
+  }
+
+  /**
+   * Records this manifest as describing the backup that was written to the given file.
+   */
+  public void write(@NonNull Context context, @NonNull String fileName) throws IOException {
+    File file     = getFile(context);
+    File tempFile = new File(file.getParentFile(), FILE_NAME + ".tmp");
+
+    this.fileName = fileName;
+
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tempFile))) {
+      serialize(out, fileName);
+    }
+
+    if (!tempFile.renameTo(file)) {
+      tempFile.delete();
+      throw new IOException("Renaming temporary backup manifest failed!");
+    }
+  }
+
+  /**
+   * @return True if this backup was written as a delta against an earlier one.
+   */
+  public boolean isIncremental() {
+    return !parentFiles.isEmpty();
+  }
+
+  boolean isCompatible(int databaseVersion, @NonNull byte[] schemaDigest) {
+    return this.databaseVersion == databaseVersion && Arrays.equals(this.schemaDigest, schemaDigest);
+  }
+
+  @NonNull byte[] getIv() {
+    return iv;
+  }
+
+  /**
+   * @return The names of every file in the chain up to and including this backup, starting with
+   *         the full backup.
+   */
+  @NonNull List<String> getChain() {
+    List<String> chain = new ArrayList<>(parentFiles);
+
+    if (fileName != null) {
+      chain.add(fileName);
+    }
+
+    return chain;
+  }
+
+  @Nullable RowDigests getRowDigests(@NonNull String table) {
+    return tables.get(table);
+  }
+
+  static @NonNull byte[] digestSchema(@NonNull List<String> statements) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+
+      for (String statement : statements) {
+        digest.update(statement.getBytes());
+        digest.update((byte) 0);
+      }
+
+      return digest.digest();
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  void serialize(@NonNull OutputStream outputStream, @NonNull String fileName) throws IOException {
+    DataOutputStream out = new DataOutputStream(outputStream);
+
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(databaseVersion);
+    writeBytes(out, schemaDigest);
+    writeBytes(out, iv);
+    out.writeUTF(fileName);
+
+    out.writeInt(parentFiles.size());
+    for (String parentFile : parentFiles) {
+      out.writeUTF(parentFile);
+    }
+
+    out.writeInt(tables.size());
+    for (Map.Entry<String, RowDigests> table : tables.entrySet()) {
+      RowDigests rows = table.getValue();
+
+      out.writeUTF(table.getKey());
+      out.writeInt(rows.size());
+
+      for (int i = 0; i < rows.size(); i++) {
+        out.writeLong(rows.getRowId(i));
+        out.writeLong(rows.getDigest(i));
+      }
+    }
+
+    out.flush();
+  }
+
+  static @NonNull BackupManifest deserialize(@NonNull InputStream inputStream) throws IOException {
+    DataInputStream in = new DataInputStream(inputStream);
+
+    if (in.readInt() != FORMAT_VERSION) {
+      throw new IOException("Unknown manifest format!");
+    }
+
+    int    databaseVersion = in.readInt();
+    byte[] schemaDigest    = readBytes(in);
+    byte[] iv              = readBytes(in);
+    String fileName        = in.readUTF();
+
+    int          parentCount = in.readInt();
+    List<String> parentFiles = new ArrayList<>(parentCount);
+
+    for (int i = 0; i < parentCount; i++) {
+      parentFiles.add(in.readUTF());
+    }
+
+    int                     tableCount = in.readInt();
+    Map<String, RowDigests> tables     = new HashMap<>(tableCount);
+
+    for (int i = 0; i < tableCount; i++) {
+      String     table    = in.readUTF();
+      int        rowCount = in.readInt();
+      RowDigests rows     = new RowDigests(rowCount);
+
+      for (int j = 0; j < rowCount; j++) {
+        rows.add(in.readLong(), in.readLong());
+      }
+
+      tables.put(table, rows);
+    }
+
+    BackupManifest manifest = new BackupManifest(databaseVersion, schemaDigest, iv, Collections.unmodifiableList(parentFiles), tables);
+    manifest.fileName = fileName;
+
+    return manifest;
+  }
+
+  private static @Nullable BackupManifest read(@NonNull Context context) {
+    File file = getFile(context);
+
+    if (!file.exists()) {
+      return null;
+    }
+
+    try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+      return deserialize(in);
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to read backup manifest.", e);
+      return null;
+    }
+  }
+
+  private static @NonNull File getFile(@NonNull Context context) {
+    return new File(context.getFilesDir(), FILE_NAME);
+  }
+
+  private static void writeBytes(@NonNull DataOutputStream out, @NonNull byte[] bytes) throws IOException {
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static @NonNull byte[] readBytes(@NonNull DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * The rowids and content digests of the exported rows of a single table, in ascending rowid
+   * order. Kept as parallel primitive arrays, since a table can hold hundreds of thousands of rows.
+   */
+  static class RowDigests {
+
+    private long[] rowIds;
+    private long[] digests;
+    private int    size;
+
+    RowDigests() {
+      this(16);
+    }
+
+    RowDigests(int capacity) {
+      this.rowIds  = new long[Math.max(capacity, 1)];
+      this.digests = new long[Math.max(capacity, 1)];
+    }
+
+    void add(long rowId, long digest) {
+      if (size == rowIds.length) {
+        rowIds  = Arrays.copyOf(rowIds, size * 2);
+        digests = Arrays.copyOf(digests, size * 2);
+      }
+
+      rowIds[size]  = rowId;
+      digests[size] = digest;
+      size++;
+    }
+
+    int size() {
+      return size;
+    }
+
+    long getRowId(int index) {
+      return rowIds[index];
+    }
+
+    long getDigest(int index) {
+      return digests[index];
+    }
+
+    static long digestRow(@NonNull MessageDigest digest, @NonNull byte[] row) {
+      return Conversions.byteArrayToLong(digest.digest(row));
+    }
+  }
+}
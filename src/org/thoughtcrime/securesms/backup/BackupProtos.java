@@ -4427,6 +4427,26 @@ public final class BackupProtos {
      * <code>optional bytes salt = 2;</code>
      */
     com.google.protobuf.ByteString getSalt();
+
+    // optional uint32 keyDerivation = 3;
+    /**
+     * <code>optional uint32 keyDerivation = 3;</code>
+     */
+    boolean hasKeyDerivation();
+    /**
+     * <code>optional uint32 keyDerivation = 3;</code>
+     */
+    int getKeyDerivation();
+
+    // optional bytes parentIv = 4;
+    /**
+     * <code>optional bytes parentIv = 4;</code>
+     */
+    boolean hasParentIv();
+    /**
+     * <code>optional bytes parentIv = 4;</code>
+     */
+    com.google.protobuf.ByteString getParentIv();
   }
   /**
    * Protobuf type {@code signal.Header}
@@ -4489,6 +4509,16 @@ public final class BackupProtos {
               salt_ = input.readBytes();
               break;
             }
+            case 24: {
+              bitField0_ |= 0x00000004;
+              keyDerivation_ = input.readUInt32();
+              break;
+            }
+            case 34: {
+              bitField0_ |= 0x00000008;
+              parentIv_ = input.readBytes();
+              break;
+            }
           }
         }
       } catch (com.google.protobuf.InvalidProtocolBufferException e) {
@@ -4561,9 +4591,43 @@ public final class BackupProtos {
       return salt_;
     }
 
+    // optional uint32 keyDerivation = 3;
+    public static final int KEYDERIVATION_FIELD_NUMBER = 3;
+    private int keyDerivation_;
+    /**
+     * <code>optional uint32 keyDerivation = 3;</code>
+     */
+    public boolean hasKeyDerivation() {
+      return ((bitField0_ & 0x00000004) == 0x00000004);
+    }
+    /**
+     * <code>optional uint32 keyDerivation = 3;</code>
+     */
+    public int getKeyDerivation() {
+      return keyDerivation_;
+    }
+
+    // optional bytes parentIv = 4;
+    public static final int PARENTIV_FIELD_NUMBER = 4;
+    private com.google.protobuf.ByteString parentIv_;
+    /**
+     * <code>optional bytes parentIv = 4;</code>
+     */
+    public boolean hasParentIv() {
+      return ((bitField0_ & 0x00000008) == 0x00000008);
+    }
+    /**
+     * <code>optional bytes parentIv = 4;</code>
+     */
+    public com.google.protobuf.ByteString getParentIv() {
+      return parentIv_;
+    }
+
     private void initFields() {
       iv_ = com.google.protobuf.ByteString.EMPTY;
       salt_ = com.google.protobuf.ByteString.EMPTY;
+      keyDerivation_ = 0;
+      parentIv_ = com.google.protobuf.ByteString.EMPTY;
     }
     private byte memoizedIsInitialized = -1;
     public final boolean isInitialized() {
@@ -4583,6 +4647,12 @@ public final class BackupProtos {
       if (((bitField0_ & 0x00000002) == 0x00000002)) {
         output.writeBytes(2, salt_);
       }
+      if (((bitField0_ & 0x00000004) == 0x00000004)) {
+        output.writeUInt32(3, keyDerivation_);
+      }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        output.writeBytes(4, parentIv_);
+      }
       getUnknownFields().writeTo(output);
     }
 
@@ -4600,6 +4670,14 @@ public final class BackupProtos {
         size += com.google.protobuf.CodedOutputStream
           .computeBytesSize(2, salt_);
       }
+      if (((bitField0_ & 0x00000004) == 0x00000004)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeUInt32Size(3, keyDerivation_);
+      }
+      if (((bitField0_ & 0x00000008) == 0x00000008)) {
+        size += com.google.protobuf.CodedOutputStream
+          .computeBytesSize(4, parentIv_);
+      }
       size += getUnknownFields().getSerializedSize();
       memoizedSerializedSize = size;
       return size;
@@ -4720,6 +4798,10 @@ public final class BackupProtos {
         bitField0_ = (bitField0_ & ~0x00000001);
         salt_ = com.google.protobuf.ByteString.EMPTY;
         bitField0_ = (bitField0_ & ~0x00000002);
+        keyDerivation_ = 0;
+        bitField0_ = (bitField0_ & ~0x00000004);
+        parentIv_ = com.google.protobuf.ByteString.EMPTY;
+        bitField0_ = (bitField0_ & ~0x00000008);
         return this;
       }
 
@@ -4756,6 +4838,14 @@ public final class BackupProtos {
           to_bitField0_ |= 0x00000002;
         }
         result.salt_ = salt_;
+        if (((from_bitField0_ & 0x00000004) == 0x00000004)) {
+          to_bitField0_ |= 0x00000004;
+        }
+        result.keyDerivation_ = keyDerivation_;
+        if (((from_bitField0_ & 0x00000008) == 0x00000008)) {
+          to_bitField0_ |= 0x00000008;
+        }
+        result.parentIv_ = parentIv_;
         result.bitField0_ = to_bitField0_;
         onBuilt();
         return result;
@@ -4778,6 +4868,12 @@ public final class BackupProtos {
         if (other.hasSalt()) {
           setSalt(other.getSalt());
         }
+        if (other.hasKeyDerivation()) {
+          setKeyDerivation(other.getKeyDerivation());
+        }
+        if (other.hasParentIv()) {
+          setParentIv(other.getParentIv());
+        }
         this.mergeUnknownFields(other.getUnknownFields());
         return this;
       }
@@ -4877,6 +4973,75 @@ public final class BackupProtos {
         return this;
       }
 
+      // optional uint32 keyDerivation = 3;
+      private int keyDerivation_ ;
+      /**
+       * <code>optional uint32 keyDerivation = 3;</code>
+       */
+      public boolean hasKeyDerivation() {
+        return ((bitField0_ & 0x00000004) == 0x00000004);
+      }
+      /**
+       * <code>optional uint32 keyDerivation = 3;</code>
+       */
+      public int getKeyDerivation() {
+        return keyDerivation_;
+      }
+      /**
+       * <code>optional uint32 keyDerivation = 3;</code>
+       */
+      public Builder setKeyDerivation(int value) {
+        bitField0_ |= 0x00000004;
+        keyDerivation_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional uint32 keyDerivation = 3;</code>
+       */
+      public Builder clearKeyDerivation() {
+        bitField0_ = (bitField0_ & ~0x00000004);
+        keyDerivation_ = 0;
+        onChanged();
+        return this;
+      }
+
+      // optional bytes parentIv = 4;
+      private com.google.protobuf.ByteString parentIv_ = com.google.protobuf.ByteString.EMPTY;
+      /**
+       * <code>optional bytes parentIv = 4;</code>
+       */
+      public boolean hasParentIv() {
+        return ((bitField0_ & 0x00000008) == 0x00000008);
+      }
+      /**
+       * <code>optional bytes parentIv = 4;</code>
+       */
+      public com.google.protobuf.ByteString getParentIv() {
+        return parentIv_;
+      }
+      /**
+       * <code>optional bytes parentIv = 4;</code>
+       */
+      public Builder setParentIv(com.google.protobuf.ByteString value) {
+        if (value == null) {
+    throw new NullPointerException();
+  }
+  bitField0_ |= 0x00000008;
+        parentIv_ = value;
+        onChanged();
+        return this;
+      }
+      /**
+       * <code>optional bytes parentIv = 4;</code>
+       */
+      public Builder clearParentIv() {
+        bitField0_ = (bitField0_ & ~0x00000008);
+        parentIv_ = getDefaultInstance().getParentIv();
+        onChanged();
+        return this;
+      }
+
       // @@protoc_insertion_point(builder_scope:signal.Header)
     }
 
@@ -6694,8 +6859,8 @@ public final class BackupProtos {
       "\002 \001(\004\022\016\n\006length\030\003 \001(\r\"(\n\007Sticker\022\r\n\005rowI",
       "d\030\001 \001(\004\022\016\n\006length\030\002 \001(\r\"&\n\006Avatar\022\014\n\004nam" +
       "e\030\001 \001(\t\022\016\n\006length\030\002 \001(\r\"\"\n\017DatabaseVersi" +
-      "on\022\017\n\007version\030\001 \001(\r\"\"\n\006Header\022\n\n\002iv\030\001 \001(" +
-      "\014\022\014\n\004salt\030\002 \001(\014\"\245\002\n\013BackupFrame\022\036\n\006heade" +
+      "on\022\017\n\007version\030\001 \001(\r\"K\n\006Header\022\n\n\002iv\030\001 \001(" +
+      "\014\022\014\n\004salt\030\002 \001(\014\022\025\n\rkeyDerivation\030\003 \001(\r\022\020\n\010parentIv\030\004 \001(\014\"\245\002\n\013BackupFrame\022\036\n\006heade" +
       "r\030\001 \001(\0132\016.signal.Header\022\'\n\tstatement\030\002 \001" +
       "(\0132\024.signal.SqlStatement\022,\n\npreference\030\003" +
       " \001(\0132\030.signal.SharedPreference\022&\n\nattach" +
@@ -6758,7 +6923,7 @@ public final class BackupProtos {
           internal_static_signal_Header_fieldAccessorTable = new
             com.google.protobuf.GeneratedMessage.FieldAccessorTable(
               internal_static_signal_Header_descriptor,
-              new java.lang.String[] { "Iv", "Salt", });
+              new java.lang.String[] { "Iv", "Salt", "KeyDerivation", "ParentIv", });
           internal_static_signal_BackupFrame_descriptor =
             getDescriptor().getMessageTypes().get(7);
           internal_static_signal_BackupFrame_fieldAccessorTable = new
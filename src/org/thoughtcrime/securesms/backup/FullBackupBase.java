@@ -5,10 +5,8 @@ import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
 import org.greenrobot.eventbus.EventBus;
-import org.whispersystems.libsignal.util.ByteUtil;
 
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.io.IOException;
 
 public abstract class FullBackupBase {
 
@@ -16,27 +14,46 @@ public abstract class FullBackupBase {
   private static final String TAG = FullBackupBase.class.getSimpleName();
 
   static class BackupStream {
-    static @NonNull byte[] getBackupKey(@NonNull String passphrase, @Nullable byte[] salt) {
-      try {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+    static @NonNull byte[] getBackupKey(@NonNull String passphrase,
+                                        @Nullable byte[] salt,
+                                        int keyDerivation,
+                                        @Nullable BackupKeyDerivation.CancelationSignal cancelationSignal)
+        throws IOException
+    {
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
+      return BackupKeyDerivation.deriveKey(passphrase, salt, keyDerivation, cancelationSignal);
+    }
+  }
+
+  /**
+   * Counts the items processed by a backup or restore and posts a {@link BackupEvent} for them at
+   * most once every {@link #INTERVAL}, rather than once per item.
+   */
+  static class BackupProgress {
 
-        MessageDigest digest = MessageDigest.getInstance("SHA-512");
-        byte[]        input  = passphrase.replace(" ", "").getBytes();
-        byte[]        hash   = input;
+    private static final long INTERVAL = 250;
 
-        if (salt != null) digest.update(salt);
+    private int  count;
+    private long lastPostTime;
 
-        for (int i=0;i<250000;i++) {
-          if (i % 1000 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, 0));
-          digest.update(hash);
-          hash = digest.digest(input);
-        }
+    void increment() {
+      count++;
 
-        return ByteUtil.trim(hash, 32);
-      } catch (NoSuchAlgorithmException e) {
-        throw new AssertionError(e);
+      long now = System.currentTimeMillis();
+
+      if (now - lastPostTime >= INTERVAL) {
+        lastPostTime = now;
+        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
       }
     }
+
+    void finish() {
+      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+    }
+
+    int getCount() {
+      return count;
+    }
   }
 
   public static class BackupEvent {
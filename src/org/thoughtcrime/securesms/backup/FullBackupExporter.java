@@ -13,7 +13,6 @@ import com.google.protobuf.ByteString;
 
 import net.sqlcipher.database.SQLiteDatabase;
 
-import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.attachments.AttachmentId;
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
@@ -33,9 +32,12 @@ import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.profiles.AvatarHelper;
 import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SettableFuture;
 import org.whispersystems.libsignal.kdf.HKDFv3;
 import org.whispersystems.libsignal.util.ByteUtil;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
@@ -44,9 +46,21 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -61,59 +75,138 @@ public class FullBackupExporter extends FullBackupBase {
   @SuppressWarnings("unused")
   private static final String TAG = FullBackupExporter.class.getSimpleName();
 
-  public static void export(@NonNull Context context,
-                            @NonNull AttachmentSecret attachmentSecret,
-                            @NonNull SQLiteDatabase input,
-                            @NonNull File output,
-                            @NonNull String passphrase)
+  /**
+   * Backups keep using the legacy key derivation until every supported version of the app can
+   * read a header that asks for something else.
+   */
+  private static final int DEFAULT_KEY_DERIVATION = BackupKeyDerivation.LEGACY;
+
+  public static @NonNull BackupManifest export(@NonNull Context context,
+                                               @NonNull AttachmentSecret attachmentSecret,
+                                               @NonNull SQLiteDatabase input,
+                                               @NonNull File output,
+                                               @NonNull String passphrase)
       throws IOException
   {
-    BackupFrameOutputStream outputStream = new BackupFrameOutputStream(output, passphrase);
-    outputStream.writeDatabaseVersion(input.getVersion());
-
-    List<String> tables = exportSchema(input, outputStream);
-    int          count  = 0;
-
-    for (String table : tables) {
-      if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0, null, count);
-      } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, count);
-      } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(input, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), cursor -> exportAttachment(attachmentSecret, cursor, outputStream), count);
-      } else if (table.equals(StickerDatabase.TABLE_NAME)) {
-        count = exportTable(table, input, outputStream, cursor -> true, cursor -> exportSticker(attachmentSecret, cursor, outputStream), count);
-      } else if (!table.equals(SignedPreKeyDatabase.TABLE_NAME)       &&
-                 !table.equals(OneTimePreKeyDatabase.TABLE_NAME)      &&
-                 !table.equals(SessionDatabase.TABLE_NAME)            &&
-                 !table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) &&
-                 !table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME) &&
-                 !table.startsWith("sqlite_"))
-      {
-        count = exportTable(table, input, outputStream, null, null, count);
-      }
-    }
-
-    for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(preference);
-    }
+    return export(context, attachmentSecret, input, output, passphrase, null);
+  }
 
-    for (File avatar : AvatarHelper.getAvatarFiles(context)) {
-      EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
-      outputStream.write(avatar.getName(), new FileInputStream(avatar), avatar.length());
-    }
+  /**
+   * @param previous The manifest of the most recent backup. If given, and the database schema has
+   *                 not changed since, only the rows and attachments that were added, changed or
+   *                 removed since that backup are written, as a delta to be restored on top of it.
+   * @return The manifest of the backup that was written.
+   */
+  public static @NonNull BackupManifest export(@NonNull Context context,
+                                               @NonNull AttachmentSecret attachmentSecret,
+                                               @NonNull SQLiteDatabase input,
+                                               @NonNull File output,
+                                               @NonNull String passphrase,
+                                               @Nullable BackupManifest previous)
+      throws IOException
+  {
+    return export(context, attachmentSecret, input, output, passphrase, previous, null);
+  }
 
-    outputStream.writeEnd();
-    outputStream.close();
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, ++count));
+  /**
+   * @param cancelationSignal Checked while the key is derived and between rows. Once it reports
+   *                          canceled, a {@link BackupKeyDerivation.CanceledException} is thrown
+   *                          and the output is left incomplete.
+   */
+  public static @NonNull BackupManifest export(@NonNull Context context,
+                                               @NonNull AttachmentSecret attachmentSecret,
+                                               @NonNull SQLiteDatabase input,
+                                               @NonNull File output,
+                                               @NonNull String passphrase,
+                                               @Nullable BackupManifest previous,
+                                               @Nullable BackupKeyDerivation.CancelationSignal cancelationSignal)
+      throws IOException
+  {
+    return export(context, attachmentSecret, input, output, passphrase, previous, DEFAULT_KEY_DERIVATION, cancelationSignal);
   }
 
-  private static List<String> exportSchema(@NonNull SQLiteDatabase input, @NonNull BackupFrameOutputStream outputStream)
+  public static @NonNull BackupManifest export(@NonNull Context context,
+                                               @NonNull AttachmentSecret attachmentSecret,
+                                               @NonNull SQLiteDatabase input,
+                                               @NonNull File output,
+                                               @NonNull String passphrase,
+                                               @Nullable BackupManifest previous,
+                                               int keyDerivation,
+                                               @Nullable BackupKeyDerivation.CancelationSignal cancelationSignal)
       throws IOException
   {
-    List<String> tables = new LinkedList<>();
+    int          databaseVersion = input.getVersion();
+    List<String> schema          = new LinkedList<>();
+    List<String> tables          = new LinkedList<>();
+
+    readSchema(input, schema, tables);
+
+    byte[]         schemaDigest = BackupManifest.digestSchema(schema);
+    BackupManifest parent       = previous != null && previous.isCompatible(databaseVersion, schemaDigest) ? previous : null;
+
+    BackupFrameOutputStream                outputStream      = new BackupFrameOutputStream(output, passphrase, parent != null ? parent.getIv() : null, keyDerivation, cancelationSignal);
+    Map<String, BackupManifest.RowDigests> rowDigests        = new HashMap<>();
+    long[]                                 nonExpiringMmsIds = getNonExpiringMmsIds(input);
+    BackupProgress                         progress          = new BackupProgress();
+
+    try {
+      outputStream.writeDatabaseVersion(databaseVersion);
+
+      if (parent == null) {
+        for (String statement : schema) {
+          outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement(statement).build());
+        }
+      }
+
+      for (String table : tables) {
+        BackupManifest.RowDigests previousRows = parent != null ? parent.getRowDigests(table) : null;
+
+        if (parent != null && previousRows == null) {
+          previousRows = new BackupManifest.RowDigests();
+        }
+
+        if (table.equals(SmsDatabase.TABLE_NAME) || table.equals(MmsDatabase.TABLE_NAME)) {
+          rowDigests.put(table, exportTable(table, input, outputStream, cursor -> cursor.getInt(cursor.getColumnIndexOrThrow(MmsSmsColumns.EXPIRES_IN)) <= 0, null, previousRows, progress, cancelationSignal));
+        } else if (table.equals(GroupReceiptDatabase.TABLE_NAME)) {
+          rowDigests.put(table, exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(nonExpiringMmsIds, cursor.getLong(cursor.getColumnIndexOrThrow(GroupReceiptDatabase.MMS_ID))), null, previousRows, progress, cancelationSignal));
+        } else if (table.equals(AttachmentDatabase.TABLE_NAME)) {
+          rowDigests.put(table, exportTable(table, input, outputStream, cursor -> isForNonExpiringMessage(nonExpiringMmsIds, cursor.getLong(cursor.getColumnIndexOrThrow(AttachmentDatabase.MMS_ID))), cursor -> exportAttachment(attachmentSecret, cursor, outputStream), previousRows, progress, cancelationSignal));
+        } else if (table.equals(StickerDatabase.TABLE_NAME)) {
+          rowDigests.put(table, exportTable(table, input, outputStream, cursor -> true, cursor -> exportSticker(attachmentSecret, cursor, outputStream), previousRows, progress, cancelationSignal));
+        } else if (!table.equals(SignedPreKeyDatabase.TABLE_NAME)       &&
+                   !table.equals(OneTimePreKeyDatabase.TABLE_NAME)      &&
+                   !table.equals(SessionDatabase.TABLE_NAME)            &&
+                   !table.startsWith(SearchDatabase.SMS_FTS_TABLE_NAME) &&
+                   !table.startsWith(SearchDatabase.MMS_FTS_TABLE_NAME) &&
+                   !table.startsWith("sqlite_"))
+        {
+          rowDigests.put(table, exportTable(table, input, outputStream, null, null, previousRows, progress, cancelationSignal));
+        }
+      }
+
+      for (BackupProtos.SharedPreference preference : IdentityKeyUtil.getBackupRecord(context)) {
+        progress.increment();
+        outputStream.write(preference);
+      }
+
+      for (File avatar : AvatarHelper.getAvatarFiles(context)) {
+        progress.increment();
+        outputStream.write(avatar.getName(), new FileInputStream(avatar), avatar.length());
+      }
+
+      outputStream.writeEnd();
+    } finally {
+      outputStream.close();
+    }
+
+    progress.finish();
 
+    List<String> parentFiles = parent != null ? parent.getChain() : Collections.emptyList();
+
+    return new BackupManifest(databaseVersion, schemaDigest, outputStream.getHeaderIv(), parentFiles, rowDigests);
+  }
+
+  private static void readSchema(@NonNull SQLiteDatabase input, @NonNull List<String> schema, @NonNull List<String> tables) {
     try (Cursor cursor = input.rawQuery("SELECT sql, name, type FROM sqlite_master", null)) {
       while (cursor != null && cursor.moveToNext()) {
         String sql  = cursor.getString(0);
@@ -130,67 +223,135 @@ public class FullBackupExporter extends FullBackupBase {
               tables.add(name);
             }
 
-            outputStream.write(BackupProtos.SqlStatement.newBuilder().setStatement(cursor.getString(0)).build());
+            schema.add(sql);
           }
         }
       }
     }
-
-    return tables;
   }
 
-  private static int exportTable(@NonNull   String table,
-                                 @NonNull   SQLiteDatabase input,
-                                 @NonNull   BackupFrameOutputStream outputStream,
-                                 @Nullable  Predicate<Cursor> predicate,
-                                 @Nullable  Consumer<Cursor> postProcess,
-                                            int count)
+  /**
+   * Writes the rows of a table that pass the predicate. If the rows of the previous backup are
+   * given, rows whose contents are unchanged since then are skipped, changed rows replace their
+   * earlier version and rows that are gone are deleted.
+   *
+   * Rows are identified by their rowid. Every table that's exported has an INTEGER PRIMARY KEY,
+   * which is an alias for the rowid, so the rowids are restored along with the rows.
+   *
+   * @return The rowids and digests of all rows that passed the predicate.
+   */
+  private static @NonNull BackupManifest.RowDigests exportTable(@NonNull   String table,
+                                                                @NonNull   SQLiteDatabase input,
+                                                                @NonNull   BackupFrameOutputStream outputStream,
+                                                                @Nullable  Predicate<Cursor> predicate,
+                                                                @Nullable  Consumer<Cursor> postProcess,
+                                                                @Nullable  BackupManifest.RowDigests previousRows,
+                                                                @NonNull   BackupProgress progress,
+                                                                @Nullable  BackupKeyDerivation.CancelationSignal cancelationSignal)
       throws IOException
   {
-    String template = "INSERT INTO " + table + " VALUES ";
+    BackupManifest.RowDigests rows          = new BackupManifest.RowDigests();
+    int                       previousIndex = 0;
 
-    try (Cursor cursor = input.rawQuery("SELECT * FROM " + table, null)) {
-      while (cursor != null && cursor.moveToNext()) {
-        EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, ++count));
+    try (Cursor cursor = input.rawQuery("SELECT _rowid_, * FROM " + table + " ORDER BY _rowid_", null)) {
+      if (cursor == null) return rows;
+
+      int                                            columnCount      = cursor.getColumnCount();
+      String                                         statement        = buildInsertStatement(table, columnCount - 1, previousRows != null);
+      String                                         deleteStatement  = "DELETE FROM " + table + " WHERE _rowid_ = ?";
+      MessageDigest                                  digest           = getRowDigest();
+      BackupProtos.SqlStatement.Builder              statementBuilder = BackupProtos.SqlStatement.newBuilder();
+      BackupProtos.SqlStatement.SqlParameter.Builder parameterBuilder = BackupProtos.SqlStatement.SqlParameter.newBuilder();
+
+      while (cursor.moveToNext()) {
+        BackupKeyDerivation.throwIfCanceled(cancelationSignal);
+        progress.increment();
 
         if (predicate == null || predicate.test(cursor)) {
-          StringBuilder                     statement        = new StringBuilder(template);
-          BackupProtos.SqlStatement.Builder statementBuilder = BackupProtos.SqlStatement.newBuilder();
-
-          statement.append('(');
-
-          for (int i=0;i<cursor.getColumnCount();i++) {
-            statement.append('?');
-
-            if (cursor.getType(i) == Cursor.FIELD_TYPE_STRING) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setStringParamter(cursor.getString(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_FLOAT) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setDoubleParameter(cursor.getDouble(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(cursor.getLong(i)));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setBlobParameter(ByteString.copyFrom(cursor.getBlob(i))));
-            } else if (cursor.getType(i) == Cursor.FIELD_TYPE_NULL) {
-              statementBuilder.addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setNullparameter(true));
+          long rowId = cursor.getLong(0);
+
+          statementBuilder.clear();
+
+          for (int i = 1; i < columnCount; i++) {
+            int type = cursor.getType(i);
+
+            parameterBuilder.clear();
+
+            if (type == Cursor.FIELD_TYPE_STRING) {
+              parameterBuilder.setStringParamter(cursor.getString(i));
+            } else if (type == Cursor.FIELD_TYPE_FLOAT) {
+              parameterBuilder.setDoubleParameter(cursor.getDouble(i));
+            } else if (type == Cursor.FIELD_TYPE_INTEGER) {
+              parameterBuilder.setIntegerParameter(cursor.getLong(i));
+            } else if (type == Cursor.FIELD_TYPE_BLOB) {
+              parameterBuilder.setBlobParameter(ByteString.copyFrom(cursor.getBlob(i)));
+            } else if (type == Cursor.FIELD_TYPE_NULL) {
+              parameterBuilder.setNullparameter(true);
             } else {
-              throw new AssertionError("unknown type?"  + cursor.getType(i));
+              throw new AssertionError("unknown type?"  + type);
             }
 
-            if (i < cursor.getColumnCount()-1) {
-              statement.append(',');
-            }
+            statementBuilder.addParameters(parameterBuilder);
           }
 
-          statement.append(')');
+          long rowDigest = BackupManifest.RowDigests.digestRow(digest, statementBuilder.build().toByteArray());
+          rows.add(rowId, rowDigest);
+
+          if (previousRows != null) {
+            while (previousIndex < previousRows.size() && previousRows.getRowId(previousIndex) < rowId) {
+              outputStream.write(buildDeleteStatement(deleteStatement, previousRows.getRowId(previousIndex++)));
+            }
+
+            if (previousIndex < previousRows.size() && previousRows.getRowId(previousIndex) == rowId) {
+              if (previousRows.getDigest(previousIndex++) == rowDigest) {
+                continue;
+              }
+            }
+          }
 
-          outputStream.write(statementBuilder.setStatement(statement.toString()).build());
+          outputStream.write(statementBuilder.setStatement(statement).build());
 
           if (postProcess != null) postProcess.accept(cursor);
         }
       }
+
+      if (previousRows != null) {
+        while (previousIndex < previousRows.size()) {
+          outputStream.write(buildDeleteStatement(deleteStatement, previousRows.getRowId(previousIndex++)));
+        }
+      }
+    }
+
+    return rows;
+  }
+
+  private static @NonNull String buildInsertStatement(@NonNull String table, int columnCount, boolean replace) {
+    StringBuilder statement = new StringBuilder(replace ? "INSERT OR REPLACE INTO " : "INSERT INTO ").append(table).append(" VALUES (");
+
+    for (int i = 0; i < columnCount; i++) {
+      statement.append('?');
+
+      if (i < columnCount - 1) {
+        statement.append(',');
+      }
     }
 
-    return count;
+    return statement.append(')').toString();
+  }
+
+  private static @NonNull BackupProtos.SqlStatement buildDeleteStatement(@NonNull String statement, long rowId) {
+    return BackupProtos.SqlStatement.newBuilder()
+                                    .setStatement(statement)
+                                    .addParameters(BackupProtos.SqlStatement.SqlParameter.newBuilder().setIntegerParameter(rowId))
+                                    .build();
+  }
+
+  private static @NonNull MessageDigest getRowDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
   }
 
   private static void exportAttachment(@NonNull AttachmentSecret attachmentSecret, @NonNull Cursor cursor, @NonNull BackupFrameOutputStream outputStream) {
@@ -253,164 +414,363 @@ public class FullBackupExporter extends FullBackupBase {
     return result;
   }
 
-  private static boolean isForNonExpiringMessage(@NonNull SQLiteDatabase db, long mmsId) {
-    String[] columns = new String[] { MmsDatabase.EXPIRES_IN };
-    String   where   = MmsDatabase.ID + " = ?";
-    String[] args    = new String[] { String.valueOf(mmsId) };
+  /**
+   * @return The sorted ids of every MMS that doesn't expire, so that the rows that belong to them
+   *         can be checked without a query each.
+   */
+  private static @NonNull long[] getNonExpiringMmsIds(@NonNull SQLiteDatabase db) {
+    String[] columns = new String[] { MmsDatabase.ID };
+    String   where   = MmsDatabase.EXPIRES_IN + " = 0";
 
-    try (Cursor mmsCursor = db.query(MmsDatabase.TABLE_NAME, columns, where, args, null, null, null)) {
-      if (mmsCursor != null && mmsCursor.moveToFirst()) {
-        return mmsCursor.getLong(0) == 0;
+    try (Cursor cursor = db.query(MmsDatabase.TABLE_NAME, columns, where, null, null, null, null)) {
+      if (cursor == null) return new long[0];
+
+      long[] ids = new long[cursor.getCount()];
+      int    i   = 0;
+
+      while (cursor.moveToNext() && i < ids.length) {
+        ids[i++] = cursor.getLong(0);
       }
-    }
 
-    return false;
+      Arrays.sort(ids, 0, i);
+      return i == ids.length ? ids : Arrays.copyOf(ids, i);
+    }
   }
 
+  private static boolean isForNonExpiringMessage(@NonNull long[] nonExpiringMmsIds, long mmsId) {
+    return Arrays.binarySearch(nonExpiringMmsIds, mmsId) >= 0;
+  }
 
+  /**
+   * Writes encrypted backup frames. Attachment, sticker and avatar streams are each encrypted under
+   * their own IV and MAC, so once their position in the file has been decided they can be decrypted
+   * and re-encrypted on the executor in parallel. The results are written out strictly in the order
+   * they were submitted, so the file is identical to one written on a single thread.
+   *
+   * Streams larger than {@link #MAX_BUFFERED_STREAM_LENGTH} are encrypted inline instead, and the
+   * amount of output held in memory waiting on earlier streams is bounded by
+   * {@link #MAX_BUFFERED_BYTES}.
+   */
   private static class BackupFrameOutputStream extends BackupStream {
 
-    private final OutputStream outputStream;
-    private final Cipher       cipher;
-    private final Mac          mac;
+    private static final long MAX_BUFFERED_STREAM_LENGTH = 4 * 1024 * 1024;
+    private static final long MAX_BUFFERED_BYTES         = 32 * 1024 * 1024;
+    private static final int  ENCRYPTION_THREAD_COUNT    = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+
+    private final OutputStream          outputStream;
+    private final ExecutorService       executor;
+    private final Queue<PendingSegment> pendingSegments;
+    private final Cipher                cipher;
+    private final Mac                   mac;
 
     private final byte[]       cipherKey;
     private final byte[]       macKey;
+    private final byte[]       headerIv;
 
     private byte[] iv;
     private int    counter;
-
-    private BackupFrameOutputStream(@NonNull File output, @NonNull String passphrase) throws IOException {
+    private long   pendingBytes;
+
+    private BackupFrameOutputStream(@NonNull File output,
+                                    @NonNull String passphrase,
+                                    @Nullable byte[] parentIv,
+                                    int keyDerivation,
+                                    @Nullable BackupKeyDerivation.CancelationSignal cancelationSignal)
+        throws IOException
+    {
       try {
         byte[]   salt    = Util.getSecretBytes(32);
-        byte[]   key     = getBackupKey(passphrase, salt);
+        byte[]   key     = getBackupKey(passphrase, salt, keyDerivation, cancelationSignal);
         byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
         byte[][] split   = ByteUtil.split(derived, 32, 32);
 
         this.cipherKey = split[0];
         this.macKey    = split[1];
 
-        this.cipher       = Cipher.getInstance("AES/CTR/NoPadding");
-        this.mac          = Mac.getInstance("HmacSHA256");
-        this.outputStream = new FileOutputStream(output);
-        this.iv           = Util.getSecretBytes(16);
-        this.counter      = Conversions.byteArrayToInt(iv);
-
-        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        this.cipher          = Cipher.getInstance("AES/CTR/NoPadding");
+        this.mac             = newMac(macKey);
+        this.outputStream    = new BufferedOutputStream(new FileOutputStream(output), 64 * 1024);
+        this.executor        = newEncryptionExecutor();
+        this.pendingSegments = new LinkedList<>();
+        this.iv              = Util.getSecretBytes(16);
+        this.headerIv        = iv.clone();
+        this.counter         = Conversions.byteArrayToInt(iv);
+
+        BackupProtos.Header.Builder headerBuilder = BackupProtos.Header.newBuilder()
+                                                                       .setIv(ByteString.copyFrom(iv))
+                                                                       .setSalt(ByteString.copyFrom(salt))
+                                                                       .setKeyDerivation(keyDerivation);
+
+        if (parentIv != null) {
+          headerBuilder.setParentIv(ByteString.copyFrom(parentIv));
+        }
 
-        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(BackupProtos.Header.newBuilder()
-                                                                                           .setIv(ByteString.copyFrom(iv))
-                                                                                           .setSalt(ByteString.copyFrom(salt)))
-                                                .build().toByteArray();
+        byte[] header = BackupProtos.BackupFrame.newBuilder().setHeader(headerBuilder).build().toByteArray();
 
         outputStream.write(Conversions.intToByteArray(header.length));
         outputStream.write(header);
-      } catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException e) {
+      } catch (NoSuchAlgorithmException | NoSuchPaddingException e) {
         throw new AssertionError(e);
       }
     }
 
     public void write(BackupProtos.SharedPreference preference) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
+      write(BackupProtos.BackupFrame.newBuilder().setPreference(preference).build());
     }
 
     public void write(BackupProtos.SqlStatement statement) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
+      write(BackupProtos.BackupFrame.newBuilder().setStatement(statement).build());
     }
 
     public void write(@NonNull String avatarName, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAvatar(BackupProtos.Avatar.newBuilder()
-                                                                                .setName(avatarName)
-                                                                                .setLength(Util.toIntExact(size))
-                                                                                .build())
-                                                  .build());
-
-      writeStream(in);
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAvatar(BackupProtos.Avatar.newBuilder()
+                                                                  .setName(avatarName)
+                                                                  .setLength(Util.toIntExact(size))
+                                                                  .build())
+                                    .build());
+
+      writeStream(in, size);
     }
 
     public void write(@NonNull AttachmentId attachmentId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setAttachment(BackupProtos.Attachment.newBuilder()
-                                                                                        .setRowId(attachmentId.getRowId())
-                                                                                        .setAttachmentId(attachmentId.getUniqueId())
-                                                                                        .setLength(Util.toIntExact(size))
-                                                                                        .build())
-                                                  .build());
-
-      writeStream(in);
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setAttachment(BackupProtos.Attachment.newBuilder()
+                                                                          .setRowId(attachmentId.getRowId())
+                                                                          .setAttachmentId(attachmentId.getUniqueId())
+                                                                          .setLength(Util.toIntExact(size))
+                                                                          .build())
+                                    .build());
+
+      writeStream(in, size);
     }
 
     public void writeSticker(long rowId, @NonNull InputStream in, long size) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setSticker(BackupProtos.Sticker.newBuilder()
-                                                                                  .setRowId(rowId)
-                                                                                  .setLength(Util.toIntExact(size))
-                                                                                  .build())
-                                                  .build());
-
-      writeStream(in);
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setSticker(BackupProtos.Sticker.newBuilder()
+                                                                    .setRowId(rowId)
+                                                                    .setLength(Util.toIntExact(size))
+                                                                    .build())
+                                    .build());
+
+      writeStream(in, size);
+    }
+
+    @NonNull byte[] getHeaderIv() {
+      return headerIv;
     }
 
     void writeDatabaseVersion(int version) throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder()
-                                                  .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
-                                                  .build());
+      write(BackupProtos.BackupFrame.newBuilder()
+                                    .setVersion(BackupProtos.DatabaseVersion.newBuilder().setVersion(version))
+                                    .build());
     }
 
     void writeEnd() throws IOException {
-      write(outputStream, BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+      write(BackupProtos.BackupFrame.newBuilder().setEnd(true).build());
+      drain(0);
     }
 
-    private void writeStream(@NonNull InputStream inputStream) throws IOException {
+    private void writeStream(@NonNull InputStream inputStream, long size) throws IOException {
+      byte[] streamIv = iv.clone();
+      Conversions.intToByteArray(streamIv, 0, counter++);
+
+      if (size > MAX_BUFFERED_STREAM_LENGTH) {
+        drain(0);
+
+        try {
+          encryptStream(inputStream, size, outputStream, streamIv, cipher, mac);
+        } finally {
+          inputStream.close();
+        }
+      } else {
+        Future<byte[]> ciphertext = executor.submit(() -> {
+          try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) size + 10);
+            encryptStream(inputStream, size, out, streamIv, Cipher.getInstance("AES/CTR/NoPadding"), newMac(macKey));
+            return out.toByteArray();
+          } finally {
+            Util.close(inputStream);
+          }
+        });
+
+        enqueue(new PendingSegment(ciphertext, size + 10));
+      }
+    }
+
+    /**
+     * The frame announcing the stream has already been written by the time it's read, so a stream
+     * that fails part way through is logged and filled out with zeros to its announced length. The
+     * one attachment is lost, but the rest of the backup can still be read.
+     */
+    private void encryptStream(@NonNull InputStream inputStream, long size, @NonNull OutputStream out, @NonNull byte[] streamIv, @NonNull Cipher cipher, @NonNull Mac mac)
+        throws IOException
+    {
       try {
-        Conversions.intToByteArray(iv, 0, counter++);
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
-        mac.update(iv);
+        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(streamIv));
+        mac.update(streamIv);
+
+        byte[] buffer    = new byte[8192];
+        long   remaining = size;
+        int    read;
+
+        while (remaining > 0 && (read = readQuietly(inputStream, buffer, (int) Math.min(buffer.length, remaining))) != -1) {
+          encryptSegment(buffer, read, out, cipher, mac);
+          remaining -= read;
+        }
 
-        byte[] buffer = new byte[8192];
-        int read;
+        if (remaining > 0) {
+          Log.w(TAG, "Stream ended " + remaining + " bytes short, padding.");
+          Arrays.fill(buffer, (byte) 0);
 
-        while ((read = inputStream.read(buffer)) != -1) {
-          byte[] ciphertext = cipher.update(buffer, 0, read);
+          while (remaining > 0) {
+            int length = (int) Math.min(buffer.length, remaining);
 
-          if (ciphertext != null) {
-            outputStream.write(ciphertext);
-            mac.update(ciphertext);
+            encryptSegment(buffer, length, out, cipher, mac);
+            remaining -= length;
           }
         }
 
         byte[] remainder = cipher.doFinal();
-        outputStream.write(remainder);
+        out.write(remainder);
         mac.update(remainder);
 
         byte[] attachmentDigest = mac.doFinal();
-        outputStream.write(attachmentDigest, 0, 10);
+        out.write(attachmentDigest, 0, 10);
       } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
         throw new AssertionError(e);
       }
     }
 
-    private void write(@NonNull OutputStream out, @NonNull BackupProtos.BackupFrame frame) throws IOException {
+    private static void encryptSegment(@NonNull byte[] buffer, int length, @NonNull OutputStream out, @NonNull Cipher cipher, @NonNull Mac mac)
+        throws IOException
+    {
+      byte[] ciphertext = cipher.update(buffer, 0, length);
+
+      if (ciphertext != null) {
+        out.write(ciphertext);
+        mac.update(ciphertext);
+      }
+    }
+
+    private static int readQuietly(@NonNull InputStream inputStream, @NonNull byte[] buffer, int length) {
+      try {
+        return inputStream.read(buffer, 0, length);
+      } catch (IOException e) {
+        Log.w(TAG, e);
+        return -1;
+      }
+    }
+
+    private void write(@NonNull BackupProtos.BackupFrame frame) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cipherKey, "AES"), new IvParameterSpec(iv));
 
         byte[] frameCiphertext = cipher.doFinal(frame.toByteArray());
         byte[] frameMac        = mac.doFinal(frameCiphertext);
-        byte[] length          = Conversions.intToByteArray(frameCiphertext.length + 10);
 
-        out.write(length);
-        out.write(frameCiphertext);
-        out.write(frameMac, 0, 10);
+        if (pendingSegments.isEmpty()) {
+          outputStream.write(Conversions.intToByteArray(frameCiphertext.length + 10));
+          outputStream.write(frameCiphertext);
+          outputStream.write(frameMac, 0, 10);
+        } else {
+          byte[] encrypted = new byte[4 + frameCiphertext.length + 10];
+
+          Conversions.intToByteArray(encrypted, 0, frameCiphertext.length + 10);
+          System.arraycopy(frameCiphertext, 0, encrypted, 4, frameCiphertext.length);
+          System.arraycopy(frameMac, 0, encrypted, 4 + frameCiphertext.length, 10);
+
+          enqueue(new PendingSegment(encrypted));
+        }
       } catch (InvalidKeyException | InvalidAlgorithmParameterException | IllegalBlockSizeException | BadPaddingException e) {
         throw new AssertionError(e);
       }
     }
 
+    private void enqueue(@NonNull PendingSegment segment) throws IOException {
+      pendingSegments.add(segment);
+      pendingBytes += segment.length;
+
+      drain(MAX_BUFFERED_BYTES);
+    }
+
+    /**
+     * Writes out every segment at the head of the queue that is ready, and then waits on as many
+     * more as it takes to bring the amount of buffered output down to the given limit.
+     */
+    private void drain(long maxPendingBytes) throws IOException {
+      PendingSegment segment;
+
+      while ((segment = pendingSegments.peek()) != null) {
+        if (pendingBytes <= maxPendingBytes && !segment.ciphertext.isDone()) {
+          break;
+        }
+
+        outputStream.write(segment.get());
+        pendingSegments.remove();
+        pendingBytes -= segment.length;
+      }
+    }
+
+    private static @NonNull Mac newMac(@NonNull byte[] macKey) throws NoSuchAlgorithmException {
+      try {
+        Mac mac = Mac.getInstance("HmacSHA256");
+        mac.init(new SecretKeySpec(macKey, "HmacSHA256"));
+        return mac;
+      } catch (InvalidKeyException e) {
+        throw new AssertionError(e);
+      }
+    }
 
+    /**
+     * Idle threads time out, so nothing is left behind if the export is abandoned part way through.
+     */
+    private static @NonNull ExecutorService newEncryptionExecutor() {
+      ThreadPoolExecutor executor = new ThreadPoolExecutor(ENCRYPTION_THREAD_COUNT, ENCRYPTION_THREAD_COUNT,
+                                                           15, TimeUnit.SECONDS,
+                                                           new LinkedBlockingQueue<>(),
+                                                           r -> new Thread(r, "signal-BackupEncryption"));
+      executor.allowCoreThreadTimeOut(true);
+      return executor;
+    }
+
+    /**
+     * Anything still pending is dropped, so {@link #writeEnd()} must come first for the file to be
+     * complete. Always called, so the encryption threads are stopped even when the export fails.
+     */
     public void close() throws IOException {
-      outputStream.close();
+      try {
+        outputStream.close();
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  private static class PendingSegment {
+
+    private final Future<byte[]> ciphertext;
+    private final long           length;
+
+    PendingSegment(@NonNull Future<byte[]> ciphertext, long length) {
+      this.ciphertext = ciphertext;
+      this.length     = length;
+    }
+
+    PendingSegment(@NonNull byte[] ciphertext) {
+      this(new SettableFuture<>(ciphertext), ciphertext.length);
+    }
+
+    @NonNull byte[] get() throws IOException {
+      try {
+        return ciphertext.get();
+      } catch (InterruptedException e) {
+        throw new IOException(e);
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+        else                                     throw new IOException(e.getCause());
+      }
     }
   }
 }
@@ -7,11 +7,12 @@ import android.content.Context;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.util.Pair;
 
 import net.sqlcipher.database.SQLiteDatabase;
+import net.sqlcipher.database.SQLiteStatement;
 
-import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.backup.BackupProtos.Attachment;
 import org.thoughtcrime.securesms.backup.BackupProtos.BackupFrame;
 import org.thoughtcrime.securesms.backup.BackupProtos.DatabaseVersion;
@@ -41,8 +42,16 @@ import java.security.InvalidAlgorithmParameterException;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -61,73 +70,129 @@ public class FullBackupImporter extends FullBackupBase {
                                 @NonNull SQLiteDatabase db, @NonNull File file, @NonNull String passphrase)
       throws IOException
   {
-    BackupRecordInputStream inputStream = new BackupRecordInputStream(file, passphrase);
-    int                     count       = 0;
+    importFile(context, attachmentSecret, db, file, passphrase, null);
+  }
+
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull File file, @NonNull String passphrase,
+                                @Nullable BackupKeyDerivation.CancelationSignal cancelationSignal)
+      throws IOException
+  {
+    importFile(context, attachmentSecret, db, Collections.singletonList(file), passphrase, cancelationSignal);
+  }
+
+  /**
+   * Restores a backup chain: a full backup followed by the deltas that were written on top of it,
+   * in order. The whole chain is restored in a single transaction, which is rolled back if the
+   * restore is canceled through the given signal. Files written for rows that a later delta
+   * replaced or deleted are removed once it commits.
+   */
+  public static void importFile(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret,
+                                @NonNull SQLiteDatabase db, @NonNull List<File> files, @NonNull String passphrase,
+                                @Nullable BackupKeyDerivation.CancelationSignal cancelationSignal)
+      throws IOException
+  {
+    List<BackupRecordInputStream> inputStreams = openBackupChain(files, passphrase, cancelationSignal);
+    StatementProcessor            statements   = new StatementProcessor(db);
+    RestoredFiles                 restored     = new RestoredFiles();
+    BackupProgress                progress     = new BackupProgress();
+    List<File>                    unreferenced;
 
     try {
       db.beginTransaction();
 
       dropAllTables(db);
 
-      BackupFrame frame;
+      for (BackupRecordInputStream inputStream : inputStreams) {
+        BackupFrame frame;
 
-      while (!(frame = inputStream.readFrame()).getEnd()) {
-        if (count++ % 100 == 0) EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.PROGRESS, count));
+        while (!(frame = inputStream.readFrame()).getEnd()) {
+          BackupKeyDerivation.throwIfCanceled(cancelationSignal);
+          progress.increment();
 
-        if      (frame.hasVersion())    processVersion(db, frame.getVersion());
-        else if (frame.hasStatement())  processStatement(db, frame.getStatement());
-        else if (frame.hasPreference()) processPreference(context, frame.getPreference());
-        else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream);
-        else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream);
-        else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
+          if      (frame.hasVersion())    processVersion(db, frame.getVersion());
+          else if (frame.hasStatement())  statements.process(frame.getStatement());
+          else if (frame.hasPreference()) processPreference(context, frame.getPreference());
+          else if (frame.hasAttachment()) processAttachment(context, attachmentSecret, db, frame.getAttachment(), inputStream, restored);
+          else if (frame.hasSticker())    processSticker(context, attachmentSecret, db, frame.getSticker(), inputStream, restored);
+          else if (frame.hasAvatar())     processAvatar(context, frame.getAvatar(), inputStream);
+        }
       }
 
+      statements.finish();
+      clearAttachmentHashes(db);
+
+      unreferenced = restored.findUnreferenced(db);
+
       db.setTransactionSuccessful();
     } finally {
+      statements.close();
       db.endTransaction();
+      closeAll(inputStreams);
     }
 
-    EventBus.getDefault().post(new BackupEvent(BackupEvent.Type.FINISHED, count));
-  }
-
-  private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
-    if (version.getVersion() > db.getVersion()) {
-      throw new DatabaseDowngradeException(db.getVersion(), version.getVersion());
+    for (File file : unreferenced) {
+      if (!file.delete()) {
+        Log.w(TAG, "Failed to delete superseded file: " + file.getName());
+      }
     }
 
-    db.setVersion(version.getVersion());
+    progress.finish();
   }
 
-  private static void processStatement(@NonNull SQLiteDatabase db, SqlStatement statement) {
-    boolean isForSmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
-    boolean isForMmsFtsSecretTable = statement.getStatement().contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
-    boolean isForSqliteSecretTable = statement.getStatement().toLowerCase().startsWith("create table sqlite_");
+  /**
+   * Opens every file of a backup chain up front, so that a broken chain is detected before
+   * anything in the database is touched.
+   */
+  private static @NonNull List<BackupRecordInputStream> openBackupChain(@NonNull List<File> files,
+                                                                        @NonNull String passphrase,
+                                                                        @Nullable BackupKeyDerivation.CancelationSignal cancelationSignal)
+      throws IOException
+  {
+    List<BackupRecordInputStream> inputStreams = new ArrayList<>(files.size());
+    byte[]                        parentIv     = null;
 
-    if (isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForSqliteSecretTable) {
-      Log.i(TAG, "Ignoring import for statement: " + statement.getStatement());
-      return;
+    try {
+      for (File file : files) {
+        BackupRecordInputStream inputStream = new BackupRecordInputStream(file, passphrase, cancelationSignal);
+        inputStreams.add(inputStream);
+
+        if (!Arrays.equals(parentIv, inputStream.getParentIv())) {
+          throw new IOException("Backup chain is broken at " + file.getName());
+        }
+
+        parentIv = inputStream.getHeaderIv();
+      }
+    } catch (IOException e) {
+      closeAll(inputStreams);
+      throw e;
     }
 
-    List<Object> parameters = new LinkedList<>();
+    return inputStreams;
+  }
 
-    for (SqlStatement.SqlParameter parameter : statement.getParametersList()) {
-      if      (parameter.hasStringParamter())   parameters.add(parameter.getStringParamter());
-      else if (parameter.hasDoubleParameter())  parameters.add(parameter.getDoubleParameter());
-      else if (parameter.hasIntegerParameter()) parameters.add(parameter.getIntegerParameter());
-      else if (parameter.hasBlobParameter())    parameters.add(parameter.getBlobParameter().toByteArray());
-      else if (parameter.hasNullparameter())    parameters.add(null);
+  private static void closeAll(@NonNull List<BackupRecordInputStream> inputStreams) {
+    for (BackupRecordInputStream inputStream : inputStreams) {
+      inputStream.close();
     }
+  }
 
-    if (parameters.size() > 0) db.execSQL(statement.getStatement(), parameters.toArray());
-    else                       db.execSQL(statement.getStatement());
+  private static void processVersion(@NonNull SQLiteDatabase db, DatabaseVersion version) throws IOException {
+    if (version.getVersion() > db.getVersion()) {
+      throw new DatabaseDowngradeException(db.getVersion(), version.getVersion());
+    }
+
+    db.setVersion(version.getVersion());
   }
 
-  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream)
+  private static void processAttachment(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Attachment attachment, BackupRecordInputStream inputStream, @NonNull RestoredFiles restored)
       throws IOException
   {
     File partsDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
     File dataFile       = File.createTempFile("part", ".mms", partsDirectory);
 
+    restored.addAttachment(dataFile);
+
     Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
     inputStream.readAttachmentTo(output.second, attachment.getLength());
@@ -142,12 +207,44 @@ public class FullBackupImporter extends FullBackupBase {
               new String[] {String.valueOf(attachment.getRowId()), String.valueOf(attachment.getAttachmentId())});
   }
 
-  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream)
+  /**
+   * Every restored attachment is written to its own file, so hashes carried over from the backup
+   * would keep the rows away from {@link AttachmentDatabase#deduplicateAttachments(long, int)}.
+   * Clearing them lets the job that runs after a restore share the files again.
+   */
+  private static void clearAttachmentHashes(@NonNull SQLiteDatabase db) {
+    if (!columnExists(db, AttachmentDatabase.TABLE_NAME, AttachmentDatabase.DATA_HASH)) {
+      return;
+    }
+
+    ContentValues contentValues = new ContentValues(1);
+    contentValues.putNull(AttachmentDatabase.DATA_HASH);
+
+    db.update(AttachmentDatabase.TABLE_NAME, contentValues, AttachmentDatabase.DATA_HASH + " NOT NULL", null);
+  }
+
+  private static boolean columnExists(@NonNull SQLiteDatabase db, @NonNull String table, @NonNull String column) {
+    try (Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null)) {
+      int nameColumnIndex = cursor.getColumnIndexOrThrow("name");
+
+      while (cursor.moveToNext()) {
+        if (column.equals(cursor.getString(nameColumnIndex))) {
+          return true;
+        }
+      }
+    }
+
+    return false;
+  }
+
+  private static void processSticker(@NonNull Context context, @NonNull AttachmentSecret attachmentSecret, @NonNull SQLiteDatabase db, @NonNull Sticker sticker, BackupRecordInputStream inputStream, @NonNull RestoredFiles restored)
       throws IOException
   {
     File stickerDirectory = context.getDir(AttachmentDatabase.DIRECTORY, Context.MODE_PRIVATE);
     File dataFile         = File.createTempFile("sticker", ".mms", stickerDirectory);
 
+    restored.addSticker(dataFile);
+
     Pair<byte[], OutputStream> output = ModernEncryptingPartOutputStream.createFor(attachmentSecret, dataFile, false);
 
     inputStream.readAttachmentTo(output.second, sticker.getLength());
@@ -184,6 +281,133 @@ public class FullBackupImporter extends FullBackupBase {
     }
   }
 
+  /**
+   * Runs the SQL statements in a backup. Every row of a table is inserted with the same statement,
+   * so each distinct parameterized statement is only checked and compiled once and then reused for
+   * every row that follows.
+   *
+   * The triggers that keep the full-text search index up to date are held back until all rows have
+   * been inserted, at which point the index is rebuilt in one pass and the triggers are created.
+   */
+  private static class StatementProcessor {
+
+    private final SQLiteDatabase               db;
+    private final Map<String, SQLiteStatement> compiledStatements;
+    private final Set<String>                  ignoredStatements;
+    private final Set<String>                  ftsTables;
+    private final List<String>                 deferredStatements;
+
+    StatementProcessor(@NonNull SQLiteDatabase db) {
+      this.db                 = db;
+      this.compiledStatements = new HashMap<>();
+      this.ignoredStatements  = new HashSet<>();
+      this.ftsTables          = new HashSet<>();
+      this.deferredStatements = new LinkedList<>();
+    }
+
+    void process(@NonNull SqlStatement statement) {
+      String sql = statement.getStatement();
+
+      if (statement.getParametersCount() == 0) {
+        processSchemaStatement(sql);
+        return;
+      }
+
+      if (ignoredStatements.contains(sql)) {
+        return;
+      }
+
+      SQLiteStatement compiled = compiledStatements.get(sql);
+
+      if (compiled == null) {
+        if (isForSecretTable(sql)) {
+          Log.i(TAG, "Ignoring import for statement: " + sql);
+          ignoredStatements.add(sql);
+          return;
+        }
+
+        compiled = db.compileStatement(sql);
+        compiledStatements.put(sql, compiled);
+      }
+
+      List<SqlStatement.SqlParameter> parameters = statement.getParametersList();
+
+      for (int i = 0; i < parameters.size(); i++) {
+        SqlStatement.SqlParameter parameter = parameters.get(i);
+
+        if      (parameter.hasStringParamter())   compiled.bindString(i + 1, parameter.getStringParamter());
+        else if (parameter.hasDoubleParameter())  compiled.bindDouble(i + 1, parameter.getDoubleParameter());
+        else if (parameter.hasIntegerParameter()) compiled.bindLong(i + 1, parameter.getIntegerParameter());
+        else if (parameter.hasBlobParameter())    compiled.bindBlob(i + 1, parameter.getBlobParameter().toByteArray());
+        else                                      compiled.bindNull(i + 1);
+      }
+
+      compiled.execute();
+      compiled.clearBindings();
+    }
+
+    /**
+     * Rebuilds the full-text search index from the restored messages and installs the triggers
+     * that maintain it.
+     */
+    void finish() {
+      for (String ftsTable : ftsTables) {
+        long start = System.currentTimeMillis();
+        db.execSQL("INSERT INTO " + ftsTable + " (" + ftsTable + ") VALUES ('rebuild')");
+        Log.i(TAG, "Rebuilt " + ftsTable + " in " + (System.currentTimeMillis() - start) + " ms");
+      }
+
+      for (String statement : deferredStatements) {
+        db.execSQL(statement);
+      }
+
+      ftsTables.clear();
+      deferredStatements.clear();
+    }
+
+    void close() {
+      for (SQLiteStatement compiled : compiledStatements.values()) {
+        compiled.close();
+      }
+
+      compiledStatements.clear();
+    }
+
+    private void processSchemaStatement(@NonNull String sql) {
+      if (isForSecretTable(sql)) {
+        Log.i(TAG, "Ignoring import for statement: " + sql);
+        return;
+      }
+
+      String normalized = sql.toLowerCase(Locale.US);
+
+      if (normalized.startsWith("create trigger") && isForFtsTable(normalized)) {
+        deferredStatements.add(sql);
+        return;
+      }
+
+      db.execSQL(sql);
+
+      if (normalized.startsWith("create virtual table " + SearchDatabase.SMS_FTS_TABLE_NAME + " ")) {
+        ftsTables.add(SearchDatabase.SMS_FTS_TABLE_NAME);
+      } else if (normalized.startsWith("create virtual table " + SearchDatabase.MMS_FTS_TABLE_NAME + " ")) {
+        ftsTables.add(SearchDatabase.MMS_FTS_TABLE_NAME);
+      }
+    }
+
+    private static boolean isForSecretTable(@NonNull String sql) {
+      boolean isForSmsFtsSecretTable = sql.contains(SearchDatabase.SMS_FTS_TABLE_NAME + "_");
+      boolean isForMmsFtsSecretTable = sql.contains(SearchDatabase.MMS_FTS_TABLE_NAME + "_");
+      boolean isForSqliteSecretTable = sql.toLowerCase().startsWith("create table sqlite_");
+
+      return isForSmsFtsSecretTable || isForMmsFtsSecretTable || isForSqliteSecretTable;
+    }
+
+    private static boolean isForFtsTable(@NonNull String normalizedSql) {
+      return normalizedSql.contains(SearchDatabase.SMS_FTS_TABLE_NAME) || normalizedSql.contains(SearchDatabase.MMS_FTS_TABLE_NAME);
+    }
+  }
+
   private static class BackupRecordInputStream extends BackupStream {
 
     private final InputStream in;
@@ -192,11 +416,17 @@ public class FullBackupImporter extends FullBackupBase {
 
     private final byte[] cipherKey;
     private final byte[] macKey;
+    private final byte[] headerIv;
+    private final byte[] parentIv;
 
     private byte[] iv;
     private int    counter;
 
-    private BackupRecordInputStream(@NonNull File file, @NonNull String passphrase) throws IOException {
+    private BackupRecordInputStream(@NonNull File file,
+                                    @NonNull String passphrase,
+                                    @Nullable BackupKeyDerivation.CancelationSignal cancelationSignal)
+        throws IOException
+    {
       try {
         this.in     = new FileInputStream(file);
 
@@ -215,13 +445,18 @@ public class FullBackupImporter extends FullBackupBase {
 
         BackupProtos.Header header = frame.getHeader();
 
-        this.iv = header.getIv().toByteArray();
+        this.iv       = header.getIv().toByteArray();
+        this.headerIv = iv.clone();
+        this.parentIv = header.hasParentIv() ? header.getParentIv().toByteArray() : null;
 
         if (iv.length != 16) {
           throw new IOException("Invalid IV length!");
         }
 
-        byte[]   key     = getBackupKey(passphrase, header.hasSalt() ? header.getSalt().toByteArray() : null);
+        int    keyDerivation = header.hasKeyDerivation() ? header.getKeyDerivation() : BackupKeyDerivation.LEGACY;
+        byte[] salt          = header.hasSalt() ? header.getSalt().toByteArray() : null;
+
+        byte[]   key     = getBackupKey(passphrase, salt, keyDerivation, cancelationSignal);
         byte[]   derived = new HKDFv3().deriveSecrets(key, "Backup Export".getBytes(), 64);
         byte[][] split   = ByteUtil.split(derived, 32, 32);
 
@@ -238,10 +473,30 @@ public class FullBackupImporter extends FullBackupBase {
       }
     }
 
+    @NonNull byte[] getHeaderIv() {
+      return headerIv;
+    }
+
+    /**
+     * @return The header IV of the backup that this one is a delta against, or null if this is a
+     *         full backup.
+     */
+    @Nullable byte[] getParentIv() {
+      return parentIv;
+    }
+
     BackupFrame readFrame() throws IOException {
       return readFrame(in);
     }
 
+    void close() {
+      try {
+        in.close();
+      } catch (IOException e) {
+        Log.w(TAG, e);
+      }
+    }
+
     void readAttachmentTo(OutputStream out, int length) throws IOException {
       try {
         Conversions.intToByteArray(iv, 0, counter++);
@@ -0,0 +1,69 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.database.Cursor;
+import androidx.annotation.NonNull;
+
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.StickerDatabase;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The attachment and sticker files written while restoring a backup chain. A delta can replace or
+ * delete a row whose file was written for an earlier backup in the chain, which leaves that file
+ * behind with nothing pointing at it.
+ */
+class RestoredFiles {
+
+  private final Set<String> attachments = new HashSet<>();
+  private final Set<String> stickers    = new HashSet<>();
+
+  void addAttachment(@NonNull File file) {
+    attachments.add(file.getAbsolutePath());
+  }
+
+  void addSticker(@NonNull File file) {
+    stickers.add(file.getAbsolutePath());
+  }
+
+  /**
+   * @return The restored files no row refers to any more. Must be called after every statement in
+   *         the chain has run, from inside the restore's transaction.
+   */
+  @NonNull List<File> findUnreferenced(@NonNull SQLiteDatabase db) {
+    Set<String> unreferenced = new HashSet<>();
+
+    unreferenced.addAll(findUnreferenced(db, AttachmentDatabase.TABLE_NAME, AttachmentDatabase.DATA, attachments));
+    unreferenced.addAll(findUnreferenced(db, StickerDatabase.TABLE_NAME, StickerDatabase.FILE_PATH, stickers));
+
+    List<File> files = new LinkedList<>();
+
+    for (String path : unreferenced) {
+      files.add(new File(path));
+    }
+
+    return files;
+  }
+
+  private static @NonNull Set<String> findUnreferenced(@NonNull SQLiteDatabase db, @NonNull String table, @NonNull String column, @NonNull Set<String> restored) {
+    Set<String> unreferenced = new HashSet<>(restored);
+
+    if (unreferenced.isEmpty()) {
+      return unreferenced;
+    }
+
+    try (Cursor cursor = db.query(table, new String[] { column }, column + " IS NOT NULL", null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        unreferenced.remove(cursor.getString(0));
+      }
+    }
+
+    return unreferenced;
+  }
+}
@@ -47,7 +47,7 @@ public class EmojiParser {
     boolean allEmojis = text.length() > 0;
 
     for (int i = 0; i < text.length(); i++) {
-      int emojiEnd = getEmojiEndPos(text, i);
+      int emojiEnd = emojiTree.getEmojiEndPos(text, i);
 
       if (emojiEnd != -1) {
         EmojiDrawInfo drawInfo = emojiTree.getEmoji(text, i, emojiEnd);
@@ -69,22 +69,6 @@ public class EmojiParser {
     return new CandidateList(results, allEmojis);
   }
 
-  private int getEmojiEndPos(CharSequence text, int startPos) {
-    int best = -1;
-
-    for (int j = startPos + 1; j <= text.length(); j++) {
-      EmojiTree.Matches status = emojiTree.isEmoji(text, startPos, j);
-
-      if (status.exactMatch()) {
-        best = j;
-      } else if (status.impossibleMatch()) {
-        return best;
-      }
-    }
-
-    return best;
-  }
-
   public static class Candidate {
 
     private final int           startIndex;
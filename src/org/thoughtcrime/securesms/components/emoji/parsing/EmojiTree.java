@@ -22,8 +22,7 @@ package org.thoughtcrime.securesms.components.emoji.parsing;
 
 import androidx.annotation.Nullable;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
 /**
  * Based in part on code from emoji-java
@@ -37,12 +36,8 @@ public class EmojiTree {
   public void add(String emojiEncoding, EmojiDrawInfo emoji) {
     EmojiTreeNode tree = root;
 
-    for (char c: emojiEncoding.toCharArray()) {
-      if (!tree.hasChild(c)) {
-        tree.addChild(c);
-      }
-
-      tree = tree.getChild(c);
+    for (int i = 0; i < emojiEncoding.length(); i++) {
+      tree = tree.getOrAddChild(emojiEncoding.charAt(i));
     }
 
     tree.setEmoji(emoji);
@@ -56,47 +51,78 @@ public class EmojiTree {
     EmojiTreeNode tree = root;
 
     for (int i=startPosition; i<endPosition; i++) {
-      char character = sequence.charAt(i);
+      tree = tree.getChild(sequence.charAt(i));
 
-      if (!tree.hasChild(character)) {
+      if (tree == null) {
         return Matches.IMPOSSIBLE;
       }
-
-      tree = tree.getChild(character);
     }
 
     if (tree.isEndOfEmoji()) {
       return Matches.EXACTLY;
-    } else if (sequence.charAt(endPosition-1) != TERMINATOR && tree.hasChild(TERMINATOR) && tree.getChild(TERMINATOR).isEndOfEmoji()) {
+    } else if (sequence.charAt(endPosition-1) != TERMINATOR && tree.hasTerminatedEmoji()) {
       return Matches.EXACTLY;
     } else {
       return Matches.POSSIBLY;
     }
   }
 
+  /**
+   * Walks the tree once from the given position, without allocating.
+   *
+   * @return The end (exclusive) of the longest emoji starting at startPosition, or -1 if there
+   *         isn't one.
+   */
+  public int getEmojiEndPos(CharSequence sequence, int startPosition) {
+    EmojiTreeNode tree = root;
+    int           best = -1;
+
+    for (int i = startPosition; i < sequence.length(); i++) {
+      char character = sequence.charAt(i);
+
+      tree = tree.getChild(character);
+
+      if (tree == null) {
+        return best;
+      }
+
+      if (tree.isEndOfEmoji() || (character != TERMINATOR && tree.hasTerminatedEmoji())) {
+        best = i + 1;
+      }
+    }
+
+    return best;
+  }
+
   public @Nullable EmojiDrawInfo getEmoji(CharSequence unicode, int startPosition, int endPostiion) {
     EmojiTreeNode tree = root;
 
     for (int i=startPosition; i<endPostiion; i++) {
-      char character = unicode.charAt(i);
+      tree = tree.getChild(unicode.charAt(i));
 
-      if (!tree.hasChild(character)) {
+      if (tree == null) {
         return null;
       }
-
-      tree = tree.getChild(character);
     }
 
-    if      (tree.getEmoji() != null)                                                  return tree.getEmoji();
-    else if (unicode.charAt(endPostiion-1) != TERMINATOR && tree.hasChild(TERMINATOR)) return tree.getChild(TERMINATOR).getEmoji();
+    if      (tree.getEmoji() != null)                                                   return tree.getEmoji();
+    else if (unicode.charAt(endPostiion-1) != TERMINATOR && tree.hasTerminatedEmoji()) return tree.getChild(TERMINATOR).getEmoji();
     else    return null;
   }
 
 
+  /**
+   * Children are kept in parallel arrays sorted by character, so lookups are a binary search over
+   * primitive chars rather than a boxed map lookup.
+   */
   private static class EmojiTreeNode {
 
-    private Map<Character, EmojiTreeNode> children = new HashMap<>();
-    private EmojiDrawInfo emoji;
+    private static final char[]          NO_KEYS     = new char[0];
+    private static final EmojiTreeNode[] NO_CHILDREN = new EmojiTreeNode[0];
+
+    private char[]          keys     = NO_KEYS;
+    private EmojiTreeNode[] children = NO_CHILDREN;
+    private EmojiDrawInfo   emoji;
 
     public void setEmoji(EmojiDrawInfo emoji) {
       this.emoji = emoji;
@@ -106,16 +132,39 @@ public class EmojiTree {
       return emoji;
     }
 
-    boolean hasChild(char child) {
-      return children.containsKey(child);
+    @Nullable EmojiTreeNode getChild(char child) {
+      int index = Arrays.binarySearch(keys, child);
+      return index >= 0 ? children[index] : null;
     }
 
-    void addChild(char child) {
-      children.put(child, new EmojiTreeNode());
+    EmojiTreeNode getOrAddChild(char child) {
+      int index = Arrays.binarySearch(keys, child);
+
+      if (index >= 0) {
+        return children[index];
+      }
+
+      int             insertion   = -(index + 1);
+      char[]          newKeys     = new char[keys.length + 1];
+      EmojiTreeNode[] newChildren = new EmojiTreeNode[children.length + 1];
+
+      System.arraycopy(keys, 0, newKeys, 0, insertion);
+      System.arraycopy(keys, insertion, newKeys, insertion + 1, keys.length - insertion);
+      System.arraycopy(children, 0, newChildren, 0, insertion);
+      System.arraycopy(children, insertion, newChildren, insertion + 1, children.length - insertion);
+
+      newKeys[insertion]     = child;
+      newChildren[insertion] = new EmojiTreeNode();
+
+      keys     = newKeys;
+      children = newChildren;
+
+      return newChildren[insertion];
     }
 
-    EmojiTreeNode getChild(char child) {
-      return children.get(child);
+    boolean hasTerminatedEmoji() {
+      EmojiTreeNode terminator = getChild(TERMINATOR);
+      return terminator != null && terminator.isEndOfEmoji();
     }
 
     boolean isEndOfEmoji() {
@@ -37,13 +37,16 @@ public enum Fitzpatrick {
   }
 
 
+  private static final Fitzpatrick[] VALUES = values();
+
   public static Fitzpatrick fitzpatrickFromUnicode(CharSequence unicode, int index) {
-    for (Fitzpatrick v : values()) {
+    for (Fitzpatrick v : VALUES) {
       boolean match = true;
 
-      for (int i=0;i<v.unicode.toCharArray().length;i++) {
-        if (v.unicode.toCharArray()[i] != unicode.charAt(index + i)) {
+      for (int i=0;i<v.unicode.length();i++) {
+        if (v.unicode.charAt(i) != unicode.charAt(index + i)) {
           match = false;
+          break;
         }
       }
 
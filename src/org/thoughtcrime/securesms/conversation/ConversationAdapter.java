@@ -28,11 +28,8 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
 
-import com.annimon.stream.Stream;
-
 import org.thoughtcrime.securesms.BindableConversationItem;
 import org.thoughtcrime.securesms.R;
-import org.thoughtcrime.securesms.attachments.DatabaseAttachment;
 import org.thoughtcrime.securesms.conversation.ConversationAdapter.HeaderViewHolder;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.FastCursorRecyclerViewAdapter;
@@ -44,7 +41,6 @@ import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.mms.GlideRequests;
 import org.thoughtcrime.securesms.mms.SlideDeck;
 import org.thoughtcrime.securesms.recipients.Recipient;
-import org.thoughtcrime.securesms.util.Conversions;
 import org.thoughtcrime.securesms.util.DateUtils;
 import org.thoughtcrime.securesms.util.LRUCache;
 import org.thoughtcrime.securesms.util.StickyHeaderDecoration;
@@ -52,14 +48,10 @@ import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.ViewUtil;
 import org.whispersystems.libsignal.util.guava.Optional;
 
-import java.lang.ref.SoftReference;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
@@ -77,10 +69,10 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   implements StickyHeaderDecoration.StickyHeaderAdapter<HeaderViewHolder>
 {
 
-  private static final int MAX_CACHE_SIZE = 40;
+  private static final int MAX_CACHE_SIZE = 150;
   private static final String TAG = ConversationAdapter.class.getSimpleName();
-  private final Map<String,SoftReference<MessageRecord>> messageRecordCache =
-      Collections.synchronizedMap(new LRUCache<String, SoftReference<MessageRecord>>(MAX_CACHE_SIZE));
+  private final Map<String,MessageRecord> messageRecordCache =
+      Collections.synchronizedMap(new LRUCache<String, MessageRecord>(MAX_CACHE_SIZE));
 
   private static final int MESSAGE_TYPE_OUTGOING           = 0;
   private static final int MESSAGE_TYPE_INCOMING           = 1;
@@ -101,7 +93,6 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   private final @NonNull  MmsSmsDatabase    db;
   private final @NonNull  LayoutInflater    inflater;
   private final @NonNull  Calendar          calendar;
-  private final @NonNull  MessageDigest     digest;
 
   private MessageRecord recordToPulseHighlight;
   private String        searchQuery;
@@ -146,18 +137,13 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   @VisibleForTesting
   ConversationAdapter(Context context, Cursor cursor) {
     super(context, cursor);
-    try {
-      this.glideRequests = null;
-      this.locale        = null;
-      this.clickListener = null;
-      this.recipient     = null;
-      this.inflater      = null;
-      this.db            = null;
-      this.calendar      = null;
-      this.digest        = MessageDigest.getInstance("SHA1");
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError("SHA1 isn't supported!");
-    }
+    this.glideRequests = null;
+    this.locale        = null;
+    this.clickListener = null;
+    this.recipient     = null;
+    this.inflater      = null;
+    this.db            = null;
+    this.calendar      = null;
   }
 
   public ConversationAdapter(@NonNull Context context,
@@ -169,20 +155,15 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
   {
     super(context, cursor);
 
-    try {
-      this.glideRequests = glideRequests;
-      this.locale        = locale;
-      this.clickListener = clickListener;
-      this.recipient     = recipient;
-      this.inflater      = LayoutInflater.from(context);
-      this.db            = DatabaseFactory.getMmsSmsDatabase(context);
-      this.calendar      = Calendar.getInstance();
-      this.digest        = MessageDigest.getInstance("SHA1");
-
-      setHasStableIds(true);
-    } catch (NoSuchAlgorithmException nsae) {
-      throw new AssertionError("SHA1 isn't supported!");
-    }
+    this.glideRequests = glideRequests;
+    this.locale        = locale;
+    this.clickListener = clickListener;
+    this.recipient     = recipient;
+    this.inflater      = LayoutInflater.from(context);
+    this.db            = DatabaseFactory.getMmsSmsDatabase(context);
+    this.calendar      = Calendar.getInstance();
+
+    setHasStableIds(true);
   }
 
   @Override
@@ -278,18 +259,14 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     return record.getId() == id;
   }
 
+  /**
+   * The query already computes a stable ID for every row: the fast preflight ID of an MMS's first
+   * attachment if it has one (so that it matches the fast record it replaces), and otherwise the
+   * row ID tagged with its table.
+   */
   @Override
   public long getItemId(@NonNull Cursor cursor) {
-    List<DatabaseAttachment> attachments        = DatabaseFactory.getAttachmentDatabase(getContext()).getAttachment(cursor);
-    List<DatabaseAttachment> messageAttachments = Stream.of(attachments).filterNot(DatabaseAttachment::isQuote).toList();
-
-    if (messageAttachments.size() > 0 && messageAttachments.get(0).getFastPreflightId() != null) {
-      return Long.valueOf(messageAttachments.get(0).getFastPreflightId());
-    }
-
-    final String unique = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID));
-    final byte[] bytes  = digest.digest(unique.getBytes());
-    return Conversions.byteArrayToLong(bytes);
+    return cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.UNIQUE_ROW_ID));
   }
 
   @Override
@@ -315,14 +292,11 @@ public class ConversationAdapter <V extends View & BindableConversationItem>
     long   messageId = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID));
     String type      = cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT));
 
-    final SoftReference<MessageRecord> reference = messageRecordCache.get(type + messageId);
-    if (reference != null) {
-      final MessageRecord record = reference.get();
-      if (record != null) return record;
-    }
+    final MessageRecord cached = messageRecordCache.get(type + messageId);
+    if (cached != null) return cached;
 
     final MessageRecord messageRecord = db.readerFor(cursor).getCurrent();
-    messageRecordCache.put(type + messageId, new SoftReference<>(messageRecord));
+    messageRecordCache.put(type + messageId, messageRecord);
 
     return messageRecord;
   }
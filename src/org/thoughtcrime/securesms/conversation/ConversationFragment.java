@@ -118,6 +118,7 @@ public class ConversationFragment extends Fragment
 {
   private static final String TAG       = ConversationFragment.class.getSimpleName();
   private static final String KEY_LIMIT = "limit";
+  private static final String KEY_SINCE = "since";
 
   private static final int PARTIAL_CONVERSATION_LIMIT = 500;
   private static final int SCROLL_ANIMATION_THRESHOLD = 50;
@@ -171,8 +172,6 @@ public class ConversationFragment extends Fragment
 
     topLoadMoreView    = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
     bottomLoadMoreView = (ViewSwitcher) inflater.inflate(R.layout.load_more_header, container, false);
-    initializeLoadMoreView(topLoadMoreView);
-    initializeLoadMoreView(bottomLoadMoreView);
 
     typingView = (ConversationTypingView) inflater.inflate(R.layout.conversation_typing_view, container, false);
 
@@ -269,10 +268,16 @@ public class ConversationFragment extends Fragment
     }
   }
 
-  private void initializeLoadMoreView(ViewSwitcher loadMoreView) {
+  /**
+   * Load more keeps everything received at or after since and adds the page of up to limit older
+   * messages, found by key rather than by position, so the views are re-armed after every load.
+   */
+  private void initializeLoadMoreView(ViewSwitcher loadMoreView, long since, int limit) {
+    loadMoreView.setDisplayedChild(0);
     loadMoreView.setOnClickListener(v -> {
       Bundle args = new Bundle();
-      args.putInt(KEY_LIMIT, 0);
+      args.putLong(KEY_SINCE, since);
+      args.putInt(KEY_LIMIT, limit);
       getLoaderManager().restartLoader(0, args, ConversationFragment.this);
       loadMoreView.showNext();
       loadMoreView.setOnClickListener(null);
@@ -625,14 +630,15 @@ public class ConversationFragment extends Fragment
     Log.i(TAG, "onCreateLoader");
     loaderStartTime = System.currentTimeMillis();
 
-    int limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
-    int offset = 0;
-    if (limit != 0 && startingPosition >= limit) {
+    int  limit  = args.getInt(KEY_LIMIT, PARTIAL_CONVERSATION_LIMIT);
+    long since  = args.getLong(KEY_SINCE, -1);
+    int  offset = 0;
+    if (since == -1 && limit != 0 && startingPosition >= limit) {
       offset = Math.max(startingPosition - (limit / 2) + 1, 0);
       startingPosition -= offset - 1;
     }
 
-    return new ConversationLoader(getActivity(), threadId, offset, limit, lastSeen);
+    return new ConversationLoader(getActivity(), threadId, offset, limit, since, lastSeen);
   }
 
   @Override
@@ -647,7 +653,7 @@ public class ConversationFragment extends Fragment
       return;
     }
 
-    if (cursor.getCount() >= PARTIAL_CONVERSATION_LIMIT && loader.hasLimit()) {
+    if (loader.hasMore()) {
       adapter.setFooterView(topLoadMoreView);
     } else {
       adapter.setFooterView(null);
@@ -673,6 +679,9 @@ public class ConversationFragment extends Fragment
 
     activeOffset = loader.getOffset();
 
+    initializeLoadMoreView(topLoadMoreView, loader.getOldestDateReceived(), PARTIAL_CONVERSATION_LIMIT);
+    initializeLoadMoreView(bottomLoadMoreView, loader.getOldestDateReceived(), 0);
+
     adapter.changeCursor(cursor);
 
     int lastSeenPosition = adapter.findLastSeenPosition(lastSeen);
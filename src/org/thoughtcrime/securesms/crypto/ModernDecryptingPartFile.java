@@ -0,0 +1,184 @@
+package org.thoughtcrime.securesms.crypto;
+
+
+import androidx.annotation.NonNull;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Decrypts a file written by {@link ModernEncryptingPartOutputStream} at arbitrary positions.
+ *
+ * The file is encrypted with AES/CTR starting from a zero counter, so the keystream for any block
+ * can be computed directly from its index. The file is opened and the key derived once, after which
+ * every read is a positional read of just the blocks it covers, with no reopening or skipping.
+ */
+public class ModernDecryptingPartFile implements Closeable {
+
+  private static final int BLOCK_SIZE  = 16;
+  private static final int BUFFER_SIZE = 8192;
+
+  private final byte[] counterBuffer   = new byte[BUFFER_SIZE + BLOCK_SIZE];
+  private final byte[] keystreamBuffer = new byte[BUFFER_SIZE + BLOCK_SIZE];
+
+  private final RandomAccessFile randomAccessFile;
+  private final FileChannel      channel;
+  private final long             dataOffset;
+  private final Cipher           cipher;
+
+  private ModernDecryptingPartFile(@NonNull AttachmentSecret attachmentSecret,
+                                   @NonNull byte[] random,
+                                   @NonNull RandomAccessFile randomAccessFile,
+                                   long dataOffset)
+  {
+    this.randomAccessFile = randomAccessFile;
+    this.channel          = randomAccessFile.getChannel();
+    this.dataOffset       = dataOffset;
+
+    try {
+      Mac mac = Mac.getInstance("HmacSHA256");
+      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+      byte[] key = mac.doFinal(random);
+
+      this.cipher = Cipher.getInstance("AES/ECB/NoPadding");
+      this.cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+    } catch (NoSuchAlgorithmException | InvalidKeyException | NoSuchPaddingException e) {
+      throw new AssertionError(e);
+    }
+  }
+
+  /**
+   * Opens a file whose random was stored separately, so the ciphertext starts at the beginning.
+   */
+  public static ModernDecryptingPartFile open(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file)
+      throws IOException
+  {
+    return new ModernDecryptingPartFile(attachmentSecret, random, new RandomAccessFile(file, "r"), 0);
+  }
+
+  /**
+   * Opens a file that was written inline, with the random stored before the ciphertext.
+   */
+  public static ModernDecryptingPartFile open(@NonNull AttachmentSecret attachmentSecret, @NonNull File file)
+      throws IOException
+  {
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+    byte[]           random           = new byte[32];
+
+    try {
+      randomAccessFile.readFully(random);
+    } catch (EOFException e) {
+      randomAccessFile.close();
+      throw new IOException("Prematurely reached end of stream!");
+    }
+
+    return new ModernDecryptingPartFile(attachmentSecret, random, randomAccessFile, random.length);
+  }
+
+  /**
+   * @return The length of the plaintext.
+   */
+  public long getLength() throws IOException {
+    return Math.max(0, channel.size() - dataOffset);
+  }
+
+  /**
+   * Reads up to length bytes of plaintext starting at position.
+   *
+   * @return The number of bytes read, or -1 if position is at or past the end of the file.
+   */
+  public synchronized int read(long position, @NonNull byte[] bytes, int offset, int length) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position: " + position);
+    }
+
+    if (length == 0) {
+      return 0;
+    }
+
+    int total = 0;
+
+    while (total < length) {
+      int read = readCiphertext(position + total, bytes, offset + total, Math.min(length - total, BUFFER_SIZE));
+
+      if (read == -1) {
+        break;
+      }
+
+      decrypt(position + total, bytes, offset + total, read);
+      total += read;
+    }
+
+    return total == 0 ? -1 : total;
+  }
+
+  @Override
+  public void close() throws IOException {
+    randomAccessFile.close();
+  }
+
+  private int readCiphertext(long position, byte[] bytes, int offset, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, dataOffset + position + buffer.position() - offset);
+
+      if (read == -1) {
+        break;
+      }
+    }
+
+    int read = buffer.position() - offset;
+
+    return read == 0 ? -1 : read;
+  }
+
+  private void decrypt(long position, byte[] bytes, int offset, int length) {
+    long firstBlock = position / BLOCK_SIZE;
+    int  skip       = (int) (position % BLOCK_SIZE);
+    int  blocks     = (skip + length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+
+    for (int i = 0; i < blocks; i++) {
+      writeCounter(firstBlock + i, counterBuffer, i * BLOCK_SIZE);
+    }
+
+    try {
+      cipher.update(counterBuffer, 0, blocks * BLOCK_SIZE, keystreamBuffer, 0);
+    } catch (ShortBufferException e) {
+      throw new AssertionError(e);
+    }
+
+    for (int i = 0; i < length; i++) {
+      bytes[offset + i] ^= keystreamBuffer[skip + i];
+    }
+  }
+
+  /**
+   * The counter block is the 128 bit big endian block index, which is what AES/CTR produces when
+   * it starts from a zero IV.
+   */
+  private static void writeCounter(long block, byte[] output, int offset) {
+    for (int i = 0; i < 8; i++) {
+      output[offset + i] = 0;
+    }
+
+    for (int i = 15; i >= 8; i--) {
+      output[offset + i] = (byte) block;
+      block >>>= 8;
+    }
+  }
+}
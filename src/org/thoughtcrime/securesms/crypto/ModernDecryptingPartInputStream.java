@@ -3,82 +3,74 @@ package org.thoughtcrime.securesms.crypto;
 
 import androidx.annotation.NonNull;
 
-import org.thoughtcrime.securesms.util.Conversions;
-
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
-import java.security.NoSuchAlgorithmException;
-
-import javax.crypto.Cipher;
-import javax.crypto.CipherInputStream;
-import javax.crypto.Mac;
-import javax.crypto.NoSuchPaddingException;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
 
 public class ModernDecryptingPartInputStream {
 
   public static InputStream createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull File file, long offset)
       throws IOException
   {
-    return createFor(attachmentSecret, random, new FileInputStream(file), offset);
+    return new PartFileInputStream(ModernDecryptingPartFile.open(attachmentSecret, random, file), offset);
   }
 
   public static InputStream createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull File file, long offset)
       throws IOException
   {
-    FileInputStream inputStream = new FileInputStream(file);
-    byte[]          random      = new byte[32];
+    return new PartFileInputStream(ModernDecryptingPartFile.open(attachmentSecret, file), offset);
+  }
 
-    readFully(inputStream, random);
+  /**
+   * Reads sequentially from a {@link ModernDecryptingPartFile}, so that starting at an offset or
+   * skipping ahead only moves the read position rather than decrypting everything before it.
+   */
+  private static class PartFileInputStream extends InputStream {
 
-    return createFor(attachmentSecret, random, inputStream, offset);
-  }
+    private final ModernDecryptingPartFile partFile;
+    private final byte[]                   singleByte = new byte[1];
+
+    private long position;
 
-  private static InputStream createFor(@NonNull AttachmentSecret attachmentSecret, @NonNull byte[] random, @NonNull InputStream inputStream, long offset) throws IOException {
-    try {
-      Mac mac  = Mac.getInstance("HmacSHA256");
-      mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+    private PartFileInputStream(@NonNull ModernDecryptingPartFile partFile, long position) {
+      this.partFile = partFile;
+      this.position = position;
+    }
 
-      byte[] iv        = new byte[16];
-      int    remainder = (int) (offset % 16);
-      Conversions.longTo4ByteArray(iv, 12, offset / 16);
+    @Override
+    public int read() throws IOException {
+      int read = read(singleByte, 0, 1);
 
-      byte[] key    = mac.doFinal(random);
-      Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-      cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+      return read == -1 ? -1 : singleByte[0] & 0xff;
+    }
 
-      long skipped = inputStream.skip(offset - remainder);
+    @Override
+    public int read(@NonNull byte[] buffer, int offset, int length) throws IOException {
+      int read = partFile.read(position, buffer, offset, length);
 
-      if (skipped != offset - remainder) {
-        throw new IOException("Skip failed: " + skipped + " vs " + (offset - remainder));
+      if (read > 0) {
+        position += read;
       }
 
-      CipherInputStream cipherInputStream = new CipherInputStream(inputStream, cipher);
-      byte[]            remainderBuffer   = new byte[remainder];
+      return read;
+    }
 
-      readFully(cipherInputStream, remainderBuffer);
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = Math.max(0, Math.min(n, partFile.getLength() - position));
+      position += skipped;
 
-      return cipherInputStream;
-    } catch (NoSuchAlgorithmException | InvalidKeyException | InvalidAlgorithmParameterException | NoSuchPaddingException e) {
-      throw new AssertionError(e);
+      return skipped;
     }
-  }
 
-  private static void readFully(InputStream in, byte[] buffer) throws IOException {
-    int offset = 0;
-
-    for (;;) {
-      int read = in.read(buffer, offset, buffer.length-offset);
+    @Override
+    public int available() throws IOException {
+      return (int) Math.max(0, Math.min(Integer.MAX_VALUE, partFile.getLength() - position));
+    }
 
-      if (read == -1)                         throw new IOException("Prematurely reached end of stream!");
-      else if (read + offset < buffer.length) offset += read;
-      else                                    return;
+    @Override
+    public void close() throws IOException {
+      partFile.close();
     }
   }
-
 }
@@ -0,0 +1,24 @@
+package org.thoughtcrime.securesms.crypto.storage;
+
+import androidx.annotation.NonNull;
+
+/**
+ * A fixed set of locks shared out by address name, so that store operations for different
+ * addresses don't wait on each other while the number of lock objects stays bounded.
+ */
+final class AddressLocks {
+
+  private final Object[] locks;
+
+  AddressLocks(int count) {
+    this.locks = new Object[count];
+
+    for (int i = 0; i < count; i++) {
+      locks[i] = new Object();
+    }
+  }
+
+  @NonNull Object get(@NonNull String name) {
+    return locks[(name.hashCode() & 0x7fffffff) % locks.length];
+  }
+}
@@ -26,7 +26,7 @@ public class TextSecureIdentityKeyStore implements IdentityKeyStore {
   private static final int TIMESTAMP_THRESHOLD_SECONDS = 5;
 
   private static final String TAG = TextSecureIdentityKeyStore.class.getSimpleName();
-  private static final Object LOCK = new Object();
+  private static final AddressLocks LOCKS = new AddressLocks(64);
 
   private final Context context;
 
@@ -45,7 +45,7 @@ public class TextSecureIdentityKeyStore implements IdentityKeyStore {
   }
 
   public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey, boolean nonBlockingApproval) {
-    synchronized (LOCK) {
+    synchronized (LOCKS.get(address.getName())) {
       IdentityDatabase         identityDatabase = DatabaseFactory.getIdentityDatabase(context);
       Address                  signalAddress    = Address.fromExternal(context, address.getName());
       Optional<IdentityRecord> identityRecord   = identityDatabase.getIdentity(signalAddress);
@@ -91,7 +91,7 @@ public class TextSecureIdentityKeyStore implements IdentityKeyStore {
 
   @Override
   public boolean isTrustedIdentity(SignalProtocolAddress address, IdentityKey identityKey, Direction direction) {
-    synchronized (LOCK) {
+    synchronized (LOCKS.get(address.getName())) {
       IdentityDatabase identityDatabase = DatabaseFactory.getIdentityDatabase(context);
       String           ourNumber        = TextSecurePreferences.getLocalNumber(context);
       Address          theirAddress     = Address.fromExternal(context, address.getName());
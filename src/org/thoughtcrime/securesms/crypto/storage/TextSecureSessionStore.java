@@ -18,7 +18,7 @@ public class TextSecureSessionStore implements SessionStore {
 
   private static final String TAG = TextSecureSessionStore.class.getSimpleName();
 
-  private static final Object FILE_LOCK = new Object();
+  private static final AddressLocks LOCKS = new AddressLocks(64);
 
   @NonNull  private final Context context;
 
@@ -28,7 +28,7 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public SessionRecord loadSession(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
+    synchronized (LOCKS.get(address.getName())) {
       SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
 
       if (sessionRecord == null) {
@@ -42,14 +42,14 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public void storeSession(@NonNull SignalProtocolAddress address, @NonNull SessionRecord record) {
-    synchronized (FILE_LOCK) {
+    synchronized (LOCKS.get(address.getName())) {
       DatabaseFactory.getSessionDatabase(context).store(Address.fromSerialized(address.getName()), address.getDeviceId(), record);
     }
   }
 
   @Override
   public boolean containsSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
+    synchronized (LOCKS.get(address.getName())) {
       SessionRecord sessionRecord = DatabaseFactory.getSessionDatabase(context).load(Address.fromSerialized(address.getName()), address.getDeviceId());
 
       return sessionRecord != null &&
@@ -60,27 +60,27 @@ public class TextSecureSessionStore implements SessionStore {
 
   @Override
   public void deleteSession(SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
+    synchronized (LOCKS.get(address.getName())) {
       DatabaseFactory.getSessionDatabase(context).delete(Address.fromSerialized(address.getName()), address.getDeviceId());
     }
   }
 
   @Override
   public void deleteAllSessions(String name) {
-    synchronized (FILE_LOCK) {
+    synchronized (LOCKS.get(name)) {
       DatabaseFactory.getSessionDatabase(context).deleteAllFor(Address.fromSerialized(name));
     }
   }
 
   @Override
   public List<Integer> getSubDeviceSessions(String name) {
-    synchronized (FILE_LOCK) {
+    synchronized (LOCKS.get(name)) {
       return DatabaseFactory.getSessionDatabase(context).getSubDevices(Address.fromSerialized(name));
     }
   }
 
   public void archiveSiblingSessions(@NonNull SignalProtocolAddress address) {
-    synchronized (FILE_LOCK) {
+    synchronized (LOCKS.get(address.getName())) {
       List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAllFor(Address.fromSerialized(address.getName()));
 
       for (SessionDatabase.SessionRow row : sessions) {
@@ -93,12 +93,17 @@ public class TextSecureSessionStore implements SessionStore {
   }
 
   public void archiveAllSessions() {
-    synchronized (FILE_LOCK) {
-      List<SessionDatabase.SessionRow> sessions = DatabaseFactory.getSessionDatabase(context).getAll();
+    SessionDatabase                  sessionDatabase = DatabaseFactory.getSessionDatabase(context);
+    List<SessionDatabase.SessionRow> sessions        = sessionDatabase.getAll();
 
-      for (SessionDatabase.SessionRow row : sessions) {
-        row.getRecord().archiveCurrentState();
-        storeSession(new SignalProtocolAddress(row.getAddress().serialize(), row.getDeviceId()), row.getRecord());
+    for (SessionDatabase.SessionRow row : sessions) {
+      synchronized (LOCKS.get(row.getAddress().serialize())) {
+        SessionRecord record = sessionDatabase.load(row.getAddress(), row.getDeviceId());
+
+        if (record != null) {
+          record.archiveCurrentState();
+          sessionDatabase.store(row.getAddress(), row.getDeviceId(), record);
+        }
       }
     }
   }
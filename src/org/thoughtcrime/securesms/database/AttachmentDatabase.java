@@ -51,11 +51,13 @@ import org.thoughtcrime.securesms.mms.PartAuthority;
 import org.thoughtcrime.securesms.stickers.StickerLocator;
 import org.thoughtcrime.securesms.util.BitmapDecodingException;
 import org.thoughtcrime.securesms.util.BitmapUtil;
+import org.thoughtcrime.securesms.util.Hex;
 import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.MediaUtil;
 import org.thoughtcrime.securesms.util.MediaUtil.ThumbnailData;
 import org.thoughtcrime.securesms.util.StorageUtil;
 import org.thoughtcrime.securesms.util.Util;
+import org.thoughtcrime.securesms.util.concurrent.SignalExecutors;
 import org.thoughtcrime.securesms.video.EncryptedMediaDataSource;
 
 import java.io.File;
@@ -63,6 +65,9 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.LinkedList;
@@ -103,6 +108,7 @@ public class AttachmentDatabase extends Database {
           static final String WIDTH                  = "width";
           static final String HEIGHT                 = "height";
           static final String CAPTION                = "caption";
+  public  static final String DATA_HASH              = "data_hash";
 
   public  static final String DIRECTORY              = "parts";
 
@@ -133,12 +139,14 @@ public class AttachmentDatabase extends Database {
     VOICE_NOTE + " INTEGER DEFAULT 0, " + DATA_RANDOM + " BLOB, " + THUMBNAIL_RANDOM + " BLOB, " +
     QUOTE + " INTEGER DEFAULT 0, " + WIDTH + " INTEGER DEFAULT 0, " + HEIGHT + " INTEGER DEFAULT 0, " +
     CAPTION + " TEXT DEFAULT NULL, " + STICKER_PACK_ID + " TEXT DEFAULT NULL, " +
-    STICKER_PACK_KEY + " DEFAULT NULL, " + STICKER_ID + " INTEGER DEFAULT -1);";
+    STICKER_PACK_KEY + " DEFAULT NULL, " + STICKER_ID + " INTEGER DEFAULT -1, " +
+    DATA_HASH + " TEXT DEFAULT NULL);";
 
   public static final String[] CREATE_INDEXS = {
     "CREATE INDEX IF NOT EXISTS part_mms_id_index ON " + TABLE_NAME + " (" + MMS_ID + ");",
     "CREATE INDEX IF NOT EXISTS pending_push_index ON " + TABLE_NAME + " (" + TRANSFER_STATE + ");",
     "CREATE INDEX IF NOT EXISTS part_sticker_pack_id_index ON " + TABLE_NAME + " (" + STICKER_PACK_ID + ");",
+    "CREATE INDEX IF NOT EXISTS part_data_hash_index ON " + TABLE_NAME + " (" + DATA_HASH + ");",
   };
 
   private final ExecutorService thumbnailExecutor = Util.newSingleThreadedLifoExecutor();
@@ -262,50 +270,101 @@ public class AttachmentDatabase extends Database {
     return attachments;
   }
 
-  @SuppressWarnings("ResultOfMethodCallIgnored")
   void deleteAttachmentsForMessage(long mmsId) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor cursor           = null;
+    SQLiteDatabase        database = databaseHelper.getWritableDatabase();
+    String[]              args     = new String[] {mmsId + ""};
+    List<AttachmentFiles> files    = new LinkedList<>();
 
+    database.beginTransaction();
     try {
-      cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE}, MMS_ID + " = ?",
-                              new String[] {mmsId+""}, null, null, null);
+      try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE, DATA_HASH}, MMS_ID + " = ?", args, null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          files.add(new AttachmentFiles(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3)));
+        }
+      }
 
+      database.delete(TABLE_NAME, MMS_ID + " = ?", args);
+      deleteAttachmentsOnDisk(database, files);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    notifyAttachmentListeners();
+  }
+
+  /**
+   * Deletes the attachments of every message whose ID is returned by {@code mmsIdQuery}, with one
+   * statement. The files are returned instead of being deleted, so that a caller inside a
+   * transaction can unlink them with {@link #deleteAttachmentFiles(List)} once it has committed.
+   */
+  @NonNull List<AttachmentFiles> deleteAttachmentsForMessages(@NonNull String mmsIdQuery, @Nullable String[] args) {
+    SQLiteDatabase        database = databaseHelper.getWritableDatabase();
+    String                where    = MMS_ID + " IN (" + mmsIdQuery + ")";
+    List<AttachmentFiles> files    = new LinkedList<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, THUMBNAIL, CONTENT_TYPE, DATA_HASH}, where, args, null, null, null)) {
       while (cursor != null && cursor.moveToNext()) {
-        deleteAttachmentOnDisk(cursor.getString(0), cursor.getString(1), cursor.getString(2));
+        files.add(new AttachmentFiles(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3)));
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
     }
 
-    database.delete(TABLE_NAME, MMS_ID + " = ?", new String[] {mmsId + ""});
+    database.delete(TABLE_NAME, where, args);
     notifyAttachmentListeners();
+
+    return files;
+  }
+
+  /**
+   * Unlinks attachment files whose rows have already been deleted, in the background. Data files
+   * that other rows still share are kept.
+   */
+  void deleteAttachmentFiles(@NonNull List<AttachmentFiles> files) {
+    if (files.isEmpty()) return;
+
+    SignalExecutors.BOUNDED.execute(() -> {
+      SQLiteDatabase database = databaseHelper.getWritableDatabase();
+
+      database.beginTransaction();
+      try {
+        deleteAttachmentsOnDisk(database, files);
+        database.setTransactionSuccessful();
+      } finally {
+        database.endTransaction();
+      }
+
+      Log.i(TAG, "Deleted the files of " + files.size() + " attachments.");
+    });
   }
 
   public void deleteAttachment(@NonNull AttachmentId id) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    boolean        deleted  = false;
 
+    database.beginTransaction();
     try (Cursor cursor = database.query(TABLE_NAME,
-                                        new String[]{DATA, THUMBNAIL, CONTENT_TYPE},
+                                        new String[]{DATA, THUMBNAIL, CONTENT_TYPE, DATA_HASH},
                                         PART_ID_WHERE,
                                         id.toStrings(),
                                         null,
                                         null,
                                         null))
     {
-      if (cursor == null || !cursor.moveToNext()) {
-        Log.w(TAG, "Tried to delete an attachment, but it didn't exist.");
-        return;
+      if (cursor != null && cursor.moveToNext()) {
+        AttachmentFiles files = new AttachmentFiles(cursor.getString(0), cursor.getString(1), cursor.getString(2), cursor.getString(3));
+
+        database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
+        deleteAttachmentsOnDisk(database, Collections.singletonList(files));
+        deleted = true;
       }
-      String data        = cursor.getString(0);
-      String thumbnail   = cursor.getString(1);
-      String contentType = cursor.getString(2);
 
-      database.delete(TABLE_NAME, PART_ID_WHERE, id.toStrings());
-      deleteAttachmentOnDisk(data, thumbnail, contentType);
-      notifyAttachmentListeners();
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
+
+    if (deleted) notifyAttachmentListeners();
+    else         Log.w(TAG, "Tried to delete an attachment, but it didn't exist.");
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -323,49 +382,245 @@ public class AttachmentDatabase extends Database {
     notifyAttachmentListeners();
   }
 
+  /**
+   * Unlinks the files of deleted rows. A data file is shared by every row with the same
+   * {@link #DATA_HASH}, so it's only unlinked once none of them is left. This has to run in a
+   * transaction, so that an insert can't start sharing a file between the check and the unlink.
+   */
   @SuppressWarnings("ResultOfMethodCallIgnored")
-  private void deleteAttachmentOnDisk(@Nullable String data, @Nullable String thumbnail, @Nullable String contentType) {
-    if (!TextUtils.isEmpty(data)) {
-      new File(data).delete();
-    }
+  private void deleteAttachmentsOnDisk(@NonNull SQLiteDatabase database, @NonNull List<AttachmentFiles> files) {
+    boolean clearGlideCache = false;
 
-    if (!TextUtils.isEmpty(thumbnail)) {
-      new File(thumbnail).delete();
+    for (AttachmentFiles file : files) {
+      if (!TextUtils.isEmpty(file.data) && !isDataFileReferenced(database, file.data, file.dataHash)) {
+        new File(file.data).delete();
+      }
+
+      if (!TextUtils.isEmpty(file.thumbnail)) {
+        new File(file.thumbnail).delete();
+      }
+
+      clearGlideCache |= MediaUtil.isImageType(file.contentType) || file.thumbnail != null;
     }
 
-    if (MediaUtil.isImageType(contentType) || thumbnail != null) {
+    if (clearGlideCache) {
       Glide.get(context).clearDiskCache();
     }
   }
 
+  private boolean isDataFileReferenced(@NonNull SQLiteDatabase database, @NonNull String data, @Nullable String dataHash) {
+    if (dataHash == null) return false;
+
+    String[] columns   = new String[] {ROW_ID};
+    String   selection = DATA_HASH + " = ? AND " + DATA + " = ?";
+    String[] args      = new String[] {dataHash, data};
+
+    try (Cursor cursor = database.query(TABLE_NAME, columns, selection, args, null, null, null, "1")) {
+      return cursor != null && cursor.moveToFirst();
+    }
+  }
+
+  private boolean isDataFileReferenced(@NonNull SQLiteDatabase database, @NonNull String data) {
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ROW_ID}, DATA + " = ?", new String[] {data}, null, null, null, "1")) {
+      return cursor != null && cursor.moveToFirst();
+    }
+  }
+
+  /**
+   * Looks for another row that already stores the content of a freshly written data file. If there
+   * is one, the new file is deleted and the existing one is returned to be shared. This has to run
+   * in the transaction that stores the result, see {@link #deleteAttachmentsOnDisk}.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  @VisibleForTesting
+  @NonNull DataInfo deduplicate(@NonNull SQLiteDatabase database, @NonNull DataInfo dataInfo) {
+    if (dataInfo.hash == null) return dataInfo;
+
+    String[] columns   = new String[] {DATA, DATA_RANDOM};
+    String   selection = DATA_HASH + " = ? AND " + DATA + " NOT NULL";
+    String[] args      = new String[] {dataInfo.hash};
+
+    try (Cursor cursor = database.query(TABLE_NAME, columns, selection, args, null, null, null, "1")) {
+      if (cursor != null && cursor.moveToFirst()) {
+        File existing = new File(cursor.getString(0));
+
+        if (!existing.equals(dataInfo.file) && existing.exists()) {
+          dataInfo.file.delete();
+          return new DataInfo(existing, dataInfo.length, cursor.getBlob(1), dataInfo.hash);
+        }
+      }
+    }
+
+    return dataInfo;
+  }
+
+  /**
+   * Hashes the data of up to limit attachments after the given row that were stored before content
+   * was deduplicated. Whenever a hash is stored, every row with the same content is pointed at one
+   * file and the others are deleted. Attachments whose data can't be read are skipped.
+   *
+   * @return The row ID of the last attachment looked at, or -1 if there were none left.
+   */
+  public long deduplicateAttachments(long afterRowId, int limit) {
+    SQLiteDatabase                   database  = databaseHelper.getWritableDatabase();
+    String                           selection = ROW_ID + " > ? AND " + DATA + " NOT NULL AND " + DATA_HASH + " IS NULL";
+    List<Pair<AttachmentId, String>> batch     = new LinkedList<>();
+
+    try (Cursor cursor = database.query(TABLE_NAME, new String[] {ROW_ID, UNIQUE_ID, DATA}, selection, new String[] {String.valueOf(afterRowId)}, null, null, ROW_ID + " ASC", String.valueOf(limit))) {
+      while (cursor != null && cursor.moveToNext()) {
+        batch.add(new Pair<>(new AttachmentId(cursor.getLong(0), cursor.getLong(1)), cursor.getString(2)));
+      }
+    }
+
+    if (batch.isEmpty()) return -1;
+
+    int hashed  = 0;
+    int deleted = 0;
+
+    for (Pair<AttachmentId, String> attachment : batch) {
+      String hash = hashAttachmentData(attachment.first);
+
+      if (hash != null) {
+        ContentValues values = new ContentValues(1);
+        values.put(DATA_HASH, hash);
+
+        String[] args = new String[] {String.valueOf(attachment.first.getRowId()), String.valueOf(attachment.first.getUniqueId()), attachment.second};
+
+        if (database.update(TABLE_NAME, values, PART_ID_WHERE + " AND " + DATA + " = ? AND " + DATA_HASH + " IS NULL", args) > 0) {
+          hashed++;
+          deleted += deduplicateHash(database, hash);
+        }
+      }
+    }
+
+    Log.i(TAG, "Hashed " + hashed + " of " + batch.size() + " attachments, deleted " + deleted + " duplicate file(s).");
+
+    return batch.get(batch.size() - 1).first.getRowId();
+  }
+
+  /**
+   * Points every row with the given hash at the file of the oldest one that still exists, then
+   * deletes the other files once no row references them.
+   *
+   * @return The number of files that were deleted.
+   */
+  @SuppressWarnings("ResultOfMethodCallIgnored")
+  private int deduplicateHash(@NonNull SQLiteDatabase database, @NonNull String hash) {
+    List<String> unreferenced = new LinkedList<>();
+
+    database.beginTransaction();
+    try {
+      String       kept       = null;
+      byte[]       keptRandom = null;
+      List<String> duplicates = new LinkedList<>();
+
+      try (Cursor cursor = database.query(TABLE_NAME, new String[] {DATA, DATA_RANDOM}, DATA_HASH + " = ? AND " + DATA + " NOT NULL", new String[] {hash}, null, null, ROW_ID + " ASC")) {
+        while (cursor != null && cursor.moveToNext()) {
+          String data = cursor.getString(0);
+
+          if (kept == null && new File(data).exists()) {
+            kept       = data;
+            keptRandom = cursor.getBlob(1);
+          } else if (!duplicates.contains(data)) {
+            duplicates.add(data);
+          }
+        }
+      }
+
+      if (kept != null) {
+        ContentValues values = new ContentValues(2);
+        values.put(DATA, kept);
+        values.put(DATA_RANDOM, keptRandom);
+
+        database.update(TABLE_NAME, values, DATA_HASH + " = ? AND " + DATA + " NOT NULL AND " + DATA + " != ?", new String[] {hash, kept});
+
+        for (String duplicate : duplicates) {
+          if (!duplicate.equals(kept) && !isDataFileReferenced(database, duplicate)) {
+            unreferenced.add(duplicate);
+          }
+        }
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
+
+    int deleted = 0;
+
+    for (String file : unreferenced) {
+      if (new File(file).delete()) deleted++;
+    }
+
+    return deleted;
+  }
+
+  private @Nullable String hashAttachmentData(@NonNull AttachmentId attachmentId) {
+    try (InputStream in = getDataStream(attachmentId, DATA, 0)) {
+      if (in == null) return null;
+
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[]        buffer = new byte[8192];
+      int           read;
+
+      while ((read = in.read(buffer)) != -1) {
+        digest.update(buffer, 0, read);
+      }
+
+      return Hex.toStringCondensed(digest.digest());
+    } catch (IOException e) {
+      Log.w(TAG, "Failed to hash " + attachmentId, e);
+      return null;
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
+    }
+  }
+
   public void insertAttachmentsForPlaceholder(long mmsId, @NonNull AttachmentId attachmentId, @NonNull InputStream inputStream)
       throws MmsException
   {
     DatabaseAttachment placeholder = getAttachment(attachmentId);
     SQLiteDatabase     database    = databaseHelper.getWritableDatabase();
     ContentValues      values      = new ContentValues();
-    DataInfo           dataInfo    = setAttachmentData(inputStream);
+    DataInfo           written     = setAttachmentData(inputStream);
+    boolean            updated;
+
+    database.beginTransaction();
+    try {
+      DataInfo dataInfo = written;
+
+      if (placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image")) {
+        values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
+        values.put(THUMBNAIL_RANDOM, dataInfo.random);
+      } else {
+        dataInfo = deduplicate(database, written);
+
+        values.put(DATA, dataInfo.file.getAbsolutePath());
+        values.put(SIZE, dataInfo.length);
+        values.put(DATA_RANDOM, dataInfo.random);
+        values.put(DATA_HASH, dataInfo.hash);
+      }
 
-    if (placeholder != null && placeholder.isQuote() && !placeholder.getContentType().startsWith("image")) {
-      values.put(THUMBNAIL, dataInfo.file.getAbsolutePath());
-      values.put(THUMBNAIL_RANDOM, dataInfo.random);
-    } else {
-      values.put(DATA, dataInfo.file.getAbsolutePath());
-      values.put(SIZE, dataInfo.length);
-      values.put(DATA_RANDOM, dataInfo.random);
+      values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
+      values.put(CONTENT_LOCATION, (String)null);
+      values.put(CONTENT_DISPOSITION, (String)null);
+      values.put(DIGEST, (byte[])null);
+      values.put(NAME, (String) null);
+      values.put(FAST_PREFLIGHT_ID, (String)null);
+
+      updated = database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) > 0;
+
+      if (!updated && dataInfo == written) {
+        //noinspection ResultOfMethodCallIgnored
+        written.file.delete();
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    values.put(TRANSFER_STATE, TRANSFER_PROGRESS_DONE);
-    values.put(CONTENT_LOCATION, (String)null);
-    values.put(CONTENT_DISPOSITION, (String)null);
-    values.put(DIGEST, (byte[])null);
-    values.put(NAME, (String) null);
-    values.put(FAST_PREFLIGHT_ID, (String)null);
-
-    if (database.update(TABLE_NAME, values, PART_ID_WHERE, attachmentId.toStrings()) == 0) {
-      //noinspection ResultOfMethodCallIgnored
-      dataInfo.file.delete();
-    } else {
+    if (updated) {
       notifyConversationListeners(DatabaseFactory.getMmsDatabase(context).getThreadIdForMessage(mmsId));
       notifyConversationListListeners();
     }
@@ -416,22 +671,38 @@ public class AttachmentDatabase extends Database {
   {
     SQLiteDatabase     database           = databaseHelper.getWritableDatabase();
     DatabaseAttachment databaseAttachment = (DatabaseAttachment) attachment;
-    DataInfo           dataInfo           = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
+    DataInfo           oldDataInfo        = getAttachmentDataFileInfo(databaseAttachment.getAttachmentId(), DATA);
 
-    if (dataInfo == null) {
+    if (oldDataInfo == null) {
       throw new MmsException("No attachment data found!");
     }
 
-    dataInfo = setAttachmentData(dataInfo.file, mediaStream.getStream());
+    DataInfo dataInfo = setAttachmentData(mediaStream.getStream());
 
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(SIZE, dataInfo.length);
-    contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
-    contentValues.put(WIDTH, mediaStream.getWidth());
-    contentValues.put(HEIGHT, mediaStream.getHeight());
-    contentValues.put(DATA_RANDOM, dataInfo.random);
+    database.beginTransaction();
+    try {
+      dataInfo = deduplicate(database, dataInfo);
 
-    database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+      ContentValues contentValues = new ContentValues();
+      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+      contentValues.put(SIZE, dataInfo.length);
+      contentValues.put(CONTENT_TYPE, mediaStream.getMimeType());
+      contentValues.put(WIDTH, mediaStream.getWidth());
+      contentValues.put(HEIGHT, mediaStream.getHeight());
+      contentValues.put(DATA_RANDOM, dataInfo.random);
+      contentValues.put(DATA_HASH, dataInfo.hash);
+
+      database.update(TABLE_NAME, contentValues, PART_ID_WHERE, databaseAttachment.getAttachmentId().toStrings());
+
+      if (!isDataFileReferenced(database, oldDataInfo.file.getAbsolutePath(), oldDataInfo.hash)) {
+        //noinspection ResultOfMethodCallIgnored
+        oldDataInfo.file.delete();
+      }
+
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
+    }
 
     return new DatabaseAttachment(databaseAttachment.getAttachmentId(),
                                   databaseAttachment.getMmsId(),
@@ -557,7 +828,7 @@ public class AttachmentDatabase extends Database {
     }
 
     try {
-      cursor = database.query(TABLE_NAME, new String[]{dataType, SIZE, randomColumn}, PART_ID_WHERE, attachmentId.toStrings(),
+      cursor = database.query(TABLE_NAME, new String[]{dataType, SIZE, randomColumn, DATA_HASH}, PART_ID_WHERE, attachmentId.toStrings(),
                               null, null, null);
 
       if (cursor != null && cursor.moveToFirst()) {
@@ -567,7 +838,8 @@ public class AttachmentDatabase extends Database {
 
         return new DataInfo(new File(cursor.getString(0)),
                             cursor.getLong(1),
-                            cursor.getBlob(2));
+                            cursor.getBlob(2),
+                            DATA.equals(dataType) ? cursor.getString(3) : null);
       } else {
         return null;
       }
@@ -605,12 +877,15 @@ public class AttachmentDatabase extends Database {
       throws MmsException
   {
     try {
+      MessageDigest              digest = MessageDigest.getInstance("SHA-256");
       Pair<byte[], OutputStream> out    = ModernEncryptingPartOutputStream.createFor(attachmentSecret, destination, false);
-      long                       length = Util.copy(in, out.second);
+      long                       length = Util.copy(in, new DigestOutputStream(out.second, digest));
 
-      return new DataInfo(destination, length, out.first);
+      return new DataInfo(destination, length, out.first, Hex.toStringCondensed(digest.digest()));
     } catch (IOException e) {
       throw new MmsException(e);
+    } catch (NoSuchAlgorithmException e) {
+      throw new AssertionError(e);
     }
   }
 
@@ -725,14 +1000,26 @@ public class AttachmentDatabase extends Database {
       contentValues.put(STICKER_ID, attachment.getSticker().getStickerId());
     }
 
-    if (dataInfo != null) {
-      contentValues.put(DATA, dataInfo.file.getAbsolutePath());
-      contentValues.put(SIZE, dataInfo.length);
-      contentValues.put(DATA_RANDOM, dataInfo.random);
+    boolean notifyPacks = attachment.isSticker() && !hasStickerAttachments();
+    long    rowId;
+
+    database.beginTransaction();
+    try {
+      if (dataInfo != null) {
+        dataInfo = deduplicate(database, dataInfo);
+
+        contentValues.put(DATA, dataInfo.file.getAbsolutePath());
+        contentValues.put(SIZE, dataInfo.length);
+        contentValues.put(DATA_RANDOM, dataInfo.random);
+        contentValues.put(DATA_HASH, dataInfo.hash);
+      }
+
+      rowId = database.insert(TABLE_NAME, null, contentValues);
+      database.setTransactionSuccessful();
+    } finally {
+      database.endTransaction();
     }
 
-    boolean      notifyPacks  = attachment.isSticker() && !hasStickerAttachments();
-    long         rowId        = database.insert(TABLE_NAME, null, contentValues);
     AttachmentId attachmentId = new AttachmentId(rowId, uniqueId);
     Uri          thumbnailUri = attachment.getThumbnailUri();
     boolean      hasThumbnail = false;
@@ -867,15 +1154,32 @@ public class AttachmentDatabase extends Database {
     }
   }
 
-  private static class DataInfo {
-    private final File   file;
-    private final long   length;
-    private final byte[] random;
+  static final class AttachmentFiles {
+    private final String data;
+    private final String thumbnail;
+    private final String contentType;
+    private final String dataHash;
+
+    private AttachmentFiles(@Nullable String data, @Nullable String thumbnail, @Nullable String contentType, @Nullable String dataHash) {
+      this.data        = data;
+      this.thumbnail   = thumbnail;
+      this.contentType = contentType;
+      this.dataHash    = dataHash;
+    }
+  }
+
+  @VisibleForTesting
+  static class DataInfo {
+    final File   file;
+    final long   length;
+    final byte[] random;
+    final String hash;
 
-    private DataInfo(File file, long length, byte[] random) {
+    DataInfo(File file, long length, byte[] random, @Nullable String hash) {
       this.file = file;
       this.length = length;
       this.random = random;
+      this.hash = hash;
     }
   }
 }
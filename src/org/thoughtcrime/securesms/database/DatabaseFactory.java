@@ -153,6 +153,8 @@ public class DatabaseFactory {
     getInstance(context).databaseHelper.onUpgrade(database, database.getVersion(), -1);
     getInstance(context).databaseHelper.markCurrent(database);
     getInstance(context).mms.trimEntriesForExpiredMessages();
+    getInstance(context).identityDatabase.clearCache();
+    getInstance(context).sessionDatabase.clearCache();
   }
 
   private DatabaseFactory(@NonNull Context context) {
@@ -138,17 +138,16 @@ public class GroupDatabase extends Database {
   }
 
   public @NonNull List<Recipient> getGroupMembers(String groupId, boolean includeSelf) {
-    List<Address>   members     = getCurrentMembers(groupId);
-    List<Recipient> recipients  = new LinkedList<>();
+    List<Address> members = new LinkedList<>();
 
-    for (Address member : members) {
+    for (Address member : getCurrentMembers(groupId)) {
       if (!includeSelf && Util.isOwnNumber(context, member))
         continue;
 
-      recipients.add(Recipient.from(context, member, false));
+      members.add(member);
     }
 
-    return recipients;
+    return Recipient.from(context, members, false);
   }
 
   public void create(@NonNull String groupId, @Nullable String title, @NonNull List<Address> members,
@@ -178,7 +177,7 @@ public class GroupDatabase extends Database {
     Recipient.applyCached(Address.fromSerialized(groupId), recipient -> {
       recipient.setName(title);
       recipient.setGroupAvatarId(avatar != null ? avatar.getId() : null);
-      recipient.setParticipants(Stream.of(members).map(memberAddress -> Recipient.from(context, memberAddress, true)).toList());
+      recipient.setParticipants(Recipient.from(context, members, true));
     });
 
     notifyConversationListListeners();
@@ -249,7 +248,7 @@ public class GroupDatabase extends Database {
                                                 new String[] {groupId});
 
     Recipient.applyCached(Address.fromSerialized(groupId), recipient -> {
-      recipient.setParticipants(Stream.of(members).map(a -> Recipient.from(context, a, false)).toList());
+      recipient.setParticipants(Recipient.from(context, members, false));
     });
   }
 
@@ -27,11 +27,13 @@ import net.sqlcipher.database.SQLiteDatabase;
 import org.greenrobot.eventbus.EventBus;
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.util.Base64;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.InvalidKeyException;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
+import java.util.Map;
 
 public class IdentityDatabase extends Database {
 
@@ -56,6 +58,17 @@ public class IdentityDatabase extends Database {
       VERIFIED + " INTEGER DEFAULT 0, " +
       NONBLOCKING_APPROVAL + " INTEGER DEFAULT 0);";
 
+  private static final int MAX_CACHED_IDENTITIES = 500;
+
+  /**
+   * Write-through cache of identity lookups, including addresses that have no identity.
+   */
+  private final Map<Address, Optional<IdentityRecord>> cache = new LRUCache<>(MAX_CACHED_IDENTITIES);
+
+  private long generation;
+  private long cacheHits;
+  private long cacheMisses;
+
   public enum VerifiedStatus {
     DEFAULT, VERIFIED, UNVERIFIED;
 
@@ -89,6 +102,54 @@ public class IdentityDatabase extends Database {
   }
 
   public Optional<IdentityRecord> getIdentity(Address address) {
+    long loadGeneration;
+
+    synchronized (cache) {
+      Optional<IdentityRecord> cached = cache.get(address);
+
+      if (cached != null) {
+        cacheHits++;
+        return cached;
+      }
+
+      cacheMisses++;
+      loadGeneration = generation;
+    }
+
+    Optional<IdentityRecord> record = loadIdentity(address);
+
+    synchronized (cache) {
+      if (generation == loadGeneration) {
+        cache.put(address, record);
+      }
+    }
+
+    return record;
+  }
+
+  public long getCacheHits() {
+    synchronized (cache) {
+      return cacheHits;
+    }
+  }
+
+  public long getCacheMisses() {
+    synchronized (cache) {
+      return cacheMisses;
+    }
+  }
+
+  /**
+   * Drops every cached identity, for when the table is written without going through this class.
+   */
+  public void clearCache() {
+    synchronized (cache) {
+      generation++;
+      cache.clear();
+    }
+  }
+
+  private Optional<IdentityRecord> loadIdentity(Address address) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
     Cursor         cursor   = null;
 
@@ -124,8 +185,14 @@ public class IdentityDatabase extends Database {
 
     database.replace(TABLE_NAME, null, contentValues);
 
-    EventBus.getDefault().post(new IdentityRecord(address, identityKey, verifiedStatus,
-                                                  firstUse, timestamp, nonBlockingApproval));
+    IdentityRecord record = new IdentityRecord(address, identityKey, verifiedStatus, firstUse, timestamp, nonBlockingApproval);
+
+    synchronized (cache) {
+      generation++;
+      cache.put(address, Optional.of(record));
+    }
+
+    EventBus.getDefault().post(record);
   }
 
   public void setApproval(Address address, boolean nonBlockingApproval) {
@@ -135,6 +202,8 @@ public class IdentityDatabase extends Database {
     contentValues.put(NONBLOCKING_APPROVAL, nonBlockingApproval);
 
     database.update(TABLE_NAME, contentValues, ADDRESS + " = ?", new String[] {address.serialize()});
+
+    invalidate(address);
   }
 
   public void setVerified(Address address, IdentityKey identityKey, VerifiedStatus verifiedStatus) {
@@ -146,12 +215,21 @@ public class IdentityDatabase extends Database {
     int updated = database.update(TABLE_NAME, contentValues, ADDRESS + " = ? AND " + IDENTITY_KEY + " = ?",
                                   new String[] {address.serialize(), Base64.encodeBytes(identityKey.serialize())});
 
+    invalidate(address);
+
     if (updated > 0) {
       Optional<IdentityRecord> record = getIdentity(address);
       if (record.isPresent()) EventBus.getDefault().post(record.get());
     }
   }
 
+  private void invalidate(@NonNull Address address) {
+    synchronized (cache) {
+      generation++;
+      cache.remove(address);
+    }
+  }
+
   private IdentityRecord getIdentityRecord(@NonNull Cursor cursor) throws IOException, InvalidKeyException {
     String      address             = cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS));
     String      serializedIdentity  = cursor.getString(cursor.getColumnIndexOrThrow(IDENTITY_KEY));
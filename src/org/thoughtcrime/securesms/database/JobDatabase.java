@@ -8,6 +8,7 @@ import androidx.annotation.NonNull;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.jobmanager.Job;
 import org.thoughtcrime.securesms.jobmanager.persistence.ConstraintSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
@@ -35,6 +36,7 @@ public class JobDatabase extends Database {
     private static final String MAX_BACKOFF           = "max_backoff";
     private static final String MAX_INSTANCES         = "max_instances";
     private static final String LIFESPAN              = "lifespan";
+    private static final String PRIORITY              = "priority";
     private static final String SERIALIZED_DATA       = "serialized_data";
     private static final String IS_RUNNING            = "is_running";
 
@@ -49,6 +51,7 @@ public class JobDatabase extends Database {
                                                                                     MAX_BACKOFF           + " INTEGER, " +
                                                                                     MAX_INSTANCES         + " INTEGER, " +
                                                                                     LIFESPAN              + " INTEGER, " +
+                                                                                    PRIORITY              + " INTEGER DEFAULT " + Job.Priority.DEFAULT.getCode() + ", " +
                                                                                     SERIALIZED_DATA       + " TEXT, " +
                                                                                     IS_RUNNING            + " INTEGER)";
   }
@@ -112,26 +115,32 @@ public class JobDatabase extends Database {
     return jobs;
   }
 
-  public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(Jobs.IS_RUNNING, isRunning ? 1 : 0);
+  /**
+   * Writes the mutable state (running state, run attempt and next run attempt time) of each of the
+   * provided jobs in a single transaction.
+   */
+  public synchronized void updateJobs(@NonNull List<JobSpec> jobSpecs) {
+    SQLiteDatabase db = databaseHelper.getWritableDatabase();
 
-    String   query = Jobs.JOB_SPEC_ID + " = ?";
-    String[] args  = new String[]{ id };
+    db.beginTransaction();
 
-    databaseHelper.getWritableDatabase().update(Jobs.TABLE_NAME, contentValues, query, args);
-  }
+    try {
+      for (JobSpec jobSpec : jobSpecs) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Jobs.IS_RUNNING, jobSpec.isRunning() ? 1 : 0);
+        contentValues.put(Jobs.RUN_ATTEMPT, jobSpec.getRunAttempt());
+        contentValues.put(Jobs.NEXT_RUN_ATTEMPT_TIME, jobSpec.getNextRunAttemptTime());
 
-  public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime) {
-    ContentValues contentValues = new ContentValues();
-    contentValues.put(Jobs.IS_RUNNING, isRunning ? 1 : 0);
-    contentValues.put(Jobs.RUN_ATTEMPT, runAttempt);
-    contentValues.put(Jobs.NEXT_RUN_ATTEMPT_TIME, nextRunAttemptTime);
+        String   query = Jobs.JOB_SPEC_ID + " = ?";
+        String[] args  = new String[]{ jobSpec.getId() };
 
-    String   query = Jobs.JOB_SPEC_ID + " = ?";
-    String[] args  = new String[]{ id };
+        db.update(Jobs.TABLE_NAME, contentValues, query, args);
+      }
 
-    databaseHelper.getWritableDatabase().update(Jobs.TABLE_NAME, contentValues, query, args);
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
   }
 
   public synchronized void updateAllJobsToBePending() {
@@ -198,6 +207,7 @@ public class JobDatabase extends Database {
     contentValues.put(Jobs.MAX_BACKOFF, job.getMaxBackoff());
     contentValues.put(Jobs.MAX_INSTANCES, job.getMaxInstances());
     contentValues.put(Jobs.LIFESPAN, job.getLifespan());
+    contentValues.put(Jobs.PRIORITY, job.getPriority());
     contentValues.put(Jobs.SERIALIZED_DATA, job.getSerializedData());
     contentValues.put(Jobs.IS_RUNNING, job.isRunning() ? 1 : 0);
 
@@ -233,6 +243,7 @@ public class JobDatabase extends Database {
                        cursor.getLong(cursor.getColumnIndexOrThrow(Jobs.MAX_BACKOFF)),
                        cursor.getLong(cursor.getColumnIndexOrThrow(Jobs.LIFESPAN)),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.MAX_INSTANCES)),
+                       cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.PRIORITY)),
                        cursor.getString(cursor.getColumnIndexOrThrow(Jobs.SERIALIZED_DATA)),
                        cursor.getInt(cursor.getColumnIndexOrThrow(Jobs.IS_RUNNING)) == 1);
   }
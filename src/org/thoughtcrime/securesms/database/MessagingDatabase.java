@@ -5,6 +5,9 @@ import android.content.Context;
 import android.database.Cursor;
 import android.text.TextUtils;
 
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.documents.Document;
@@ -17,13 +20,17 @@ import org.whispersystems.libsignal.IdentityKey;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 public abstract class MessagingDatabase extends Database implements MmsSmsColumns {
 
   private static final String TAG = MessagingDatabase.class.getSimpleName();
 
+  protected static final int MAX_IDS_PER_DELETE = 500;
+
   public MessagingDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -36,6 +43,22 @@ public abstract class MessagingDatabase extends Database implements MmsSmsColumn
   public abstract void markAsSent(long messageId, boolean secure);
   public abstract void markUnidentified(long messageId, boolean unidentified);
 
+  /**
+   * @return The number of messages matching the selection in each thread.
+   */
+  protected @NonNull Map<Long, Integer> getThreadMessageCounts(@NonNull String where, @Nullable String[] args) {
+    Map<Long, Integer> counts = new HashMap<>();
+    String             query  = "SELECT " + THREAD_ID + ", COUNT(*) FROM " + getTableName() + " WHERE " + where + " GROUP BY " + THREAD_ID;
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      while (cursor != null && cursor.moveToNext()) {
+        counts.put(cursor.getLong(0), cursor.getInt(1));
+      }
+    }
+
+    return counts;
+  }
+
   public void setMismatchedIdentity(long messageId, final Address address, final IdentityKey identityKey) {
     List<IdentityKeyMismatch> items = new ArrayList<IdentityKeyMismatch>() {{
       add(new IdentityKeyMismatch(address, identityKey));
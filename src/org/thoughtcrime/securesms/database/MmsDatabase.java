@@ -135,6 +135,7 @@ public class MmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS mms_message_box_index ON " + TABLE_NAME + " (" + MESSAGE_BOX + ");",
     "CREATE INDEX IF NOT EXISTS mms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
     "CREATE INDEX IF NOT EXISTS mms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS mms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRE_STARTED + " + " + EXPIRES_IN + ") WHERE " + EXPIRE_STARTED + " > 0;",
   };
 
   private static final String[] MMS_PROJECTION = new String[] {
@@ -175,9 +176,6 @@ public class MmsDatabase extends MessagingDatabase {
 
   private static final String RAW_ID_WHERE = TABLE_NAME + "._id = ?";
 
-  private final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
-  private final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
-
   public MmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -220,48 +218,6 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  public void incrementReceiptCount(SyncMessageId messageId, long timestamp, boolean deliveryReceipt, boolean readReceipt) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    Cursor         cursor   = null;
-    boolean        found    = false;
-
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, MESSAGE_BOX, ADDRESS}, DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())}, null, null, null, null);
-
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(MESSAGE_BOX)))) {
-          Address theirAddress = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-          Address ourAddress   = messageId.getAddress();
-          String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
-
-          if (ourAddress.equals(theirAddress) || theirAddress.isGroup()) {
-            long id       = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-            long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-            int  status   = deliveryReceipt ? GroupReceiptDatabase.STATUS_DELIVERED : GroupReceiptDatabase.STATUS_READ;
-
-            found = true;
-
-            database.execSQL("UPDATE " + TABLE_NAME + " SET " +
-                             columnName + " = " + columnName + " + 1 WHERE " + ID + " = ?",
-                             new String[] {String.valueOf(id)});
-
-            DatabaseFactory.getGroupReceiptDatabase(context).update(ourAddress, id, status, timestamp);
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
-          }
-        }
-      }
-
-      if (!found) {
-        if (deliveryReceipt) earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-        if (readReceipt)     earlyReadReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-      }
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
-  }
-
   public long getThreadIdForMessage(long id) {
     String sql        = "SELECT " + THREAD_ID + " FROM " + TABLE_NAME + " WHERE " + ID + " = ?";
     String[] sqlArgs  = new String[] {id+""};
@@ -313,11 +269,6 @@ public class MmsDatabase extends MessagingDatabase {
     return cursor;
   }
 
-  public Reader getExpireStartedMessages() {
-    String where = EXPIRE_STARTED + " > 0";
-    return readerFor(rawQuery(where, null));
-  }
-
   private void updateMailboxBitmask(long id, long maskOff, long maskOn, Optional<Long> threadId) {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     db.execSQL("UPDATE " + TABLE_NAME +
@@ -325,7 +276,7 @@ public class MmsDatabase extends MessagingDatabase {
                    " WHERE " + ID + " = ?", new String[] {id + ""});
 
     if (threadId.isPresent()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId.get(), false);
+      DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId.get(), 0, false);
     }
   }
 
@@ -565,7 +516,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 0, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -858,7 +809,7 @@ public class MmsDatabase extends MessagingDatabase {
 
     if (!Types.isExpirationTimerUpdate(mailbox)) {
       DatabaseFactory.getThreadDatabase(context).incrementUnread(threadId, 1);
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+      DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 0, true);
     }
 
     notifyConversationListeners(threadId);
@@ -973,8 +924,8 @@ public class MmsDatabase extends MessagingDatabase {
       type |= Types.EXPIRATION_TIMER_UPDATE_BIT;
     }
 
-    Map<Address, Long> earlyDeliveryReceipts = earlyDeliveryReceiptCache.remove(message.getSentTimeMillis());
-    Map<Address, Long> earlyReadReceipts     = earlyReadReceiptCache.remove(message.getSentTimeMillis());
+    Map<Address, Long> earlyDeliveryReceipts = DatabaseFactory.getMmsSmsDatabase(context).removeEarlyDeliveryReceipts(message.getSentTimeMillis());
+    Map<Address, Long> earlyReadReceipts     = DatabaseFactory.getMmsSmsDatabase(context).removeEarlyReadReceipts(message.getSentTimeMillis());
 
     ContentValues contentValues = new ContentValues();
     contentValues.put(DATE_SENT, message.getSentTimeMillis());
@@ -1044,6 +995,8 @@ public class MmsDatabase extends MessagingDatabase {
     contentValues.put(BODY, body);
     contentValues.put(PART_COUNT, allAttachments.size());
 
+    boolean inserted = false;
+
     db.beginTransaction();
     try {
       long messageId = db.insert(TABLE_NAME, null, contentValues);
@@ -1077,6 +1030,7 @@ public class MmsDatabase extends MessagingDatabase {
       }
 
       db.setTransactionSuccessful();
+      inserted = true;
       return messageId;
     } finally {
       db.endTransaction();
@@ -1086,7 +1040,7 @@ public class MmsDatabase extends MessagingDatabase {
       }
 
       notifyConversationListeners(contentValues.getAsLong(THREAD_ID));
-      DatabaseFactory.getThreadDatabase(context).update(contentValues.getAsLong(THREAD_ID), true);
+      DatabaseFactory.getThreadDatabase(context).updateIncremental(contentValues.getAsLong(THREAD_ID), inserted ? 1 : 0, true);
     }
   }
 
@@ -1099,14 +1053,63 @@ public class MmsDatabase extends MessagingDatabase {
     groupReceiptDatabase.deleteRowsForMessage(messageId);
 
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
-    database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    int deleted = database.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+
+    if (deleted == 0) {
+      Log.w(TAG, "Message " + messageId + " was already deleted.");
+      return false;
+    }
+
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, -deleted, false);
     notifyConversationListeners(threadId);
     notifyStickerListeners();
     notifyStickerPackListeners();
     return threadDeleted;
   }
 
+  /**
+   * Deletes several messages with their attachments and group receipts, updating each affected
+   * thread once. Attachment files are unlinked after the rows are gone.
+   */
+  public void deleteMessages(@NonNull List<Long> messageIds) {
+    SQLiteDatabase                           db        = databaseHelper.getWritableDatabase();
+    List<AttachmentDatabase.AttachmentFiles> files     = new LinkedList<>();
+    Set<Long>                                threadIds = new HashSet<>();
+
+    db.beginTransaction();
+    try {
+      for (List<Long> chunk : Util.chunk(messageIds, MAX_IDS_PER_DELETE)) {
+        String   where        = ID + " IN (" + Util.join(Collections.nCopies(chunk.size(), "?"), ",") + ")";
+        String[] args         = Stream.of(chunk).map(String::valueOf).toArray(String[]::new);
+        String   messageQuery = "SELECT " + ID + " FROM " + TABLE_NAME + " WHERE " + where;
+
+        Map<Long, Integer> threadCounts = getThreadMessageCounts(where, args);
+
+        files.addAll(DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentsForMessages(messageQuery, args));
+        DatabaseFactory.getGroupReceiptDatabase(context).deleteRowsForMessages(messageQuery, args);
+        db.delete(TABLE_NAME, where, args);
+
+        for (Map.Entry<Long, Integer> entry : threadCounts.entrySet()) {
+          DatabaseFactory.getThreadDatabase(context).updateIncremental(entry.getKey(), -entry.getValue(), false);
+        }
+
+        threadIds.addAll(threadCounts.keySet());
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentFiles(files);
+
+    if (!threadIds.isEmpty()) {
+      notifyConversationListeners(threadIds);
+      notifyStickerListeners();
+      notifyStickerPackListeners();
+    }
+  }
+
   public void deleteThread(long threadId) {
     Set<Long> singleThreadSet = new HashSet<>();
     singleThreadSet.add(threadId);
@@ -1209,30 +1212,38 @@ public class MmsDatabase extends MessagingDatabase {
     }
   }
 
-  /*package*/void deleteMessagesInThreadBeforeDate(long threadId, long date) {
-    Cursor cursor = null;
+  /**
+   * Deletes the thread's messages from before the date, along with their attachment rows and group
+   * receipts, using one statement per table. The thread summary isn't updated.
+   *
+   * @return The attachment files that are no longer referenced. They're left on disk so the caller
+   *         can unlink them after its transaction commits.
+   */
+  /*package*/ @NonNull List<AttachmentDatabase.AttachmentFiles> deleteMessagesInThreadBeforeDate(long threadId, long date) {
+    SQLiteDatabase db    = databaseHelper.getWritableDatabase();
+    String         where = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
 
-    try {
-      SQLiteDatabase db = databaseHelper.getReadableDatabase();
-      String where      = THREAD_ID + " = ? AND (CASE (" + MESSAGE_BOX + " & " + Types.BASE_TYPE_MASK + ") ";
+    for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
+      where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
+    }
 
-      for (long outgoingType : Types.OUTGOING_MESSAGE_TYPES) {
-        where += " WHEN " + outgoingType + " THEN " + DATE_SENT + " < " + date;
-      }
+    where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
 
-      where += (" ELSE " + DATE_RECEIVED + " < " + date + " END)");
+    String   messageQuery = "SELECT " + ID + " FROM " + TABLE_NAME + " WHERE " + where;
+    String[] args         = new String[] {String.valueOf(threadId)};
 
-      cursor = db.query(TABLE_NAME, new String[] {ID}, where, new String[] {threadId+""}, null, null, null);
+    List<AttachmentDatabase.AttachmentFiles> files = DatabaseFactory.getAttachmentDatabase(context).deleteAttachmentsForMessages(messageQuery, args);
+    DatabaseFactory.getGroupReceiptDatabase(context).deleteRowsForMessages(messageQuery, args);
 
-      while (cursor != null && cursor.moveToNext()) {
-        Log.i("MmsDatabase", "Trimming: " + cursor.getLong(0));
-        delete(cursor.getLong(0));
-      }
+    int deleted = db.delete(TABLE_NAME, where, args);
+    Log.i(TAG, "Trimmed " + deleted + " messages from thread " + threadId);
 
-    } finally {
-      if (cursor != null)
-        cursor.close();
+    if (deleted > 0) {
+      notifyStickerListeners();
+      notifyStickerPackListeners();
     }
+
+    return files;
   }
 
 
@@ -20,6 +20,10 @@ import android.content.Context;
 import android.database.Cursor;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
+
+import com.annimon.stream.Stream;
 
 import net.sqlcipher.database.SQLiteDatabase;
 import net.sqlcipher.database.SQLiteQueryBuilder;
@@ -29,17 +33,24 @@ import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
 import org.thoughtcrime.securesms.util.Util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class MmsSmsDatabase extends Database {
 
-  @SuppressWarnings("unused")
   private static final String TAG = MmsSmsDatabase.class.getSimpleName();
 
   public static final String TRANSPORT     = "transport_type";
   public static final String MMS_TRANSPORT = "mms";
   public static final String SMS_TRANSPORT = "sms";
+  public static final String EXPIRES_AT    = "expires_at";
 
   private static final String[] PROJECTION = {MmsSmsColumns.ID, MmsSmsColumns.UNIQUE_ROW_ID,
                                               SmsDatabase.BODY, SmsDatabase.TYPE,
@@ -72,6 +83,26 @@ public class MmsSmsDatabase extends Database {
                                               MmsDatabase.SHARED_CONTACTS,
                                               MmsDatabase.LINK_PREVIEWS};
 
+  private static final int MAX_RECEIPT_TIMESTAMPS_PER_QUERY = 400;
+
+  /**
+   * A row's {@link MmsSmsColumns#UNIQUE_ROW_ID}: its ID tagged with its table, except that an MMS
+   * whose first attachment has a fast preflight ID uses that instead, to match the fast record it
+   * replaces in the conversation.
+   */
+  @VisibleForTesting
+  static final String SMS_UNIQUE_ROW_ID = "(" + MmsSmsColumns.ID + " << 1)";
+
+  @VisibleForTesting
+  static final String MMS_UNIQUE_ROW_ID = "COALESCE(CAST((SELECT " + AttachmentDatabase.FAST_PREFLIGHT_ID + " FROM " + AttachmentDatabase.TABLE_NAME +
+                                              " WHERE " + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID +
+                                              " AND " + AttachmentDatabase.QUOTE + " = 0" +
+                                              " ORDER BY " + AttachmentDatabase.ROW_ID + " LIMIT 1) AS INTEGER), " +
+                                          "(" + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " << 1) | 1)";
+
+  private final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
+  private final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
+
   public MmsSmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -96,10 +127,29 @@ public class MmsSmsDatabase extends Database {
     return null;
   }
 
+  /**
+   * Loads a window of the conversation at a position, newest first, for jumping to a message whose
+   * position is all that's known. Paging through the conversation should use
+   * {@link #getConversationSince(long, long, long)} instead. Rather than handing the offset to the
+   * union query (which would build every skipped row, attachments included), the window's bounds
+   * are first resolved to date_received keys using only the (thread_id, date_received) indexes, so
+   * the full projection is only computed for the rows inside the window.
+   */
   public Cursor getConversation(long threadId, long offset, long limit) {
     String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
     String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
-    String limitStr  = limit > 0 || offset > 0 ? offset + ", " + limit : null;
+    String limitStr  = null;
+
+    if (offset > 0 || limit > 0) {
+      Long newest = offset > 0 ? getDateReceivedAtPosition(threadId, offset) : null;
+      Long oldest = limit > 0  ? getDateReceivedAtPosition(threadId, offset + limit - 1) : null;
+      long skip   = newest != null ? offset - getConversationCountNewerThan(threadId, newest) : offset;
+
+      if (newest != null) selection += " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " <= " + newest;
+      if (oldest != null) selection += " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " >= " + oldest;
+
+      limitStr = skip + ", " + (limit > 0 ? limit : -1);
+    }
 
     Cursor cursor = queryTables(PROJECTION, selection, order, limitStr);
     setNotifyConverationListeners(cursor, threadId);
@@ -111,6 +161,32 @@ public class MmsSmsDatabase extends Database {
     return getConversation(threadId, 0, 0);
   }
 
+  /**
+   * Loads every message received at or after since, followed by the page of up to limit messages
+   * received before it, newest first. The page is found by key on the (thread_id, date_received)
+   * indexes, so loading further back never has to skip past the messages that are already loaded.
+   * Messages sharing the page's oldest date_received are all included, so the next page can
+   * always continue strictly before it.
+   */
+  public Cursor getConversationSince(long threadId, long since, long limit) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    Long   oldest    = limit > 0 ? getDateReceivedBefore(threadId, since, limit - 1) : Long.valueOf(since);
+
+    if (oldest != null) {
+      selection += " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " >= " + oldest;
+    }
+
+    Cursor cursor = queryTables(PROJECTION, selection, order, null);
+    setNotifyConverationListeners(cursor, threadId);
+
+    return cursor;
+  }
+
+  public boolean hasConversationBefore(long threadId, long dateReceived) {
+    return getDateReceivedBefore(threadId, dateReceived, 0) != null;
+  }
+
   public Cursor getIdentityConflictMessagesForThread(long threadId) {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.MISMATCHED_IDENTITIES + " IS NOT NULL";
@@ -121,13 +197,99 @@ public class MmsSmsDatabase extends Database {
     return cursor;
   }
 
+  /**
+   * The newest message is located with the (thread_id, date_received) index on each table first,
+   * so that only the rows at that timestamp go through the union query.
+   */
   public Cursor getConversationSnippet(long threadId) {
+    long   latest    = Math.max(getLatestDateReceived(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, threadId),
+                                getLatestDateReceived(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, threadId));
     String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " >= " + latest;
 
     return  queryTables(PROJECTION, selection, order, "1");
   }
 
+  /**
+   * @return The date_received of the message at the given position in the conversation (newest
+   *         first), or null if the conversation is shorter than that. Only reads the
+   *         (thread_id, date_received) indexes.
+   */
+  @Nullable Long getDateReceivedAtPosition(long threadId, long position) {
+    return getDateReceivedBefore(threadId, Long.MAX_VALUE, position);
+  }
+
+  /**
+   * @return The date_received of the message skip places after the newest one received before the
+   *         given time, or null if there aren't that many. Only reads the
+   *         (thread_id, date_received) indexes.
+   */
+  private @Nullable Long getDateReceivedBefore(long threadId, long dateReceived, long skip) {
+    try (Cursor cursor = queryDatesReceivedBefore(threadId, dateReceived, skip, 1)) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+    }
+
+    return null;
+  }
+
+  /**
+   * @return The date_received of the message at the given position in the conversation (newest
+   *         first), or null if no message is older than it. Reads both positions with one query
+   *         on the (thread_id, date_received) indexes.
+   */
+  @Nullable Long getDateReceivedAtPositionIfOlderExists(long threadId, long position) {
+    try (Cursor cursor = queryDatesReceivedBefore(threadId, Long.MAX_VALUE, position, 2)) {
+      if (cursor != null && cursor.getCount() == 2 && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+    }
+
+    return null;
+  }
+
+  private Cursor queryDatesReceivedBefore(long threadId, long dateReceived, long skip, int limit) {
+    String query = "SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM (" +
+                     "SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + SmsDatabase.DATE_RECEIVED + " < ?" +
+                     " UNION ALL " +
+                     "SELECT " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + MmsDatabase.DATE_RECEIVED + " < ?" +
+                   ") ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC LIMIT " + limit + " OFFSET " + skip;
+
+    String[] args = new String[] {String.valueOf(threadId), String.valueOf(dateReceived), String.valueOf(threadId), String.valueOf(dateReceived)};
+
+    return databaseHelper.getReadableDatabase().rawQuery(query, args);
+  }
+
+  private long getConversationCountNewerThan(long threadId, long dateReceived) {
+    return getCountNewerThan(SmsDatabase.TABLE_NAME, SmsDatabase.DATE_RECEIVED, threadId, dateReceived) +
+           getCountNewerThan(MmsDatabase.TABLE_NAME, MmsDatabase.DATE_RECEIVED, threadId, dateReceived);
+  }
+
+  private long getCountNewerThan(@NonNull String table, @NonNull String dateColumn, long threadId, long dateReceived) {
+    String query = "SELECT COUNT(*) FROM " + table + " WHERE " + MmsSmsColumns.THREAD_ID + " = ? AND " + dateColumn + " > ?";
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, new String[] {String.valueOf(threadId), String.valueOf(dateReceived)})) {
+      if (cursor != null && cursor.moveToFirst()) {
+        return cursor.getLong(0);
+      }
+    }
+
+    return 0;
+  }
+
+  private long getLatestDateReceived(@NonNull String table, @NonNull String dateColumn, long threadId) {
+    String query = "SELECT MAX(" + dateColumn + ") FROM " + table + " WHERE " + MmsSmsColumns.THREAD_ID + " = ?";
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, new String[] {String.valueOf(threadId)})) {
+      if (cursor != null && cursor.moveToFirst() && !cursor.isNull(0)) {
+        return cursor.getLong(0);
+      }
+    }
+
+    return Long.MIN_VALUE;
+  }
+
   public Cursor getUnread() {
     String order           = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
     String selection       = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
@@ -135,6 +297,69 @@ public class MmsSmsDatabase extends Database {
     return queryTables(PROJECTION, selection, order, null);
   }
 
+  /**
+   * Like {@link #getUnread()}, but only for messages received at or after the given time.
+   */
+  public Cursor getUnreadSince(long dateReceived) {
+    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " ASC";
+    String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " >= " + dateReceived;
+
+    return queryTables(PROJECTION, selection, order, null);
+  }
+
+  /**
+   * @return Every message {@link #getUnread()} would return from the given threads, or from all
+   *         threads if threadIds is null, keyed by {@link #getUnreadKey(long, boolean)}, without
+   *         loading the messages themselves.
+   */
+  public @NonNull Map<Long, UnreadMessage> getUnreadMessages(@Nullable Collection<Long> threadIds) {
+    String selection = " WHERE " + MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0";
+
+    if (threadIds != null) {
+      selection += " AND " + MmsSmsColumns.THREAD_ID + " IN (" + Util.join(Stream.of(threadIds).map(String::valueOf).toList(), ",") + ")";
+    }
+
+    String query = "SELECT (" + MmsSmsColumns.ID + " << 1), " + SmsDatabase.DATE_RECEIVED + ", " +
+                     SmsDatabase.TYPE + " || ':' || IFNULL(LENGTH(" + SmsDatabase.BODY + "), 0) || ':' || " + SmsDatabase.EXPIRE_STARTED +
+                     " FROM " + SmsDatabase.TABLE_NAME + selection +
+                   " UNION ALL " +
+                   "SELECT (" + MmsSmsColumns.ID + " << 1) | 1, " + MmsDatabase.DATE_RECEIVED + ", " +
+                     MmsDatabase.MESSAGE_BOX + " || ':' || " + MmsDatabase.MESSAGE_TYPE + " || ':' || IFNULL(LENGTH(" + MmsDatabase.BODY + "), 0) || ':' || " + MmsDatabase.EXPIRE_STARTED + " || ':' || " +
+                     "IFNULL((SELECT GROUP_CONCAT(" + AttachmentDatabase.TRANSFER_STATE + ") FROM " + AttachmentDatabase.TABLE_NAME +
+                       " WHERE " + AttachmentDatabase.MMS_ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + "), '')" +
+                     " FROM " + MmsDatabase.TABLE_NAME + selection;
+
+    Map<Long, UnreadMessage> messages = new HashMap<>();
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        messages.put(cursor.getLong(0), new UnreadMessage(cursor.getLong(1), cursor.getString(2)));
+      }
+    }
+
+    return messages;
+  }
+
+  /**
+   * @return The {@link MmsSmsColumns#ID}, {@link #TRANSPORT} and {@link #EXPIRES_AT} of up to limit
+   *         messages whose expiration timer has started and runs out at or before the given time,
+   *         soonest first. Only reads the expiration indexes.
+   */
+  public Cursor getExpiringMessages(long expiresBefore, int limit) {
+    String expiresAt = MmsSmsColumns.EXPIRE_STARTED + " + " + MmsSmsColumns.EXPIRES_IN;
+    String selection = " WHERE " + MmsSmsColumns.EXPIRE_STARTED + " > 0 AND " + expiresAt + " <= " + expiresBefore;
+    String query     = "SELECT " + MmsSmsColumns.ID + ", '" + SMS_TRANSPORT + "' AS " + TRANSPORT + ", " + expiresAt + " AS " + EXPIRES_AT + " FROM " + SmsDatabase.TABLE_NAME + selection +
+                       " UNION ALL " +
+                       "SELECT " + MmsSmsColumns.ID + ", '" + MMS_TRANSPORT + "' AS " + TRANSPORT + ", " + expiresAt + " AS " + EXPIRES_AT + " FROM " + MmsDatabase.TABLE_NAME + selection +
+                       " ORDER BY " + EXPIRES_AT + " ASC LIMIT " + limit;
+
+    return databaseHelper.getReadableDatabase().rawQuery(query, null);
+  }
+
+  public static long getUnreadKey(long messageId, boolean mms) {
+    return (messageId << 1) | (mms ? 1 : 0);
+  }
+
   public int getUnreadCount(long threadId) {
     String selection = MmsSmsColumns.READ + " = 0 AND " + MmsSmsColumns.NOTIFIED + " = 0 AND " + MmsSmsColumns.THREAD_ID + " = " + threadId;
     Cursor cursor    = queryTables(PROJECTION, selection, null, null);
@@ -153,54 +378,216 @@ public class MmsSmsDatabase extends Database {
     return count;
   }
 
+  /**
+   * @return A map of thread ID to the number of messages in that thread, for every thread with
+   *         at least one message.
+   */
+  public @NonNull Map<Long, Long> getConversationCounts() {
+    Map<Long, Long> counts = new HashMap<>();
+
+    for (String table : new String[] {SmsDatabase.TABLE_NAME, MmsDatabase.TABLE_NAME}) {
+      String query = "SELECT " + MmsSmsColumns.THREAD_ID + ", COUNT(*) FROM " + table + " GROUP BY " + MmsSmsColumns.THREAD_ID;
+
+      try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          long threadId = cursor.getLong(0);
+          Long count    = counts.get(threadId);
+
+          counts.put(threadId, cursor.getLong(1) + (count != null ? count : 0));
+        }
+      }
+    }
+
+    return counts;
+  }
+
   public void incrementDeliveryReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, true, false);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, true, false);
+    incrementDeliveryReceiptCounts(Collections.singletonList(syncMessageId), timestamp);
   }
 
   public void incrementReadReceiptCount(SyncMessageId syncMessageId, long timestamp) {
-    DatabaseFactory.getSmsDatabase(context).incrementReceiptCount(syncMessageId, false, true);
-    DatabaseFactory.getMmsDatabase(context).incrementReceiptCount(syncMessageId, timestamp, false, true);
+    incrementReadReceiptCounts(Collections.singletonList(syncMessageId), timestamp);
   }
 
-  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  /**
+   * Receipts tend to arrive in bursts, such as one receipt message that covers many messages, so
+   * a whole batch is applied at once. That happens in a single transaction on the calling thread,
+   * so the receipts are stored before the message that carried them is acknowledged.
+   */
+  public void incrementDeliveryReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    processReceipts(buildReceipts(syncMessageIds, timestamp, true));
+  }
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_SENT, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address);
+  /**
+   * @see #incrementDeliveryReceiptCounts(List, long)
+   */
+  public void incrementReadReceiptCounts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp) {
+    processReceipts(buildReceipts(syncMessageIds, timestamp, false));
+  }
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean quoteIdMatches = cursor.getLong(0) == quoteId;
-        boolean addressMatches = serializedAddress.equals(cursor.getString(1));
+  @NonNull Map<Address, Long> removeEarlyDeliveryReceipts(long timestamp) {
+    return earlyDeliveryReceiptCache.remove(timestamp);
+  }
+
+  @NonNull Map<Address, Long> removeEarlyReadReceipts(long timestamp) {
+    return earlyReadReceiptCache.remove(timestamp);
+  }
+
+  private static @NonNull List<PendingReceipt> buildReceipts(@NonNull List<SyncMessageId> syncMessageIds, long timestamp, boolean delivery) {
+    List<PendingReceipt> receipts = new ArrayList<>(syncMessageIds.size());
+
+    for (SyncMessageId syncMessageId : syncMessageIds) {
+      receipts.add(new PendingReceipt(syncMessageId, timestamp, delivery));
+    }
+
+    return receipts;
+  }
+
+  @WorkerThread
+  private void processReceipts(@NonNull List<PendingReceipt> receipts) {
+    Map<Long, List<ReceiptTarget>> targets              = getReceiptTargets(receipts);
+    List<PendingReceipt>           unmatched            = new LinkedList<>();
+    Set<Long>                      threadIds            = new HashSet<>();
+    GroupReceiptDatabase           groupReceiptDatabase = getGroupReceiptDatabase();
+    SQLiteDatabase                 db                   = databaseHelper.getWritableDatabase();
+
+    db.beginTransaction();
+    try {
+      for (PendingReceipt receipt : receipts) {
+        List<ReceiptTarget> candidates = targets.get(receipt.syncMessageId.getTimetamp());
+        boolean             found      = false;
+
+        if (candidates != null) {
+          for (ReceiptTarget target : candidates) {
+            if (!target.matches(receipt.syncMessageId.getAddress())) continue;
+
+            if (receipt.delivery) target.deliveryCount++;
+            else                  target.readCount++;
+
+            if (target.mms) {
+              int status = receipt.delivery ? GroupReceiptDatabase.STATUS_DELIVERED : GroupReceiptDatabase.STATUS_READ;
+              groupReceiptDatabase.update(receipt.syncMessageId.getAddress(), target.id, status, receipt.timestamp);
+            }
 
-        if (quoteIdMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
+            threadIds.add(target.threadId);
+            found = true;
+          }
         }
+
+        if (!found) unmatched.add(receipt);
+      }
+
+      for (List<ReceiptTarget> candidates : targets.values()) {
+        for (ReceiptTarget target : candidates) {
+          if (target.deliveryCount == 0 && target.readCount == 0) continue;
+
+          String table = target.mms ? MmsDatabase.TABLE_NAME : SmsDatabase.TABLE_NAME;
+
+          db.execSQL("UPDATE " + table + " SET " +
+                     MmsSmsColumns.DELIVERY_RECEIPT_COUNT + " = " + MmsSmsColumns.DELIVERY_RECEIPT_COUNT + " + ?, " +
+                     MmsSmsColumns.READ_RECEIPT_COUNT + " = " + MmsSmsColumns.READ_RECEIPT_COUNT + " + ? WHERE " +
+                     MmsSmsColumns.ID + " = ?",
+                     new Object[] {target.deliveryCount, target.readCount, target.id});
+        }
+      }
+
+      ThreadDatabase threadDatabase = getThreadDatabase();
+
+      for (long threadId : threadIds) {
+        threadDatabase.updateIncremental(threadId, 0, false);
       }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    for (PendingReceipt receipt : unmatched) {
+      EarlyReceiptCache cache = receipt.delivery ? earlyDeliveryReceiptCache : earlyReadReceiptCache;
+      cache.increment(receipt.syncMessageId.getTimetamp(), receipt.syncMessageId.getAddress());
     }
-    return -1;
+
+    notifyConversationListeners(threadIds);
   }
 
-  public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull Address address) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId;
+  @VisibleForTesting
+  @NonNull GroupReceiptDatabase getGroupReceiptDatabase() {
+    return DatabaseFactory.getGroupReceiptDatabase(context);
+  }
 
-    try (Cursor cursor = queryTables(new String[]{ MmsSmsColumns.NORMALIZED_DATE_RECEIVED, MmsSmsColumns.ADDRESS }, selection, order, null)) {
-      String  serializedAddress = address.serialize();
-      boolean isOwnNumber       = Util.isOwnNumber(context, address);
+  @VisibleForTesting
+  @NonNull ThreadDatabase getThreadDatabase() {
+    return DatabaseFactory.getThreadDatabase(context);
+  }
 
-      while (cursor != null && cursor.moveToNext()) {
-        boolean timestampMatches = cursor.getLong(0) == receivedTimestamp;
-        boolean addressMatches   = serializedAddress.equals(cursor.getString(1));
+  /**
+   * Looks up every outgoing message in either table that was sent at one of the receipts'
+   * timestamps, using the date_sent indexes on both tables.
+   */
+  private @NonNull Map<Long, List<ReceiptTarget>> getReceiptTargets(@NonNull List<PendingReceipt> receipts) {
+    Set<Long> timestampSet = new HashSet<>();
+
+    for (PendingReceipt receipt : receipts) {
+      timestampSet.add(receipt.syncMessageId.getTimetamp());
+    }
 
-        if (timestampMatches && (addressMatches || isOwnNumber)) {
-          return cursor.getPosition();
+    Map<Long, List<ReceiptTarget>> targets    = new HashMap<>();
+    List<Long>                     timestamps = new ArrayList<>(timestampSet);
+    SQLiteDatabase                 db         = databaseHelper.getReadableDatabase();
+
+    for (List<Long> chunk : Util.chunk(timestamps, MAX_RECEIPT_TIMESTAMPS_PER_QUERY)) {
+      String   placeholders = Util.join(Collections.nCopies(chunk.size(), "?"), ",");
+      String[] args         = new String[chunk.size() * 2];
+
+      for (int i = 0; i < chunk.size(); i++) {
+        args[i]                = String.valueOf(chunk.get(i));
+        args[i + chunk.size()] = String.valueOf(chunk.get(i));
+      }
+
+      String query = "SELECT " + MmsSmsColumns.ID + ", " + MmsSmsColumns.THREAD_ID + ", " + MmsSmsColumns.ADDRESS + ", " +
+                     SmsDatabase.TYPE + " AS box, " + SmsDatabase.DATE_SENT + " AS sent, 0 AS is_mms" +
+                     " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + SmsDatabase.DATE_SENT + " IN (" + placeholders + ")" +
+                     " UNION ALL " +
+                     "SELECT " + MmsSmsColumns.ID + ", " + MmsSmsColumns.THREAD_ID + ", " + MmsSmsColumns.ADDRESS + ", " +
+                     MmsDatabase.MESSAGE_BOX + " AS box, " + MmsDatabase.DATE_SENT + " AS sent, 1 AS is_mms" +
+                     " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + MmsDatabase.DATE_SENT + " IN (" + placeholders + ")";
+
+      try (Cursor cursor = db.rawQuery(query, args)) {
+        while (cursor != null && cursor.moveToNext()) {
+          if (!MmsSmsColumns.Types.isOutgoingMessageType(cursor.getLong(3))) continue;
+
+          long                sent       = cursor.getLong(4);
+          List<ReceiptTarget> candidates = targets.get(sent);
+
+          if (candidates == null) {
+            candidates = new LinkedList<>();
+            targets.put(sent, candidates);
+          }
+
+          candidates.add(new ReceiptTarget(cursor.getLong(0),
+                                           cursor.getLong(1),
+                                           Address.fromSerialized(cursor.getString(2)),
+                                           cursor.getInt(5) == 1));
         }
       }
     }
-    return -1;
+
+    return targets;
+  }
+
+  /**
+   * Finds the quoted message with the date_sent indexes, then counts the newer messages in the
+   * thread with the (thread_id, date_received) indexes, so the cost doesn't grow with the
+   * length of the thread.
+   */
+  public int getQuotedMessagePosition(long threadId, long quoteId, @NonNull Address address) {
+    Long dateReceived = findDateReceived(threadId, true, quoteId, address);
+    return dateReceived != null ? (int) getConversationCountNewerThan(threadId, dateReceived) : -1;
+  }
+
+  public int getMessagePositionInConversation(long threadId, long receivedTimestamp, @NonNull Address address) {
+    Long dateReceived = findDateReceived(threadId, false, receivedTimestamp, address);
+    return dateReceived != null ? (int) getConversationCountNewerThan(threadId, dateReceived) : -1;
   }
 
   /**
@@ -212,24 +599,48 @@ public class MmsSmsDatabase extends Database {
    * you'll still wind up in about the right spot.
    */
   public int getMessagePositionInConversation(long threadId, long receivedTimestamp) {
-    String order     = MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
-    String selection = MmsSmsColumns.THREAD_ID + " = " + threadId + " AND " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " > " + receivedTimestamp;
+    return (int) getConversationCountNewerThan(threadId, receivedTimestamp);
+  }
 
-    try (Cursor cursor = queryTables(new String[]{ "COUNT(*)" }, selection, order, null)) {
-      if (cursor != null && cursor.moveToFirst()) {
-        return cursor.getInt(0);
+  /**
+   * @return The date_received of the newest message in the thread with the given sent or received
+   *         timestamp that was sent by the given address (or by anyone, if the address is our own),
+   *         or null if there isn't one.
+   */
+  private @Nullable Long findDateReceived(long threadId, boolean bySentDate, long timestamp, @NonNull Address address) {
+    // When matching on date_sent, the unary + keeps SQLite on the date_sent index instead of
+    // walking the whole thread through the thread_id index.
+    String threadColumn = (bySentDate ? "+" : "") + MmsSmsColumns.THREAD_ID;
+    String smsColumn    = bySentDate ? SmsDatabase.DATE_SENT : SmsDatabase.DATE_RECEIVED;
+    String mmsColumn    = bySentDate ? MmsDatabase.DATE_SENT : MmsDatabase.DATE_RECEIVED;
+    String query = "SELECT " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " + MmsSmsColumns.ADDRESS + " FROM (" +
+                     "SELECT " + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " + MmsSmsColumns.ADDRESS +
+                     " FROM " + SmsDatabase.TABLE_NAME + " WHERE " + threadColumn + " = ? AND " + smsColumn + " = ?" +
+                     " UNION ALL " +
+                     "SELECT " + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " + MmsSmsColumns.ADDRESS +
+                     " FROM " + MmsDatabase.TABLE_NAME + " WHERE " + threadColumn + " = ? AND " + mmsColumn + " = ?" +
+                   ") ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC";
+    String[] args  = new String[] {String.valueOf(threadId), String.valueOf(timestamp), String.valueOf(threadId), String.valueOf(timestamp)};
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().rawQuery(query, args)) {
+      String  serializedAddress = address.serialize();
+      boolean isOwnNumber       = Util.isOwnNumber(context, address);
+
+      while (cursor != null && cursor.moveToNext()) {
+        if (isOwnNumber || serializedAddress.equals(cursor.getString(1))) {
+          return cursor.getLong(0);
+        }
       }
     }
-    return -1;
+
+    return null;
   }
 
   private Cursor queryTables(String[] projection, String selection, String order, String limit) {
     String[] mmsProjection = {MmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " AS " + MmsSmsColumns.ID,
-                              "'MMS::' || " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID
-                                  + " || '::' || " + MmsDatabase.DATE_SENT
-                                  + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                              MMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
                               "json_group_array(json_object(" +
                                   "'" + AttachmentDatabase.ROW_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.ROW_ID + ", " +
                                   "'" + AttachmentDatabase.UNIQUE_ID + "', " + AttachmentDatabase.TABLE_NAME + "." + AttachmentDatabase.UNIQUE_ID + ", " +
@@ -275,9 +686,7 @@ public class MmsSmsDatabase extends Database {
     String[] smsProjection = {SmsDatabase.DATE_SENT + " AS " + MmsSmsColumns.NORMALIZED_DATE_SENT,
                               SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED,
                               MmsSmsColumns.ID,
-                              "'SMS::' || " + MmsSmsColumns.ID
-                                  + " || '::' || " + SmsDatabase.DATE_SENT
-                                  + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
+                              SMS_UNIQUE_ROW_ID + " AS " + MmsSmsColumns.UNIQUE_ROW_ID,
                               "NULL AS " + AttachmentDatabase.ATTACHMENT_JSON_ALIAS,
                               SmsDatabase.BODY, MmsSmsColumns.READ, MmsSmsColumns.THREAD_ID,
                               SmsDatabase.TYPE, SmsDatabase.ADDRESS, SmsDatabase.ADDRESS_DEVICE_ID, SmsDatabase.SUBJECT, MmsDatabase.MESSAGE_TYPE,
@@ -411,6 +820,30 @@ public class MmsSmsDatabase extends Database {
     return new Reader(cursor);
   }
 
+  /**
+   * What {@link #getUnreadMessages(Collection)} knows about an unread message. The version changes
+   * whenever anything a notification shows for the message might have: its type, body, expiration
+   * or the transfer state of its attachments.
+   */
+  public static final class UnreadMessage {
+
+    private final long   dateReceived;
+    private final String version;
+
+    UnreadMessage(long dateReceived, @NonNull String version) {
+      this.dateReceived = dateReceived;
+      this.version      = version;
+    }
+
+    public long getDateReceived() {
+      return dateReceived;
+    }
+
+    public @NonNull String getVersion() {
+      return version;
+    }
+  }
+
   public class Reader {
 
     private final Cursor                 cursor;
@@ -456,4 +889,37 @@ public class MmsSmsDatabase extends Database {
       cursor.close();
     }
   }
+
+  private static class PendingReceipt {
+    private final SyncMessageId syncMessageId;
+    private final long          timestamp;
+    private final boolean       delivery;
+
+    private PendingReceipt(@NonNull SyncMessageId syncMessageId, long timestamp, boolean delivery) {
+      this.syncMessageId = syncMessageId;
+      this.timestamp     = timestamp;
+      this.delivery      = delivery;
+    }
+  }
+
+  private static class ReceiptTarget {
+    private final long    id;
+    private final long    threadId;
+    private final Address address;
+    private final boolean mms;
+
+    private int deliveryCount;
+    private int readCount;
+
+    private ReceiptTarget(long id, long threadId, @NonNull Address address, boolean mms) {
+      this.id       = id;
+      this.threadId = threadId;
+      this.address  = address;
+      this.mms      = mms;
+    }
+
+    private boolean matches(@NonNull Address receiptAddress) {
+      return address.equals(receiptAddress) || (mms && address.isGroup());
+    }
+  }
 }
@@ -21,6 +21,9 @@ import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -58,6 +61,8 @@ public class RecipientDatabase extends Database {
   private static final String UNIDENTIFIED_ACCESS_MODE = "unidentified_access_mode";
   private static final String FORCE_SMS_SELECTION      = "force_sms_selection";
 
+  private static final int MAX_ADDRESSES_PER_QUERY = 500;
+
   private static final String[] RECIPIENT_PROJECTION = new String[] {
       BLOCK, NOTIFICATION, CALL_RINGTONE, VIBRATE, CALL_VIBRATE, MUTE_UNTIL, COLOR, SEEN_INVITE_REMINDER, DEFAULT_SUBSCRIPTION_ID, EXPIRE_MESSAGES, REGISTERED,
       PROFILE_KEY, SYSTEM_DISPLAY_NAME, SYSTEM_PHOTO_URI, SYSTEM_PHONE_LABEL, SYSTEM_CONTACT_URI,
@@ -191,6 +196,34 @@ public class RecipientDatabase extends Database {
     }
   }
 
+  /**
+   * Loads the settings of many recipients with one query per {@link #MAX_ADDRESSES_PER_QUERY}
+   * addresses. Addresses without a row are left out of the result.
+   */
+  public @NonNull Map<Address, RecipientSettings> getRecipientSettings(@NonNull Collection<Address> addresses) {
+    SQLiteDatabase                  database = databaseHelper.getReadableDatabase();
+    Map<Address, RecipientSettings> results  = new HashMap<>(addresses.size());
+
+    for (List<Address> chunk : Util.chunk(new ArrayList<>(addresses), MAX_ADDRESSES_PER_QUERY)) {
+      String[] args = new String[chunk.size()];
+
+      for (int i = 0; i < chunk.size(); i++) {
+        args[i] = chunk.get(i).serialize();
+      }
+
+      String selection = ADDRESS + " IN (" + Util.join(Collections.nCopies(chunk.size(), "?"), ",") + ")";
+
+      try (Cursor cursor = database.query(TABLE_NAME, null, selection, args, null, null, null)) {
+        while (cursor != null && cursor.moveToNext()) {
+          Address address = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
+          results.put(address, getRecipientSettings(cursor).get());
+        }
+      }
+    }
+
+    return results;
+  }
+
   Optional<RecipientSettings> getRecipientSettings(@NonNull Cursor cursor) {
     boolean blocked                = cursor.getInt(cursor.getColumnIndexOrThrow(BLOCK))                == 1;
     String  messageRingtone        = cursor.getString(cursor.getColumnIndexOrThrow(NOTIFICATION));
@@ -510,8 +543,6 @@ public class RecipientDatabase extends Database {
 
     private final SQLiteDatabase database;
 
-    private final Map<Address, PendingContactInfo> pendingContactInfoMap = new HashMap<>();
-
     BulkOperationsHandle(SQLiteDatabase database) {
       this.database = database;
     }
@@ -524,20 +555,13 @@ public class RecipientDatabase extends Database {
       contentValues.put(SYSTEM_CONTACT_URI, systemContactUri);
 
       updateOrInsert(address, contentValues);
-      pendingContactInfoMap.put(address, new PendingContactInfo(displayName, photoUri, systemPhoneLabel, systemContactUri));
     }
 
     public void finish() {
       database.setTransactionSuccessful();
       database.endTransaction();
 
-      Stream.of(pendingContactInfoMap.entrySet())
-            .forEach(entry -> Recipient.applyCached(entry.getKey(), recipient -> {
-              recipient.setName(entry.getValue().displayName);
-              recipient.setSystemContactPhoto(Util.uri(entry.getValue().photoUri));
-              recipient.setCustomLabel(entry.getValue().phoneLabel);
-              recipient.setContactUri(Util.uri(entry.getValue().contactUri));
-            }));
+      Recipient.reloadCached(context);
     }
   }
 
@@ -732,19 +756,4 @@ public class RecipientDatabase extends Database {
     }
   }
 
-  private static class PendingContactInfo {
-
-    private final String displayName;
-    private final String photoUri;
-    private final String phoneLabel;
-    private final String contactUri;
-
-    private PendingContactInfo(String displayName, String photoUri, String phoneLabel, String contactUri) {
-      this.displayName = displayName;
-      this.photoUri    = photoUri;
-      this.phoneLabel  = phoneLabel;
-      this.contactUri  = contactUri;
-    }
-  }
-
 }
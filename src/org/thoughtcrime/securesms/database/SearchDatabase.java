@@ -1,17 +1,22 @@
 package org.thoughtcrime.securesms.database;
 
 import android.content.Context;
+import android.database.Cursor;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
 import com.annimon.stream.Stream;
 
-import net.sqlcipher.Cursor;
 import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.util.Util;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Locale;
 
 /**
  * Contains all databases necessary for full-text search (FTS).
@@ -27,6 +32,8 @@ public class SearchDatabase extends Database {
   public static final String SNIPPET              = "snippet";
   public static final String CONVERSATION_ADDRESS = "conversation_address";
   public static final String MESSAGE_ADDRESS      = "message_address";
+  public static final String MESSAGE_ID           = "message_id";
+  public static final String IS_MMS               = "is_mms";
 
   public static final String[] CREATE_TABLE = {
       "CREATE VIRTUAL TABLE " + SMS_FTS_TABLE_NAME + " USING fts5(" + BODY + ", " + THREAD_ID + " UNINDEXED, content=" + SmsDatabase.TABLE_NAME + ", content_rowid=" + SmsDatabase.ID + ");",
@@ -57,30 +64,59 @@ public class SearchDatabase extends Database {
           "END;"
   };
 
+  private static final String MESSAGE_IDS_QUERY =
+      "SELECT * FROM (" +
+        "SELECT " +
+          SMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
+          "0 AS " + IS_MMS + ", " +
+          SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " " +
+        "FROM " + SmsDatabase.TABLE_NAME + " " +
+        "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
+        "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ?%s " +
+        "ORDER BY bm25(" + SMS_FTS_TABLE_NAME + ") ASC, " + MESSAGE_ID + " DESC " +
+        "LIMIT %d" +
+      ") " +
+      "UNION ALL " +
+      "SELECT * FROM (" +
+        "SELECT " +
+          MMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
+          "1 AS " + IS_MMS + ", " +
+          MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " " +
+        "FROM " + MmsDatabase.TABLE_NAME + " " +
+        "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
+        "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ?%s " +
+        "ORDER BY bm25(" + MMS_FTS_TABLE_NAME + ") ASC, " + MESSAGE_ID + " DESC " +
+        "LIMIT %d" +
+      ") " +
+      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + IS_MMS + " ASC, " + MESSAGE_ID + " DESC";
+
   private static final String MESSAGES_QUERY =
       "SELECT " +
         ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
         MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
         "snippet(" + SMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
         SmsDatabase.TABLE_NAME + "." + SmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        SMS_FTS_TABLE_NAME + "."  + THREAD_ID + " " +
+        SMS_FTS_TABLE_NAME + "."  + THREAD_ID + ", " +
+        SMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
+        "0 AS " + IS_MMS + " " +
       "FROM " + SmsDatabase.TABLE_NAME + " " +
       "INNER JOIN " + SMS_FTS_TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + ID + " = " + SmsDatabase.TABLE_NAME + "." + SmsDatabase.ID + " " +
       "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + SMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? " +
+      "WHERE " + SMS_FTS_TABLE_NAME + " MATCH ? AND " + SMS_FTS_TABLE_NAME + "." + ID + " IN (%s) " +
       "UNION ALL " +
       "SELECT " +
         ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ADDRESS + " AS " + CONVERSATION_ADDRESS + ", " +
         MmsSmsColumns.ADDRESS + " AS " + MESSAGE_ADDRESS + ", " +
         "snippet(" + MMS_FTS_TABLE_NAME + ", -1, '', '', '...', 7) AS " + SNIPPET + ", " +
         MmsDatabase.TABLE_NAME + "." + MmsDatabase.DATE_RECEIVED + " AS " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + ", " +
-        MMS_FTS_TABLE_NAME + "." + THREAD_ID + " " +
+        MMS_FTS_TABLE_NAME + "." + THREAD_ID + ", " +
+        MMS_FTS_TABLE_NAME + "." + ID + " AS " + MESSAGE_ID + ", " +
+        "1 AS " + IS_MMS + " " +
       "FROM " + MmsDatabase.TABLE_NAME + " " +
       "INNER JOIN " + MMS_FTS_TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + ID + " = " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + " " +
       "INNER JOIN " + ThreadDatabase.TABLE_NAME + " ON " + MMS_FTS_TABLE_NAME + "." + THREAD_ID + " = " + ThreadDatabase.TABLE_NAME + "." + ThreadDatabase.ID + " " +
-      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? " +
-      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC " +
-      "LIMIT 500";
+      "WHERE " + MMS_FTS_TABLE_NAME + " MATCH ? AND " + MMS_FTS_TABLE_NAME + "." + ID + " IN (%s) " +
+      "ORDER BY " + MmsSmsColumns.NORMALIZED_DATE_RECEIVED + " DESC, " + IS_MMS + " ASC, " + MESSAGE_ID + " DESC";
 
   private static final String MESSAGES_FOR_THREAD_QUERY =
       "SELECT " +
@@ -111,13 +147,55 @@ public class SearchDatabase extends Database {
     super(context, databaseHelper);
   }
 
-  public Cursor queryMessages(@NonNull String query) {
+  /**
+   * Returns the {@link #MESSAGE_ID} and {@link #IS_MMS} of the matches for a query, newest first.
+   * This only reads the full-text indexes and message IDs, the rows to show are loaded in pages with
+   * {@link #queryMessages(String, Collection, Collection)}.
+   *
+   * bm25 scores from the sms and mms indexes aren't comparable, so each table contributes its own
+   * best matches, up to the limit, and those are merged by date.
+   *
+   * If ID restrictions are given, only those messages are considered. A query that extends a query
+   * whose matches were all returned can only match a subset of them, so it doesn't need to look at
+   * the rest of the index.
+   */
+  public Cursor queryMessageIds(@NonNull String query, @Nullable Collection<Long> smsIds, @Nullable Collection<Long> mmsIds, int limitPerTable) {
     SQLiteDatabase db          = databaseHelper.getReadableDatabase();
     String         prefixQuery = adjustQuery(query);
+    List<String>   args        = new LinkedList<>();
 
-    Cursor cursor = db.rawQuery(MESSAGES_QUERY, new String[] { prefixQuery, prefixQuery });
-    setNotifyConverationListListeners(cursor);
-    return cursor;
+    args.add(prefixQuery);
+    if (smsIds != null) args.addAll(toArgs(smsIds));
+
+    args.add(prefixQuery);
+    if (mmsIds != null) args.addAll(toArgs(mmsIds));
+
+    String sql = String.format(Locale.US, MESSAGE_IDS_QUERY,
+                               smsIds != null ? " AND " + SMS_FTS_TABLE_NAME + "." + ID + " IN (" + placeholders(smsIds.size()) + ")" : "",
+                               limitPerTable,
+                               mmsIds != null ? " AND " + MMS_FTS_TABLE_NAME + "." + ID + " IN (" + placeholders(mmsIds.size()) + ")" : "",
+                               limitPerTable);
+
+    return db.rawQuery(sql, args.toArray(new String[0]));
+  }
+
+  /**
+   * Returns the displayable rows for messages previously matched by
+   * {@link #queryMessageIds(String, Collection, Collection, int)}, in the same order.
+   */
+  public Cursor queryMessages(@NonNull String query, @NonNull Collection<Long> smsIds, @NonNull Collection<Long> mmsIds) {
+    SQLiteDatabase db          = databaseHelper.getReadableDatabase();
+    String         prefixQuery = adjustQuery(query);
+    List<String>   args        = new LinkedList<>();
+
+    args.add(prefixQuery);
+    args.addAll(toArgs(smsIds));
+    args.add(prefixQuery);
+    args.addAll(toArgs(mmsIds));
+
+    String sql = String.format(Locale.US, MESSAGES_QUERY, placeholders(smsIds.size()), placeholders(mmsIds.size()));
+
+    return db.rawQuery(sql, args.toArray(new String[0]));
   }
 
   public Cursor queryMessages(@NonNull String query, long threadId) {
@@ -130,6 +208,14 @@ public class SearchDatabase extends Database {
 
   }
 
+  private static @NonNull List<String> toArgs(@NonNull Collection<Long> ids) {
+    return Stream.of(ids).map(String::valueOf).toList();
+  }
+
+  private static @NonNull String placeholders(int count) {
+    return Util.join(Collections.nCopies(count, "?"), ",");
+  }
+
   private String adjustQuery(@NonNull String query) {
     List<String> tokens      = Stream.of(query.split(" ")).filter(s -> s.trim().length() > 0).toList();
     String       prefixQuery = Util.join(tokens, "* ");
@@ -11,12 +11,16 @@ import net.sqlcipher.database.SQLiteDatabase;
 
 import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
 import org.thoughtcrime.securesms.logging.Log;
+import org.thoughtcrime.securesms.util.LRUCache;
 import org.whispersystems.libsignal.state.SessionRecord;
+import org.whispersystems.libsignal.state.SessionState;
 import org.whispersystems.signalservice.api.push.SignalServiceAddress;
 
 import java.io.IOException;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 
 public class SessionDatabase extends Database {
 
@@ -34,22 +38,116 @@ public class SessionDatabase extends Database {
       DEVICE + " INTEGER NOT NULL, " + RECORD + " BLOB NOT NULL, " +
       "UNIQUE(" + ADDRESS + "," + DEVICE + ") ON CONFLICT REPLACE);";
 
+  private static final int MAX_CACHED_SESSIONS = 500;
+
+  /**
+   * Write-through cache of parsed sessions by address and device. An entry holds null if there is
+   * no session.
+   */
+  private final Map<String, CachedSession> cache = new LRUCache<>(MAX_CACHED_SESSIONS);
+
+  private long generation;
+  private long cacheHits;
+  private long cacheMisses;
+
   SessionDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
 
   public void store(@NonNull Address address, int deviceId, @NonNull SessionRecord record) {
-    SQLiteDatabase database = databaseHelper.getWritableDatabase();
+    SQLiteDatabase database   = databaseHelper.getWritableDatabase();
+    byte[]         serialized = record.serialize();
 
     ContentValues values = new ContentValues();
     values.put(ADDRESS, address.serialize());
     values.put(DEVICE, deviceId);
-    values.put(RECORD, record.serialize());
+    values.put(RECORD, serialized);
 
     database.insertWithOnConflict(TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+
+    synchronized (cache) {
+      generation++;
+      cache.put(getCacheKey(address, deviceId), new CachedSession(copyOf(record)));
+    }
   }
 
+  /**
+   * Records are mutable and libsignal changes them in place, so every load returns a copy of the
+   * cached record. Copying shares its immutable state instead of parsing it again.
+   */
   public @Nullable SessionRecord load(@NonNull Address address, int deviceId) {
+    String key = getCacheKey(address, deviceId);
+    long   loadGeneration;
+
+    synchronized (cache) {
+      CachedSession cached = cache.get(key);
+      loadGeneration = generation;
+
+      if (cached != null) {
+        cacheHits++;
+        return cached.record != null ? copyOf(cached.record) : null;
+      }
+
+      cacheMisses++;
+    }
+
+    SessionRecord record = parse(loadSerialized(address, deviceId));
+
+    synchronized (cache) {
+      if (generation == loadGeneration) {
+        cache.put(key, new CachedSession(record));
+      }
+    }
+
+    return record != null ? copyOf(record) : null;
+  }
+
+  public long getCacheHits() {
+    synchronized (cache) {
+      return cacheHits;
+    }
+  }
+
+  public long getCacheMisses() {
+    synchronized (cache) {
+      return cacheMisses;
+    }
+  }
+
+  /**
+   * Drops every cached session, for when the table is written without going through this class.
+   */
+  public void clearCache() {
+    synchronized (cache) {
+      generation++;
+      cache.clear();
+    }
+  }
+
+  private static @Nullable SessionRecord parse(@Nullable byte[] serialized) {
+    if (serialized == null) {
+      return null;
+    }
+
+    try {
+      return new SessionRecord(serialized);
+    } catch (IOException e) {
+      Log.w(TAG, e);
+      return null;
+    }
+  }
+
+  private static @NonNull SessionRecord copyOf(@NonNull SessionRecord record) {
+    SessionRecord copy = new SessionRecord(new SessionState(record.getSessionState()));
+
+    for (SessionState previous : record.getPreviousSessionStates()) {
+      copy.getPreviousSessionStates().add(new SessionState(previous));
+    }
+
+    return copy;
+  }
+
+  private @Nullable byte[] loadSerialized(@NonNull Address address, int deviceId) {
     SQLiteDatabase database = databaseHelper.getReadableDatabase();
 
     try (Cursor cursor = database.query(TABLE_NAME, new String[]{RECORD},
@@ -58,11 +156,7 @@ public class SessionDatabase extends Database {
                                         null, null, null))
     {
       if (cursor != null && cursor.moveToFirst()) {
-        try {
-          return new SessionRecord(cursor.getBlob(cursor.getColumnIndexOrThrow(RECORD)));
-        } catch (IOException e) {
-          Log.w(TAG, e);
-        }
+        return cursor.getBlob(cursor.getColumnIndexOrThrow(RECORD));
       }
     }
 
@@ -137,11 +231,41 @@ public class SessionDatabase extends Database {
 
     database.delete(TABLE_NAME, ADDRESS + " = ? AND " + DEVICE + " = ?",
                     new String[] {address.serialize(), String.valueOf(deviceId)});
+
+    synchronized (cache) {
+      generation++;
+      cache.put(getCacheKey(address, deviceId), new CachedSession(null));
+    }
   }
 
   public void deleteAllFor(@NonNull Address address) {
     SQLiteDatabase database = databaseHelper.getWritableDatabase();
     database.delete(TABLE_NAME, ADDRESS + " = ?", new String[] {address.serialize()});
+
+    synchronized (cache) {
+      generation++;
+
+      String                                     prefix   = address.serialize() + ".";
+      Iterator<Map.Entry<String, CachedSession>> iterator = cache.entrySet().iterator();
+
+      while (iterator.hasNext()) {
+        if (iterator.next().getKey().startsWith(prefix)) {
+          iterator.remove();
+        }
+      }
+    }
+  }
+
+  private static @NonNull String getCacheKey(@NonNull Address address, int deviceId) {
+    return address.serialize() + "." + deviceId;
+  }
+
+  private static final class CachedSession {
+    private final @Nullable SessionRecord record;
+
+    private CachedSession(@Nullable SessionRecord record) {
+      this.record = record;
+    }
   }
 
   public static final class SessionRow {
@@ -43,10 +43,13 @@ import org.thoughtcrime.securesms.sms.IncomingTextMessage;
 import org.thoughtcrime.securesms.sms.OutgoingTextMessage;
 import org.thoughtcrime.securesms.util.JsonUtils;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
+import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.IOException;
 import java.security.SecureRandom;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -87,7 +90,8 @@ public class SmsDatabase extends MessagingDatabase {
     "CREATE INDEX IF NOT EXISTS sms_read_and_notified_and_thread_id_index ON " + TABLE_NAME + "(" + READ + "," + NOTIFIED + ","  + THREAD_ID + ");",
     "CREATE INDEX IF NOT EXISTS sms_type_index ON " + TABLE_NAME + " (" + TYPE + ");",
     "CREATE INDEX IF NOT EXISTS sms_date_sent_index ON " + TABLE_NAME + " (" + DATE_SENT + ");",
-    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");"
+    "CREATE INDEX IF NOT EXISTS sms_thread_date_index ON " + TABLE_NAME + " (" + THREAD_ID + ", " + DATE_RECEIVED + ");",
+    "CREATE INDEX IF NOT EXISTS sms_expires_at_index ON " + TABLE_NAME + " (" + EXPIRE_STARTED + " + " + EXPIRES_IN + ") WHERE " + EXPIRE_STARTED + " > 0;"
   };
 
   private static final String[] MESSAGE_PROJECTION = new String[] {
@@ -100,9 +104,6 @@ public class SmsDatabase extends MessagingDatabase {
       NOTIFIED, READ_RECEIPT_COUNT, UNIDENTIFIED
   };
 
-  private static final EarlyReceiptCache earlyDeliveryReceiptCache = new EarlyReceiptCache();
-  private static final EarlyReceiptCache earlyReadReceiptCache     = new EarlyReceiptCache();
-
   public SmsDatabase(Context context, SQLCipherOpenHelper databaseHelper) {
     super(context, databaseHelper);
   }
@@ -121,7 +122,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 0, false);
     notifyConversationListeners(threadId);
   }
 
@@ -270,7 +271,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(id);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 0, false);
     notifyConversationListeners(threadId);
   }
 
@@ -283,7 +284,7 @@ public class SmsDatabase extends MessagingDatabase {
     db.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {id+""});
 
     long threadId = getThreadIdForMessage(id);
-    DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 0, false);
     notifyConversationListeners(threadId);
   }
 
@@ -300,48 +301,6 @@ public class SmsDatabase extends MessagingDatabase {
     database.update(TABLE_NAME, contentValues, ID_WHERE, new String[] {String.valueOf(id)});
   }
 
-  public void incrementReceiptCount(SyncMessageId messageId, boolean deliveryReceipt, boolean readReceipt) {
-    SQLiteDatabase database     = databaseHelper.getWritableDatabase();
-    Cursor         cursor       = null;
-    boolean        foundMessage = false;
-
-    try {
-      cursor = database.query(TABLE_NAME, new String[] {ID, THREAD_ID, ADDRESS, TYPE},
-                              DATE_SENT + " = ?", new String[] {String.valueOf(messageId.getTimetamp())},
-                              null, null, null, null);
-
-      while (cursor.moveToNext()) {
-        if (Types.isOutgoingMessageType(cursor.getLong(cursor.getColumnIndexOrThrow(TYPE)))) {
-          Address theirAddress = messageId.getAddress();
-          Address ourAddress   = Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS)));
-          String  columnName   = deliveryReceipt ? DELIVERY_RECEIPT_COUNT : READ_RECEIPT_COUNT;
-
-          if (ourAddress.equals(theirAddress)) {
-            long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(THREAD_ID));
-
-            database.execSQL("UPDATE " + TABLE_NAME +
-                             " SET " + columnName + " = " + columnName + " + 1 WHERE " +
-                             ID + " = ?",
-                             new String[] {String.valueOf(cursor.getLong(cursor.getColumnIndexOrThrow(ID)))});
-
-            DatabaseFactory.getThreadDatabase(context).update(threadId, false);
-            notifyConversationListeners(threadId);
-            foundMessage = true;
-          }
-        }
-      }
-
-      if (!foundMessage) {
-        if (deliveryReceipt) earlyDeliveryReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-        if (readReceipt)     earlyReadReceiptCache.increment(messageId.getTimetamp(), messageId.getAddress());
-      }
-
-    } finally {
-      if (cursor != null)
-        cursor.close();
-    }
-  }
-
   public List<Pair<Long, Long>> setTimestampRead(SyncMessageId messageId, long proposedExpireStarted) {
     SQLiteDatabase         database = databaseHelper.getWritableDatabase();
     List<Pair<Long, Long>> expiring = new LinkedList<>();
@@ -444,7 +403,7 @@ public class SmsDatabase extends MessagingDatabase {
 
     long threadId = getThreadIdForMessage(messageId);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 0, true);
     notifyConversationListeners(threadId);
     notifyConversationListListeners();
 
@@ -470,7 +429,7 @@ public class SmsDatabase extends MessagingDatabase {
       SQLiteDatabase db           = databaseHelper.getWritableDatabase();
       long           newMessageId = db.insert(TABLE_NAME, null, contentValues);
 
-      DatabaseFactory.getThreadDatabase(context).update(record.getThreadId(), true);
+      DatabaseFactory.getThreadDatabase(context).updateIncremental(record.getThreadId(), 1, true);
       notifyConversationListeners(record.getThreadId());
 
       ApplicationContext.getInstance(context).getJobManager().add(new TrimThreadJob(record.getThreadId()));
@@ -509,7 +468,7 @@ public class SmsDatabase extends MessagingDatabase {
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long messageId    = db.insert(TABLE_NAME, null, values);
 
-    DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+    DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 1, true);
     notifyConversationListeners(threadId);
     ApplicationContext.getInstance(context).getJobManager().add(new TrimThreadJob(threadId));
 
@@ -594,7 +553,9 @@ public class SmsDatabase extends MessagingDatabase {
       }
 
       if (!message.isIdentityUpdate() && !message.isIdentityVerified() && !message.isIdentityDefault()) {
-        DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+        DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 1, true);
+      } else {
+        DatabaseFactory.getThreadDatabase(context).adjustMessageCount(threadId, 1);
       }
 
       if (message.getSubscriptionId() != -1) {
@@ -629,8 +590,8 @@ public class SmsDatabase extends MessagingDatabase {
     else if (message.isIdentityDefault())  type |= Types.KEY_EXCHANGE_IDENTITY_DEFAULT_BIT;
 
     Address            address               = message.getRecipient().getAddress();
-    Map<Address, Long> earlyDeliveryReceipts = earlyDeliveryReceiptCache.remove(date);
-    Map<Address, Long> earlyReadReceipts     = earlyReadReceiptCache.remove(date);
+    Map<Address, Long> earlyDeliveryReceipts = DatabaseFactory.getMmsSmsDatabase(context).removeEarlyDeliveryReceipts(date);
+    Map<Address, Long> earlyReadReceipts     = DatabaseFactory.getMmsSmsDatabase(context).removeEarlyReadReceipts(date);
 
     ContentValues contentValues = new ContentValues(6);
     contentValues.put(ADDRESS, address.serialize());
@@ -653,8 +614,10 @@ public class SmsDatabase extends MessagingDatabase {
     }
 
     if (!message.isIdentityVerified() && !message.isIdentityDefault()) {
-      DatabaseFactory.getThreadDatabase(context).update(threadId, true);
+      DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, 1, true);
       DatabaseFactory.getThreadDatabase(context).setLastSeen(threadId);
+    } else {
+      DatabaseFactory.getThreadDatabase(context).adjustMessageCount(threadId, 1);
     }
 
     DatabaseFactory.getThreadDatabase(context).setHasSent(threadId, true);
@@ -679,12 +642,6 @@ public class SmsDatabase extends MessagingDatabase {
     return db.query(TABLE_NAME, MESSAGE_PROJECTION, outgoingSelection, null, null, null, null);
   }
 
-  public Cursor getExpirationStartedMessages() {
-    String         where = EXPIRE_STARTED + " > 0";
-    SQLiteDatabase db    = databaseHelper.getReadableDatabase();
-    return db.query(TABLE_NAME, MESSAGE_PROJECTION, where, null, null, null, null);
-  }
-
   public SmsMessageRecord getMessage(long messageId) throws NoSuchMessageException {
     SQLiteDatabase db     = databaseHelper.getReadableDatabase();
     Cursor         cursor = db.query(TABLE_NAME, MESSAGE_PROJECTION, ID_WHERE, new String[]{messageId + ""}, null, null, null);
@@ -708,12 +665,52 @@ public class SmsDatabase extends MessagingDatabase {
     Log.i("MessageDatabase", "Deleting: " + messageId);
     SQLiteDatabase db = databaseHelper.getWritableDatabase();
     long threadId     = getThreadIdForMessage(messageId);
-    db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
-    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).update(threadId, false);
+    int  deleted      = db.delete(TABLE_NAME, ID_WHERE, new String[] {messageId+""});
+
+    if (deleted == 0) {
+      Log.w(TAG, "Message " + messageId + " was already deleted.");
+      return false;
+    }
+
+    boolean threadDeleted = DatabaseFactory.getThreadDatabase(context).updateIncremental(threadId, -deleted, false);
     notifyConversationListeners(threadId);
     return threadDeleted;
   }
 
+  /**
+   * Deletes several messages, updating each affected thread once.
+   */
+  public void deleteMessages(@NonNull List<Long> messageIds) {
+    SQLiteDatabase db        = databaseHelper.getWritableDatabase();
+    Set<Long>      threadIds = new HashSet<>();
+
+    db.beginTransaction();
+    try {
+      for (List<Long> chunk : Util.chunk(messageIds, MAX_IDS_PER_DELETE)) {
+        String   where = ID + " IN (" + Util.join(Collections.nCopies(chunk.size(), "?"), ",") + ")";
+        String[] args  = Stream.of(chunk).map(String::valueOf).toArray(String[]::new);
+
+        Map<Long, Integer> threadCounts = getThreadMessageCounts(where, args);
+
+        db.delete(TABLE_NAME, where, args);
+
+        for (Map.Entry<Long, Integer> entry : threadCounts.entrySet()) {
+          DatabaseFactory.getThreadDatabase(context).updateIncremental(entry.getKey(), -entry.getValue(), false);
+        }
+
+        threadIds.addAll(threadCounts.keySet());
+      }
+
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+
+    if (!threadIds.isEmpty()) {
+      notifyConversationListeners(threadIds);
+    }
+  }
+
   public void ensureMigration() {
     databaseHelper.getWritableDatabase();
   }
@@ -24,6 +24,8 @@ import android.database.MergeCursor;
 import android.net.Uri;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
+import androidx.annotation.VisibleForTesting;
+import androidx.annotation.WorkerThread;
 
 import com.annimon.stream.Stream;
 
@@ -50,8 +52,13 @@ import org.whispersystems.libsignal.util.Pair;
 import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class ThreadDatabase extends Database {
@@ -129,13 +136,13 @@ public class ThreadDatabase extends Database {
     return db.insert(TABLE_NAME, null, contentValues);
   }
 
-  private void updateThread(long threadId, long count, String body, @Nullable Uri attachment,
+  private void updateThread(long threadId, @Nullable Long count, String body, @Nullable Uri attachment,
                             long date, int status, int deliveryReceiptCount, long type, boolean unarchive,
                             long expiresIn, int readReceiptCount)
   {
     ContentValues contentValues = new ContentValues(7);
     contentValues.put(DATE, date - date % 1000);
-    contentValues.put(MESSAGE_COUNT, count);
+    if (count != null) contentValues.put(MESSAGE_COUNT, count);
     contentValues.put(SNIPPET, body);
     contentValues.put(SNIPPET_URI, attachment == null ? null : attachment.toString());
     contentValues.put(SNIPPET_TYPE, type);
@@ -196,54 +203,77 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Trims every thread, each in its own transaction, so other writers only wait for one thread at
+   * a time rather than for the whole pass.
+   */
   public void trimAllThreads(int length, ProgressListener listener) {
-    Cursor cursor   = null;
-    int threadCount = 0;
-    int complete    = 0;
-
-    try {
-      cursor = this.getConversationList();
-
-      if (cursor != null)
-        threadCount = cursor.getCount();
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    List<Long>     threadIds = new LinkedList<>();
+    boolean        trimmed   = false;
+    int            complete  = 0;
 
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {ID}, null, null, null, null, null)) {
       while (cursor != null && cursor.moveToNext()) {
-        long threadId = cursor.getLong(cursor.getColumnIndexOrThrow(ID));
-        trimThread(threadId, length);
+        threadIds.add(cursor.getLong(0));
+      }
+    }
 
-        listener.onProgress(++complete, threadCount);
+    for (long threadId : threadIds) {
+      if (trimThreadInTransaction(threadId, length)) {
+        notifyConversationListeners(threadId);
+        trimmed = true;
       }
-    } finally {
-      if (cursor != null)
-        cursor.close();
+
+      listener.onProgress(++complete, threadIds.size());
+    }
+
+    if (trimmed) {
+      notifyConversationListListeners();
     }
   }
 
   public void trimThread(long threadId, int length) {
-    Log.i("ThreadDatabase", "Trimming thread: " + threadId + " to: " + length);
-    Cursor cursor = null;
-
-    try {
-      cursor = DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId);
+    if (trimThreadInTransaction(threadId, length)) {
+      notifyConversationListeners(threadId);
+      notifyConversationListListeners();
+    }
+  }
 
-      if (cursor != null && length > 0 && cursor.getCount() > length) {
-        Log.w("ThreadDatabase", "Cursor count is greater than length!");
-        cursor.moveToPosition(length - 1);
+  /**
+   * Deletes everything older than the thread's length-th newest message in one transaction, then
+   * unlinks the files of deleted attachments. The cutoff is found with one query on the
+   * (thread_id, date_received) indexes, and the messages are deleted with one statement per table.
+   *
+   * @return True if any messages were deleted.
+   */
+  private boolean trimThreadInTransaction(long threadId, int length) {
+    SQLiteDatabase                           db    = databaseHelper.getWritableDatabase();
+    List<AttachmentDatabase.AttachmentFiles> files = Collections.emptyList();
+    boolean                                  trimmed;
 
-        long lastTweetDate = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+    db.beginTransaction();
+    try {
+      Long cutoff = length > 0 ? getMmsSmsDatabase().getDateReceivedAtPositionIfOlderExists(threadId, length - 1) : null;
 
-        Log.i("ThreadDatabase", "Cut off tweet date: " + lastTweetDate);
+      if (cutoff != null) {
+        Log.i(TAG, "Trimming thread: " + threadId + " to: " + length + ", cut off date: " + cutoff);
 
-        DatabaseFactory.getSmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
-        DatabaseFactory.getMmsDatabase(context).deleteMessagesInThreadBeforeDate(threadId, lastTweetDate);
+        getSmsDatabase().deleteMessagesInThreadBeforeDate(threadId, cutoff);
+        files = getMmsDatabase().deleteMessagesInThreadBeforeDate(threadId, cutoff);
 
         update(threadId, false);
-        notifyConversationListeners(threadId);
       }
+
+      trimmed = cutoff != null;
+      db.setTransactionSuccessful();
     } finally {
-      if (cursor != null)
-        cursor.close();
+      db.endTransaction();
     }
+
+    getAttachmentDatabase().deleteAttachmentFiles(files);
+
+    return trimmed;
   }
 
   public List<MarkedMessageInfo> setAllThreadsRead() {
@@ -530,6 +560,38 @@ public class ThreadDatabase extends Database {
     return null;
   }
 
+  /**
+   * Like {@link #getRecipientForThreadId(long)} for many threads, with one query for the threads
+   * and one for the recipients' settings.
+   */
+  public @NonNull Map<Long, Recipient> getRecipientsForThreadIds(@NonNull Collection<Long> threadIds) {
+    Map<Long, Recipient> results = new HashMap<>(threadIds.size());
+
+    if (threadIds.isEmpty()) {
+      return results;
+    }
+
+    SQLiteDatabase db        = databaseHelper.getReadableDatabase();
+    List<Long>     ids       = new ArrayList<>(threadIds.size());
+    List<Address>  addresses = new ArrayList<>(threadIds.size());
+    String         selection = ID + " IN (" + Util.join(Stream.of(threadIds).map(String::valueOf).toList(), ",") + ")";
+
+    try (Cursor cursor = db.query(TABLE_NAME, new String[] {ID, ADDRESS}, selection, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        ids.add(cursor.getLong(cursor.getColumnIndexOrThrow(ID)));
+        addresses.add(Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(ADDRESS))));
+      }
+    }
+
+    List<Recipient> recipients = Recipient.from(context, addresses, false);
+
+    for (int i = 0; i < ids.size(); i++) {
+      results.put(ids.get(i), recipients.get(i));
+    }
+
+    return results;
+  }
+
   public void setHasSent(long threadId, boolean hasSent) {
     ContentValues contentValues = new ContentValues(1);
     contentValues.put(HAS_SENT, hasSent ? 1 : 0);
@@ -553,9 +615,15 @@ public class ThreadDatabase extends Database {
     notifyConversationListListeners();
   }
 
+  /**
+   * Recomputes the thread's message count and snippet from scratch. Counting scans the whole
+   * conversation, so this is only meant for repair and bulk changes. Routine message changes
+   * should go through {@link #updateIncremental(long, int, boolean)}.
+   *
+   * @return True if the thread was deleted because it no longer has any messages.
+   */
   public boolean update(long threadId, boolean unarchive) {
-    MmsSmsDatabase mmsSmsDatabase = DatabaseFactory.getMmsSmsDatabase(context);
-    long count                    = mmsSmsDatabase.getConversationCount(threadId);
+    long count = getMmsSmsDatabase().getConversationCount(threadId);
 
     if (count == 0) {
       deleteThread(threadId);
@@ -563,7 +631,100 @@ public class ThreadDatabase extends Database {
       return true;
     }
 
-    MmsSmsDatabase.Reader reader = null;
+    return updateFromSnippet(threadId, count, unarchive);
+  }
+
+  /**
+   * Applies a single message change to the thread summary: adjusts the stored message count by
+   * countDelta and refreshes the snippet from the newest message, without recounting the
+   * conversation.
+   *
+   * @return True if the thread was deleted because it no longer has any messages.
+   */
+  public boolean updateIncremental(long threadId, int countDelta, boolean unarchive) {
+    adjustMessageCount(threadId, countDelta);
+    return updateFromSnippet(threadId, null, unarchive);
+  }
+
+  /**
+   * Adjusts the stored message count without touching the snippet, for messages that shouldn't
+   * change what the conversation list shows.
+   */
+  public void adjustMessageCount(long threadId, int delta) {
+    if (delta == 0) return;
+
+    databaseHelper.getWritableDatabase()
+                  .execSQL("UPDATE " + TABLE_NAME + " SET " + MESSAGE_COUNT + " = MAX(0, " + MESSAGE_COUNT + " + ?) WHERE " + ID + " = ?",
+                           new Object[] {delta, threadId});
+  }
+
+  /**
+   * Compares every thread's stored message count and snippet against the message tables, and fully
+   * recomputes any thread whose summary has drifted.
+   *
+   * @return The number of threads that were repaired.
+   */
+  @WorkerThread
+  public int repairInconsistentThreads() {
+    Map<Long, Long> actualCounts = getMmsSmsDatabase().getConversationCounts();
+    List<Long>      inconsistent = new LinkedList<>();
+    String[]        columns      = new String[] {ID, MESSAGE_COUNT, SNIPPET, SNIPPET_URI, SNIPPET_TYPE, DATE, STATUS, DELIVERY_RECEIPT_COUNT, READ_RECEIPT_COUNT, EXPIRES_IN};
+
+    try (Cursor cursor = databaseHelper.getReadableDatabase().query(TABLE_NAME, columns, null, null, null, null, null)) {
+      while (cursor != null && cursor.moveToNext()) {
+        long threadId    = cursor.getLong(0);
+        long storedCount = cursor.getLong(1);
+        Long actualCount = actualCounts.get(threadId);
+
+        if (storedCount != (actualCount != null ? actualCount : 0) || !isSnippetCurrent(threadId, cursor)) {
+          inconsistent.add(threadId);
+        }
+      }
+    }
+
+    for (long threadId : inconsistent) {
+      Log.w(TAG, "Repairing inconsistent thread: " + threadId);
+      update(threadId, false);
+    }
+
+    return inconsistent.size();
+  }
+
+  /**
+   * Checks the snippet columns of a row read by {@link #repairInconsistentThreads()} against what
+   * {@link #updateFromSnippet(long, Long, boolean)} would write for the newest message.
+   */
+  private boolean isSnippetCurrent(long threadId, @NonNull Cursor thread) {
+    MmsSmsDatabase        mmsSmsDatabase = getMmsSmsDatabase();
+    MmsSmsDatabase.Reader reader         = null;
+
+    try {
+      reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
+      MessageRecord record = reader != null ? reader.getNext() : null;
+
+      if (record == null) {
+        return true;
+      }
+
+      Uri attachment = getAttachmentUriFor(record);
+
+      return Util.equals(getFormattedBodyFor(record), thread.getString(2)) &&
+             Util.equals(attachment == null ? null : attachment.toString(), thread.getString(3)) &&
+             record.getType() == thread.getLong(4) &&
+             record.getTimestamp() - record.getTimestamp() % 1000 == thread.getLong(5) &&
+             record.getDeliveryStatus() == thread.getInt(6) &&
+             record.getDeliveryReceiptCount() == thread.getInt(7) &&
+             record.getReadReceiptCount() == thread.getInt(8) &&
+             record.getExpiresIn() == thread.getLong(9);
+    } finally {
+      if (reader != null)
+        reader.close();
+    }
+  }
+
+  private boolean updateFromSnippet(long threadId, @Nullable Long count, boolean unarchive) {
+    MmsSmsDatabase        mmsSmsDatabase = getMmsSmsDatabase();
+    MmsSmsDatabase.Reader reader         = null;
 
     try {
       reader = mmsSmsDatabase.readerFor(mmsSmsDatabase.getConversationSnippet(threadId));
@@ -586,6 +747,26 @@ public class ThreadDatabase extends Database {
     }
   }
 
+  @VisibleForTesting
+  @NonNull MmsSmsDatabase getMmsSmsDatabase() {
+    return DatabaseFactory.getMmsSmsDatabase(context);
+  }
+
+  @VisibleForTesting
+  @NonNull SmsDatabase getSmsDatabase() {
+    return DatabaseFactory.getSmsDatabase(context);
+  }
+
+  @VisibleForTesting
+  @NonNull MmsDatabase getMmsDatabase() {
+    return DatabaseFactory.getMmsDatabase(context);
+  }
+
+  @VisibleForTesting
+  @NonNull AttachmentDatabase getAttachmentDatabase() {
+    return DatabaseFactory.getAttachmentDatabase(context);
+  }
+
   private @NonNull String getFormattedBodyFor(@NonNull MessageRecord messageRecord) {
     if (messageRecord.isMms() && ((MmsMessageRecord) messageRecord).getSharedContacts().size() > 0) {
       Contact contact = ((MmsMessageRecord) messageRecord).getSharedContacts().get(0);
@@ -66,8 +66,11 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
   private static final int RECIPIENT_FORCE_SMS_SELECTION    = 19;
   private static final int JOBMANAGER_STRIKES_BACK          = 20;
   private static final int STICKERS                         = 21;
+  private static final int JOB_PRIORITY                     = 22;
+  private static final int EXPIRATION_INDEX                 = 23;
+  private static final int ATTACHMENT_HASH                  = 24;
 
-  private static final int    DATABASE_VERSION = 21;
+  private static final int    DATABASE_VERSION = 24;
   private static final String DATABASE_NAME    = "signal.db";
 
   private final Context        context;
@@ -462,6 +465,20 @@ public class SQLCipherOpenHelper extends SQLiteOpenHelper {
         db.execSQL("CREATE INDEX IF NOT EXISTS part_sticker_pack_id_index ON part (sticker_pack_id)");
       }
 
+      if (oldVersion < JOB_PRIORITY) {
+        db.execSQL("ALTER TABLE job_spec ADD COLUMN priority INTEGER DEFAULT 1");
+      }
+
+      if (oldVersion < EXPIRATION_INDEX) {
+        db.execSQL("CREATE INDEX IF NOT EXISTS sms_expires_at_index ON sms (expire_started + expires_in) WHERE expire_started > 0");
+        db.execSQL("CREATE INDEX IF NOT EXISTS mms_expires_at_index ON mms (expire_started + expires_in) WHERE expire_started > 0");
+      }
+
+      if (oldVersion < ATTACHMENT_HASH) {
+        db.execSQL("ALTER TABLE part ADD COLUMN data_hash TEXT DEFAULT NULL");
+        db.execSQL("CREATE INDEX IF NOT EXISTS part_data_hash_index ON part (data_hash)");
+      }
+
       db.setTransactionSuccessful();
     } finally {
       db.endTransaction();
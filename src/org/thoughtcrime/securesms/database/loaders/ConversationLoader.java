@@ -4,6 +4,8 @@ import android.content.Context;
 import android.database.Cursor;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.util.AbstractCursorLoader;
 import org.whispersystems.libsignal.util.Pair;
 
@@ -11,20 +13,30 @@ public class ConversationLoader extends AbstractCursorLoader {
   private final long    threadId;
   private       int     offset;
   private       int     limit;
+  private final long    since;
   private       long    lastSeen;
   private       boolean hasSent;
+  private       long    oldestDateReceived;
+  private       boolean hasMore;
 
   public ConversationLoader(Context context, long threadId, int offset, int limit, long lastSeen) {
-    super(context);
-    this.threadId = threadId;
-    this.offset   = offset;
-    this.limit    = limit;
-    this.lastSeen = lastSeen;
-    this.hasSent  = true;
+    this(context, threadId, offset, limit, -1, lastSeen);
   }
 
-  public boolean hasLimit() {
-    return limit > 0;
+  /**
+   * @param since If not -1, the offset is ignored and the loader pages by key instead, loading
+   *              every message received at or after since plus the page of up to limit messages
+   *              before it. See {@link MmsSmsDatabase#getConversationSince(long, long, long)}.
+   */
+  public ConversationLoader(Context context, long threadId, int offset, int limit, long since, long lastSeen) {
+    super(context);
+    this.threadId           = threadId;
+    this.offset             = offset;
+    this.limit              = limit;
+    this.since              = since;
+    this.lastSeen           = lastSeen;
+    this.hasSent            = true;
+    this.oldestDateReceived = -1;
   }
 
   public boolean hasOffset() {
@@ -43,6 +55,20 @@ public class ConversationLoader extends AbstractCursorLoader {
     return hasSent;
   }
 
+  /**
+   * @return The date_received of the oldest loaded message, or -1 if nothing was loaded.
+   */
+  public long getOldestDateReceived() {
+    return oldestDateReceived;
+  }
+
+  /**
+   * @return True if there are messages older than the ones that were loaded.
+   */
+  public boolean hasMore() {
+    return hasMore;
+  }
+
   @Override
   public Cursor getCursor() {
     Pair<Long, Boolean> lastSeenAndHasSent = DatabaseFactory.getThreadDatabase(context).getLastSeenAndHasSent(threadId);
@@ -53,6 +79,20 @@ public class ConversationLoader extends AbstractCursorLoader {
       this.lastSeen = lastSeenAndHasSent.first();
     }
 
-    return DatabaseFactory.getMmsSmsDatabase(context).getConversation(threadId, offset, limit);
+    MmsSmsDatabase database = DatabaseFactory.getMmsSmsDatabase(context);
+    Cursor         cursor;
+
+    if (since != -1) cursor = database.getConversationSince(threadId, since, limit);
+    else             cursor = database.getConversation(threadId, offset, limit);
+
+    if (cursor != null && cursor.moveToLast()) {
+      this.oldestDateReceived = cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.NORMALIZED_DATE_RECEIVED));
+      this.hasMore            = database.hasConversationBefore(threadId, oldestDateReceived);
+    } else {
+      this.oldestDateReceived = -1;
+      this.hasMore            = false;
+    }
+
+    return cursor;
   }
 }
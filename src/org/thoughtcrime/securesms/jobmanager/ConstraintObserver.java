@@ -8,5 +8,11 @@ public interface ConstraintObserver {
 
   interface Notifier {
     void onConstraintMet(@NonNull String reason);
+
+    /**
+     * Should be called when a constraint that may previously have been met no longer is, so that
+     * any cached state for it can be dropped.
+     */
+    void onConstraintUnmet(@NonNull String reason);
   }
 }
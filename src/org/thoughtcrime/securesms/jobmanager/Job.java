@@ -129,6 +129,33 @@ public abstract class Job {
     SUCCESS, FAILURE, RETRY
   }
 
+  /**
+   * The class of work a job belongs to. Each class has its own set of runners, so that a large
+   * amount of low-priority work can't hold up the jobs the user is actively waiting on.
+   */
+  public enum Priority {
+    LOW(0), DEFAULT(1), HIGH(2);
+
+    private final int code;
+
+    Priority(int code) {
+      this.code = code;
+    }
+
+    public int getCode() {
+      return code;
+    }
+
+    public static @NonNull Priority fromCode(int code) {
+      for (Priority priority : values()) {
+        if (priority.code == code) {
+          return priority;
+        }
+      }
+      return DEFAULT;
+    }
+  }
+
   public static final class Parameters {
 
     public static final int IMMORTAL  = -1;
@@ -140,6 +167,7 @@ public abstract class Job {
     private final long         maxBackoff;
     private final int          maxInstances;
     private final String       queue;
+    private final Priority     priority;
     private final List<String> constraintKeys;
 
     private Parameters(long createTime,
@@ -148,6 +176,7 @@ public abstract class Job {
                        long maxBackoff,
                        int maxInstances,
                        @Nullable String queue,
+                       @NonNull Priority priority,
                        @NonNull List<String> constraintKeys)
     {
       this.createTime     = createTime;
@@ -156,6 +185,7 @@ public abstract class Job {
       this.maxBackoff     = maxBackoff;
       this.maxInstances   = maxInstances;
       this.queue          = queue;
+      this.priority       = priority;
       this.constraintKeys = constraintKeys;
     }
 
@@ -183,6 +213,10 @@ public abstract class Job {
       return queue;
     }
 
+    public @NonNull Priority getPriority() {
+      return priority;
+    }
+
     public List<String> getConstraintKeys() {
       return constraintKeys;
     }
@@ -196,6 +230,7 @@ public abstract class Job {
       private int          maxAttempts    = 1;
       private int          maxInstances   = UNLIMITED;
       private String       queue          = null;
+      private Priority     priority       = Priority.DEFAULT;
       private List<String> constraintKeys = new LinkedList<>();
 
       /** Should only be invoked by {@link JobController} */
@@ -254,6 +289,16 @@ public abstract class Job {
         return this;
       }
 
+      /**
+       * Specify the class of work this job belongs to. A job can be run by the runners of its own
+       * class or of any lower class, and runners prefer higher classes. Defaults to
+       * {@link Priority#DEFAULT}.
+       */
+      public @NonNull Builder setPriority(@NonNull Priority priority) {
+        this.priority = priority;
+        return this;
+      }
+
       /**
        * Add a constraint via the key that was used to register its factory in
        * {@link JobManager.Configuration)};
@@ -274,7 +319,7 @@ public abstract class Job {
       }
 
       public @NonNull Parameters build() {
-        return new Parameters(createTime, lifespan, maxAttempts, maxBackoff, maxInstances, queue, constraintKeys);
+        return new Parameters(createTime, lifespan, maxAttempts, maxBackoff, maxInstances, queue, priority, constraintKeys);
       }
     }
   }
@@ -17,30 +17,61 @@ import org.thoughtcrime.securesms.util.Debouncer;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manages the queue of jobs. This is the only class that should write to {@link JobStorage} to
  * ensure consistency.
+ *
+ * {@link JobRunner}s block in {@link #pullNextEligibleJobForExecution(Job.Priority)} until there is
+ * work for them. Rather than waking every runner on each state change, we wake a single runner, and
+ * a runner that successfully pulls a job will wake the next one if there is still more work to do.
+ * Runners that find nothing to do sleep until the earliest pending retry is due.
+ *
+ * Each runner belongs to a {@link Job.Priority} class. A runner will take jobs of its own class or
+ * any higher class, preferring the highest, so a backlog of low priority work can never occupy the
+ * runners reserved for high priority work. To keep lower classes from starving, a runner will take
+ * a job of its own class first once it has been waiting longer than {@link #STARVATION_THRESHOLD}.
+ *
+ * Constraints are instantiated once and their state is cached until we are told it may have
+ * changed, either by a {@link ConstraintObserver} or by a {@link Scheduler} waking us up. Jobs that
+ * are waiting on a constraint known to be unmet are not looked at again until then.
  */
 class JobController {
 
   private static final String TAG = JobController.class.getSimpleName();
 
-  private final Application            application;
-  private final JobStorage             jobStorage;
-  private final JobInstantiator        jobInstantiator;
-  private final ConstraintInstantiator constraintInstantiator;
-  private final Data.Serializer        dataSerializer;
-  private final DependencyInjector     dependencyInjector;
-  private final Scheduler              scheduler;
-  private final Debouncer              debouncer;
-  private final Callback               callback;
-  private final Set<String>            runningJobs;
+  private static final long STARVATION_THRESHOLD = TimeUnit.SECONDS.toMillis(15);
+
+  private static final Job.Priority[] PRIORITIES = Job.Priority.values();
+
+  private final Application                      application;
+  private final JobStorage                       jobStorage;
+  private final JobInstantiator                  jobInstantiator;
+  private final ConstraintInstantiator           constraintInstantiator;
+  private final Data.Serializer                  dataSerializer;
+  private final DependencyInjector               dependencyInjector;
+  private final Scheduler                        scheduler;
+  private final Debouncer                        debouncer;
+  private final Callback                         callback;
+  private final Set<String>                      runningJobs;
+  private final Map<String, Constraint>          constraints;
+  private final Set<String>                      metConstraintKeys;
+  private final Set<String>                      unmetConstraintKeys;
+  private final ReentrantLock                    lock;
+  private final Map<Job.Priority, Condition>     runnerConditions;
+  private final Map<Job.Priority, Integer>       waitingRunners;
+  private final Map<Job.Priority, PriorityStats> priorityStats;
 
   JobController(@NonNull Application application,
                 @NonNull JobStorage jobStorage,
@@ -62,123 +93,215 @@ class JobController {
     this.debouncer              = debouncer;
     this.callback               = callback;
     this.runningJobs            = new HashSet<>();
+    this.constraints            = new HashMap<>();
+    this.metConstraintKeys      = new HashSet<>();
+    this.unmetConstraintKeys    = new HashSet<>();
+    this.lock                   = new ReentrantLock();
+    this.runnerConditions       = new EnumMap<>(Job.Priority.class);
+    this.waitingRunners         = new EnumMap<>(Job.Priority.class);
+    this.priorityStats          = new EnumMap<>(Job.Priority.class);
+
+    for (Job.Priority priority : PRIORITIES) {
+      runnerConditions.put(priority, lock.newCondition());
+      waitingRunners.put(priority, 0);
+      priorityStats.put(priority, new PriorityStats());
+    }
   }
 
   @WorkerThread
-  synchronized void init() {
-    jobStorage.init();
-    jobStorage.updateAllJobsToBePending();
-    notifyAll();
+  void init() {
+    lock.lock();
+    try {
+      jobStorage.init();
+      jobStorage.updateAllJobsToBePending();
+      signalRunner();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Forgets the cached constraint state and wakes a runner to take another pass at the queue.
+   */
+  void wakeUp() {
+    lock.lock();
+    try {
+      invalidateConstraints();
+      signalRunner();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized void wakeUp() {
-    notifyAll();
+  /**
+   * Forgets the cached constraint state without waking anyone up. Used when a constraint may have
+   * become unmet, which can't make any new jobs eligible.
+   */
+  void invalidateConstraints() {
+    lock.lock();
+    try {
+      metConstraintKeys.clear();
+      unmetConstraintKeys.clear();
+    } finally {
+      lock.unlock();
+    }
   }
 
   @WorkerThread
-  synchronized void submitNewJobChain(@NonNull List<List<Job>> chain) {
-    chain = Stream.of(chain).filterNot(List::isEmpty).toList();
+  void submitNewJobChain(@NonNull List<List<Job>> chain) {
+    lock.lock();
+    try {
+      chain = Stream.of(chain).filterNot(List::isEmpty).toList();
 
-    if (chain.isEmpty()) {
-      Log.w(TAG, "Tried to submit an empty job chain. Skipping.");
-      return;
-    }
+      if (chain.isEmpty()) {
+        Log.w(TAG, "Tried to submit an empty job chain. Skipping.");
+        return;
+      }
 
-    if (chainExceedsMaximumInstances(chain)) {
-      Job solo = chain.get(0).get(0);
-      Log.w(TAG, JobLogger.format(solo, "Already at the max instance count of " + solo.getParameters().getMaxInstances() + ". Skipping."));
-      return;
-    }
+      if (chainExceedsMaximumInstances(chain)) {
+        Job solo = chain.get(0).get(0);
+        Log.w(TAG, JobLogger.format(solo, "Already at the max instance count of " + solo.getParameters().getMaxInstances() + ". Skipping."));
+        return;
+      }
 
-    insertJobChain(chain);
-    scheduleJobs(chain.get(0));
-    triggerOnSubmit(chain);
-    notifyAll();
+      insertJobChain(chain);
+      scheduleJobs(chain.get(0));
+      triggerOnSubmit(chain);
+      signalRunner();
+    } finally {
+      lock.unlock();
+    }
   }
 
   @WorkerThread
-  synchronized void onRetry(@NonNull Job job) {
-    int  nextRunAttempt     = job.getRunAttempt() + 1;
-    long nextRunAttemptTime = calculateNextRunAttemptTime(System.currentTimeMillis(), nextRunAttempt, job.getParameters().getMaxBackoff());
+  void onRetry(@NonNull Job job) {
+    lock.lock();
+    try {
+      int  nextRunAttempt     = job.getRunAttempt() + 1;
+      long nextRunAttemptTime = calculateNextRunAttemptTime(System.currentTimeMillis(), nextRunAttempt, job.getParameters().getMaxBackoff());
 
-    jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime);
+      jobStorage.updateJobAfterRetry(job.getId(), false, nextRunAttempt, nextRunAttemptTime);
 
-    List<Constraint> constraints = Stream.of(jobStorage.getConstraintSpecs(job.getId()))
-                                         .map(ConstraintSpec::getFactoryKey)
-                                         .map(constraintInstantiator::instantiate)
-                                         .toList();
+      List<Constraint> constraints = Stream.of(jobStorage.getConstraintSpecs(job.getId()))
+                                           .map(ConstraintSpec::getFactoryKey)
+                                           .map(this::getConstraint)
+                                           .toList();
 
 
-    long delay = Math.max(0, nextRunAttemptTime - System.currentTimeMillis());
+      long delay = Math.max(0, nextRunAttemptTime - System.currentTimeMillis());
 
-    Log.i(TAG, JobLogger.format(job, "Scheduling a retry in " + delay + " ms."));
-    scheduler.schedule(delay, constraints);
+      Log.i(TAG, JobLogger.format(job, "Scheduling a retry in " + delay + " ms."));
+      scheduler.schedule(delay, constraints);
 
-    notifyAll();
+      signalRunner();
+    } finally {
+      lock.unlock();
+    }
   }
 
-  synchronized void onJobFinished(@NonNull Job job) {
-    runningJobs.remove(job.getId());
+  void onJobFinished(@NonNull Job job) {
+    lock.lock();
+    try {
+      runningJobs.remove(job.getId());
+    } finally {
+      lock.unlock();
+    }
   }
 
   @WorkerThread
-  synchronized void onSuccess(@NonNull Job job) {
-    jobStorage.deleteJob(job.getId());
-    notifyAll();
+  void onSuccess(@NonNull Job job) {
+    lock.lock();
+    try {
+      jobStorage.deleteJob(job.getId());
+      signalRunner();
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
    * @return The list of all dependent jobs that should also be failed.
    */
   @WorkerThread
-  synchronized @NonNull List<Job> onFailure(@NonNull Job job) {
-    List<Job> dependents = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
-                                 .map(DependencySpec::getJobId)
-                                 .map(jobStorage::getJobSpec)
-                                 .withoutNulls()
-                                 .map(jobSpec -> {
-                                   List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
-                                   return createJob(jobSpec, constraintSpecs);
-                                 })
-                                 .toList();
-
-    List<Job> all = new ArrayList<>(dependents.size() + 1);
-    all.add(job);
-    all.addAll(dependents);
-
-    jobStorage.deleteJobs(Stream.of(all).map(Job::getId).toList());
-
-    return dependents;
+  @NonNull List<Job> onFailure(@NonNull Job job) {
+    lock.lock();
+    try {
+      List<Job> dependents = Stream.of(jobStorage.getDependencySpecsThatDependOnJob(job.getId()))
+                                   .map(DependencySpec::getJobId)
+                                   .map(jobStorage::getJobSpec)
+                                   .withoutNulls()
+                                   .map(jobSpec -> {
+                                     List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
+                                     return createJob(jobSpec, constraintSpecs);
+                                   })
+                                   .toList();
+
+      List<Job> all = new ArrayList<>(dependents.size() + 1);
+      all.add(job);
+      all.addAll(dependents);
+
+      jobStorage.deleteJobs(Stream.of(all).map(Job::getId).toList());
+      signalRunner();
+
+      return dependents;
+    } finally {
+      lock.unlock();
+    }
   }
 
   /**
-   * Retrieves the next job that is eligible for execution. To be 'eligible' means that the job:
+   * Retrieves the next job that is eligible for execution by a runner of the given priority class.
+   * To be 'eligible' means that the job:
    *  - Has no dependencies
    *  - Has no unmet constraints
+   *  - Has a priority at least as high as the runner's
    *
    * This method will block until a job is available.
    * When the job returned from this method has been run, you must call {@link #onJobFinished(Job)}.
    */
   @WorkerThread
-  synchronized @NonNull Job pullNextEligibleJobForExecution() {
+  @NonNull Job pullNextEligibleJobForExecution(@NonNull Job.Priority runnerPriority) {
+    lock.lock();
     try {
-      Job job;
+      JobSpec jobSpec;
 
-      while ((job = getNextEligibleJobForExecution()) == null) {
+      while ((jobSpec = getNextEligibleJobSpecForExecution(runnerPriority, System.currentTimeMillis())) == null) {
         if (runningJobs.isEmpty()) {
           debouncer.publish(callback::onEmpty);
         }
 
-        wait();
+        jobStorage.flush();
+
+        long      currentTime        = System.currentTimeMillis();
+        long      nextRunAttemptTime = jobStorage.getNextPendingRunAttemptTime(currentTime);
+        Condition condition          = runnerConditions.get(runnerPriority);
+
+        waitingRunners.put(runnerPriority, waitingRunners.get(runnerPriority) + 1);
+
+        try {
+          if (nextRunAttemptTime == Long.MAX_VALUE) {
+            condition.await();
+          } else {
+            condition.await(Math.max(1, nextRunAttemptTime - currentTime), TimeUnit.MILLISECONDS);
+          }
+        } finally {
+          waitingRunners.put(runnerPriority, waitingRunners.get(runnerPriority) - 1);
+        }
       }
 
-      jobStorage.updateJobRunningState(job.getId(), true);
-      runningJobs.add(job.getId());
+      priorityStats.get(Job.Priority.fromCode(jobSpec.getPriority())).onPulled(getQueuedTime(jobSpec, System.currentTimeMillis()));
+
+      jobStorage.updateJobRunningState(jobSpec.getId(), true);
+      runningJobs.add(jobSpec.getId());
 
-      return job;
+      signalRunner();
+
+      return createJob(jobSpec, jobStorage.getConstraintSpecs(jobSpec.getId()));
     } catch (InterruptedException e) {
       Log.e(TAG, "Interrupted.");
       throw new AssertionError(e);
+    } finally {
+      lock.unlock();
     }
   }
 
@@ -186,7 +309,16 @@ class JobController {
    * Retrieves a string representing the state of the job queue. Intended for debugging.
    */
   @WorkerThread
-  synchronized @NonNull String getDebugInfo() {
+  @NonNull String getDebugInfo() {
+    lock.lock();
+    try {
+      return buildDebugInfo();
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private @NonNull String buildDebugInfo() {
     List<JobSpec>        jobs         = jobStorage.getAllJobSpecs();
     List<ConstraintSpec> constraints  = jobStorage.getAllConstraintSpecs();
     List<DependencySpec> dependencies = jobStorage.getAllDependencySpecs();
@@ -214,6 +346,30 @@ class JobController {
       info.append("None\n");
     }
 
+    info.append("\n-- Priorities\n");
+    for (int i = PRIORITIES.length - 1; i >= 0; i--) {
+      Job.Priority priority = PRIORITIES[i];
+      int          queued   = 0;
+      int          running  = 0;
+
+      for (JobSpec jobSpec : jobs) {
+        if (jobSpec.getPriority() == priority.getCode()) {
+          queued++;
+          if (jobSpec.isRunning()) running++;
+        }
+      }
+
+      info.append(priority).append(": ")
+          .append("queued: ").append(queued)
+          .append(", running: ").append(running)
+          .append(", idleRunners: ").append(waitingRunners.get(priority))
+          .append(", ").append(priorityStats.get(priority))
+          .append('\n');
+    }
+
+    info.append("\n-- Storage\n");
+    info.append(jobStorage.getDebugInfo()).append('\n');
+
     return info.toString();
   }
 
@@ -272,6 +428,7 @@ class JobController {
                                   job.getParameters().getMaxBackoff(),
                                   job.getParameters().getLifespan(),
                                   job.getParameters().getMaxInstances(),
+                                  job.getParameters().getPriority().getCode(),
                                   dataSerializer.serialize(job.serialize()),
                                   false);
 
@@ -290,34 +447,134 @@ class JobController {
   private void scheduleJobs(@NonNull List<Job> jobs) {
     for (Job job : jobs) {
       List<Constraint> constraints = Stream.of(job.getParameters().getConstraintKeys())
-                                           .map(key -> new ConstraintSpec(job.getId(), key))
-                                           .map(ConstraintSpec::getFactoryKey)
-                                           .map(constraintInstantiator::instantiate)
+                                           .map(this::getConstraint)
                                            .toList();
 
       scheduler.schedule(0, constraints);
     }
   }
 
+  /**
+   * Picks the job a runner of the given class should run next. That is the first eligible job of
+   * the highest class the runner is allowed to take, unless a job of the runner's own class has
+   * been waiting too long, in which case it goes first.
+   */
   @WorkerThread
-  private @Nullable Job getNextEligibleJobForExecution() {
-    List<JobSpec> jobSpecs = jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(System.currentTimeMillis());
+  private @Nullable JobSpec getNextEligibleJobSpecForExecution(@NonNull Job.Priority runnerPriority, long currentTime) {
+    Map<Job.Priority, JobSpec> candidates = getEligibleCandidates(runnerPriority, currentTime);
+    JobSpec                    own        = candidates.get(runnerPriority);
 
-    for (JobSpec jobSpec : jobSpecs) {
-      List<ConstraintSpec> constraintSpecs = jobStorage.getConstraintSpecs(jobSpec.getId());
-      List<Constraint>     constraints     = Stream.of(constraintSpecs)
-                                                   .map(ConstraintSpec::getFactoryKey)
-                                                   .map(constraintInstantiator::instantiate)
-                                                   .toList();
-
-      if (Stream.of(constraints).allMatch(Constraint::isMet)) {
-        return createJob(jobSpec, constraintSpecs);
+    if (own != null && getQueuedTime(own, currentTime) >= STARVATION_THRESHOLD) {
+      return own;
+    }
+
+    for (int i = PRIORITIES.length - 1; i >= runnerPriority.ordinal(); i--) {
+      JobSpec candidate = candidates.get(PRIORITIES[i]);
+
+      if (candidate != null) {
+        return candidate;
       }
     }
 
     return null;
   }
 
+  /**
+   * @return The first eligible job, in created order, of every class at or above the given one.
+   */
+  @WorkerThread
+  private @NonNull Map<Job.Priority, JobSpec> getEligibleCandidates(@NonNull Job.Priority minimumPriority, long currentTime) {
+    Map<Job.Priority, JobSpec> candidates = new EnumMap<>(Job.Priority.class);
+    List<JobSpec>              jobSpecs   = jobStorage.getPendingJobsWithNoDependenciesInCreatedOrder(currentTime, unmetConstraintKeys);
+    int                        needed     = PRIORITIES.length - minimumPriority.ordinal();
+
+    for (JobSpec jobSpec : jobSpecs) {
+      Job.Priority priority = Job.Priority.fromCode(jobSpec.getPriority());
+
+      if (priority.ordinal() < minimumPriority.ordinal() || candidates.containsKey(priority)) {
+        continue;
+      }
+
+      if (Stream.of(jobStorage.getConstraintSpecs(jobSpec.getId())).allMatch(this::isConstraintMet)) {
+        candidates.put(priority, jobSpec);
+
+        if (candidates.size() == needed) {
+          break;
+        }
+      }
+    }
+
+    return candidates;
+  }
+
+  /**
+   * Wakes a single waiting runner that is able to take the most important eligible job, if there
+   * is one. Runners of a class are preferred over runners of lower classes, which are only woken
+   * when no runner of the job's own class is idle.
+   */
+  private void signalRunner() {
+    Map<Job.Priority, JobSpec> candidates = null;
+
+    for (int i = PRIORITIES.length - 1; i >= 0; i--) {
+      if (waitingRunners.get(PRIORITIES[i]) > 0) {
+        candidates = getEligibleCandidates(PRIORITIES[0], System.currentTimeMillis());
+        break;
+      }
+    }
+
+    if (candidates == null) {
+      return;
+    }
+
+    for (int i = PRIORITIES.length - 1; i >= 0; i--) {
+      if (!candidates.containsKey(PRIORITIES[i])) {
+        continue;
+      }
+
+      for (int j = i; j >= 0; j--) {
+        if (waitingRunners.get(PRIORITIES[j]) > 0) {
+          runnerConditions.get(PRIORITIES[j]).signal();
+          return;
+        }
+      }
+    }
+  }
+
+  private static long getQueuedTime(@NonNull JobSpec jobSpec, long currentTime) {
+    return Math.max(0, currentTime - Math.max(jobSpec.getCreateTime(), jobSpec.getNextRunAttemptTime()));
+  }
+
+  private boolean isConstraintMet(@NonNull ConstraintSpec constraintSpec) {
+    String key = constraintSpec.getFactoryKey();
+
+    if (metConstraintKeys.contains(key)) {
+      return true;
+    }
+
+    if (unmetConstraintKeys.contains(key)) {
+      return false;
+    }
+
+    if (getConstraint(key).isMet()) {
+      metConstraintKeys.add(key);
+      return true;
+    } else {
+      unmetConstraintKeys.add(key);
+      return false;
+    }
+  }
+
+  private @NonNull Constraint getConstraint(@NonNull String factoryKey) {
+    Constraint constraint = constraints.get(factoryKey);
+
+    if (constraint == null) {
+      constraint = constraintInstantiator.instantiate(factoryKey);
+      constraints.put(factoryKey, constraint);
+    }
+
+    return constraint;
+  }
+
   private @NonNull Job createJob(@NonNull JobSpec jobSpec, @NonNull List<ConstraintSpec> constraintSpecs) {
     Job.Parameters parameters = buildJobParameters(jobSpec, constraintSpecs);
     Data           data       = dataSerializer.deserialize(jobSpec.getSerializedData());
@@ -339,6 +596,7 @@ class JobController {
                   .setLifespan(jobSpec.getLifespan())
                   .setMaxAttempts(jobSpec.getMaxAttempts())
                   .setQueue(jobSpec.getQueueKey())
+                  .setPriority(Job.Priority.fromCode(jobSpec.getPriority()))
                   .setConstraints(Stream.of(constraintSpecs).map(ConstraintSpec::getFactoryKey).toList())
                   .build();
   }
@@ -354,4 +612,25 @@ class JobController {
   interface Callback {
     void onEmpty();
   }
+
+  /**
+   * How long jobs of a single priority class waited between becoming runnable and being pulled.
+   */
+  private static class PriorityStats {
+    private long pulled;
+    private long totalQueuedTime;
+    private long maxQueuedTime;
+
+    void onPulled(long queuedTime) {
+      pulled++;
+      totalQueuedTime += queuedTime;
+      maxQueuedTime    = Math.max(maxQueuedTime, queuedTime);
+    }
+
+    @Override
+    public @NonNull String toString() {
+      long average = pulled > 0 ? totalQueuedTime / pulled : 0;
+      return "pulled: " + pulled + ", avgQueuedTime: " + average + " ms, maxQueuedTime: " + maxQueuedTime + " ms";
+    }
+  }
 }
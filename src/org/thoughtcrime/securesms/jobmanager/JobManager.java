@@ -14,6 +14,7 @@ import org.thoughtcrime.securesms.util.Debouncer;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -33,13 +34,13 @@ public class JobManager implements ConstraintObserver.Notifier {
 
   private final ExecutorService executor;
   private final JobController   jobController;
-  private final JobRunner[]     jobRunners;
+  private final List<JobRunner> jobRunners;
 
   private final Set<EmptyQueueListener> emptyQueueListeners = new CopyOnWriteArraySet<>();
 
   public JobManager(@NonNull Application application, @NonNull Configuration configuration) {
     this.executor      = configuration.getExecutorFactory().newSingleThreadExecutor("signal-JobManager");
-    this.jobRunners    = new JobRunner[configuration.getJobThreadCount()];
+    this.jobRunners    = new ArrayList<>();
     this.jobController = new JobController(application,
                                            configuration.getJobStorage(),
                                            configuration.getJobInstantiator(),
@@ -47,7 +48,7 @@ public class JobManager implements ConstraintObserver.Notifier {
                                            configuration.getDataSerializer(),
                                            configuration.getDependencyInjector(),
                                            Build.VERSION.SDK_INT < 26 ? new AlarmManagerScheduler(application)
-                                                                      : new CompositeScheduler(new InAppScheduler(this), new JobSchedulerScheduler(application)),
+                                                                      : new JobSchedulerScheduler(application),
                                            new Debouncer(500),
                                            this::onEmptyQueue);
 
@@ -59,9 +60,12 @@ public class JobManager implements ConstraintObserver.Notifier {
 
       jobController.init();
 
-      for (int i = 0; i < jobRunners.length; i++) {
-        jobRunners[i] = new JobRunner(application, i + 1, jobController);
-        jobRunners[i].start();
+      for (Job.Priority priority : Job.Priority.values()) {
+        for (int i = 0; i < configuration.getJobThreadCount(priority); i++) {
+          JobRunner jobRunner = new JobRunner(application, jobRunners.size() + 1, priority, jobController);
+          jobRunners.add(jobRunner);
+          jobRunner.start();
+        }
       }
 
       for (ConstraintObserver constraintObserver : configuration.getConstraintObservers()) {
@@ -136,6 +140,12 @@ public class JobManager implements ConstraintObserver.Notifier {
     wakeUp();
   }
 
+  @Override
+  public void onConstraintUnmet(@NonNull String reason) {
+    Log.i(TAG, "onConstraintUnmet(" + reason + ")");
+    executor.execute(jobController::invalidateConstraints);
+  }
+
   /**
    * Pokes the system to take another pass at the job queue.
    */
@@ -144,10 +154,7 @@ public class JobManager implements ConstraintObserver.Notifier {
   }
 
   private void enqueueChain(@NonNull Chain chain) {
-    executor.execute(() -> {
-      jobController.submitNewJobChain(chain.getJobListChain());
-      wakeUp();
-    });
+    executor.execute(() -> jobController.submitNewJobChain(chain.getJobListChain()));
   }
 
   private void onEmptyQueue() {
@@ -201,16 +208,16 @@ public class JobManager implements ConstraintObserver.Notifier {
 
   public static class Configuration {
 
-    private final ExecutorFactory          executorFactory;
-    private final int                      jobThreadCount;
-    private final JobInstantiator          jobInstantiator;
-    private final ConstraintInstantiator   constraintInstantiator;
-    private final List<ConstraintObserver> constraintObservers;
-    private final Data.Serializer          dataSerializer;
-    private final JobStorage               jobStorage;
-    private final DependencyInjector       dependencyInjector;
+    private final ExecutorFactory            executorFactory;
+    private final Map<Job.Priority, Integer> jobThreadCounts;
+    private final JobInstantiator            jobInstantiator;
+    private final ConstraintInstantiator     constraintInstantiator;
+    private final List<ConstraintObserver>   constraintObservers;
+    private final Data.Serializer            dataSerializer;
+    private final JobStorage                 jobStorage;
+    private final DependencyInjector         dependencyInjector;
 
-    private Configuration(int jobThreadCount,
+    private Configuration(@NonNull Map<Job.Priority, Integer> jobThreadCounts,
                           @NonNull ExecutorFactory executorFactory,
                           @NonNull JobInstantiator jobInstantiator,
                           @NonNull ConstraintInstantiator constraintInstantiator,
@@ -220,7 +227,7 @@ public class JobManager implements ConstraintObserver.Notifier {
                           @NonNull DependencyInjector dependencyInjector)
     {
       this.executorFactory        = executorFactory;
-      this.jobThreadCount         = jobThreadCount;
+      this.jobThreadCounts        = jobThreadCounts;
       this.jobInstantiator        = jobInstantiator;
       this.constraintInstantiator = constraintInstantiator;
       this.constraintObservers    = constraintObservers;
@@ -229,8 +236,13 @@ public class JobManager implements ConstraintObserver.Notifier {
       this.dependencyInjector     = dependencyInjector;
     }
 
-    int getJobThreadCount() {
-      return jobThreadCount;
+    /**
+     * @return The number of runners dedicated to the given priority class. Runners will also take
+     *         jobs of any higher class.
+     */
+    int getJobThreadCount(@NonNull Job.Priority priority) {
+      Integer count = jobThreadCounts.get(priority);
+      return count != null ? count : 0;
     }
 
     @NonNull ExecutorFactory getExecutorFactory() {
@@ -265,7 +277,7 @@ public class JobManager implements ConstraintObserver.Notifier {
     public static class Builder {
 
       private ExecutorFactory                 executorFactory     = new DefaultExecutorFactory();
-      private int                             jobThreadCount      = Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4));
+      private Map<Job.Priority, Integer>      jobThreadCounts     = defaultJobThreadCounts();
       private Map<String, Job.Factory>        jobFactories        = new HashMap<>();
       private Map<String, Constraint.Factory> constraintFactories = new HashMap<>();
       private List<ConstraintObserver>        constraintObservers = new ArrayList<>();
@@ -273,8 +285,15 @@ public class JobManager implements ConstraintObserver.Notifier {
       private JobStorage                      jobStorage          = null;
       private DependencyInjector              dependencyInjector  = o -> { /*noop*/ };
 
+      /**
+       * Sets the number of runners for {@link Job.Priority#DEFAULT} jobs.
+       */
       public @NonNull Builder setJobThreadCount(int jobThreadCount) {
-        this.jobThreadCount = jobThreadCount;
+        return setJobThreadCount(Job.Priority.DEFAULT, jobThreadCount);
+      }
+
+      public @NonNull Builder setJobThreadCount(@NonNull Job.Priority priority, int jobThreadCount) {
+        this.jobThreadCounts.put(priority, jobThreadCount);
         return this;
       }
 
@@ -314,7 +333,7 @@ public class JobManager implements ConstraintObserver.Notifier {
       }
 
       public @NonNull Configuration build() {
-        return new Configuration(jobThreadCount,
+        return new Configuration(new EnumMap<>(jobThreadCounts),
                                  executorFactory,
                                  new JobInstantiator(jobFactories),
                                  new ConstraintInstantiator(constraintFactories),
@@ -323,6 +342,16 @@ public class JobManager implements ConstraintObserver.Notifier {
                                  jobStorage,
                                  dependencyInjector);
       }
+
+      private static @NonNull Map<Job.Priority, Integer> defaultJobThreadCounts() {
+        Map<Job.Priority, Integer> counts = new EnumMap<>(Job.Priority.class);
+
+        counts.put(Job.Priority.HIGH, 1);
+        counts.put(Job.Priority.DEFAULT, Math.max(2, Math.min(Runtime.getRuntime().availableProcessors() - 1, 4)));
+        counts.put(Job.Priority.LOW, 1);
+
+        return counts;
+      }
     }
   }
 }
@@ -20,20 +20,22 @@ class JobRunner extends Thread {
 
   private final Application   application;
   private final int           id;
+  private final Job.Priority  priority;
   private final JobController jobController;
 
-  JobRunner(@NonNull Application application, int id, @NonNull JobController jobController) {
+  JobRunner(@NonNull Application application, int id, @NonNull Job.Priority priority, @NonNull JobController jobController) {
     super("signal-JobRunner-" + id);
 
     this.application   = application;
     this.id            = id;
+    this.priority      = priority;
     this.jobController = jobController;
   }
 
   @Override
   public synchronized void run() {
     while (true) {
-      Job        job    = jobController.pullNextEligibleJobForExecution();
+      Job        job    = jobController.pullNextEligibleJobForExecution(priority);
       Job.Result result = run(job);
 
       jobController.onJobFinished(job);
@@ -30,8 +30,14 @@ public class CellServiceConstraintObserver implements ConstraintObserver {
   private class ServiceStateListener extends PhoneStateListener {
     @Override
     public void onServiceStateChanged(ServiceState serviceState) {
-      if (serviceState.getState() == ServiceState.STATE_IN_SERVICE && notifier != null) {
+      if (notifier == null) {
+        return;
+      }
+
+      if (serviceState.getState() == ServiceState.STATE_IN_SERVICE) {
         notifier.onConstraintMet(REASON);
+      } else {
+        notifier.onConstraintUnmet(REASON);
       }
     }
   }
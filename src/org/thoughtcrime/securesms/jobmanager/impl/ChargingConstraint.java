@@ -0,0 +1,54 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import android.app.Application;
+import android.app.job.JobInfo;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.os.BatteryManager;
+import androidx.annotation.NonNull;
+import androidx.annotation.RequiresApi;
+
+import org.thoughtcrime.securesms.jobmanager.Constraint;
+
+public class ChargingConstraint implements Constraint {
+
+  public static final String KEY = "ChargingConstraint";
+
+  private final Application application;
+
+  private ChargingConstraint(@NonNull Application application) {
+    this.application = application;
+  }
+
+  @Override
+  public boolean isMet() {
+    Intent batteryStatus = application.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+
+    return batteryStatus != null && batteryStatus.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0;
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @RequiresApi(26)
+  @Override
+  public void applyToJobInfo(@NonNull JobInfo.Builder jobInfoBuilder) {
+    jobInfoBuilder.setRequiresCharging(true);
+  }
+
+  public static final class Factory implements Constraint.Factory<ChargingConstraint> {
+
+    private final Application application;
+
+    public Factory(@NonNull Application application) {
+      this.application = application;
+    }
+
+    @Override
+    public ChargingConstraint create() {
+      return new ChargingConstraint(application);
+    }
+  }
+}
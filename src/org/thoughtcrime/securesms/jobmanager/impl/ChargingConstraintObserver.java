@@ -0,0 +1,39 @@
+package org.thoughtcrime.securesms.jobmanager.impl;
+
+import android.app.Application;
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.jobmanager.ConstraintObserver;
+
+public class ChargingConstraintObserver implements ConstraintObserver {
+
+  private static final String REASON = ChargingConstraintObserver.class.getSimpleName();
+
+  private final Application application;
+
+  public ChargingConstraintObserver(Application application) {
+    this.application = application;
+  }
+
+  @Override
+  public void register(@NonNull Notifier notifier) {
+    IntentFilter filter = new IntentFilter();
+    filter.addAction(Intent.ACTION_POWER_CONNECTED);
+    filter.addAction(Intent.ACTION_POWER_DISCONNECTED);
+
+    application.registerReceiver(new BroadcastReceiver() {
+      @Override
+      public void onReceive(Context context, Intent intent) {
+        if (Intent.ACTION_POWER_CONNECTED.equals(intent.getAction())) {
+          notifier.onConstraintMet(REASON);
+        } else {
+          notifier.onConstraintUnmet(REASON);
+        }
+      }
+    }, filter);
+  }
+}
@@ -29,6 +29,8 @@ public class NetworkConstraintObserver implements ConstraintObserver {
 
         if (constraint.isMet()) {
           notifier.onConstraintMet(REASON);
+        } else {
+          notifier.onConstraintUnmet(REASON);
         }
       }
     }, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
@@ -67,6 +67,7 @@ final class WorkManagerDatabase extends SQLiteOpenHelper {
                                                          TimeUnit.SECONDS.toMillis(30),
                                                          TimeUnit.DAYS.toMillis(1),
                                                          Job.Parameters.UNLIMITED,
+                                                         Job.Priority.DEFAULT.getCode(),
                                                          dataSerializer.serialize(DataMigrator.convert(data)),
                                                          false);
 
@@ -18,6 +18,7 @@ public final class JobSpec {
   private final long    maxBackoff;
   private final long    lifespan;
   private final int     maxInstances;
+  private final int     priority;
   private final String  serializedData;
   private final boolean isRunning;
 
@@ -31,6 +32,7 @@ public final class JobSpec {
                  long maxBackoff,
                  long lifespan,
                  int maxInstances,
+                 int priority,
                  @NonNull String serializedData,
                  boolean isRunning)
   {
@@ -44,6 +46,7 @@ public final class JobSpec {
     this.maxAttempts        = maxAttempts;
     this.lifespan           = lifespan;
     this.maxInstances       = maxInstances;
+    this.priority           = priority;
     this.serializedData     = serializedData;
     this.isRunning          = isRunning;
   }
@@ -88,6 +91,10 @@ public final class JobSpec {
     return lifespan;
   }
 
+  public int getPriority() {
+    return priority;
+  }
+
   public @NonNull String getSerializedData() {
     return serializedData;
   }
@@ -108,6 +115,7 @@ public final class JobSpec {
            maxBackoff == jobSpec.maxBackoff &&
            lifespan == jobSpec.lifespan &&
            maxInstances == jobSpec.maxInstances &&
+           priority == jobSpec.priority &&
            isRunning == jobSpec.isRunning &&
            Objects.equals(id, jobSpec.id) &&
            Objects.equals(factoryKey, jobSpec.factoryKey) &&
@@ -117,13 +125,13 @@ public final class JobSpec {
 
   @Override
   public int hashCode() {
-    return Objects.hash(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, lifespan, maxInstances, serializedData, isRunning);
+    return Objects.hash(id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, lifespan, maxInstances, priority, serializedData, isRunning);
   }
 
   @SuppressLint("DefaultLocale")
   @Override
   public @NonNull String toString() {
-    return String.format("id: %s | factoryKey: %s | queueKey: %s | createTime: %d | nextRunAttemptTime: %d | runAttempt: %d | maxAttempts: %d | maxBackoff: %d | maxInstances: %d | lifespan: %d | isRunning: %b | data: %s",
-                         id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, maxInstances, lifespan, isRunning, serializedData);
+    return String.format("id: %s | factoryKey: %s | queueKey: %s | createTime: %d | nextRunAttemptTime: %d | runAttempt: %d | maxAttempts: %d | maxBackoff: %d | maxInstances: %d | lifespan: %d | priority: %d | isRunning: %b | data: %s",
+                         id, factoryKey, queueKey, createTime, nextRunAttemptTime, runAttempt, maxAttempts, maxBackoff, maxInstances, lifespan, priority, isRunning, serializedData);
   }
 }
@@ -5,6 +5,7 @@ import androidx.annotation.Nullable;
 import androidx.annotation.WorkerThread;
 
 import java.util.List;
+import java.util.Set;
 
 public interface JobStorage {
 
@@ -23,6 +24,21 @@ public interface JobStorage {
   @WorkerThread
   @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime);
 
+  /**
+   * Same as {@link #getPendingJobsWithNoDependenciesInCreatedOrder(long)}, but leaves out any job
+   * that has a constraint with one of the provided factory keys.
+   */
+  @WorkerThread
+  @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime, @NonNull Set<String> excludedConstraintKeys);
+
+  /**
+   * @return The earliest run attempt time after {@code currentTime} of any job that would otherwise
+   *         be returned by {@link #getPendingJobsWithNoDependenciesInCreatedOrder(long)}, or
+   *         {@link Long#MAX_VALUE} if there is no such job.
+   */
+  @WorkerThread
+  long getNextPendingRunAttemptTime(long currentTime);
+
   @WorkerThread
   int getJobInstanceCount(@NonNull String factoryKey);
 
@@ -52,4 +68,16 @@ public interface JobStorage {
 
   @WorkerThread
   @NonNull List<DependencySpec> getAllDependencySpecs();
+
+  /**
+   * Persists any writes that have been buffered. Inserts and deletes are never buffered.
+   */
+  @WorkerThread
+  void flush();
+
+  /**
+   * @return A string describing the state of the storage itself. Intended for debugging.
+   */
+  @WorkerThread
+  @NonNull String getDebugInfo();
 }
@@ -0,0 +1,91 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.impl.ChargingConstraint;
+import org.thoughtcrime.securesms.jobmanager.impl.SqlCipherMigrationConstraint;
+import org.thoughtcrime.securesms.logging.Log;
+
+/**
+ * Attachments with the same content share one file, but ones stored before that have their own.
+ * This hashes them a batch at a time while the device is charging, and drops the duplicate files.
+ * Each run enqueues the next batch until none are left.
+ */
+public class AttachmentDeduplicationJob extends BaseJob {
+
+  public static final String KEY = "AttachmentDeduplicationJob";
+
+  private static final String TAG = AttachmentDeduplicationJob.class.getSimpleName();
+
+  private static final String KEY_LAST_ROW_ID = "last_row_id";
+
+  private static final int BATCH_SIZE = 50;
+
+  private final long lastRowId;
+
+  public AttachmentDeduplicationJob() {
+    this(0);
+  }
+
+  private AttachmentDeduplicationJob(long lastRowId) {
+    this(new Job.Parameters.Builder()
+                           .setQueue("AttachmentDeduplicationJob")
+                           .addConstraint(SqlCipherMigrationConstraint.KEY)
+                           .addConstraint(ChargingConstraint.KEY)
+                           .setMaxAttempts(3)
+                           .setPriority(Job.Priority.LOW)
+                           .build(),
+         lastRowId);
+  }
+
+  private AttachmentDeduplicationJob(@NonNull Job.Parameters parameters, long lastRowId) {
+    super(parameters);
+    this.lastRowId = lastRowId;
+  }
+
+  @Override
+  public @NonNull Data serialize() {
+    return new Data.Builder().putLong(KEY_LAST_ROW_ID, lastRowId).build();
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override
+  public void onRun() {
+    long nextRowId = DatabaseFactory.getAttachmentDatabase(context).deduplicateAttachments(lastRowId, BATCH_SIZE);
+
+    if (nextRowId != -1) {
+      ApplicationContext.getInstance(context).getJobManager().add(new AttachmentDeduplicationJob(nextRowId));
+    } else {
+      Log.i(TAG, "All attachments have been deduplicated.");
+    }
+  }
+
+  /**
+   * Attachments that can't be read are skipped, so a failure here comes from the database and is
+   * worth a few more tries. Rows that were already hashed aren't looked at again.
+   */
+  @Override
+  public boolean onShouldRetry(@NonNull Exception exception) {
+    return true;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Failed to deduplicate attachments after row " + lastRowId + ".");
+  }
+
+  public static final class Factory implements Job.Factory<AttachmentDeduplicationJob> {
+    @Override
+    public @NonNull AttachmentDeduplicationJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new AttachmentDeduplicationJob(parameters, data.getLong(KEY_LAST_ROW_ID));
+    }
+  }
+}
@@ -1,5 +1,7 @@
 package org.thoughtcrime.securesms.jobs;
 
+import android.annotation.SuppressLint;
+
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
@@ -15,28 +17,79 @@ import org.thoughtcrime.securesms.util.Util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.Set;
-
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An in-memory {@link JobStorage} that is backed by the {@link JobDatabase}.
+ *
+ * In addition to the raw job data, we keep a few indexes so that the hot path of
+ * {@link #getPendingJobsWithNoDependenciesInCreatedOrder(long)} doesn't need to scan and sort
+ * every job we know about:
+ *  - Each queue is kept sorted by creation order, so the head of a queue is always available.
+ *  - A 'ready' set holds every job that is not running, has no dependencies and is at the head
+ *    of its queue (or has no queue at all), again sorted by creation order.
+ *  - The run attempt times of the ready jobs, so that the earliest pending retry can be found
+ *    without looking at every ready job.
+ *  - The ready jobs grouped by the set of constraints they have, so that jobs waiting on a
+ *    constraint that is known to be unmet can be skipped as a whole.
+ *
+ * The indexes are updated incrementally on every write, so the cost of a write is logarithmic
+ * in the number of jobs in the affected queue.
+ *
+ * Inserts, deletes and retry info are written to the database immediately, since callers rely on
+ * them being durable. A lost run attempt could let a job run past its max attempts. Changes to a
+ * job's running state are instead buffered and written in batches, either when enough of them pile
+ * up, when the oldest one has waited long enough, or when {@link #flush()} is called. Losing one of
+ * these to a crash is harmless, since all jobs are reset to be pending on startup.
+ */
 public class FastJobStorage implements JobStorage {
 
+  private static final int  MAX_BATCH_SIZE  = 50;
+  private static final long MAX_FLUSH_DELAY = TimeUnit.SECONDS.toMillis(1);
+
   private final JobDatabase jobDatabase;
 
-  private final List<JobSpec>                     jobs;
-  private final Map<String, List<ConstraintSpec>> constraintsByJobId;
-  private final Map<String, List<DependencySpec>> dependenciesByJobId;
+  private final Map<String, JobSpec>               jobsById;
+  private final Map<String, Long>                  insertionOrderByJobId;
+  private final Map<String, TreeSet<JobSpec>>      jobsByQueueKey;
+  private final TreeSet<JobSpec>                   readyJobs;
+  private final TreeMap<Long, Integer>             readyRunAttemptTimes;
+  private final Map<Set<String>, TreeSet<JobSpec>> readyJobsByConstraintKeys;
+  private final Map<String, List<ConstraintSpec>>  constraintsByJobId;
+  private final Map<String, List<DependencySpec>>  dependenciesByJobId;
+  private final Map<String, Set<String>>           dependentJobIdsByJobId;
+
+  private final Set<String>                        dirtyJobIds;
+  private final FlushStats                         flushStats;
+
+  private long nextInsertionOrder;
+  private long oldestDirtyTime;
 
   public FastJobStorage(@NonNull JobDatabase jobDatabase) {
-    this.jobDatabase         = jobDatabase;
-    this.jobs                = new ArrayList<>();
-    this.constraintsByJobId  = new HashMap<>();
-    this.dependenciesByJobId = new HashMap<>();
+    this.jobDatabase               = jobDatabase;
+    this.jobsById                  = new LinkedHashMap<>();
+    this.insertionOrderByJobId     = new HashMap<>();
+    this.jobsByQueueKey            = new HashMap<>();
+    this.readyJobs                 = new TreeSet<>(new CreatedOrderComparator());
+    this.readyRunAttemptTimes      = new TreeMap<>();
+    this.readyJobsByConstraintKeys = new HashMap<>();
+    this.constraintsByJobId        = new HashMap<>();
+    this.dependenciesByJobId       = new HashMap<>();
+    this.dependentJobIdsByJobId    = new HashMap<>();
+    this.dirtyJobIds               = new LinkedHashSet<>();
+    this.flushStats                = new FlushStats();
   }
 
   @Override
@@ -45,8 +98,6 @@ public class FastJobStorage implements JobStorage {
     List<ConstraintSpec> constraintSpecs = jobDatabase.getAllConstraintSpecs();
     List<DependencySpec> dependencySpecs = jobDatabase.getAllDependencySpecs();
 
-    jobs.addAll(jobSpecs);
-
     for (ConstraintSpec constraintSpec: constraintSpecs) {
       List<ConstraintSpec> jobConstraints = Util.getOrDefault(constraintsByJobId, constraintSpec.getJobSpecId(), new LinkedList<>());
       jobConstraints.add(constraintSpec);
@@ -54,9 +105,11 @@ public class FastJobStorage implements JobStorage {
     }
 
     for (DependencySpec dependencySpec : dependencySpecs) {
-      List<DependencySpec> jobDependencies = Util.getOrDefault(dependenciesByJobId, dependencySpec.getJobId(), new LinkedList<>());
-      jobDependencies.add(dependencySpec);
-      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+      addDependency(dependencySpec);
+    }
+
+    for (JobSpec jobSpec : jobSpecs) {
+      addJob(jobSpec);
     }
   }
 
@@ -65,106 +118,110 @@ public class FastJobStorage implements JobStorage {
     jobDatabase.insertJobs(fullSpecs);
 
     for (FullSpec fullSpec : fullSpecs) {
-      jobs.add(fullSpec.getJobSpec());
       constraintsByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getConstraintSpecs());
-      dependenciesByJobId.put(fullSpec.getJobSpec().getId(), fullSpec.getDependencySpecs());
+
+      for (DependencySpec dependencySpec : fullSpec.getDependencySpecs()) {
+        addDependency(dependencySpec);
+      }
+
+      addJob(fullSpec.getJobSpec());
     }
   }
 
   @Override
   public synchronized @Nullable JobSpec getJobSpec(@NonNull String id) {
-    for (JobSpec jobSpec : jobs) {
-      if (jobSpec.getId().equals(id)) {
-        return jobSpec;
-      }
-    }
-    return null;
+    return jobsById.get(id);
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getAllJobSpecs() {
-    return new ArrayList<>(jobs);
+    return new ArrayList<>(jobsById.values());
   }
 
   @Override
   public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime) {
-    return Stream.of(jobs)
-                 .filterNot(JobSpec::isRunning)
-                 .filter(this::firstInQueue)
-                 .filter(j -> !dependenciesByJobId.containsKey(j.getId()) || dependenciesByJobId.get(j.getId()).isEmpty())
-                 .filter(j -> j.getNextRunAttemptTime() <= currentTime)
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList();
+    return getPendingJobsWithNoDependenciesInCreatedOrder(currentTime, Collections.emptySet());
   }
 
-  private boolean firstInQueue(@NonNull JobSpec job) {
-    if (job.getQueueKey() == null) {
-      return true;
+  @Override
+  public synchronized @NonNull List<JobSpec> getPendingJobsWithNoDependenciesInCreatedOrder(long currentTime, @NonNull Set<String> excludedConstraintKeys) {
+    if (excludedConstraintKeys.isEmpty()) {
+      return filterPending(readyJobs, currentTime);
     }
 
-    return Stream.of(jobs)
-                 .filter(j -> Util.equals(j.getQueueKey(), job.getQueueKey()))
-                 .sorted((j1, j2) -> Long.compare(j1.getCreateTime(), j2.getCreateTime()))
-                 .toList()
-                 .get(0)
-                 .equals(job);
+    List<JobSpec> candidates = new ArrayList<>();
+
+    for (Map.Entry<Set<String>, TreeSet<JobSpec>> entry : readyJobsByConstraintKeys.entrySet()) {
+      if (Collections.disjoint(entry.getKey(), excludedConstraintKeys)) {
+        candidates.addAll(entry.getValue());
+      }
+    }
+
+    Collections.sort(candidates, readyJobs.comparator());
+
+    return filterPending(candidates, currentTime);
+  }
+
+  @Override
+  public synchronized long getNextPendingRunAttemptTime(long currentTime) {
+    Long next = readyRunAttemptTimes.higherKey(currentTime);
+    return next != null ? next : Long.MAX_VALUE;
   }
 
   @Override
   public synchronized int getJobInstanceCount(@NonNull String factoryKey) {
-    return (int) Stream.of(jobs)
+    return (int) Stream.of(jobsById.values())
                        .filter(j -> j.getFactoryKey().equals(factoryKey))
                        .count();
   }
 
   @Override
   public synchronized void updateJobRunningState(@NonNull String id, boolean isRunning) {
-    jobDatabase.updateJobRunningState(id, isRunning);
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      existing.getNextRunAttemptTime(),
-                                      existing.getRunAttempt(),
-                                      existing.getMaxAttempts(),
-                                      existing.getMaxBackoff(),
-                                      existing.getLifespan(),
-                                      existing.getMaxInstances(),
-                                      existing.getSerializedData(),
-                                      isRunning);
-        iter.set(updated);
-      }
+    JobSpec existing = jobsById.get(id);
+
+    if (existing != null) {
+      replaceJob(existing, new JobSpec(existing.getId(),
+                                       existing.getFactoryKey(),
+                                       existing.getQueueKey(),
+                                       existing.getCreateTime(),
+                                       existing.getNextRunAttemptTime(),
+                                       existing.getRunAttempt(),
+                                       existing.getMaxAttempts(),
+                                       existing.getMaxBackoff(),
+                                       existing.getLifespan(),
+                                       existing.getMaxInstances(),
+                                       existing.getPriority(),
+                                       existing.getSerializedData(),
+                                       isRunning));
+      markDirty(id);
     }
   }
 
   @Override
   public synchronized void updateJobAfterRetry(@NonNull String id, boolean isRunning, int runAttempt, long nextRunAttemptTime) {
-    jobDatabase.updateJobAfterRetry(id, isRunning, runAttempt, nextRunAttemptTime);
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      if (existing.getId().equals(id)) {
-        JobSpec updated = new JobSpec(existing.getId(),
-                                      existing.getFactoryKey(),
-                                      existing.getQueueKey(),
-                                      existing.getCreateTime(),
-                                      nextRunAttemptTime,
-                                      runAttempt,
-                                      existing.getMaxAttempts(),
-                                      existing.getMaxBackoff(),
-                                      existing.getLifespan(),
-                                      existing.getMaxInstances(),
-                                      existing.getSerializedData(),
-                                      isRunning);
-        iter.set(updated);
+    JobSpec existing = jobsById.get(id);
+
+    if (existing != null) {
+      JobSpec updated = new JobSpec(existing.getId(),
+                                    existing.getFactoryKey(),
+                                    existing.getQueueKey(),
+                                    existing.getCreateTime(),
+                                    nextRunAttemptTime,
+                                    runAttempt,
+                                    existing.getMaxAttempts(),
+                                    existing.getMaxBackoff(),
+                                    existing.getLifespan(),
+                                    existing.getMaxInstances(),
+                                    existing.getPriority(),
+                                    existing.getSerializedData(),
+                                    isRunning);
+
+      replaceJob(existing, updated);
+      jobDatabase.updateJobs(Collections.singletonList(updated));
+
+      dirtyJobIds.remove(id);
+      if (dirtyJobIds.isEmpty()) {
+        clearDirty();
       }
     }
   }
@@ -172,24 +229,24 @@ public class FastJobStorage implements JobStorage {
   @Override
   public synchronized void updateAllJobsToBePending() {
     jobDatabase.updateAllJobsToBePending();
-
-    ListIterator<JobSpec> iter = jobs.listIterator();
-
-    while (iter.hasNext()) {
-      JobSpec existing = iter.next();
-      JobSpec updated  = new JobSpec(existing.getId(),
-                                     existing.getFactoryKey(),
-                                     existing.getQueueKey(),
-                                     existing.getCreateTime(),
-                                     existing.getNextRunAttemptTime(),
-                                     existing.getRunAttempt(),
-                                     existing.getMaxAttempts(),
-                                     existing.getMaxBackoff(),
-                                     existing.getLifespan(),
-                                     existing.getMaxInstances(),
-                                     existing.getSerializedData(),
-                                     false);
-      iter.set(updated);
+    clearDirty();
+
+    for (JobSpec existing : new ArrayList<>(jobsById.values())) {
+      if (existing.isRunning()) {
+        replaceJob(existing, new JobSpec(existing.getId(),
+                                         existing.getFactoryKey(),
+                                         existing.getQueueKey(),
+                                         existing.getCreateTime(),
+                                         existing.getNextRunAttemptTime(),
+                                         existing.getRunAttempt(),
+                                         existing.getMaxAttempts(),
+                                         existing.getMaxBackoff(),
+                                         existing.getLifespan(),
+                                         existing.getMaxInstances(),
+                                         existing.getPriority(),
+                                         existing.getSerializedData(),
+                                         false));
+      }
     }
   }
 
@@ -201,30 +258,82 @@ public class FastJobStorage implements JobStorage {
   @Override
   public synchronized void deleteJobs(@NonNull List<String> jobIds) {
     jobDatabase.deleteJobs(jobIds);
+    dirtyJobIds.removeAll(jobIds);
 
-    Set<String> deleteIds = new HashSet<>(jobIds);
+    Set<String> unblocked = new HashSet<>();
 
-    Iterator<JobSpec> jobIter = jobs.iterator();
-    while (jobIter.hasNext()) {
-      if (deleteIds.contains(jobIter.next().getId())) {
-        jobIter.remove();
+    for (String jobId : jobIds) {
+      JobSpec existing = jobsById.get(jobId);
+
+      if (existing != null) {
+        removeJob(existing);
       }
-    }
 
-    for (String jobId : jobIds) {
       constraintsByJobId.remove(jobId);
-      dependenciesByJobId.remove(jobId);
 
-      for (Map.Entry<String, List<DependencySpec>> entry : dependenciesByJobId.entrySet()) {
-        Iterator<DependencySpec> depedencyIter = entry.getValue().iterator();
+      List<DependencySpec> dependencies = dependenciesByJobId.remove(jobId);
+      if (dependencies != null) {
+        for (DependencySpec dependency : dependencies) {
+          Set<String> dependents = dependentJobIdsByJobId.get(dependency.getDependsOnJobId());
+          if (dependents != null) {
+            dependents.remove(jobId);
+          }
+        }
+      }
 
-        while (depedencyIter.hasNext()) {
-          if (depedencyIter.next().getDependsOnJobId().equals(jobId)) {
-            depedencyIter.remove();
+      Set<String> dependents = dependentJobIdsByJobId.remove(jobId);
+      if (dependents != null) {
+        for (String dependentId : dependents) {
+          List<DependencySpec> dependentSpecs = dependenciesByJobId.get(dependentId);
+          if (dependentSpecs == null) continue;
+
+          Iterator<DependencySpec> dependencyIter = dependentSpecs.iterator();
+          while (dependencyIter.hasNext()) {
+            if (dependencyIter.next().getDependsOnJobId().equals(jobId)) {
+              dependencyIter.remove();
+            }
           }
+
+          unblocked.add(dependentId);
         }
       }
     }
+
+    for (String jobId : unblocked) {
+      JobSpec jobSpec = jobsById.get(jobId);
+      if (jobSpec != null) {
+        updateReadyState(jobSpec);
+      }
+    }
+  }
+
+  @Override
+  public synchronized void flush() {
+    if (dirtyJobIds.isEmpty()) {
+      return;
+    }
+
+    List<JobSpec> batch = new ArrayList<>(dirtyJobIds.size());
+
+    for (String jobId : dirtyJobIds) {
+      JobSpec jobSpec = jobsById.get(jobId);
+
+      if (jobSpec != null) {
+        batch.add(jobSpec);
+      }
+    }
+
+    long start = System.currentTimeMillis();
+    jobDatabase.updateJobs(batch);
+    long end   = System.currentTimeMillis();
+
+    flushStats.onFlush(batch.size(), end - oldestDirtyTime, end - start);
+    clearDirty();
+  }
+
+  @Override
+  public synchronized @NonNull String getDebugInfo() {
+    return flushStats.toString() + "\npendingWrites: " + dirtyJobIds.size();
   }
 
   @Override
@@ -242,18 +351,274 @@ public class FastJobStorage implements JobStorage {
 
   @Override
   public synchronized @NonNull List<DependencySpec> getDependencySpecsThatDependOnJob(@NonNull String jobSpecId) {
-    return Stream.of(dependenciesByJobId.entrySet())
-                 .map(Map.Entry::getValue)
+    Set<String> dependents = dependentJobIdsByJobId.get(jobSpecId);
+
+    if (dependents == null) {
+      return Collections.emptyList();
+    }
+
+    return Stream.of(dependents)
+                 .map(dependenciesByJobId::get)
+                 .withoutNulls()
                  .flatMap(Stream::of)
                  .filter(j -> j.getDependsOnJobId().equals(jobSpecId))
                  .toList();
   }
 
   @Override
-  public @NonNull List<DependencySpec> getAllDependencySpecs() {
+  public synchronized @NonNull List<DependencySpec> getAllDependencySpecs() {
     return Stream.of(dependenciesByJobId)
                  .map(Map.Entry::getValue)
                  .flatMap(Stream::of)
                  .toList();
   }
+
+  private void markDirty(@NonNull String jobId) {
+    long now = System.currentTimeMillis();
+
+    if (dirtyJobIds.isEmpty()) {
+      oldestDirtyTime = now;
+    }
+
+    dirtyJobIds.add(jobId);
+
+    if (dirtyJobIds.size() >= MAX_BATCH_SIZE || now - oldestDirtyTime >= MAX_FLUSH_DELAY) {
+      flush();
+    }
+  }
+
+  private void clearDirty() {
+    dirtyJobIds.clear();
+    oldestDirtyTime = 0;
+  }
+
+  private void addDependency(@NonNull DependencySpec dependencySpec) {
+    List<DependencySpec> jobDependencies = dependenciesByJobId.get(dependencySpec.getJobId());
+    if (jobDependencies == null) {
+      jobDependencies = new LinkedList<>();
+      dependenciesByJobId.put(dependencySpec.getJobId(), jobDependencies);
+    }
+    jobDependencies.add(dependencySpec);
+
+    Set<String> dependents = dependentJobIdsByJobId.get(dependencySpec.getDependsOnJobId());
+    if (dependents == null) {
+      dependents = new HashSet<>();
+      dependentJobIdsByJobId.put(dependencySpec.getDependsOnJobId(), dependents);
+    }
+    dependents.add(dependencySpec.getJobId());
+  }
+
+  private void addJob(@NonNull JobSpec jobSpec) {
+    insertionOrderByJobId.put(jobSpec.getId(), nextInsertionOrder++);
+    jobsById.put(jobSpec.getId(), jobSpec);
+
+    if (jobSpec.getQueueKey() == null) {
+      updateReadyState(jobSpec);
+      return;
+    }
+
+    TreeSet<JobSpec> queue = jobsByQueueKey.get(jobSpec.getQueueKey());
+    if (queue == null) {
+      queue = new TreeSet<>(readyJobs.comparator());
+      jobsByQueueKey.put(jobSpec.getQueueKey(), queue);
+    }
+
+    JobSpec previousHead = queue.isEmpty() ? null : queue.first();
+
+    queue.add(jobSpec);
+
+    if (previousHead != null && queue.first() != previousHead) {
+      removeReady(previousHead);
+    }
+
+    updateReadyState(queue.first());
+  }
+
+  private void removeJob(@NonNull JobSpec jobSpec) {
+    removeReady(jobSpec);
+
+    if (jobSpec.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueueKey.get(jobSpec.getQueueKey());
+
+      if (queue != null) {
+        queue.remove(jobSpec);
+
+        if (queue.isEmpty()) {
+          jobsByQueueKey.remove(jobSpec.getQueueKey());
+        } else {
+          updateReadyState(queue.first());
+        }
+      }
+    }
+
+    jobsById.remove(jobSpec.getId());
+    insertionOrderByJobId.remove(jobSpec.getId());
+  }
+
+  /**
+   * Swaps in an updated copy of a job. The creation order of a job never changes, so its position
+   * in the indexes stays the same.
+   */
+  private void replaceJob(@NonNull JobSpec existing, @NonNull JobSpec updated) {
+    removeReady(existing);
+
+    if (existing.getQueueKey() != null) {
+      TreeSet<JobSpec> queue = jobsByQueueKey.get(existing.getQueueKey());
+      queue.remove(existing);
+      queue.add(updated);
+    }
+
+    jobsById.put(updated.getId(), updated);
+    updateReadyState(updated);
+  }
+
+  private void updateReadyState(@NonNull JobSpec jobSpec) {
+    if (isReady(jobSpec)) {
+      addReady(jobSpec);
+    } else {
+      removeReady(jobSpec);
+    }
+  }
+
+  private void addReady(@NonNull JobSpec jobSpec) {
+    if (readyJobs.add(jobSpec)) {
+      Integer count = readyRunAttemptTimes.get(jobSpec.getNextRunAttemptTime());
+      readyRunAttemptTimes.put(jobSpec.getNextRunAttemptTime(), count != null ? count + 1 : 1);
+
+      Set<String>      constraintKeys = getConstraintKeys(jobSpec.getId());
+      TreeSet<JobSpec> group          = readyJobsByConstraintKeys.get(constraintKeys);
+
+      if (group == null) {
+        group = new TreeSet<>(readyJobs.comparator());
+        readyJobsByConstraintKeys.put(constraintKeys, group);
+      }
+
+      group.add(jobSpec);
+    }
+  }
+
+  private void removeReady(@NonNull JobSpec jobSpec) {
+    JobSpec stored = readyJobs.ceiling(jobSpec);
+
+    if (stored == null || !stored.getId().equals(jobSpec.getId())) {
+      return;
+    }
+
+    readyJobs.remove(stored);
+
+    Set<String>      constraintKeys = getConstraintKeys(stored.getId());
+    TreeSet<JobSpec> group          = readyJobsByConstraintKeys.get(constraintKeys);
+
+    if (group != null) {
+      group.remove(stored);
+
+      if (group.isEmpty()) {
+        readyJobsByConstraintKeys.remove(constraintKeys);
+      }
+    }
+
+    Integer count = readyRunAttemptTimes.get(stored.getNextRunAttemptTime());
+    if (count == null || count <= 1) {
+      readyRunAttemptTimes.remove(stored.getNextRunAttemptTime());
+    } else {
+      readyRunAttemptTimes.put(stored.getNextRunAttemptTime(), count - 1);
+    }
+  }
+
+  private @NonNull Set<String> getConstraintKeys(@NonNull String jobId) {
+    List<ConstraintSpec> constraintSpecs = constraintsByJobId.get(jobId);
+
+    if (constraintSpecs == null || constraintSpecs.isEmpty()) {
+      return Collections.emptySet();
+    }
+
+    Set<String> keys = new HashSet<>(constraintSpecs.size());
+
+    for (ConstraintSpec constraintSpec : constraintSpecs) {
+      keys.add(constraintSpec.getFactoryKey());
+    }
+
+    return keys;
+  }
+
+  private static @NonNull List<JobSpec> filterPending(@NonNull Iterable<JobSpec> jobSpecs, long currentTime) {
+    List<JobSpec> pending = new ArrayList<>();
+
+    for (JobSpec jobSpec : jobSpecs) {
+      if (jobSpec.getNextRunAttemptTime() <= currentTime) {
+        pending.add(jobSpec);
+      }
+    }
+
+    return pending;
+  }
+
+  private boolean isReady(@NonNull JobSpec jobSpec) {
+    if (jobSpec.isRunning()) {
+      return false;
+    }
+
+    List<DependencySpec> dependencies = dependenciesByJobId.get(jobSpec.getId());
+    if (dependencies != null && !dependencies.isEmpty()) {
+      return false;
+    }
+
+    if (jobSpec.getQueueKey() == null) {
+      return true;
+    }
+
+    TreeSet<JobSpec> queue = jobsByQueueKey.get(jobSpec.getQueueKey());
+    return queue != null && queue.first().getId().equals(jobSpec.getId());
+  }
+
+  private static final class FlushStats {
+    private long flushCount;
+    private long totalBatchSize;
+    private int  maxBatchSize;
+    private long totalDelay;
+    private long maxDelay;
+    private long totalDuration;
+    private long maxDuration;
+
+    void onFlush(int batchSize, long delay, long duration) {
+      flushCount++;
+      totalBatchSize += batchSize;
+      maxBatchSize    = Math.max(maxBatchSize, batchSize);
+      totalDelay     += delay;
+      maxDelay        = Math.max(maxDelay, delay);
+      totalDuration  += duration;
+      maxDuration     = Math.max(maxDuration, duration);
+    }
+
+    @SuppressLint("DefaultLocale")
+    @Override
+    public @NonNull String toString() {
+      if (flushCount == 0) {
+        return "flushes: 0";
+      }
+
+      return String.format("flushes: %d | batchSize avg: %d, max: %d | delay avg: %d ms, max: %d ms | duration avg: %d ms, max: %d ms",
+                           flushCount,
+                           totalBatchSize / flushCount, maxBatchSize,
+                           totalDelay / flushCount, maxDelay,
+                           totalDuration / flushCount, maxDuration);
+    }
+  }
+
+  /**
+   * Orders jobs by their creation time, falling back to the order in which they were added to
+   * storage so that jobs created in the same millisecond keep their submission order.
+   */
+  private final class CreatedOrderComparator implements Comparator<JobSpec> {
+    @Override
+    public int compare(JobSpec j1, JobSpec j2) {
+      int result = Long.compare(j1.getCreateTime(), j2.getCreateTime());
+
+      if (result != 0) {
+        return result;
+      }
+
+      return Long.compare(insertionOrderByJobId.get(j1.getId()), insertionOrderByJobId.get(j2.getId()));
+    }
+  }
 }
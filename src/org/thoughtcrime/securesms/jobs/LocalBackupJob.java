@@ -6,6 +6,8 @@ import android.Manifest;
 import androidx.annotation.NonNull;
 
 import org.thoughtcrime.securesms.R;
+import org.thoughtcrime.securesms.backup.BackupKeyDerivation;
+import org.thoughtcrime.securesms.backup.BackupManifest;
 import org.thoughtcrime.securesms.backup.BackupPassphrase;
 import org.thoughtcrime.securesms.backup.FullBackupExporter;
 import org.thoughtcrime.securesms.crypto.AttachmentSecretProvider;
@@ -20,6 +22,7 @@ import org.thoughtcrime.securesms.service.GenericForegroundService;
 import org.thoughtcrime.securesms.service.NotificationController;
 import org.thoughtcrime.securesms.util.BackupUtil;
 import org.thoughtcrime.securesms.util.StorageUtil;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
 
 import java.io.File;
 import java.io.IOException;
@@ -38,6 +41,7 @@ public class LocalBackupJob extends BaseJob {
                            .setQueue("__LOCAL_BACKUP__")
                            .setMaxInstances(1)
                            .setMaxAttempts(3)
+                           .setPriority(Job.Priority.LOW)
                            .build());
   }
 
@@ -70,15 +74,10 @@ public class LocalBackupJob extends BaseJob {
     {
       notification.setIndeterminateProgress();
 
-      String backupPassword  = BackupPassphrase.get(context);
-      File   backupDirectory = StorageUtil.getBackupDirectory();
-      String timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
-      String fileName        = String.format("signal-%s.backup", timestamp);
-      File   backupFile      = new File(backupDirectory, fileName);
-
-      if (backupFile.exists()) {
-        throw new IOException("Backup file already exists?");
-      }
+      String         backupPassword  = BackupPassphrase.get(context);
+      File           backupDirectory = StorageUtil.getBackupDirectory();
+      String         timestamp       = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US).format(new Date());
+      BackupManifest previous        = BackupManifest.getForIncrementalBackup(context, backupDirectory);
 
       if (backupPassword == null) {
         throw new IOException("Backup password is null");
@@ -86,17 +85,43 @@ public class LocalBackupJob extends BaseJob {
 
       File tempFile = File.createTempFile("backup", "tmp", StorageUtil.getBackupCacheDirectory(context));
 
-      FullBackupExporter.export(context,
-                                AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
-                                DatabaseFactory.getBackupDatabase(context),
-                                tempFile,
-                                backupPassword);
+      BackupManifest manifest;
+
+      try {
+        manifest = FullBackupExporter.export(context,
+                                             AttachmentSecretProvider.getInstance(context).getOrCreateAttachmentSecret(),
+                                             DatabaseFactory.getBackupDatabase(context),
+                                             tempFile,
+                                             backupPassword,
+                                             previous,
+                                             () -> !TextSecurePreferences.isBackupEnabled(context));
+      } catch (BackupKeyDerivation.CanceledException e) {
+        Log.i(TAG, "Backups were disabled while the backup was running.");
+        tempFile.delete();
+        return;
+      }
+
+      String extension  = manifest.isIncremental() ? BackupUtil.INCREMENTAL_BACKUP_EXTENSION : BackupUtil.FULL_BACKUP_EXTENSION;
+      String fileName   = String.format("signal-%s.%s", timestamp, extension);
+      File   backupFile = new File(backupDirectory, fileName);
+
+      if (backupFile.exists()) {
+        tempFile.delete();
+        throw new IOException("Backup file already exists?");
+      }
 
       if (!tempFile.renameTo(backupFile)) {
         tempFile.delete();
         throw new IOException("Renaming temporary backup file failed!");
       }
 
+      try {
+        manifest.write(context, fileName);
+      } catch (IOException e) {
+        Log.w(TAG, "Failed to write the backup manifest, the next backup will be a full backup.", e);
+        BackupManifest.clear(context);
+      }
+
       BackupUtil.deleteOldBackups();
     }
   }
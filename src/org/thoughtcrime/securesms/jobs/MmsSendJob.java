@@ -65,6 +65,7 @@ public class MmsSendJob extends SendJob {
                            .setQueue("mms-operation")
                            .addConstraint(NetworkConstraint.KEY)
                            .setMaxAttempts(15)
+                           .setPriority(Job.Priority.HIGH)
                            .build(),
          messageId);
   }
@@ -84,6 +84,7 @@ public class MultiDeviceContactUpdateJob extends BaseJob implements InjectableTy
                            .setQueue("MultiDeviceContactUpdateJob")
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
+                           .setPriority(Job.Priority.LOW)
                            .build(),
          address,
          forceSync);
@@ -151,6 +151,7 @@ public class PushDecryptJob extends BaseJob {
     this(new Job.Parameters.Builder()
                            .setQueue("__PUSH_DECRYPT_JOB__")
                            .setMaxAttempts(10)
+                           .setPriority(Job.Priority.HIGH)
                            .build(),
          pushMessageId,
          smsMessageId);
@@ -1094,11 +1095,15 @@ public class PushDecryptJob extends BaseJob {
   private void handleDeliveryReceipt(@NonNull SignalServiceContent content,
                                      @NonNull SignalServiceReceiptMessage message)
   {
+    Address             sender         = Address.fromExternal(context, content.getSender());
+    List<SyncMessageId> syncMessageIds = new LinkedList<>();
+
     for (long timestamp : message.getTimestamps()) {
       Log.i(TAG, String.format("Received encrypted delivery receipt: (XXXXX, %d)", timestamp));
-      DatabaseFactory.getMmsSmsDatabase(context)
-                     .incrementDeliveryReceiptCount(new SyncMessageId(Address.fromExternal(context, content.getSender()), timestamp), System.currentTimeMillis());
+      syncMessageIds.add(new SyncMessageId(sender, timestamp));
     }
+
+    DatabaseFactory.getMmsSmsDatabase(context).incrementDeliveryReceiptCounts(syncMessageIds, System.currentTimeMillis());
   }
 
   @SuppressLint("DefaultLocale")
@@ -1106,12 +1111,15 @@ public class PushDecryptJob extends BaseJob {
                                  @NonNull SignalServiceReceiptMessage message)
   {
     if (TextSecurePreferences.isReadReceiptsEnabled(context)) {
+      Address             sender         = Address.fromExternal(context, content.getSender());
+      List<SyncMessageId> syncMessageIds = new LinkedList<>();
+
       for (long timestamp : message.getTimestamps()) {
         Log.i(TAG, String.format("Received encrypted read receipt: (XXXXX, %d)", timestamp));
-
-        DatabaseFactory.getMmsSmsDatabase(context)
-                       .incrementReadReceiptCount(new SyncMessageId(Address.fromExternal(context, content.getSender()), timestamp), content.getTimestamp());
+        syncMessageIds.add(new SyncMessageId(sender, timestamp));
       }
+
+      DatabaseFactory.getMmsSmsDatabase(context).incrementReadReceiptCounts(syncMessageIds, content.getTimestamp());
     }
   }
 
@@ -75,6 +75,7 @@ public class PushGroupSendJob extends PushSendJob implements InjectableType {
                            .addConstraint(NetworkConstraint.KEY)
                            .setLifespan(TimeUnit.DAYS.toMillis(1))
                            .setMaxAttempts(Parameters.UNLIMITED)
+                           .setPriority(Job.Priority.HIGH)
                            .build(),
          messageId, filterAddress);
 
@@ -69,6 +69,7 @@ public abstract class PushSendJob extends SendJob {
                          .addConstraint(NetworkConstraint.KEY)
                          .setLifespan(TimeUnit.DAYS.toMillis(1))
                          .setMaxAttempts(Parameters.UNLIMITED)
+                         .setPriority(Job.Priority.HIGH)
                          .build();
   }
 
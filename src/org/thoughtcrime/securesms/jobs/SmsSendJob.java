@@ -233,6 +233,7 @@ public class SmsSendJob extends SendJob {
                              .setMaxAttempts(MAX_ATTEMPTS)
                              .setQueue(name)
                              .addConstraint(constraint)
+                             .setPriority(Job.Priority.HIGH)
                              .build();
   }
 
@@ -0,0 +1,64 @@
+package org.thoughtcrime.securesms.jobs;
+
+import androidx.annotation.NonNull;
+
+import org.thoughtcrime.securesms.database.DatabaseFactory;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.logging.Log;
+
+/**
+ * Thread summaries are maintained incrementally as messages change, so this periodically checks
+ * them against the message tables and recomputes any that have drifted.
+ */
+public class ThreadConsistencyJob extends BaseJob {
+
+  public static final String KEY = "ThreadConsistencyJob";
+
+  private static final String TAG = ThreadConsistencyJob.class.getSimpleName();
+
+  public ThreadConsistencyJob() {
+    this(new Job.Parameters.Builder()
+                           .setQueue("ThreadConsistencyJob")
+                           .setMaxInstances(1)
+                           .setPriority(Job.Priority.LOW)
+                           .build());
+  }
+
+  private ThreadConsistencyJob(@NonNull Job.Parameters parameters) {
+    super(parameters);
+  }
+
+  @Override
+  public @NonNull Data serialize() {
+    return Data.EMPTY;
+  }
+
+  @Override
+  public @NonNull String getFactoryKey() {
+    return KEY;
+  }
+
+  @Override
+  public void onRun() {
+    int repaired = DatabaseFactory.getThreadDatabase(context).repairInconsistentThreads();
+    Log.i(TAG, "Repaired " + repaired + " thread(s).");
+  }
+
+  @Override
+  public boolean onShouldRetry(@NonNull Exception exception) {
+    return false;
+  }
+
+  @Override
+  public void onCanceled() {
+    Log.w(TAG, "Failed to check thread consistency.");
+  }
+
+  public static final class Factory implements Job.Factory<ThreadConsistencyJob> {
+    @Override
+    public @NonNull ThreadConsistencyJob create(@NonNull Parameters parameters, @NonNull Data data) {
+      return new ThreadConsistencyJob(parameters);
+    }
+  }
+}
@@ -45,6 +45,7 @@ public class TypingSendJob extends BaseJob implements InjectableType {
                            .setQueue("TYPING_" + threadId)
                            .setMaxAttempts(1)
                            .setLifespan(TimeUnit.SECONDS.toMillis(5))
+                           .setPriority(Job.Priority.HIGH)
                            .build(),
          threadId,
          typing);
@@ -7,6 +7,7 @@ import org.thoughtcrime.securesms.util.Util;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
@@ -27,18 +28,28 @@ import javax.crypto.spec.SecretKeySpec;
 
 class LogFile {
 
+  /**
+   * Writes log entries in encrypted records of an IV, a length and the ciphertext. Entries are
+   * buffered and encrypted together, newline separated, as a single record when {@link #flush()}
+   * is called or once {@link #MAX_BATCH_SIZE} bytes are pending, rather than one record per entry.
+   * Since the reader puts a newline after every record, both layouts read back the same way.
+   */
   public static class Writer {
 
+    private static final int MAX_BATCH_SIZE = 16 * 1024;
+
     private final byte[]        ivBuffer         = new byte[16];
     private final GrowingBuffer ciphertextBuffer = new GrowingBuffer();
+    private final BatchBuffer   batchBuffer      = new BatchBuffer();
+    private final SecureRandom  random           = new SecureRandom();
 
-    private final byte[]               secret;
+    private final SecretKeySpec        secret;
     private final File                 file;
     private final Cipher               cipher;
     private final BufferedOutputStream outputStream;
 
     Writer(@NonNull byte[] secret, @NonNull File file) throws IOException {
-      this.secret       = secret;
+      this.secret       = new SecretKeySpec(secret, "AES");
       this.file         = file;
       this.outputStream = new BufferedOutputStream(new FileOutputStream(file, true));
 
@@ -50,15 +61,30 @@ class LogFile {
     }
 
     void writeEntry(@NonNull String entry) throws IOException {
-      new SecureRandom().nextBytes(ivBuffer);
+      if (batchBuffer.size() > 0) {
+        batchBuffer.write('\n');
+      }
+
+      batchBuffer.write(entry.getBytes());
+
+      if (batchBuffer.size() >= MAX_BATCH_SIZE) {
+        flush();
+      }
+    }
+
+    void flush() throws IOException {
+      if (batchBuffer.size() == 0) {
+        return;
+      }
+
+      random.nextBytes(ivBuffer);
 
-      byte[] plaintext = entry.getBytes();
       try {
-        cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(secret, "AES"), new IvParameterSpec(ivBuffer));
+        cipher.init(Cipher.ENCRYPT_MODE, secret, new IvParameterSpec(ivBuffer));
 
-        int    cipherLength = cipher.getOutputSize(plaintext.length);
+        int    cipherLength = cipher.getOutputSize(batchBuffer.size());
         byte[] ciphertext   = ciphertextBuffer.get(cipherLength);
-        cipherLength = cipher.doFinal(plaintext, 0, plaintext.length, ciphertext);
+        cipherLength = cipher.doFinal(batchBuffer.getBuffer(), 0, batchBuffer.size(), ciphertext);
 
         outputStream.write(ivBuffer);
         outputStream.write(Conversions.intToByteArray(cipherLength));
@@ -67,15 +93,31 @@ class LogFile {
         outputStream.flush();
       } catch (ShortBufferException | InvalidAlgorithmParameterException | InvalidKeyException | BadPaddingException | IllegalBlockSizeException e) {
         throw new AssertionError(e);
+      } finally {
+        batchBuffer.reset();
       }
     }
 
     long getLogSize() {
-      return file.length();
+      return file.length() + batchBuffer.size();
+    }
+
+    void close() throws IOException {
+      try {
+        flush();
+      } finally {
+        Util.close(outputStream);
+      }
     }
 
-    void close() {
-      Util.close(outputStream);
+    private static class BatchBuffer extends ByteArrayOutputStream {
+      BatchBuffer() {
+        super(MAX_BATCH_SIZE);
+      }
+
+      byte[] getBuffer() {
+        return buf;
+      }
     }
   }
 
@@ -18,8 +18,9 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class PersistentLogger extends Log.Logger {
 
@@ -36,18 +37,20 @@ public class PersistentLogger extends Log.Logger {
   private static final String           FILENAME_PREFIX = "log-";
   private static final int              MAX_LOG_FILES   = 5;
   private static final int              MAX_LOG_SIZE    = 300 * 1024;
+  private static final long             FLUSH_INTERVAL  = 250;
   private static final SimpleDateFormat DATE_FORMAT     = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS zzz");
 
-  private final Context  context;
-  private final Executor executor;
-  private final byte[]   secret;
+  private final Context                  context;
+  private final ScheduledExecutorService executor;
+  private final byte[]                   secret;
 
   private LogFile.Writer writer;
+  private boolean        flushScheduled;
 
   public PersistentLogger(Context context) {
     this.context  = context.getApplicationContext();
     this.secret   = LogSecretProvider.getOrCreateAttachmentSecret(context);
-    this.executor = Executors.newSingleThreadExecutor(r -> {
+    this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
       Thread thread = new Thread(r, "signal-PersistentLogger");
       thread.setPriority(Thread.MIN_PRIORITY);
       return thread;
@@ -90,7 +93,10 @@ public class PersistentLogger extends Log.Logger {
   public void blockUntilAllWritesFinished() {
     CountDownLatch latch = new CountDownLatch(1);
 
-    executor.execute(latch::countDown);
+    executor.execute(() -> {
+      flush();
+      latch.countDown();
+    });
 
     try {
       latch.await();
@@ -104,6 +110,8 @@ public class PersistentLogger extends Log.Logger {
     final SettableFuture<String> future = new SettableFuture<>();
 
     executor.execute(() -> {
+      flush();
+
       StringBuilder builder = new StringBuilder();
 
       try {
@@ -154,6 +162,7 @@ public class PersistentLogger extends Log.Logger {
           writer.writeEntry(entry);
         }
 
+        scheduleFlush();
       } catch (NoExternalStorageException e) {
         android.util.Log.w(TAG, "Cannot persist logs.", e);
       } catch (IOException e) {
@@ -164,6 +173,35 @@ public class PersistentLogger extends Log.Logger {
     });
   }
 
+  /**
+   * Entries are only encrypted and written out once they're flushed, so writes that arrive within
+   * {@link #FLUSH_INTERVAL} of each other end up in the same record.
+   */
+  @WorkerThread
+  private void scheduleFlush() {
+    if (!flushScheduled) {
+      flushScheduled = true;
+      executor.schedule(this::flush, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  @WorkerThread
+  private void flush() {
+    flushScheduled = false;
+
+    if (writer == null) {
+      return;
+    }
+
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      android.util.Log.w(TAG, "Failed to flush lines. Deleting all logs and starting over.");
+      deleteAllLogs();
+      initializeWriter();
+    }
+  }
+
   private void trimLogFilesOverMax() throws NoExternalStorageException {
     File[] logs = getSortedLogFiles();
     if (logs.length > MAX_LOG_FILES) {
@@ -56,8 +56,10 @@ import org.json.JSONObject;
 import org.thoughtcrime.securesms.ApplicationContext;
 import org.thoughtcrime.securesms.R;
 import org.thoughtcrime.securesms.contactshare.SimpleTextWatcher;
+import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.logging.Log;
 import org.thoughtcrime.securesms.logsubmit.util.Scrubber;
+import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.util.BucketInfo;
 import org.thoughtcrime.securesms.util.Util;
 import org.thoughtcrime.securesms.util.task.ProgressDialogAsyncTask;
@@ -511,6 +513,10 @@ public class SubmitLogFragment extends Fragment {
     return activityManager.getMemoryClass() + lowMem;
   }
 
+  private static String getCacheStats(long hits, long misses) {
+    return hits + " cache hits, " + misses + " misses";
+  }
+
   private static CharSequence buildDescription(Context context) {
     final PackageManager pm      = context.getPackageManager();
     final StringBuilder  builder = new StringBuilder();
@@ -527,6 +533,13 @@ public class SubmitLogFragment extends Fragment {
     builder.append("Memory  : ").append(getMemoryUsage(context)).append("\n");
     builder.append("Memclass: ").append(getMemoryClass(context)).append("\n");
     builder.append("OS Host : ").append(Build.HOST).append("\n");
+    builder.append("Sessions: ").append(getCacheStats(DatabaseFactory.getSessionDatabase(context).getCacheHits(),
+                                                      DatabaseFactory.getSessionDatabase(context).getCacheMisses())).append("\n");
+    builder.append("Identity: ").append(getCacheStats(DatabaseFactory.getIdentityDatabase(context).getCacheHits(),
+                                                      DatabaseFactory.getIdentityDatabase(context).getCacheMisses())).append("\n");
+    builder.append("Recips  : ").append(getCacheStats(Recipient.getCacheHits(), Recipient.getCacheMisses()))
+                               .append(", ").append(Recipient.getResolveCount()).append(" resolves in ")
+                               .append(Recipient.getResolveTimeMillis()).append(" ms\n");
     builder.append("App     : ");
     try {
       builder.append(pm.getApplicationLabel(pm.getApplicationInfo(context.getPackageName(), 0)))
@@ -14,6 +14,7 @@ import org.thoughtcrime.securesms.providers.BlobProvider;
 import org.thoughtcrime.securesms.providers.DeprecatedPersistentBlobProvider;
 import org.thoughtcrime.securesms.providers.PartProvider;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 
@@ -46,16 +47,26 @@ public class PartAuthority {
 
   public static InputStream getAttachmentStream(@NonNull Context context, @NonNull Uri uri)
       throws IOException
+  {
+    return getAttachmentStream(context, uri, 0);
+  }
+
+  /**
+   * @return A stream positioned at offset. Attachment parts are opened directly at that position,
+   *         anything else is skipped to it.
+   */
+  public static InputStream getAttachmentStream(@NonNull Context context, @NonNull Uri uri, long offset)
+      throws IOException
   {
     int match = uriMatcher.match(uri);
     try {
       switch (match) {
-      case PART_ROW:       return DatabaseFactory.getAttachmentDatabase(context).getAttachmentStream(new PartUriParser(uri).getPartId(), 0);
-      case THUMB_ROW:      return DatabaseFactory.getAttachmentDatabase(context).getThumbnailStream(new PartUriParser(uri).getPartId());
-      case STICKER_ROW:    return DatabaseFactory.getStickerDatabase(context).getStickerStream(ContentUris.parseId(uri));
-      case PERSISTENT_ROW: return DeprecatedPersistentBlobProvider.getInstance(context).getStream(context, ContentUris.parseId(uri));
-      case BLOB_ROW:       return BlobProvider.getInstance().getStream(context, uri);
-      default:             return context.getContentResolver().openInputStream(uri);
+      case PART_ROW:       return DatabaseFactory.getAttachmentDatabase(context).getAttachmentStream(new PartUriParser(uri).getPartId(), offset);
+      case THUMB_ROW:      return skipFully(DatabaseFactory.getAttachmentDatabase(context).getThumbnailStream(new PartUriParser(uri).getPartId()), offset);
+      case STICKER_ROW:    return skipFully(DatabaseFactory.getStickerDatabase(context).getStickerStream(ContentUris.parseId(uri)), offset);
+      case PERSISTENT_ROW: return skipFully(DeprecatedPersistentBlobProvider.getInstance(context).getStream(context, ContentUris.parseId(uri)), offset);
+      case BLOB_ROW:       return skipFully(BlobProvider.getInstance().getStream(context, uri), offset);
+      default:             return skipFully(context.getContentResolver().openInputStream(uri), offset);
       }
     } catch (SecurityException se) {
       throw new IOException(se);
@@ -149,4 +160,25 @@ public class PartAuthority {
     }
     return false;
   }
+
+  private static @Nullable InputStream skipFully(@Nullable InputStream inputStream, long offset) throws IOException {
+    if (inputStream == null) return null;
+
+    long remaining = offset;
+
+    while (remaining > 0) {
+      long skipped = inputStream.skip(remaining);
+
+      if (skipped > 0) {
+        remaining -= skipped;
+      } else if (inputStream.read() != -1) {
+        remaining--;
+      } else {
+        inputStream.close();
+        throw new EOFException("Stream ended at " + (offset - remaining) + " of " + offset);
+      }
+    }
+
+    return inputStream;
+  }
 }
@@ -34,6 +34,7 @@ import android.os.AsyncTask;
 import android.os.Build;
 import android.service.notification.StatusBarNotification;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 import android.text.TextUtils;
@@ -46,6 +47,7 @@ import org.thoughtcrime.securesms.conversation.ConversationActivity;
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MessagingDatabase.MarkedMessageInfo;
 import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase.UnreadMessage;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
 import org.thoughtcrime.securesms.database.model.MediaMmsMessageRecord;
 import org.thoughtcrime.securesms.database.model.MessageRecord;
@@ -61,9 +63,15 @@ import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.webrtc.CallNotificationBuilder;
 import org.whispersystems.signalservice.internal.util.Util;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
@@ -97,6 +105,16 @@ public class MessageNotifier {
   private volatile static       long               lastAudibleNotification      = -1;
   private          static final CancelableExecutor executor                     = new CancelableExecutor();
 
+  private static final NotificationRebuilder rebuilder = new NotificationRebuilder(MessageNotifier::rebuildNotification);
+
+  /**
+   * Notification items for the unread messages seen by the last rebuild, keyed by
+   * {@link MmsSmsDatabase#getUnreadKey(long, boolean)}. Only touched by the rebuilding thread.
+   */
+  private static final Map<Long, CachedItem> cachedItems         = new HashMap<>();
+  private static       boolean               cachedItemsLocked   = false;
+  private static       boolean               cachedItemsComplete = false;
+
   public static void setVisibleThread(long threadId) {
     visibleThread = threadId;
   }
@@ -197,7 +215,7 @@ public class MessageNotifier {
       return;
     }
 
-    updateNotification(context, false, 0);
+    rebuilder.request(context, NotificationRebuilder.ALL_THREADS, false, 0);
   }
 
   public static void updateNotification(@NonNull Context context, long threadId)
@@ -234,31 +252,30 @@ public class MessageNotifier {
     if (isVisible) {
       sendInThreadNotification(context, threads.getRecipientForThreadId(threadId));
     } else {
-      updateNotification(context, signal, 0);
+      rebuilder.request(context, threadId, signal, 0);
     }
   }
 
-  private static void updateNotification(@NonNull Context context,
-                                         boolean signal,
-                                         int     reminderCount)
+  private static void rebuildNotification(@NonNull  Context   context,
+                                          boolean             signal,
+                                          int                 reminderCount,
+                                          @Nullable Set<Long> changedThreads)
   {
-    Cursor telcoCursor = null;
-    Cursor pushCursor  = null;
+    Cursor pushCursor = null;
 
     try {
-      telcoCursor = DatabaseFactory.getMmsSmsDatabase(context).getUnread();
-      pushCursor  = DatabaseFactory.getPushDatabase(context).getPending();
+      updateCachedItems(context, changedThreads);
+
+      pushCursor = DatabaseFactory.getPushDatabase(context).getPending();
 
-      if ((telcoCursor == null || telcoCursor.isAfterLast()) &&
-          (pushCursor == null || pushCursor.isAfterLast()))
-      {
+      if (cachedItems.isEmpty() && (pushCursor == null || pushCursor.isAfterLast())) {
         cancelActiveNotifications(context);
         updateBadge(context, 0);
         clearReminder(context);
         return;
       }
 
-      NotificationState notificationState = constructNotificationState(context, telcoCursor);
+      NotificationState notificationState = constructNotificationState();
 
       if (signal && (System.currentTimeMillis() - lastAudibleNotification) < MIN_AUDIBLE_PERIOD_MILLIS) {
         signal = false;
@@ -285,8 +302,7 @@ public class MessageNotifier {
         scheduleReminder(context, reminderCount);
       }
     } finally {
-      if (telcoCursor != null) telcoCursor.close();
-      if (pushCursor != null)  pushCursor.close();
+      if (pushCursor != null) pushCursor.close();
     }
   }
 
@@ -433,55 +449,143 @@ public class MessageNotifier {
     ringtone.play();
   }
 
-  private static NotificationState constructNotificationState(@NonNull  Context context,
-                                                              @NonNull  Cursor cursor)
+  /**
+   * Brings the cached items up to date with the unread messages in the changed threads, or in all
+   * threads if changedThreads is null. Items for messages that are no longer unread are dropped,
+   * and only the messages that are new or whose version changed are loaded again.
+   */
+  private static void updateCachedItems(@NonNull Context context, @Nullable Set<Long> changedThreads) {
+    boolean locked = KeyCachingService.isLocked(context);
+
+    if (locked != cachedItemsLocked || !cachedItemsComplete) {
+      cachedItems.clear();
+      cachedItemsLocked   = locked;
+      cachedItemsComplete = false;
+      changedThreads      = null;
+    }
+
+    Map<Long, UnreadMessage>               unread   = DatabaseFactory.getMmsSmsDatabase(context).getUnreadMessages(changedThreads);
+    Iterator<Map.Entry<Long, CachedItem>> iterator = cachedItems.entrySet().iterator();
+
+    while (iterator.hasNext()) {
+      Map.Entry<Long, CachedItem> entry = iterator.next();
+
+      if (changedThreads == null || changedThreads.contains(entry.getValue().item.getThreadId())) {
+        UnreadMessage message = unread.get(entry.getKey());
+
+        if (message == null || !message.getVersion().equals(entry.getValue().version)) {
+          iterator.remove();
+        }
+      }
+    }
+
+    long oldestMissing = Long.MAX_VALUE;
+
+    for (Map.Entry<Long, UnreadMessage> entry : unread.entrySet()) {
+      if (!cachedItems.containsKey(entry.getKey())) {
+        oldestMissing = Math.min(oldestMissing, entry.getValue().getDateReceived());
+      }
+    }
+
+    if (oldestMissing != Long.MAX_VALUE) {
+      loadNotificationItems(context, oldestMissing, unread, locked);
+    }
+
+    cachedItemsComplete = true;
+  }
+
+  private static NotificationState constructNotificationState() {
+    List<Long> keys = new ArrayList<>(cachedItems.keySet());
+
+    Collections.sort(keys, (lhs, rhs) -> {
+      int byDate = Long.compare(cachedItems.get(lhs).dateReceived, cachedItems.get(rhs).dateReceived);
+      return byDate != 0 ? byDate : Long.compare(lhs, rhs);
+    });
+
+    NotificationState notificationState = new NotificationState();
+
+    for (long key : keys) {
+      NotificationItem item            = cachedItems.get(key).item;
+      Recipient        threadRecipient = item.getThreadRecipient();
+
+      if (threadRecipient == null || !threadRecipient.isMuted()) {
+        notificationState.addNotification(item);
+      }
+    }
+
+    return notificationState;
+  }
+
+  private static void loadNotificationItems(@NonNull Context context,
+                                            long sinceDateReceived,
+                                            @NonNull Map<Long, UnreadMessage> unread,
+                                            boolean locked)
   {
-    NotificationState     notificationState = new NotificationState();
-    MmsSmsDatabase.Reader reader            = DatabaseFactory.getMmsSmsDatabase(context).readerFor(cursor);
+    MmsSmsDatabase        database  = DatabaseFactory.getMmsSmsDatabase(context);
+    MmsSmsDatabase.Reader reader    = database.readerFor(database.getUnreadSince(sinceDateReceived));
+    List<MessageRecord>   records   = new LinkedList<>();
+    Set<Long>             threadIds = new HashSet<>();
 
     MessageRecord record;
 
     while ((record = reader.getNext()) != null) {
-      long         id                    = record.getId();
-      boolean      mms                   = record.isMms() || record.isMmsNotification();
-      Recipient    recipient             = record.getIndividualRecipient();
-      Recipient    conversationRecipient = record.getRecipient();
-      long         threadId              = record.getThreadId();
-      CharSequence body                  = record.getDisplayBody(context);
-      Recipient    threadRecipients      = null;
-      SlideDeck    slideDeck             = null;
-      long         timestamp             = record.getTimestamp();
-
-
-      if (threadId != -1) {
-        threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientForThreadId(threadId);
-      }
+      long key = MmsSmsDatabase.getUnreadKey(record.getId(), record.isMms());
 
-      if (KeyCachingService.isLocked(context)) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
-      } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
-        Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
-        body = ContactUtil.getStringSummary(context, contact);
-      } else if (record.isMms() && ((MmsMessageRecord) record).getSlideDeck().getStickerSlide() != null) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_sticker));
-        slideDeck = ((MmsMessageRecord) record).getSlideDeck();
-      } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
-        String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
-        int    italicLength = message.length() - body.length();
-        body = SpanUtil.italic(message, italicLength);
-        slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
-      }
+      if (unread.containsKey(key) && !cachedItems.containsKey(key)) {
+        records.add(record);
 
-      if (threadRecipients == null || !threadRecipients.isMuted()) {
-        notificationState.addNotification(new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck));
+        if (record.getThreadId() != -1) {
+          threadIds.add(record.getThreadId());
+        }
       }
     }
 
     reader.close();
-    return notificationState;
+
+    Map<Long, Recipient> threadRecipients = DatabaseFactory.getThreadDatabase(context).getRecipientsForThreadIds(threadIds);
+
+    for (MessageRecord missing : records) {
+      long          key     = MmsSmsDatabase.getUnreadKey(missing.getId(), missing.isMms());
+      UnreadMessage message = unread.get(key);
+
+      cachedItems.put(key, new CachedItem(message.getDateReceived(), message.getVersion(),
+                                          createNotificationItem(context, missing, threadRecipients.get(missing.getThreadId()), locked)));
+    }
+  }
+
+  private static NotificationItem createNotificationItem(@NonNull  Context context,
+                                                         @NonNull  MessageRecord record,
+                                                         @Nullable Recipient threadRecipients,
+                                                         boolean locked)
+  {
+    long         id                    = record.getId();
+    boolean      mms                   = record.isMms() || record.isMmsNotification();
+    Recipient    recipient             = record.getIndividualRecipient();
+    Recipient    conversationRecipient = record.getRecipient();
+    long         threadId              = record.getThreadId();
+    CharSequence body                  = record.getDisplayBody(context);
+    SlideDeck    slideDeck             = null;
+    long         timestamp             = record.getTimestamp();
+
+    if (locked) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_locked_message));
+    } else if (record.isMms() && !((MmsMessageRecord) record).getSharedContacts().isEmpty()) {
+      Contact contact = ((MmsMessageRecord) record).getSharedContacts().get(0);
+      body = ContactUtil.getStringSummary(context, contact);
+    } else if (record.isMms() && ((MmsMessageRecord) record).getSlideDeck().getStickerSlide() != null) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_sticker));
+      slideDeck = ((MmsMessageRecord) record).getSlideDeck();
+    } else if (record.isMms() && TextUtils.isEmpty(body) && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+      body = SpanUtil.italic(context.getString(R.string.MessageNotifier_media_message));
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    } else if (record.isMms() && !record.isMmsNotification() && !((MmsMessageRecord) record).getSlideDeck().getSlides().isEmpty()) {
+      String message      = context.getString(R.string.MessageNotifier_media_message_with_text, body);
+      int    italicLength = message.length() - body.length();
+      body = SpanUtil.italic(message, italicLength);
+      slideDeck = ((MediaMmsMessageRecord)record).getSlideDeck();
+    }
+
+    return new NotificationItem(id, mms, recipient, conversationRecipient, threadRecipients, threadId, body, timestamp, slideDeck);
   }
 
   private static void updateBadge(Context context, int count) {
@@ -528,7 +632,7 @@ public class MessageNotifier {
         @Override
         protected Void doInBackground(Void... params) {
           int reminderCount = intent.getIntExtra("reminder_count", 0);
-          MessageNotifier.updateNotification(context, true, reminderCount + 1);
+          MessageNotifier.rebuilder.request(context, NotificationRebuilder.ALL_THREADS, true, reminderCount + 1);
 
           return null;
         }
@@ -536,6 +640,19 @@ public class MessageNotifier {
     }
   }
 
+  private static class CachedItem {
+
+    private final long             dateReceived;
+    private final String           version;
+    private final NotificationItem item;
+
+    private CachedItem(long dateReceived, @NonNull String version, @NonNull NotificationItem item) {
+      this.dateReceived = dateReceived;
+      this.version      = version;
+      this.item         = item;
+    }
+  }
+
   private static class DelayedNotification implements Runnable {
 
     private static final long DELAY = TimeUnit.SECONDS.toMillis(5);
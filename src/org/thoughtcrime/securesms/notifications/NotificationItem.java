@@ -46,6 +46,10 @@ public class NotificationItem {
     return threadRecipient == null ? conversationRecipient : threadRecipient;
   }
 
+  @Nullable Recipient getThreadRecipient() {
+    return threadRecipient;
+  }
+
   public @NonNull  Recipient getIndividualRecipient() {
     return individualRecipient;
   }
@@ -0,0 +1,105 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Runs notification rebuilds one at a time on the requesting threads. Requests that arrive while
+ * a rebuild is running are folded into a single follow-up rebuild, which signals if any of them
+ * asked to and covers every thread any of them changed. If a rebuild fails, the next one covers
+ * every thread, and requests that were folded into the failed one still get their follow-up.
+ */
+class NotificationRebuilder {
+
+  static final long ALL_THREADS = -1;
+
+  interface Rebuild {
+    /**
+     * @param changedThreads The threads whose messages may have changed, or null if any might have.
+     */
+    void rebuild(@NonNull Context context, boolean signal, int reminderCount, @Nullable Set<Long> changedThreads);
+  }
+
+  private final Rebuild rebuild;
+
+  private boolean   rebuilding;
+  private boolean   pending;
+  private boolean   pendingSignal;
+  private int       pendingReminderCount;
+  private Set<Long> pendingThreads = null;
+
+  NotificationRebuilder(@NonNull Rebuild rebuild) {
+    this.rebuild = rebuild;
+  }
+
+  void request(@NonNull Context context, long threadId, boolean signal, int reminderCount) {
+    synchronized (this) {
+      pendingSignal        |= signal;
+      pendingReminderCount  = Math.max(pendingReminderCount, reminderCount);
+
+      if      (threadId == ALL_THREADS) pendingThreads = null;
+      else if (pendingThreads != null)  pendingThreads.add(threadId);
+
+      if (rebuilding) {
+        pending = true;
+        return;
+      }
+
+      rebuilding = true;
+    }
+
+    boolean          done    = false;
+    RuntimeException failure = null;
+
+    try {
+      while (!done) {
+        boolean   signalRebuild;
+        int       reminderCountRebuild;
+        Set<Long> changedThreads;
+
+        synchronized (this) {
+          signalRebuild        = pendingSignal;
+          reminderCountRebuild = pendingReminderCount;
+          changedThreads       = pendingThreads;
+          pendingSignal        = false;
+          pendingReminderCount = 0;
+          pendingThreads       = new HashSet<>();
+          pending              = false;
+        }
+
+        try {
+          rebuild.rebuild(context, signalRebuild, reminderCountRebuild, changedThreads);
+        } catch (RuntimeException e) {
+          if (failure == null) failure = e;
+
+          synchronized (this) {
+            pendingThreads = null;
+          }
+        }
+
+        synchronized (this) {
+          if (!pending) {
+            rebuilding = false;
+            done       = true;
+          }
+        }
+      }
+    } finally {
+      if (!done) {
+        synchronized (this) {
+          rebuilding     = false;
+          pendingThreads = null;
+        }
+      }
+    }
+
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
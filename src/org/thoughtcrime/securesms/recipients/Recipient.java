@@ -110,11 +110,39 @@ public class Recipient implements RecipientModifiedListener {
     return provider.getRecipient(context, address, settings, groupRecord, asynchronous);
   }
 
+  public static @NonNull List<Recipient> from(@NonNull Context context, @NonNull List<Address> addresses, boolean asynchronous) {
+    return provider.getRecipients(context, addresses, asynchronous);
+  }
+
   public static void applyCached(@NonNull Address address, Consumer<Recipient> consumer) {
     Optional<Recipient> recipient = provider.getCached(address);
     if (recipient.isPresent()) consumer.accept(recipient.get());
   }
 
+  /**
+   * Reloads every cached individual recipient into its existing instance, after a change that may
+   * have touched all of them. Their settings are loaded in bulk rather than with a query each.
+   */
+  public static void reloadCached(@NonNull Context context) {
+    provider.reloadCached(context);
+  }
+
+  public static long getCacheHits() {
+    return provider.getCacheHits();
+  }
+
+  public static long getCacheMisses() {
+    return provider.getCacheMisses();
+  }
+
+  public static long getResolveCount() {
+    return provider.getResolveCount();
+  }
+
+  public static long getResolveTimeMillis() {
+    return provider.getResolveTimeMillis();
+  }
+
   Recipient(@NonNull  Address address,
             @Nullable Recipient stale,
             @NonNull  Optional<RecipientDetails> details,
@@ -182,56 +210,7 @@ public class Recipient implements RecipientModifiedListener {
       this.participants.addAll(details.get().participants);
     }
 
-    future.addListener(new FutureTaskListener<RecipientDetails>() {
-      @Override
-      public void onSuccess(RecipientDetails result) {
-        if (result != null) {
-          synchronized (Recipient.this) {
-            Recipient.this.name                   = result.name;
-            Recipient.this.contactUri             = result.contactUri;
-            Recipient.this.systemContactPhoto     = result.systemContactPhoto;
-            Recipient.this.groupAvatarId          = result.groupAvatarId;
-            Recipient.this.isLocalNumber          = result.isLocalNumber;
-            Recipient.this.color                  = result.color;
-            Recipient.this.customLabel            = result.customLabel;
-            Recipient.this.messageRingtone        = result.messageRingtone;
-            Recipient.this.callRingtone           = result.callRingtone;
-            Recipient.this.mutedUntil             = result.mutedUntil;
-            Recipient.this.blocked                = result.blocked;
-            Recipient.this.messageVibrate         = result.messageVibrateState;
-            Recipient.this.callVibrate            = result.callVibrateState;
-            Recipient.this.expireMessages         = result.expireMessages;
-            Recipient.this.seenInviteReminder     = result.seenInviteReminder;
-            Recipient.this.defaultSubscriptionId  = result.defaultSubscriptionId;
-            Recipient.this.registered             = result.registered;
-            Recipient.this.notificationChannel    = result.notificationChannel;
-            Recipient.this.profileKey             = result.profileKey;
-            Recipient.this.profileName            = result.profileName;
-            Recipient.this.profileAvatar          = result.profileAvatar;
-            Recipient.this.profileSharing         = result.profileSharing;
-            Recipient.this.unidentifiedAccessMode = result.unidentifiedAccessMode;
-            Recipient.this.forceSmsSelection      = result.forceSmsSelection;
-
-            Recipient.this.participants.clear();
-            Recipient.this.participants.addAll(result.participants);
-            Recipient.this.resolving = false;
-
-            if (!listeners.isEmpty()) {
-              for (Recipient recipient : participants) recipient.addListener(Recipient.this);
-            }
-
-            Recipient.this.notifyAll();
-          }
-
-          notifyListeners();
-        }
-      }
-
-      @Override
-      public void onFailure(ExecutionException error) {
-        Log.w(TAG, error);
-      }
-    });
+    listenForDetails(future);
   }
 
   Recipient(@NonNull Address address, @NonNull RecipientDetails details) {
@@ -265,6 +244,67 @@ public class Recipient implements RecipientModifiedListener {
     this.resolving    = false;
   }
 
+  void refresh(@NonNull ListenableFutureTask<RecipientDetails> future) {
+    listenForDetails(future);
+  }
+
+  private void listenForDetails(@NonNull ListenableFutureTask<RecipientDetails> future) {
+    future.addListener(new FutureTaskListener<RecipientDetails>() {
+      @Override
+      public void onSuccess(RecipientDetails result) {
+        if (result != null) {
+          update(result);
+        }
+      }
+
+      @Override
+      public void onFailure(ExecutionException error) {
+        Log.w(TAG, error);
+      }
+    });
+  }
+
+  void update(@NonNull RecipientDetails details) {
+    synchronized (this) {
+      this.name                   = details.name;
+      this.contactUri             = details.contactUri;
+      this.systemContactPhoto     = details.systemContactPhoto;
+      this.groupAvatarId          = details.groupAvatarId;
+      this.isLocalNumber          = details.isLocalNumber;
+      this.color                  = details.color;
+      this.customLabel            = details.customLabel;
+      this.messageRingtone        = details.messageRingtone;
+      this.callRingtone           = details.callRingtone;
+      this.mutedUntil             = details.mutedUntil;
+      this.blocked                = details.blocked;
+      this.messageVibrate         = details.messageVibrateState;
+      this.callVibrate            = details.callVibrateState;
+      this.expireMessages         = details.expireMessages;
+      this.seenInviteReminder     = details.seenInviteReminder;
+      this.defaultSubscriptionId  = details.defaultSubscriptionId;
+      this.registered             = details.registered;
+      this.notificationChannel    = details.notificationChannel;
+      this.profileKey             = details.profileKey;
+      this.profileName            = details.profileName;
+      this.profileAvatar          = details.profileAvatar;
+      this.profileSharing         = details.profileSharing;
+      this.unidentifiedAccessMode = details.unidentifiedAccessMode;
+      this.forceSmsSelection      = details.forceSmsSelection;
+
+      this.participants.clear();
+      this.participants.addAll(details.participants);
+      this.resolving = false;
+
+      if (!listeners.isEmpty()) {
+        for (Recipient recipient : participants) recipient.addListener(this);
+      }
+
+      this.notifyAll();
+    }
+
+    notifyListeners();
+  }
+
   public boolean isLocalNumber() {
     return isLocalNumber;
   }
@@ -32,53 +32,135 @@ import org.thoughtcrime.securesms.database.RecipientDatabase.RegisteredState;
 import org.thoughtcrime.securesms.database.RecipientDatabase.UnidentifiedAccessMode;
 import org.thoughtcrime.securesms.database.RecipientDatabase.VibrateState;
 import org.thoughtcrime.securesms.util.ListenableFutureTask;
-import org.thoughtcrime.securesms.util.SoftHashMap;
 import org.thoughtcrime.securesms.util.TextSecurePreferences;
 import org.thoughtcrime.securesms.util.Util;
 import org.whispersystems.libsignal.util.guava.Optional;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 class RecipientProvider {
 
   @SuppressWarnings("unused")
   private static final String TAG = RecipientProvider.class.getSimpleName();
 
+  private static final int RESOLVER_THREADS = 2;
+
   private static final RecipientCache  recipientCache         = new RecipientCache();
-  private static final ExecutorService asyncRecipientResolver = Util.newSingleThreadedLifoExecutor();
+  private static final ExecutorService asyncRecipientResolver = Util.newLifoExecutor(RESOLVER_THREADS);
+
+  private static final AtomicLong resolveCount = new AtomicLong();
+  private static final AtomicLong resolveNanos = new AtomicLong();
 
   private static final Map<String, RecipientDetails> STATIC_DETAILS = new HashMap<String, RecipientDetails>() {{
     put("262966", new RecipientDetails("Amazon", null, false, false, null, null));
   }};
 
   @NonNull Recipient getRecipient(@NonNull Context context, @NonNull Address address, @NonNull Optional<RecipientSettings> settings, @NonNull Optional<GroupRecord> groupRecord, boolean asynchronous) {
+    return getRecipient(context, address, settings, settings.isPresent(), groupRecord, asynchronous);
+  }
+
+  /**
+   * Resolves many recipients at once, loading the settings of every individual that isn't already
+   * cached with a single query instead of one query each.
+   */
+  @NonNull List<Recipient> getRecipients(@NonNull Context context, @NonNull List<Address> addresses, boolean asynchronous) {
+    Set<Address> unresolved = new HashSet<>();
+
+    for (Address address : addresses) {
+      if (!address.isGroup() && !recipientCache.isFresh(address)) {
+        unresolved.add(address);
+      }
+    }
+
+    Map<Address, RecipientSettings> settings   = unresolved.isEmpty() ? Collections.emptyMap()
+                                                                      : DatabaseFactory.getRecipientDatabase(context).getRecipientSettings(unresolved);
+    List<Recipient>                 recipients = new ArrayList<>(addresses.size());
+
+    for (Address address : addresses) {
+      boolean settingsLoaded = unresolved.contains(address);
+      recipients.add(getRecipient(context, address, Optional.fromNullable(settings.get(address)), settingsLoaded, Optional.absent(), asynchronous));
+    }
+
+    return recipients;
+  }
+
+  @NonNull Optional<Recipient> getCached(@NonNull Address address) {
+    return Optional.fromNullable(recipientCache.get(address));
+  }
+
+  void reloadCached(@NonNull Context context) {
+    List<Address> addresses = recipientCache.invalidateIndividuals();
+
+    if (!addresses.isEmpty()) {
+      getRecipients(context, addresses, true);
+    }
+  }
+
+  long getCacheHits() {
+    return recipientCache.hits.get();
+  }
+
+  long getCacheMisses() {
+    return recipientCache.misses.get();
+  }
+
+  long getResolveCount() {
+    return resolveCount.get();
+  }
+
+  long getResolveTimeMillis() {
+    return resolveNanos.get() / 1_000_000;
+  }
+
+  private @NonNull Recipient getRecipient(@NonNull Context context, @NonNull Address address,
+                                          @NonNull Optional<RecipientSettings> settings, boolean settingsLoaded,
+                                          @NonNull Optional<GroupRecord> groupRecord, boolean asynchronous)
+  {
     Recipient cachedRecipient = recipientCache.get(address);
 
+    if (cachedRecipient != null && recipientCache.clearStale(address)) {
+      recipientCache.misses.incrementAndGet();
+
+      if (asynchronous) cachedRecipient.refresh(getRecipientDetailsAsync(context, address, settings, settingsLoaded, groupRecord));
+      else              cachedRecipient.update(getRecipientDetailsSync(context, address, settings, settingsLoaded, groupRecord, false));
+
+      return cachedRecipient;
+    }
+
     if (cachedRecipient != null && (asynchronous || !cachedRecipient.isResolving()) && ((!groupRecord.isPresent() && !settings.isPresent()) || !cachedRecipient.isResolving() || cachedRecipient.getName() != null)) {
+      recipientCache.hits.incrementAndGet();
       return cachedRecipient;
     }
 
+    recipientCache.misses.incrementAndGet();
+
     Optional<RecipientDetails> prefetchedRecipientDetails = createPrefetchedRecipientDetails(context, address, settings, groupRecord);
 
     if (asynchronous) {
-      cachedRecipient = new Recipient(address, cachedRecipient, prefetchedRecipientDetails, getRecipientDetailsAsync(context, address, settings, groupRecord));
+      cachedRecipient = new Recipient(address, cachedRecipient, prefetchedRecipientDetails, getRecipientDetailsAsync(context, address, settings, settingsLoaded, groupRecord));
     } else {
-      cachedRecipient = new Recipient(address, getRecipientDetailsSync(context, address, settings, groupRecord, false));
+      cachedRecipient = new Recipient(address, getRecipientDetailsSync(context, address, settings, settingsLoaded, groupRecord, false));
     }
 
     recipientCache.set(address, cachedRecipient);
     return cachedRecipient;
   }
 
-  @NonNull Optional<Recipient> getCached(@NonNull Address address) {
-    return Optional.fromNullable(recipientCache.get(address));
-  }
-
   private @NonNull Optional<RecipientDetails> createPrefetchedRecipientDetails(@NonNull Context context, @NonNull Address address,
                                                                                @NonNull Optional<RecipientSettings> settings,
                                                                                @NonNull Optional<GroupRecord> groupRecord)
@@ -93,22 +175,29 @@ class RecipientProvider {
     return Optional.absent();
   }
 
-  private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context, final @NonNull Address address, final @NonNull Optional<RecipientSettings> settings, final @NonNull Optional<GroupRecord> groupRecord)
+  private @NonNull ListenableFutureTask<RecipientDetails> getRecipientDetailsAsync(final Context context, final @NonNull Address address, final @NonNull Optional<RecipientSettings> settings, boolean settingsLoaded, final @NonNull Optional<GroupRecord> groupRecord)
   {
-    Callable<RecipientDetails> task = () -> getRecipientDetailsSync(context, address, settings, groupRecord, true);
+    Callable<RecipientDetails> task = () -> getRecipientDetailsSync(context, address, settings, settingsLoaded, groupRecord, true);
 
     ListenableFutureTask<RecipientDetails> future = new ListenableFutureTask<>(task);
     asyncRecipientResolver.submit(future);
     return future;
   }
 
-  private @NonNull RecipientDetails getRecipientDetailsSync(Context context, @NonNull Address address, Optional<RecipientSettings> settings, Optional<GroupRecord> groupRecord, boolean nestedAsynchronous) {
-    if (address.isGroup()) return getGroupRecipientDetails(context, address, groupRecord, settings, nestedAsynchronous);
-    else                   return getIndividualRecipientDetails(context, address, settings);
+  private @NonNull RecipientDetails getRecipientDetailsSync(Context context, @NonNull Address address, Optional<RecipientSettings> settings, boolean settingsLoaded, Optional<GroupRecord> groupRecord, boolean nestedAsynchronous) {
+    long start = System.nanoTime();
+
+    try {
+      if (address.isGroup()) return getGroupRecipientDetails(context, address, groupRecord, settings, nestedAsynchronous);
+      else                   return getIndividualRecipientDetails(context, address, settings, settingsLoaded);
+    } finally {
+      resolveCount.incrementAndGet();
+      resolveNanos.addAndGet(System.nanoTime() - start);
+    }
   }
 
-  private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, @NonNull Address address, Optional<RecipientSettings> settings) {
-    if (!settings.isPresent()) {
+  private @NonNull RecipientDetails getIndividualRecipientDetails(Context context, @NonNull Address address, Optional<RecipientSettings> settings, boolean settingsLoaded) {
+    if (!settingsLoaded) {
       settings = DatabaseFactory.getRecipientDatabase(context).getRecipientSettings(address);
     }
 
@@ -132,14 +221,9 @@ class RecipientProvider {
     }
 
     if (groupRecord.isPresent()) {
-      String          title           = groupRecord.get().getTitle();
-      List<Address>   memberAddresses = groupRecord.get().getMembers();
-      List<Recipient> members         = new LinkedList<>();
-      Long            avatarId        = null;
-
-      for (Address memberAddress : memberAddresses) {
-        members.add(getRecipient(context, memberAddress, Optional.absent(), Optional.absent(), asynchronous));
-      }
+      String          title    = groupRecord.get().getTitle();
+      List<Recipient> members  = getRecipients(context, groupRecord.get().getMembers(), asynchronous);
+      Long            avatarId = null;
 
       if (!groupId.isMmsGroup() && title == null) {
         title = context.getString(R.string.RecipientProvider_unnamed_group);
@@ -218,18 +302,76 @@ class RecipientProvider {
     }
   }
 
+  /**
+   * Lookups don't take a lock. Recipients stay cached for as long as anything else holds on to
+   * them, and the most recently cached {@link #RETAINED_SIZE} are also held here so that they
+   * survive garbage collection.
+   */
   private static class RecipientCache {
 
-    private final Map<Address,Recipient> cache = new SoftHashMap<>(1000);
+    private static final int RETAINED_SIZE = 1000;
+
+    private final Map<Address, CachedRecipient>   cache    = new ConcurrentHashMap<>();
+    private final Set<Address>                    stale    = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final ReferenceQueue<Recipient>       queue    = new ReferenceQueue<>();
+    private final AtomicReferenceArray<Recipient> retained = new AtomicReferenceArray<>(RETAINED_SIZE);
+    private final AtomicInteger                   next     = new AtomicInteger();
+
+    private final AtomicLong hits   = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    @Nullable Recipient get(@NonNull Address address) {
+      CachedRecipient reference = cache.get(address);
+      return reference != null ? reference.get() : null;
+    }
+
+    boolean isFresh(@NonNull Address address) {
+      return get(address) != null && !stale.contains(address);
+    }
+
+    void set(@NonNull Address address, @NonNull Recipient recipient) {
+      processQueue();
+
+      cache.put(address, new CachedRecipient(address, recipient, queue));
+      stale.remove(address);
+      retained.set((next.getAndIncrement() & Integer.MAX_VALUE) % RETAINED_SIZE, recipient);
+    }
+
+    boolean clearStale(@NonNull Address address) {
+      return stale.remove(address);
+    }
+
+    @NonNull List<Address> invalidateIndividuals() {
+      List<Address> invalidated = new LinkedList<>();
 
-    public synchronized Recipient get(Address address) {
-      return cache.get(address);
+      for (Map.Entry<Address, CachedRecipient> entry : cache.entrySet()) {
+        if (!entry.getKey().isGroup() && entry.getValue().get() != null) {
+          stale.add(entry.getKey());
+          invalidated.add(entry.getKey());
+        }
+      }
+
+      return invalidated;
     }
 
-    public synchronized void set(Address address, Recipient recipient) {
-      cache.put(address, recipient);
+    private void processQueue() {
+      CachedRecipient cleared;
+
+      while ((cleared = (CachedRecipient) queue.poll()) != null) {
+        cache.remove(cleared.address, cleared);
+        stale.remove(cleared.address);
+      }
     }
+  }
+
+  private static class CachedRecipient extends SoftReference<Recipient> {
 
+    private final Address address;
+
+    CachedRecipient(@NonNull Address address, @NonNull Recipient recipient, @NonNull ReferenceQueue<Recipient> queue) {
+      super(recipient, queue);
+      this.address = address;
+    }
   }
 
-}
\ No newline at end of file
+}
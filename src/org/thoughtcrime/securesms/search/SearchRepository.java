@@ -2,10 +2,13 @@ package org.thoughtcrime.securesms.search;
 
 import android.Manifest;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.database.Cursor;
 import android.database.DatabaseUtils;
 import android.database.MergeCursor;
+import android.net.Uri;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import android.text.TextUtils;
 
 import com.annimon.stream.Stream;
@@ -15,6 +18,7 @@ import org.thoughtcrime.securesms.contacts.ContactAccessor;
 import org.thoughtcrime.securesms.contacts.ContactsDatabase;
 import org.thoughtcrime.securesms.database.Address;
 import org.thoughtcrime.securesms.database.CursorList;
+import org.thoughtcrime.securesms.database.DatabaseContentProviders;
 import org.thoughtcrime.securesms.database.MmsSmsColumns;
 import org.thoughtcrime.securesms.database.SearchDatabase;
 import org.thoughtcrime.securesms.database.ThreadDatabase;
@@ -25,11 +29,16 @@ import org.thoughtcrime.securesms.recipients.Recipient;
 import org.thoughtcrime.securesms.search.model.MessageResult;
 import org.thoughtcrime.securesms.search.model.SearchResult;
 import org.thoughtcrime.securesms.util.Stopwatch;
+import org.thoughtcrime.securesms.util.Util;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Manages data retrieval for search.
@@ -55,12 +64,21 @@ public class SearchRepository {
     }
   }
 
+  private static final int MAX_MESSAGES_PER_TABLE = 250;
+  private static final int MESSAGE_PAGE_SIZE      = 50;
+
   private final Context          context;
   private final SearchDatabase   searchDatabase;
   private final ContactsDatabase contactsDatabase;
   private final ThreadDatabase   threadDatabase;
   private final ContactAccessor  contactAccessor;
   private final Executor         executor;
+  private final AtomicLong       querySequence;
+  private final AtomicLong       dataVersion;
+
+  private final Map<ContentObserver, ContentObserver> observers = new HashMap<>();
+
+  private volatile MessageMatches lastMatches;
 
   public SearchRepository(@NonNull Context context,
                           @NonNull SearchDatabase searchDatabase,
@@ -75,15 +93,30 @@ public class SearchRepository {
     this.threadDatabase   = threadDatabase;
     this.contactAccessor  = contactAccessor;
     this.executor         = executor;
+    this.querySequence    = new AtomicLong();
+    this.dataVersion      = new AtomicLong();
   }
 
+  /**
+   * Searches contacts, conversations and messages. Message matches are found first and delivered in
+   * pages, so the callback may be called several times for one query, each time with a result that
+   * contains everything found so far. Later results share the contact and conversation cursors of
+   * the earlier ones.
+   *
+   * Starting a new query cancels the previous one. A cancelled query stops at the next stage or
+   * page and its callback isn't called again.
+   */
   public void query(@NonNull String query, @NonNull Callback<SearchResult> callback) {
+    long sequence = querySequence.incrementAndGet();
+
     if (TextUtils.isEmpty(query)) {
       callback.onResult(SearchResult.EMPTY);
       return;
     }
 
     executor.execute(() -> {
+      if (isCancelled(sequence)) return;
+
       Stopwatch timer = new Stopwatch("FtsQuery");
 
       String cleanQuery = sanitizeQuery(query);
@@ -92,18 +125,90 @@ public class SearchRepository {
       CursorList<Recipient> contacts = queryContacts(cleanQuery);
       timer.split("contacts");
 
+      if (isCancelled(sequence)) {
+        contacts.close();
+        return;
+      }
+
       CursorList<ThreadRecord> conversations = queryConversations(cleanQuery);
       timer.split("conversations");
 
-      CursorList<MessageResult> messages = queryMessages(cleanQuery);
-      timer.split("messages");
+      if (isCancelled(sequence)) {
+        contacts.close();
+        conversations.close();
+        return;
+      }
 
+      List<MessageMatch> matches = queryMessageMatches(cleanQuery);
+      timer.split("matches");
+
+      List<List<MessageMatch>> pages     = Util.chunk(matches, MESSAGE_PAGE_SIZE);
+      List<MessageResult>      messages  = new ArrayList<>(matches.size());
+      boolean                  delivered = false;
+
+      for (int i = 0; i < pages.size(); i++) {
+        if (isCancelled(sequence)) {
+          if (!delivered) {
+            contacts.close();
+            conversations.close();
+          }
+          Log.d(TAG, "Cancelled after " + messages.size() + " of " + matches.size() + " messages.");
+          return;
+        }
+
+        messages.addAll(queryMessagePage(cleanQuery, pages.get(i)));
+
+        if (i < pages.size() - 1) {
+          callback.onResult(new SearchResult(cleanQuery, contacts, conversations, new ArrayList<>(messages)));
+          delivered = true;
+        }
+      }
+
+      timer.split("messages");
       timer.stop(TAG);
 
-      callback.onResult(new SearchResult(cleanQuery, contacts, conversations, messages));
+      if (!isCancelled(sequence)) {
+        callback.onResult(new SearchResult(cleanQuery, contacts, conversations, messages));
+      } else if (!delivered) {
+        contacts.close();
+        conversations.close();
+      }
     });
   }
 
+  /**
+   * Registers an observer for changes that could affect search results. Matches from earlier
+   * queries are only reused while an observer is registered, since that is how the repository
+   * finds out that messages were added or removed.
+   */
+  public void registerContentObserver(@NonNull ContentObserver observer) {
+    ContentObserver invalidatingObserver = new ContentObserver(null) {
+      @Override
+      public void onChange(boolean selfChange, @Nullable Uri uri) {
+        dataVersion.incrementAndGet();
+        observer.dispatchChange(selfChange, uri);
+      }
+    };
+
+    synchronized (observers) {
+      observers.put(observer, invalidatingObserver);
+    }
+
+    context.getContentResolver().registerContentObserver(DatabaseContentProviders.ConversationList.CONTENT_URI, true, invalidatingObserver);
+  }
+
+  public void unregisterContentObserver(@NonNull ContentObserver observer) {
+    ContentObserver invalidatingObserver;
+
+    synchronized (observers) {
+      invalidatingObserver = observers.remove(observer);
+    }
+
+    if (invalidatingObserver != null) {
+      context.getContentResolver().unregisterContentObserver(invalidatingObserver);
+    }
+  }
+
   public void query(@NonNull String query, long threadId, @NonNull Callback<CursorList<MessageResult>> callback) {
     if (TextUtils.isEmpty(query)) {
       callback.onResult(CursorList.emptyList());
@@ -140,10 +245,82 @@ public class SearchRepository {
                                  : CursorList.emptyList();
   }
 
-  private CursorList<MessageResult> queryMessages(@NonNull String query) {
-    Cursor messages = searchDatabase.queryMessages(query);
-    return messages != null ? new CursorList<>(messages, new MessageModelBuilder(context))
-                            : CursorList.emptyList();
+  private boolean isCancelled(long sequence) {
+    return querySequence.get() != sequence;
+  }
+
+  /**
+   * Finds the matches for a query. If nothing changed since the previous query, and this query only
+   * extends it, the new matches are a subset of the previous ones. Each table whose previous matches
+   * were complete then only searches those.
+   */
+  private @NonNull List<MessageMatch> queryMessageMatches(@NonNull String query) {
+    MessageMatches previous = lastMatches;
+    long           version  = dataVersion.get();
+    Set<Long>      smsIds   = null;
+    Set<Long>      mmsIds   = null;
+
+    if (previous != null && previous.version == version && isObserved() && query.length() > previous.query.length() && query.startsWith(previous.query)) {
+      smsIds = previous.getIds(false);
+      mmsIds = previous.getIds(true);
+    }
+
+    List<MessageMatch> matches  = new ArrayList<>();
+    int                smsCount = 0;
+    int                mmsCount = 0;
+
+    try (Cursor cursor = searchDatabase.queryMessageIds(query, smsIds, mmsIds, MAX_MESSAGES_PER_TABLE)) {
+      while (cursor != null && cursor.moveToNext()) {
+        boolean mms = cursor.getInt(cursor.getColumnIndexOrThrow(SearchDatabase.IS_MMS)) == 1;
+
+        matches.add(new MessageMatch(cursor.getLong(cursor.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ID)), mms));
+
+        if (mms) mmsCount++;
+        else     smsCount++;
+      }
+    }
+
+    lastMatches = new MessageMatches(query, version, matches, smsCount < MAX_MESSAGES_PER_TABLE, mmsCount < MAX_MESSAGES_PER_TABLE);
+
+    return matches;
+  }
+
+  private boolean isObserved() {
+    synchronized (observers) {
+      return !observers.isEmpty();
+    }
+  }
+
+  private @NonNull List<MessageResult> queryMessagePage(@NonNull String query, @NonNull List<MessageMatch> page) {
+    List<Long> smsIds = new ArrayList<>(page.size());
+    List<Long> mmsIds = new ArrayList<>(page.size());
+
+    for (MessageMatch match : page) {
+      if (match.mms) mmsIds.add(match.id);
+      else           smsIds.add(match.id);
+    }
+
+    List<MessageResult> results = new ArrayList<>(page.size());
+
+    try (Cursor cursor = searchDatabase.queryMessages(query, smsIds, mmsIds)) {
+      List<Address> addresses = new ArrayList<>(cursor.getCount() * 2);
+
+      while (cursor.moveToNext()) {
+        addresses.add(Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.CONVERSATION_ADDRESS))));
+        addresses.add(Address.fromSerialized(cursor.getString(cursor.getColumnIndexOrThrow(SearchDatabase.MESSAGE_ADDRESS))));
+      }
+
+      Recipient.from(context, addresses, false);
+
+      MessageModelBuilder builder = new MessageModelBuilder(context);
+
+      cursor.moveToPosition(-1);
+      while (cursor.moveToNext()) {
+        results.add(builder.build(cursor));
+      }
+    }
+
+    return results;
   }
 
   private CursorList<MessageResult> queryMessages(@NonNull String query, long threadId) {
@@ -225,6 +402,49 @@ public class SearchRepository {
     }
   }
 
+  private static class MessageMatch {
+    private final long    id;
+    private final boolean mms;
+
+    MessageMatch(long id, boolean mms) {
+      this.id  = id;
+      this.mms = mms;
+    }
+  }
+
+  private static class MessageMatches {
+    private final String             query;
+    private final long               version;
+    private final List<MessageMatch> matches;
+    private final boolean            smsComplete;
+    private final boolean            mmsComplete;
+
+    MessageMatches(@NonNull String query, long version, @NonNull List<MessageMatch> matches, boolean smsComplete, boolean mmsComplete) {
+      this.query       = query;
+      this.version     = version;
+      this.matches     = matches;
+      this.smsComplete = smsComplete;
+      this.mmsComplete = mmsComplete;
+    }
+
+    /**
+     * @return The IDs matched in one table, or null if there may have been more than were returned.
+     */
+    @Nullable Set<Long> getIds(boolean mms) {
+      if (mms ? !mmsComplete : !smsComplete) {
+        return null;
+      }
+
+      Set<Long> ids = new HashSet<>();
+
+      for (MessageMatch match : matches) {
+        if (match.mms == mms) ids.add(match.id);
+      }
+
+      return ids;
+    }
+  }
+
   public interface Callback<E> {
     void onResult(@NonNull E result);
   }
@@ -25,25 +25,27 @@ import org.thoughtcrime.securesms.util.Util;
  */
 class SearchViewModel extends ViewModel {
 
-  private final ObservingLiveData searchResult;
-  private final SearchRepository  searchRepository;
-  private final Debouncer         debouncer;
+  private final ClosingLiveData  searchResult;
+  private final SearchRepository searchRepository;
+  private final Debouncer        debouncer;
+  private final ContentObserver  observer;
 
   private String lastQuery;
 
   private SearchViewModel(@NonNull SearchRepository searchRepository) {
-    this.searchResult     = new ObservingLiveData();
+    this.searchResult     = new ClosingLiveData();
     this.searchRepository = searchRepository;
     this.debouncer        = new Debouncer(500);
-
-    searchResult.registerContentObserver(new ContentObserver(new Handler()) {
+    this.observer         = new ContentObserver(new Handler()) {
       @Override
       public void onChange(boolean selfChange) {
         if (!TextUtils.isEmpty(getLastQuery())) {
           searchRepository.query(getLastQuery(), searchResult::postValue);
         }
       }
-    });
+    };
+
+    searchRepository.registerContentObserver(observer);
   }
 
   LiveData<SearchResult> getSearchResult() {
@@ -57,7 +59,7 @@ class SearchViewModel extends ViewModel {
         if (query.equals(lastQuery)) {
           searchResult.setValue(result);
         } else {
-          result.close();
+          searchResult.discard(result);
         }
       });
     }));
@@ -71,41 +73,45 @@ class SearchViewModel extends ViewModel {
   @Override
   protected void onCleared() {
     debouncer.clear();
+    searchRepository.unregisterContentObserver(observer);
     searchResult.close();
   }
 
   /**
    * Ensures that the previous {@link SearchResult} is always closed whenever we set a new one.
    */
-  private static class ObservingLiveData extends MutableLiveData<SearchResult> {
-
-    private ContentObserver observer;
+  private static class ClosingLiveData extends MutableLiveData<SearchResult> {
 
     @Override
     public void setValue(SearchResult value) {
       SearchResult previous = getValue();
 
       if (previous != null) {
-        previous.unregisterContentObserver(observer);
-        previous.close();
+        previous.closeUnshared(value);
       }
 
-      value.registerContentObserver(observer);
-
       super.setValue(value);
     }
 
-    void close() {
+    /**
+     * Closes a result that won't be shown, without closing anything the current value still uses.
+     */
+    void discard(@NonNull SearchResult result) {
       SearchResult value = getValue();
 
       if (value != null) {
-        value.unregisterContentObserver(observer);
-        value.close();
+        result.closeUnshared(value);
+      } else {
+        result.close();
       }
     }
 
-    void registerContentObserver(@NonNull ContentObserver observer) {
-      this.observer = observer;
+    void close() {
+      SearchResult value = getValue();
+
+      if (value != null) {
+        value.close();
+      }
     }
   }
 
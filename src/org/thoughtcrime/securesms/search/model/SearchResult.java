@@ -1,13 +1,12 @@
 package org.thoughtcrime.securesms.search.model;
 
-import android.database.ContentObserver;
-
 import androidx.annotation.NonNull;
 
 import org.thoughtcrime.securesms.database.CursorList;
 import org.thoughtcrime.securesms.database.model.ThreadRecord;
 import org.thoughtcrime.securesms.recipients.Recipient;
 
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -16,17 +15,17 @@ import java.util.List;
  */
 public class SearchResult {
 
-  public static final SearchResult EMPTY = new SearchResult("", CursorList.emptyList(), CursorList.emptyList(), CursorList.emptyList());
+  public static final SearchResult EMPTY = new SearchResult("", CursorList.emptyList(), CursorList.emptyList(), Collections.emptyList());
 
   private final String                    query;
   private final CursorList<Recipient>     contacts;
   private final CursorList<ThreadRecord>  conversations;
-  private final CursorList<MessageResult> messages;
+  private final List<MessageResult>       messages;
 
   public SearchResult(@NonNull String                    query,
                       @NonNull CursorList<Recipient>     contacts,
                       @NonNull CursorList<ThreadRecord>  conversations,
-                      @NonNull CursorList<MessageResult> messages)
+                      @NonNull List<MessageResult>       messages)
   {
     this.query         = query;
     this.contacts      = contacts;
@@ -58,21 +57,17 @@ public class SearchResult {
     return size() == 0;
   }
 
-  public void registerContentObserver(@NonNull ContentObserver observer) {
-    contacts.registerContentObserver(observer);
-    conversations.registerContentObserver(observer);
-    messages.registerContentObserver(observer);
-  }
-
-  public void unregisterContentObserver(@NonNull ContentObserver observer) {
-    contacts.unregisterContentObserver(observer);
-    conversations.unregisterContentObserver(observer);
-    messages.unregisterContentObserver(observer);
-  }
-
   public void close() {
     contacts.close();
     conversations.close();
-    messages.close();
+  }
+
+  /**
+   * Closes this result, except for the cursors it shares with {@code next}. Results delivered while
+   * the messages of a query are still being loaded share their contact and conversation cursors.
+   */
+  public void closeUnshared(@NonNull SearchResult next) {
+    if (contacts != next.contacts)           contacts.close();
+    if (conversations != next.conversations) conversations.close();
   }
 }
@@ -1,35 +1,75 @@
 package org.thoughtcrime.securesms.service;
 
 import android.content.Context;
+import android.database.Cursor;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.VisibleForTesting;
+
 import org.thoughtcrime.securesms.logging.Log;
 
 import org.thoughtcrime.securesms.database.DatabaseFactory;
 import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
 import org.thoughtcrime.securesms.database.SmsDatabase;
-import org.thoughtcrime.securesms.database.model.MessageRecord;
 
 import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.TreeSet;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deletes messages once their expiration timer runs out.
+ *
+ * Only the expirations up to a horizon are held in memory. Everything later stays in the database
+ * and is loaded through the expiration index once the horizon is reached. Expirations that fall
+ * in the same window are deleted together, and the alarm is only moved when the next window
+ * changes.
+ */
 public class ExpiringMessageManager {
 
   private static final String TAG = ExpiringMessageManager.class.getSimpleName();
 
+  @VisibleForTesting static final long HORIZON_MILLIS = TimeUnit.HOURS.toMillis(1);
+  @VisibleForTesting static final int  MAX_LOADED     = 1000;
+
+  private static final long WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
   private final TreeSet<ExpiringMessageReference> expiringMessageReferences = new TreeSet<>(new ExpiringMessageComparator());
-  private final Executor                          executor                  = Executors.newSingleThreadExecutor();
 
-  private final SmsDatabase smsDatabase;
-  private final MmsDatabase mmsDatabase;
-  private final Context     context;
+  private final SmsDatabase    smsDatabase;
+  private final MmsDatabase    mmsDatabase;
+  private final MmsSmsDatabase mmsSmsDatabase;
+  private final Context        context;
+
+  private long    horizon;
+  private long    alarmTime;
+  private boolean loading = true;
 
   public ExpiringMessageManager(Context context) {
-    this.context     = context.getApplicationContext();
-    this.smsDatabase = DatabaseFactory.getSmsDatabase(context);
-    this.mmsDatabase = DatabaseFactory.getMmsDatabase(context);
+    this(context.getApplicationContext(),
+         DatabaseFactory.getSmsDatabase(context),
+         DatabaseFactory.getMmsDatabase(context),
+         DatabaseFactory.getMmsSmsDatabase(context),
+         Executors.newSingleThreadExecutor());
+  }
+
+  @VisibleForTesting
+  ExpiringMessageManager(@NonNull Context context,
+                         @NonNull SmsDatabase smsDatabase,
+                         @NonNull MmsDatabase mmsDatabase,
+                         @NonNull MmsSmsDatabase mmsSmsDatabase,
+                         @NonNull Executor executor)
+  {
+    this.context        = context;
+    this.smsDatabase    = smsDatabase;
+    this.mmsDatabase    = mmsDatabase;
+    this.mmsSmsDatabase = mmsSmsDatabase;
 
-    executor.execute(new LoadTask());
     executor.execute(new ProcessTask());
   }
 
@@ -37,12 +77,18 @@ public class ExpiringMessageManager {
     scheduleDeletion(id, mms, System.currentTimeMillis(), expiresInMillis);
   }
 
+  /**
+   * The message's expiration must already be stored. Expirations beyond the horizon aren't kept in
+   * memory, they're picked up from the database when the horizon moves.
+   */
   public void scheduleDeletion(long id, boolean mms, long startedAtTimestamp, long expiresInMillis) {
     long expiresAtMillis = startedAtTimestamp + expiresInMillis;
 
     synchronized (expiringMessageReferences) {
-      expiringMessageReferences.add(new ExpiringMessageReference(id, mms, expiresAtMillis));
-      expiringMessageReferences.notifyAll();
+      if (loading || expiresAtMillis <= horizon) {
+        expiringMessageReferences.add(new ExpiringMessageReference(id, mms, expiresAtMillis));
+        expiringMessageReferences.notifyAll();
+      }
     }
   }
 
@@ -52,60 +98,115 @@ public class ExpiringMessageManager {
     }
   }
 
-  private class LoadTask implements Runnable {
-    public void run() {
-      SmsDatabase.Reader smsReader = smsDatabase.readerFor(smsDatabase.getExpirationStartedMessages());
-      MmsDatabase.Reader mmsReader = mmsDatabase.getExpireStartedMessages();
-
-      MessageRecord messageRecord;
+  /**
+   * Deletes everything that expired at or before the given time in one batch per table.
+   */
+  @VisibleForTesting
+  void deleteExpired(long now) {
+    List<ExpiringMessageReference> expired = new LinkedList<>();
 
-      while ((messageRecord = smsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
+    synchronized (expiringMessageReferences) {
+      while (!expiringMessageReferences.isEmpty() && expiringMessageReferences.first().expiresAtMillis <= now) {
+        expired.add(expiringMessageReferences.pollFirst());
       }
+    }
+
+    if (!expired.isEmpty()) {
+      delete(expired);
+    }
+  }
+
+  /**
+   * Loads the expirations up to a horizon from the given time, or up to the last one loaded if
+   * there are more than {@link #MAX_LOADED} of them.
+   */
+  @VisibleForTesting
+  void loadHorizon(long now) {
+    long                           reload = now + HORIZON_MILLIS;
+    List<ExpiringMessageReference> loaded = loadUntil(reload);
+
+    if (loaded.size() >= MAX_LOADED) {
+      reload = loaded.get(loaded.size() - 1).expiresAtMillis;
+    }
 
-      while ((messageRecord = mmsReader.getNext()) != null) {
-        expiringMessageReferences.add(new ExpiringMessageReference(messageRecord.getId(),
-                                                                   messageRecord.isMms(),
-                                                                   messageRecord.getExpireStarted() + messageRecord.getExpiresIn()));
+    synchronized (expiringMessageReferences) {
+      expiringMessageReferences.addAll(loaded);
+      horizon = reload;
+      loading = false;
+    }
+
+    Log.i(TAG, "Loaded " + loaded.size() + " expirations up to " + reload);
+  }
+
+  private List<ExpiringMessageReference> loadUntil(long time) {
+    List<ExpiringMessageReference> references = new LinkedList<>();
+
+    try (Cursor cursor = mmsSmsDatabase.getExpiringMessages(time, MAX_LOADED)) {
+      while (cursor != null && cursor.moveToNext()) {
+        references.add(new ExpiringMessageReference(cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsColumns.ID)),
+                                                    MmsSmsDatabase.MMS_TRANSPORT.equals(cursor.getString(cursor.getColumnIndexOrThrow(MmsSmsDatabase.TRANSPORT))),
+                                                    cursor.getLong(cursor.getColumnIndexOrThrow(MmsSmsDatabase.EXPIRES_AT))));
       }
+    }
+
+    return references;
+  }
 
-      smsReader.close();
-      mmsReader.close();
+  private void delete(List<ExpiringMessageReference> expired) {
+    List<Long> smsIds = new LinkedList<>();
+    List<Long> mmsIds = new LinkedList<>();
+
+    for (ExpiringMessageReference reference : expired) {
+      if (reference.mms) mmsIds.add(reference.id);
+      else               smsIds.add(reference.id);
     }
+
+    if (!smsIds.isEmpty()) smsDatabase.deleteMessages(smsIds);
+    if (!mmsIds.isEmpty()) mmsDatabase.deleteMessages(mmsIds);
+
+    Log.i(TAG, "Deleted " + expired.size() + " expired messages.");
+  }
+
+  private static long getWindowEnd(long time) {
+    return ((time + WINDOW_MILLIS - 1) / WINDOW_MILLIS) * WINDOW_MILLIS;
   }
 
   @SuppressWarnings("InfiniteLoopStatement")
   private class ProcessTask implements Runnable {
     public void run() {
       while (true) {
-        ExpiringMessageReference expiredMessage = null;
+        boolean expired = false;
+        boolean reload  = false;
+        long    now     = 0;
 
         synchronized (expiringMessageReferences) {
           try {
-            while (expiringMessageReferences.isEmpty()) expiringMessageReferences.wait();
+            now = System.currentTimeMillis();
+
+            if (!expiringMessageReferences.isEmpty() && expiringMessageReferences.first().expiresAtMillis <= now) {
+              expired = true;
+            } else if (now >= horizon) {
+              loading = true;
+              reload  = true;
+            } else if (expiringMessageReferences.isEmpty()) {
+              expiringMessageReferences.wait(horizon - now);
+            } else {
+              long wakeTime = Math.min(getWindowEnd(expiringMessageReferences.first().expiresAtMillis), horizon);
 
-            ExpiringMessageReference nextReference = expiringMessageReferences.first();
-            long                     waitTime      = nextReference.expiresAtMillis - System.currentTimeMillis();
+              if (wakeTime != alarmTime) {
+                ExpirationListener.setAlarm(context, wakeTime - now);
+                alarmTime = wakeTime;
+              }
 
-            if (waitTime > 0) {
-              ExpirationListener.setAlarm(context, waitTime);
-              expiringMessageReferences.wait(waitTime);
-            } else {
-              expiredMessage = nextReference;
-              expiringMessageReferences.remove(nextReference);
+              expiringMessageReferences.wait(wakeTime - now);
             }
-
           } catch (InterruptedException e) {
             Log.w(TAG, e);
           }
         }
 
-        if (expiredMessage != null) {
-          if (expiredMessage.mms) mmsDatabase.delete(expiredMessage.id);
-          else                    smsDatabase.deleteMessage(expiredMessage.id);
-        }
+        if (expired) deleteExpired(now);
+        if (reload)  loadHorizon(now);
       }
     }
   }
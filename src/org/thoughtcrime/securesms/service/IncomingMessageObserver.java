@@ -84,6 +84,10 @@ public class IncomingMessageObserver implements InjectableType, ConstraintObserv
     }
   }
 
+  @Override
+  public void onConstraintUnmet(@NonNull String reason) {
+  }
+
   private synchronized void onAppForegrounded() {
     appVisible = true;
     notifyAll();
@@ -0,0 +1,37 @@
+package org.thoughtcrime.securesms.service;
+
+
+import android.content.Context;
+import android.content.Intent;
+
+import org.thoughtcrime.securesms.ApplicationContext;
+import org.thoughtcrime.securesms.jobs.ThreadConsistencyJob;
+import org.thoughtcrime.securesms.util.TextSecurePreferences;
+
+import java.util.concurrent.TimeUnit;
+
+public class ThreadConsistencyListener extends PersistentAlarmManagerListener {
+
+  private static final long INTERVAL = TimeUnit.DAYS.toMillis(1);
+
+  @Override
+  protected long getNextScheduledExecutionTime(Context context) {
+    return TextSecurePreferences.getNextThreadConsistencyCheckTime(context);
+  }
+
+  @Override
+  protected long onAlarm(Context context, long scheduledTime) {
+    if (scheduledTime != 0) {
+      ApplicationContext.getInstance(context).getJobManager().add(new ThreadConsistencyJob());
+    }
+
+    long nextTime = System.currentTimeMillis() + INTERVAL;
+    TextSecurePreferences.setNextThreadConsistencyCheckTime(context, nextTime);
+
+    return nextTime;
+  }
+
+  public static void schedule(Context context) {
+    new ThreadConsistencyListener().onReceive(context, new Intent());
+  }
+}
@@ -12,14 +12,21 @@ import org.whispersystems.libsignal.util.ByteUtil;
 
 import java.io.File;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Locale;
 
 public class BackupUtil {
 
   private static final String TAG = BackupUtil.class.getSimpleName();
 
+  public static final String FULL_BACKUP_EXTENSION        = "backup";
+  public static final String INCREMENTAL_BACKUP_EXTENSION = "delta";
+
   public static @NonNull String getLastBackupTime(@NonNull Context context, @NonNull Locale locale) {
     try {
       BackupInfo backup = getLatestBackup();
@@ -32,20 +39,54 @@ public class BackupUtil {
     }
   }
 
+  /**
+   * @return The most recent full backup together with the incremental backups written on top of
+   *         it, if any.
+   */
   public static @Nullable BackupInfo getLatestBackup() throws NoExternalStorageException {
-    File       backupDirectory = StorageUtil.getBackupDirectory();
-    File[]     backups         = backupDirectory.listFiles();
-    BackupInfo latestBackup    = null;
+    File   backupDirectory = StorageUtil.getBackupDirectory();
+    File[] backups         = backupDirectory.listFiles();
+    File   latestBackup    = null;
+    long   latestTimestamp = -1;
 
     for (File backup : backups) {
       long backupTimestamp = getBackupTimestamp(backup);
 
-      if (latestBackup == null || (backupTimestamp != -1 && backupTimestamp > latestBackup.getTimestamp())) {
-        latestBackup = new BackupInfo(backupTimestamp, backup.length(), backup);
+      if (!isIncrementalBackup(backup) && (latestBackup == null || (backupTimestamp != -1 && backupTimestamp > latestTimestamp))) {
+        latestBackup    = backup;
+        latestTimestamp = backupTimestamp;
       }
     }
 
-    return latestBackup;
+    if (latestBackup == null) {
+      return null;
+    }
+
+    List<File> increments = new LinkedList<>();
+
+    for (File backup : backups) {
+      if (isIncrementalBackup(backup) && latestTimestamp != -1 && getBackupTimestamp(backup) > latestTimestamp) {
+        increments.add(backup);
+      }
+    }
+
+    Collections.sort(increments, (left, right) -> Long.compare(getBackupTimestamp(left), getBackupTimestamp(right)));
+
+    List<File> files = new ArrayList<>(increments.size() + 1);
+    long       size  = latestBackup.length();
+
+    files.add(latestBackup);
+
+    for (File increment : increments) {
+      files.add(increment);
+      size += increment.length();
+    }
+
+    return new BackupInfo(getBackupTimestamp(files.get(files.size() - 1)), size, files);
+  }
+
+  public static boolean isIncrementalBackup(@NonNull File backup) {
+    return backup.getName().endsWith("." + INCREMENTAL_BACKUP_EXTENSION);
   }
 
   @SuppressWarnings("ResultOfMethodCallIgnored")
@@ -62,6 +103,10 @@ public class BackupUtil {
     }
   }
 
+  /**
+   * Keeps the two most recent full backups, along with the incremental backups written on top of
+   * them, and deletes everything else.
+   */
   public static void deleteOldBackups() {
     try {
       File   backupDirectory = StorageUtil.getBackupDirectory();
@@ -79,11 +124,18 @@ public class BackupUtil {
           return (int)(rightTimestamp - leftTimestamp);
         });
 
-        for (int i=2;i<backups.length;i++) {
-          Log.i(TAG, "Deleting: " + backups[i].getAbsolutePath());
+        int fullBackups = 0;
+
+        for (File backup : backups) {
+          if (fullBackups < 2) {
+            if (!isIncrementalBackup(backup)) fullBackups++;
+            continue;
+          }
+
+          Log.i(TAG, "Deleting: " + backup.getAbsolutePath());
 
-          if (!backups[i].delete()) {
-            Log.w(TAG, "Delete failed: " + backups[i].getAbsolutePath());
+          if (!backup.delete()) {
+            Log.w(TAG, "Delete failed: " + backup.getAbsolutePath());
           }
         }
       }
@@ -135,14 +187,14 @@ public class BackupUtil {
 
   public static class BackupInfo {
 
-    private final long timestamp;
-    private final long size;
-    private final File file;
+    private final long       timestamp;
+    private final long       size;
+    private final List<File> files;
 
-    BackupInfo(long timestamp, long size, File file) {
+    BackupInfo(long timestamp, long size, List<File> files) {
       this.timestamp = timestamp;
       this.size      = size;
-      this.file      = file;
+      this.files     = files;
     }
 
     public long getTimestamp() {
@@ -153,8 +205,11 @@ public class BackupUtil {
       return size;
     }
 
-    public File getFile() {
-      return file;
+    /**
+     * @return The full backup followed by its incremental backups, in the order they were written.
+     */
+    public List<File> getFiles() {
+      return files;
     }
   }
 }
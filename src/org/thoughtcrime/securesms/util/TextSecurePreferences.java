@@ -145,6 +145,8 @@ public class TextSecurePreferences {
   private static final String BACKUP_TIME                 = "pref_backup_next_time";
   public  static final String BACKUP_NOW                  = "pref_backup_create";
 
+  private static final String THREAD_CONSISTENCY_TIME = "pref_thread_consistency_next_time";
+
   public static final String SCREEN_LOCK         = "pref_android_screen_lock";
   public static final String SCREEN_LOCK_TIMEOUT = "pref_android_screen_lock_timeout";
 
@@ -263,6 +265,14 @@ public class TextSecurePreferences {
     return getLongPreference(context, BACKUP_TIME, -1);
   }
 
+  public static void setNextThreadConsistencyCheckTime(@NonNull Context context, long time) {
+    setLongPreference(context, THREAD_CONSISTENCY_TIME, time);
+  }
+
+  public static long getNextThreadConsistencyCheckTime(@NonNull Context context) {
+    return getLongPreference(context, THREAD_CONSISTENCY_TIME, 0);
+  }
+
   public static int getNextPreKeyId(@NonNull Context context) {
     return getIntegerPreference(context, NEXT_PRE_KEY_ID, new SecureRandom().nextInt(Medium.MAX_VALUE));
   }
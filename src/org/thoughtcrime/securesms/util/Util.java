@@ -124,6 +124,14 @@ public class Util {
     return executor;
   }
 
+  public static ExecutorService newLifoExecutor(int threads) {
+    return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingLifoQueue<Runnable>(), r -> {
+      Thread thread = new Thread(r);
+      thread.setPriority(Thread.MIN_PRIORITY);
+      return thread;
+    });
+  }
+
   public static boolean isEmpty(EncodedStringValue[] value) {
     return value == null || value.length == 0;
   }
@@ -22,6 +22,16 @@ public class SignalExecutors {
     return executor;
   }
 
+  /**
+   * @return An executor with up to maxThreads threads, which are torn down once they've been idle
+   *         for a while. Tasks beyond that are queued.
+   */
+  public static ExecutorService newCachedBoundedExecutor(final String name, int maxThreads) {
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(maxThreads, maxThreads, 15, TimeUnit.SECONDS, new LinkedBlockingQueue<>(), new NumberedThreadFactory(name));
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   private static class NumberedThreadFactory implements ThreadFactory {
 
     private final String        baseName;
@@ -9,7 +9,7 @@ import androidx.annotation.Nullable;
 
 import org.thoughtcrime.securesms.crypto.AttachmentSecret;
 import org.thoughtcrime.securesms.crypto.ClassicDecryptingPartInputStream;
-import org.thoughtcrime.securesms.crypto.ModernDecryptingPartInputStream;
+import org.thoughtcrime.securesms.crypto.ModernDecryptingPartFile;
 import org.thoughtcrime.securesms.util.Util;
 
 import java.io.File;
@@ -24,6 +24,8 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   private final byte[]           random;
   private final long             length;
 
+  private ModernDecryptingPartFile partFile;
+
   public EncryptedMediaDataSource(@NonNull AttachmentSecret attachmentSecret, @NonNull File mediaFile, @Nullable byte[] random, long length) {
     this.attachmentSecret = attachmentSecret;
     this.mediaFile        = mediaFile;
@@ -55,15 +57,14 @@ public class EncryptedMediaDataSource extends MediaDataSource {
     return returnValue;
   }
 
-  private int readAtModern(long position, byte[] bytes, int offset, int length) throws IOException {
+  private synchronized int readAtModern(long position, byte[] bytes, int offset, int length) throws IOException {
     assert(random != null);
 
-    InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, mediaFile, position);
-    int         returnValue = inputStream.read(bytes, offset, length);
-
-    inputStream.close();
+    if (partFile == null) {
+      partFile = ModernDecryptingPartFile.open(attachmentSecret, random, mediaFile);
+    }
 
-    return returnValue;
+    return partFile.read(position, bytes, offset, length);
   }
 
   @Override
@@ -72,7 +73,10 @@ public class EncryptedMediaDataSource extends MediaDataSource {
   }
 
   @Override
-  public void close() throws IOException {
-
+  public synchronized void close() throws IOException {
+    if (partFile != null) {
+      partFile.close();
+      partFile = null;
+    }
   }
 }
@@ -0,0 +1,49 @@
+package org.thoughtcrime.securesms.attachments;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+public final class AttachmentServerTest {
+
+  @Test
+  public void parseRange_openEnded() {
+    assertArrayEquals(new long[] { 100, 999 }, AttachmentServer.parseRange("bytes=100-", 1000));
+  }
+
+  @Test
+  public void parseRange_bounded() {
+    assertArrayEquals(new long[] { 0, 499 }, AttachmentServer.parseRange("bytes=0-499", 1000));
+  }
+
+  @Test
+  public void parseRange_endPastSize() {
+    assertArrayEquals(new long[] { 500, 999 }, AttachmentServer.parseRange("bytes=500-5000", 1000));
+  }
+
+  @Test
+  public void parseRange_suffix() {
+    assertArrayEquals(new long[] { 900, 999 }, AttachmentServer.parseRange("bytes=-100", 1000));
+    assertArrayEquals(new long[] { 0, 999 }, AttachmentServer.parseRange("bytes=-5000", 1000));
+  }
+
+  @Test
+  public void parseRange_multipleRanges_usesFirst() {
+    assertArrayEquals(new long[] { 0, 9 }, AttachmentServer.parseRange("bytes=0-9, 20-29", 1000));
+  }
+
+  @Test
+  public void parseRange_unsatisfiable() {
+    assertNull(AttachmentServer.parseRange("bytes=1000-", 1000));
+    assertNull(AttachmentServer.parseRange("bytes=500-100", 1000));
+    assertNull(AttachmentServer.parseRange("bytes=-0", 1000));
+  }
+
+  @Test
+  public void parseRange_malformed() {
+    assertNull(AttachmentServer.parseRange("items=0-10", 1000));
+    assertNull(AttachmentServer.parseRange("bytes=abc-", 1000));
+    assertNull(AttachmentServer.parseRange("bytes=100", 1000));
+  }
+}
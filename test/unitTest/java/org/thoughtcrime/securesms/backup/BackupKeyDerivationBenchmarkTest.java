@@ -0,0 +1,49 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the original legacy key derivation with the current one and with scrypt. Each run
+ * takes seconds, so this is ignored in the unit suite and meant to be run by hand.
+ */
+@Ignore("Benchmark")
+public class BackupKeyDerivationBenchmarkTest {
+
+  private static final String PASSPHRASE = "123456789012345678901234567890";
+  private static final byte[] SALT       = "0123456789abcdef0123456789abcdef".getBytes();
+
+  private static final int RUNS = 3;
+
+  @Test
+  public void compareKeyDerivations() throws Exception {
+    byte[] expected = BackupKeyDerivationTest.originalLegacyKey(PASSPHRASE, SALT);
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < RUNS; i++) {
+      BackupKeyDerivationTest.originalLegacyKey(PASSPHRASE, SALT);
+    }
+
+    long originalEnd = System.nanoTime();
+
+    for (int i = 0; i < RUNS; i++) {
+      assertArrayEquals(expected, BackupKeyDerivation.deriveKey(PASSPHRASE, SALT, BackupKeyDerivation.LEGACY, null));
+    }
+
+    long legacyEnd = System.nanoTime();
+
+    for (int i = 0; i < RUNS; i++) {
+      assertEquals(32, BackupKeyDerivation.deriveKey(PASSPHRASE, SALT, BackupKeyDerivation.SCRYPT, null).length);
+    }
+
+    long scryptEnd = System.nanoTime();
+
+    System.out.println("[BackupKeyDerivationBenchmarkTest] original legacy: " + ((originalEnd - start) / RUNS / 1_000_000) + " ms" +
+                       ", legacy: " + ((legacyEnd - originalEnd) / RUNS / 1_000_000) + " ms" +
+                       ", scrypt: " + ((scryptEnd - legacyEnd) / RUNS / 1_000_000) + " ms");
+  }
+}
@@ -0,0 +1,119 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.Test;
+import org.thoughtcrime.securesms.util.Hex;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class BackupKeyDerivationTest {
+
+  private static final byte[] SALT = "0123456789abcdef0123456789abcdef".getBytes();
+
+  @Test
+  public void legacy_matchesOriginalImplementation() throws Exception {
+    byte[] result = BackupKeyDerivation.deriveKey("ab cd ef", SALT, BackupKeyDerivation.LEGACY, null);
+
+    assertEquals(32, result.length);
+    assertArrayEquals(originalLegacyKey("ab cd ef", SALT), result);
+  }
+
+  @Test
+  public void legacy_noSalt_matchesOriginalImplementation() throws Exception {
+    byte[] result = BackupKeyDerivation.deriveKey("123456789012345678901234567890", null, BackupKeyDerivation.LEGACY, null);
+
+    assertArrayEquals(originalLegacyKey("123456789012345678901234567890", null), result);
+  }
+
+  @Test
+  public void scrypt_emptyPassphrase() throws Exception {
+    byte[] result = BackupKeyDerivation.scrypt(new byte[0], new byte[0], 16, 1, 1, 64, null);
+
+    assertArrayEquals(Hex.fromStringCondensed("77d6576238657b203b19ca42c18a0497f16b4844e3074ae8dfdffa3fede21442fcd0069ded0948f8326a753a0fc81f17e8d3e0fb2e0d3628cf35e20c38d18906"), result);
+  }
+
+  @Test
+  public void scrypt_multipleBlocks() throws Exception {
+    byte[] result = BackupKeyDerivation.scrypt("password".getBytes(), "NaCl".getBytes(), 1024, 8, 16, 64, null);
+
+    assertArrayEquals(Hex.fromStringCondensed("fdbabe1c9d3472007856e7190d01e9fe7c6ad7cbc8237830e77376634b3731622eaf30d92e22a3886ff109279d9830dac727afb94a83ee6d8360cbdfa2cc0640"), result);
+  }
+
+  @Test
+  public void scrypt_backupParameters() throws Exception {
+    byte[] result = BackupKeyDerivation.deriveKey("please let me in", "SodiumChloride".getBytes(), BackupKeyDerivation.SCRYPT, null);
+
+    assertArrayEquals(Arrays.copyOf(Hex.fromStringCondensed("7023bdcb3afd7348461c06cd81fd38ebfda8fbba904f8e3ea9b543f6545da1f2d5432955613f0fcf62d49705242a9af9e61e85dc0d651e40dfcf017b45575887"), 32), result);
+  }
+
+  @Test
+  public void legacy_samePassphraseAndSalt_sameKey() throws Exception {
+    byte[] first  = BackupKeyDerivation.deriveKey("1234 5678 9012", SALT, BackupKeyDerivation.LEGACY, null);
+    byte[] second = BackupKeyDerivation.deriveKey("123456789012", SALT.clone(), BackupKeyDerivation.LEGACY, () -> false);
+
+    assertArrayEquals(first, second);
+  }
+
+  @Test
+  public void scrypt_samePassphraseAndSalt_sameKey() throws Exception {
+    byte[] first  = BackupKeyDerivation.deriveKey("1234 5678 9012", SALT, BackupKeyDerivation.SCRYPT, null);
+    byte[] second = BackupKeyDerivation.deriveKey("123456789012", SALT.clone(), BackupKeyDerivation.SCRYPT, () -> false);
+
+    assertEquals(32, first.length);
+    assertArrayEquals(first, second);
+  }
+
+  @Test
+  public void differentSalt_differentKey() throws Exception {
+    byte[] otherSalt = SALT.clone();
+    otherSalt[0] ^= 1;
+
+    assertFalse(Arrays.equals(BackupKeyDerivation.deriveKey("passphrase", SALT, BackupKeyDerivation.LEGACY, null),
+                              BackupKeyDerivation.deriveKey("passphrase", otherSalt, BackupKeyDerivation.LEGACY, null)));
+    assertFalse(Arrays.equals(BackupKeyDerivation.deriveKey("passphrase", SALT, BackupKeyDerivation.SCRYPT, null),
+                              BackupKeyDerivation.deriveKey("passphrase", otherSalt, BackupKeyDerivation.SCRYPT, null)));
+  }
+
+  @Test(expected = BackupKeyDerivation.CanceledException.class)
+  public void legacy_canceled() throws Exception {
+    BackupKeyDerivation.deriveKey("passphrase", SALT, BackupKeyDerivation.LEGACY, () -> true);
+  }
+
+  @Test(expected = BackupKeyDerivation.CanceledException.class)
+  public void scrypt_canceled() throws Exception {
+    BackupKeyDerivation.deriveKey("passphrase", SALT, BackupKeyDerivation.SCRYPT, () -> true);
+  }
+
+  @Test
+  public void unknownKeyDerivation_throws() {
+    try {
+      BackupKeyDerivation.deriveKey("passphrase", SALT, 99, null);
+      fail();
+    } catch (BackupKeyDerivation.CanceledException e) {
+      fail();
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  static byte[] originalLegacyKey(String passphrase, byte[] salt) throws Exception {
+    MessageDigest digest = MessageDigest.getInstance("SHA-512");
+    byte[]        input  = passphrase.replace(" ", "").getBytes();
+    byte[]        hash   = input;
+
+    if (salt != null) digest.update(salt);
+
+    for (int i = 0; i < 250000; i++) {
+      digest.update(hash);
+      hash = digest.digest(input);
+    }
+
+    return Arrays.copyOf(hash, 32);
+  }
+}
@@ -0,0 +1,77 @@
+package org.thoughtcrime.securesms.backup;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BackupManifestTest {
+
+  private static final byte[] IV            = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+  private static final byte[] SCHEMA_DIGEST = BackupManifest.digestSchema(Arrays.asList("CREATE TABLE a (_id INTEGER PRIMARY KEY)", "CREATE TABLE b (_id INTEGER PRIMARY KEY)"));
+
+  @Test
+  public void serialize_roundTrip() throws Exception {
+    BackupManifest.RowDigests rows = new BackupManifest.RowDigests();
+
+    for (int i = 0; i < 100; i++) {
+      rows.add(i * 2, i * 31L);
+    }
+
+    Map<String, BackupManifest.RowDigests> tables = new HashMap<>();
+    tables.put("a", rows);
+
+    BackupManifest manifest = new BackupManifest(5, SCHEMA_DIGEST, IV, Arrays.asList("signal-1.backup", "signal-2.delta"), tables);
+    BackupManifest result   = roundTrip(manifest, "signal-3.delta");
+
+    assertTrue(result.isIncremental());
+    assertArrayEquals(IV, result.getIv());
+    assertEquals(Arrays.asList("signal-1.backup", "signal-2.delta", "signal-3.delta"), result.getChain());
+    assertTrue(result.isCompatible(5, SCHEMA_DIGEST));
+    assertNull(result.getRowDigests("b"));
+
+    BackupManifest.RowDigests resultRows = result.getRowDigests("a");
+
+    assertEquals(100, resultRows.size());
+
+    for (int i = 0; i < 100; i++) {
+      assertEquals(i * 2, resultRows.getRowId(i));
+      assertEquals(i * 31L, resultRows.getDigest(i));
+    }
+  }
+
+  @Test
+  public void fullBackup_isNotIncremental() throws Exception {
+    BackupManifest manifest = new BackupManifest(5, SCHEMA_DIGEST, IV, Collections.emptyList(), new HashMap<>());
+
+    assertFalse(manifest.isIncremental());
+    assertEquals(Collections.singletonList("signal-1.backup"), roundTrip(manifest, "signal-1.backup").getChain());
+  }
+
+  @Test
+  public void isCompatible_schemaOrVersionChanged() {
+    BackupManifest manifest      = new BackupManifest(5, SCHEMA_DIGEST, IV, Collections.emptyList(), new HashMap<>());
+    byte[]         changedSchema = BackupManifest.digestSchema(Arrays.asList("CREATE TABLE a (_id INTEGER PRIMARY KEY)", "CREATE TABLE b (_id INTEGER PRIMARY KEY, c TEXT)"));
+
+    assertFalse(manifest.isCompatible(6, SCHEMA_DIGEST));
+    assertFalse(manifest.isCompatible(5, changedSchema));
+  }
+
+  private static BackupManifest roundTrip(BackupManifest manifest, String fileName) throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    manifest.serialize(out, fileName);
+
+    return BackupManifest.deserialize(new ByteArrayInputStream(out.toByteArray()));
+  }
+}
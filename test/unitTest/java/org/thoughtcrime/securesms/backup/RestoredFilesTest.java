@@ -0,0 +1,101 @@
+package org.thoughtcrime.securesms.backup;
+
+import android.app.Application;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.AttachmentDatabase;
+import org.thoughtcrime.securesms.database.StickerDatabase;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class RestoredFilesTest {
+
+  private SQLiteDatabase database;
+  private Cursor         attachmentCursor;
+
+  @Before
+  public void setUp() {
+    database         = mock(SQLiteDatabase.class);
+    attachmentCursor = mock(Cursor.class);
+
+    when(database.query(eq(AttachmentDatabase.TABLE_NAME), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString())).thenReturn(attachmentCursor);
+  }
+
+  @Test
+  public void findUnreferenced_twoDeltasOverSameAttachment_onlyLatestFileKept() {
+    File full   = new File("/parts/part1.mms");
+    File delta1 = new File("/parts/part2.mms");
+    File delta2 = new File("/parts/part3.mms");
+
+    RestoredFiles restored = new RestoredFiles();
+    restored.addAttachment(full);
+    restored.addAttachment(delta1);
+    restored.addAttachment(delta2);
+
+    when(attachmentCursor.moveToNext()).thenReturn(true, true, false);
+    when(attachmentCursor.getString(0)).thenReturn(delta2.getAbsolutePath(), "/parts/other.mms");
+
+    List<File> unreferenced = restored.findUnreferenced(database);
+
+    assertEquals(new HashSet<>(Arrays.asList(full, delta1)), new HashSet<>(unreferenced));
+  }
+
+  @Test
+  public void findUnreferenced_deletedRow_fileIsUnreferenced() {
+    File file = new File("/parts/part1.mms");
+
+    RestoredFiles restored = new RestoredFiles();
+    restored.addAttachment(file);
+
+    when(attachmentCursor.moveToNext()).thenReturn(false);
+
+    assertEquals(Arrays.asList(file), restored.findUnreferenced(database));
+  }
+
+  @Test
+  public void findUnreferenced_allReferenced_nothingReturned() {
+    File file = new File("/parts/part1.mms");
+
+    RestoredFiles restored = new RestoredFiles();
+    restored.addAttachment(file);
+
+    when(attachmentCursor.moveToNext()).thenReturn(true, false);
+    when(attachmentCursor.getString(0)).thenReturn(file.getAbsolutePath());
+
+    assertTrue(restored.findUnreferenced(database).isEmpty());
+  }
+
+  @Test
+  public void findUnreferenced_noStickersRestored_stickerTableNotQueried() {
+    RestoredFiles restored = new RestoredFiles();
+    restored.addAttachment(new File("/parts/part1.mms"));
+
+    when(attachmentCursor.moveToNext()).thenReturn(false);
+
+    restored.findUnreferenced(database);
+
+    verify(database, never()).query(eq(StickerDatabase.TABLE_NAME), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString());
+  }
+}
@@ -0,0 +1,142 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares finding emoji by checking every candidate end index from the root of the tree, which is
+ * how EmojiParser used to work, with the single walk it does now, over a generated corpus. Run it
+ * by hand; {@link EmojiParserTest} and {@link EmojiTreeTest} are what the unit suite runs.
+ */
+@Ignore("Benchmark")
+public final class EmojiParserBenchmarkTest {
+
+  private static final int MESSAGES = 20_000;
+
+  private static final String[] EMOJI = {
+      "\u2764",                                              // heart, drawn with or without FE0F
+      "\u2764\uFE0F",
+      "\uD83D\uDE00",                                        // grinning face
+      "\uD83D\uDE02",                                        // tears of joy
+      "\uD83D\uDC4D",                                        // thumbs up
+      "\uD83C\uDF89",                                        // party popper
+      "\uD83D\uDC68\u200D\uD83D\uDC69\u200D\uD83D\uDC67",    // family
+      "\uD83D\uDC68\u200D\uD83D\uDCBB",                      // technologist
+      "\uD83C\uDDFA\uD83C\uDDF8",                            // flag
+      "\u263A\uFE0F",                                        // smiling face, only with FE0F
+  };
+
+  private static final String[] WORDS = {
+      "hey", "are", "you", "coming", "tonight", "?", "lol", "ok", "see", "you", "at", "8",
+      "thanks", "for", "the", "photos", "https://signal.org", "haha", "that's", "amazing", "!"
+  };
+
+  private EmojiTree          tree;
+  private List<CharSequence> corpus;
+
+  @Before
+  public void setUp() {
+    tree = new EmojiTree();
+
+    for (int i = 0; i < EMOJI.length; i++) {
+      tree.add(EMOJI[i], new EmojiDrawInfo(null, i));
+    }
+
+    corpus = buildCorpus(new Random(1));
+  }
+
+  @Test
+  public void compareRootWalksAndSinglePass() {
+    EmojiParser parser = new EmojiParser(tree);
+
+    long start = System.nanoTime();
+
+    List<List<int[]>> expected = new ArrayList<>(corpus.size());
+    for (CharSequence message : corpus) {
+      expected.add(findWithRootWalks(message));
+    }
+
+    long rootWalksEnd = System.nanoTime();
+
+    List<EmojiParser.CandidateList> actual = new ArrayList<>(corpus.size());
+    for (CharSequence message : corpus) {
+      actual.add(parser.findCandidates(message));
+    }
+
+    long singlePassEnd = System.nanoTime();
+
+    int emojiCount = 0;
+
+    for (int i = 0; i < corpus.size(); i++) {
+      assertEquals(expected.get(i).size(), actual.get(i).size());
+
+      for (int j = 0; j < expected.get(i).size(); j++) {
+        assertEquals(expected.get(i).get(j)[0], actual.get(i).list.get(j).getStartIndex());
+        assertEquals(expected.get(i).get(j)[1], actual.get(i).list.get(j).getEndIndex());
+      }
+
+      emojiCount += actual.get(i).size();
+    }
+
+    System.out.println("[EmojiParserBenchmarkTest] " + MESSAGES + " messages, " + emojiCount + " emoji" +
+                       ", root walks: " + ((rootWalksEnd - start) / 1_000_000) + " ms" +
+                       ", single pass: " + ((singlePassEnd - rootWalksEnd) / 1_000_000) + " ms");
+  }
+
+  private List<int[]> findWithRootWalks(CharSequence text) {
+    List<int[]> results = new ArrayList<>();
+
+    for (int i = 0; i < text.length(); i++) {
+      int best = -1;
+
+      for (int j = i + 1; j <= text.length(); j++) {
+        EmojiTree.Matches status = tree.isEmoji(text, i, j);
+
+        if      (status.exactMatch())      best = j;
+        else if (status.impossibleMatch()) break;
+      }
+
+      if (best != -1) {
+        if (best + 2 <= text.length() && Fitzpatrick.fitzpatrickFromUnicode(text, best) != null) {
+          best += 2;
+        }
+
+        results.add(new int[] { i, best });
+        i = best - 1;
+      }
+    }
+
+    return results;
+  }
+
+  private static List<CharSequence> buildCorpus(Random random) {
+    List<CharSequence> corpus = new ArrayList<>(MESSAGES);
+
+    for (int i = 0; i < MESSAGES; i++) {
+      StringBuilder message = new StringBuilder();
+      int           words   = 1 + random.nextInt(30);
+
+      for (int j = 0; j < words; j++) {
+        if (j > 0) message.append(' ');
+
+        if (random.nextInt(6) == 0) {
+          message.append(EMOJI[random.nextInt(EMOJI.length)]);
+          if (random.nextInt(4) == 0) message.append(Fitzpatrick.TYPE_1_2.unicode);
+        } else {
+          message.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+      }
+
+      corpus.add(message);
+    }
+
+    return corpus;
+  }
+}
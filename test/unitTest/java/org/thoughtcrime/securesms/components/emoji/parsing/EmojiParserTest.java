@@ -0,0 +1,81 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public final class EmojiParserTest {
+
+  private static final String HEART        = "\u2764";
+  private static final String THUMBS_UP    = "\uD83D\uDC4D";
+  private static final String FAMILY       = "\uD83D\uDC68\u200D\uD83D\uDC69\u200D\uD83D\uDC67";
+  private static final String SMILING_FACE = "\u263A\uFE0F";
+
+  private EmojiTree     tree;
+  private EmojiDrawInfo familyDrawInfo;
+  private EmojiDrawInfo smilingFaceDrawInfo;
+
+  @Before
+  public void setUp() {
+    tree                = new EmojiTree();
+    familyDrawInfo      = new EmojiDrawInfo(null, 2);
+    smilingFaceDrawInfo = new EmojiDrawInfo(null, 3);
+
+    tree.add(HEART, new EmojiDrawInfo(null, 0));
+    tree.add(THUMBS_UP, new EmojiDrawInfo(null, 1));
+    tree.add(FAMILY, familyDrawInfo);
+    tree.add(SMILING_FACE, smilingFaceDrawInfo);
+  }
+
+  @Test
+  public void findCandidates_plainText() {
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates("no emoji here");
+
+    assertEquals(0, candidates.size());
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_longestMatchWins() {
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(FAMILY);
+
+    assertEquals(1, candidates.size());
+    assertEquals(FAMILY.length(), candidates.list.get(0).getEndIndex());
+    assertSame(familyDrawInfo, candidates.list.get(0).getDrawInfo());
+    assertTrue(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_missingTerminator() {
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates("a\u263A");
+
+    assertEquals(1, candidates.size());
+    assertEquals(1, candidates.list.get(0).getStartIndex());
+    assertEquals(2, candidates.list.get(0).getEndIndex());
+    assertSame(smilingFaceDrawInfo, candidates.list.get(0).getDrawInfo());
+  }
+
+  @Test
+  public void findCandidates_skinTone() {
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(THUMBS_UP + Fitzpatrick.TYPE_3.unicode + "!");
+
+    assertEquals(1, candidates.size());
+    assertEquals(4, candidates.list.get(0).getEndIndex());
+    assertFalse(candidates.allEmojis);
+  }
+
+  @Test
+  public void findCandidates_adjacentEmoji() {
+    EmojiParser.CandidateList candidates = new EmojiParser(tree).findCandidates(HEART + THUMBS_UP + HEART);
+
+    assertEquals(3, candidates.size());
+    assertEquals(0, candidates.list.get(0).getStartIndex());
+    assertEquals(1, candidates.list.get(1).getStartIndex());
+    assertEquals(3, candidates.list.get(2).getStartIndex());
+    assertTrue(candidates.allEmojis);
+  }
+}
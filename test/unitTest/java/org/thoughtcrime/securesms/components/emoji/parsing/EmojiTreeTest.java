@@ -0,0 +1,70 @@
+package org.thoughtcrime.securesms.components.emoji.parsing;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public final class EmojiTreeTest {
+
+  private static final String MAN          = "\uD83D\uDC68";
+  private static final String WOMAN        = "\uD83D\uDC69";
+  private static final String GIRL         = "\uD83D\uDC67";
+  private static final String LAPTOP       = "\uD83D\uDCBB";
+  private static final String ZWJ          = "\u200D";
+  private static final String FLAG_US      = "\uD83C\uDDFA\uD83C\uDDF8";
+  private static final String TECHNOLOGIST = MAN + ZWJ + LAPTOP;
+  private static final String FAMILY       = MAN + ZWJ + WOMAN + ZWJ + GIRL;
+  private static final String SMILING_FACE = "\u263A\uFE0F";
+
+  private EmojiTree tree;
+
+  @Before
+  public void setUp() {
+    tree = new EmojiTree();
+
+    tree.add(MAN, new EmojiDrawInfo(null, 0));
+    tree.add(TECHNOLOGIST, new EmojiDrawInfo(null, 1));
+    tree.add(FAMILY, new EmojiDrawInfo(null, 2));
+    tree.add(FLAG_US, new EmojiDrawInfo(null, 3));
+    tree.add(SMILING_FACE, new EmojiDrawInfo(null, 4));
+  }
+
+  @Test
+  public void getEmojiEndPos_multiCodepoint() {
+    assertEquals(FLAG_US.length(), tree.getEmojiEndPos(FLAG_US, 0));
+    assertEquals(1 + FLAG_US.length(), tree.getEmojiEndPos("a" + FLAG_US + "b", 1));
+  }
+
+  @Test
+  public void getEmojiEndPos_zwjSequence_longestMatch() {
+    assertEquals(TECHNOLOGIST.length(), tree.getEmojiEndPos(TECHNOLOGIST, 0));
+    assertEquals(FAMILY.length(), tree.getEmojiEndPos(FAMILY + "!", 0));
+  }
+
+  @Test
+  public void getEmojiEndPos_partialZwjSequence_fallsBackToLastTerminal() {
+    assertEquals(MAN.length(), tree.getEmojiEndPos(MAN + ZWJ + WOMAN, 0));
+    assertEquals(MAN.length(), tree.getEmojiEndPos(MAN + ZWJ + WOMAN + ZWJ, 0));
+  }
+
+  @Test
+  public void getEmojiEndPos_prefixWithoutTerminalNode() {
+    assertEquals(-1, tree.getEmojiEndPos(FLAG_US.substring(0, 2), 0));
+    assertEquals(-1, tree.getEmojiEndPos(FLAG_US.substring(0, 3), 0));
+    assertEquals(-1, tree.getEmojiEndPos(ZWJ + LAPTOP, 0));
+  }
+
+  @Test
+  public void getEmojiEndPos_missingTerminator() {
+    assertEquals(1, tree.getEmojiEndPos("\u263A", 0));
+    assertEquals(1, tree.getEmojiEndPos("\u263A!", 0));
+    assertEquals(SMILING_FACE.length(), tree.getEmojiEndPos(SMILING_FACE, 0));
+  }
+
+  @Test
+  public void getEmojiEndPos_noEmoji() {
+    assertEquals(-1, tree.getEmojiEndPos("hello", 0));
+    assertEquals(-1, tree.getEmojiEndPos(MAN, MAN.length()));
+  }
+}
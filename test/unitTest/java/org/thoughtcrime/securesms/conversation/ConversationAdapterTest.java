@@ -3,7 +3,6 @@ package org.thoughtcrime.securesms.conversation;
 import android.database.Cursor;
 
 import org.junit.Before;
-import org.junit.Ignore;
 import org.junit.Test;
 import org.thoughtcrime.securesms.BaseUnitTest;
 import org.thoughtcrime.securesms.conversation.ConversationAdapter;
@@ -27,15 +26,12 @@ public class ConversationAdapterTest extends BaseUnitTest {
   }
 
   @Test
-  @Ignore("TODO: Fix test")
-  public void testGetItemIdEquals() throws Exception {
-    when(cursor.getString(anyInt())).thenReturn(null).thenReturn("SMS::1::1");
+  public void testGetItemIdComesFromQuery() throws Exception {
+    when(cursor.getLong(anyInt())).thenReturn(2L).thenReturn(3L);
     long firstId = adapter.getItemId(cursor);
-    when(cursor.getString(anyInt())).thenReturn(null).thenReturn("MMS::1::1");
     long secondId = adapter.getItemId(cursor);
+    assertEquals(2L, firstId);
+    assertEquals(3L, secondId);
     assertNotEquals(firstId, secondId);
-    when(cursor.getString(anyInt())).thenReturn(null).thenReturn("MMS::2::1");
-    long thirdId = adapter.getItemId(cursor);
-    assertNotEquals(secondId, thirdId);
   }
 }
\ No newline at end of file
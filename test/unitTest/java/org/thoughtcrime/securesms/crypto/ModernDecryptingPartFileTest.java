@@ -0,0 +1,127 @@
+package org.thoughtcrime.securesms.crypto;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public final class ModernDecryptingPartFileTest {
+
+  private static final int LENGTH = 100_003;
+
+  private AttachmentSecret attachmentSecret;
+  private byte[]           random;
+  private byte[]           plaintext;
+  private File             file;
+  private File             inlineFile;
+
+  @Before
+  public void setUp() throws Exception {
+    SecureRandom secureRandom = new SecureRandom();
+    byte[]       modernKey    = new byte[32];
+
+    random    = new byte[32];
+    plaintext = new byte[LENGTH];
+
+    secureRandom.nextBytes(modernKey);
+    secureRandom.nextBytes(random);
+    secureRandom.nextBytes(plaintext);
+
+    attachmentSecret = new AttachmentSecret(null, null, modernKey);
+    file             = encrypt(false);
+    inlineFile       = encrypt(true);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+    inlineFile.delete();
+  }
+
+  @Test
+  public void read_randomPositions() throws Exception {
+    Random rng = new Random(1);
+
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.open(attachmentSecret, random, file)) {
+      assertEquals(LENGTH, partFile.getLength());
+
+      for (int i = 0; i < 500; i++) {
+        int    position = rng.nextInt(LENGTH);
+        int    length   = 1 + rng.nextInt(20_000);
+        byte[] buffer   = new byte[length + 7];
+        int    read     = partFile.read(position, buffer, 7, length);
+
+        assertEquals(Math.min(length, LENGTH - position), read);
+        assertArrayEquals(Arrays.copyOfRange(plaintext, position, position + read), Arrays.copyOfRange(buffer, 7, 7 + read));
+      }
+    }
+  }
+
+  @Test
+  public void read_inlineRandom() throws Exception {
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.open(attachmentSecret, inlineFile)) {
+      byte[] buffer = new byte[100];
+
+      assertEquals(LENGTH, partFile.getLength());
+      assertEquals(100, partFile.read(50_001, buffer, 0, 100));
+      assertArrayEquals(Arrays.copyOfRange(plaintext, 50_001, 50_101), buffer);
+    }
+  }
+
+  @Test
+  public void read_pastEnd() throws Exception {
+    try (ModernDecryptingPartFile partFile = ModernDecryptingPartFile.open(attachmentSecret, random, file)) {
+      assertEquals(-1, partFile.read(LENGTH, new byte[10], 0, 10));
+      assertEquals(-1, partFile.read(LENGTH + 100, new byte[10], 0, 10));
+    }
+  }
+
+  @Test
+  public void inputStream_fromOffset() throws Exception {
+    try (InputStream inputStream = ModernDecryptingPartInputStream.createFor(attachmentSecret, random, file, 12_345)) {
+      byte[] buffer = new byte[LENGTH - 12_345 - 1000];
+      int    offset = 0;
+
+      assertEquals(plaintext[12_345] & 0xff, inputStream.read());
+      assertEquals(999, inputStream.skip(999));
+
+      while (offset < buffer.length) {
+        offset += inputStream.read(buffer, offset, buffer.length - offset);
+      }
+
+      assertArrayEquals(Arrays.copyOfRange(plaintext, 13_345, LENGTH), buffer);
+      assertEquals(-1, inputStream.read());
+    }
+  }
+
+  private File encrypt(boolean inline) throws Exception {
+    Mac mac = Mac.getInstance("HmacSHA256");
+    mac.init(new SecretKeySpec(attachmentSecret.getModernKey(), "HmacSHA256"));
+
+    Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(mac.doFinal(random), "AES"), new IvParameterSpec(new byte[16]));
+
+    File result = File.createTempFile("part", ".mms");
+
+    try (FileOutputStream out = new FileOutputStream(result)) {
+      if (inline) out.write(random);
+      out.write(cipher.doFinal(plaintext));
+    }
+
+    return result;
+  }
+}
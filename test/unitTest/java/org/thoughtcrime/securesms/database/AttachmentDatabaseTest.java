@@ -0,0 +1,230 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.content.ContentValues;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.attachments.AttachmentId;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class AttachmentDatabaseTest {
+
+  private static final AttachmentId ATTACHMENT_ID = new AttachmentId(1, 1);
+
+  private SQLiteDatabase     database;
+  private Cursor             rowCursor;
+  private Cursor             referenceCursor;
+  private File               dataFile;
+  private AttachmentDatabase attachmentDatabase;
+
+  @Before
+  public void setUp() throws Exception {
+    SQLCipherOpenHelper databaseHelper = mock(SQLCipherOpenHelper.class);
+
+    database        = mock(SQLiteDatabase.class);
+    rowCursor       = mock(Cursor.class);
+    referenceCursor = mock(Cursor.class);
+    dataFile        = File.createTempFile("part", ".mms");
+
+    when(databaseHelper.getWritableDatabase()).thenReturn(database);
+    when(databaseHelper.getReadableDatabase()).thenReturn(database);
+    when(database.query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString())).thenReturn(rowCursor);
+    when(database.query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString(), anyString())).thenReturn(referenceCursor);
+    when(rowCursor.moveToNext()).thenReturn(true, false);
+    when(rowCursor.getString(0)).thenReturn(dataFile.getAbsolutePath());
+
+    attachmentDatabase = spy(new AttachmentDatabase(RuntimeEnvironment.application, databaseHelper, null));
+
+    doAnswer(invocation -> new ByteArrayInputStream("content".getBytes())).when(attachmentDatabase).getDataStream(any(AttachmentId.class), anyString(), anyLong());
+  }
+
+  @Test
+  public void deleteAttachment_sharedDataFileIsKept() {
+    when(rowCursor.getString(3)).thenReturn("hash");
+    when(referenceCursor.moveToFirst()).thenReturn(true);
+
+    attachmentDatabase.deleteAttachment(ATTACHMENT_ID);
+
+    assertTrue(dataFile.exists());
+    dataFile.delete();
+  }
+
+  @Test
+  public void deleteAttachment_lastReferenceDeletesDataFile() {
+    when(rowCursor.getString(3)).thenReturn("hash");
+    when(referenceCursor.moveToFirst()).thenReturn(false);
+
+    attachmentDatabase.deleteAttachment(ATTACHMENT_ID);
+
+    assertFalse(dataFile.exists());
+  }
+
+  @Test
+  public void deleteAttachment_unhashedDataFileIsNeverShared() {
+    attachmentDatabase.deleteAttachment(ATTACHMENT_ID);
+
+    assertFalse(dataFile.exists());
+    verify(database, never()).query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString(), anyString());
+  }
+
+  @Test
+  public void deleteAttachmentsForMessage_sharedDataFileIsKept() {
+    when(rowCursor.getString(3)).thenReturn("hash");
+    when(referenceCursor.moveToFirst()).thenReturn(true);
+
+    attachmentDatabase.deleteAttachmentsForMessage(1);
+
+    verify(database).delete(eq(AttachmentDatabase.TABLE_NAME), eq(AttachmentDatabase.MMS_ID + " = ?"), any(String[].class));
+    assertTrue(dataFile.exists());
+    dataFile.delete();
+  }
+
+  @Test
+  public void deduplicate_existingContent_sharesExistingFile() throws Exception {
+    File   freshFile      = File.createTempFile("part", ".mms");
+    byte[] existingRandom = new byte[] {1, 2, 3};
+
+    when(referenceCursor.moveToFirst()).thenReturn(true);
+    when(referenceCursor.getString(0)).thenReturn(dataFile.getAbsolutePath());
+    when(referenceCursor.getBlob(1)).thenReturn(existingRandom);
+
+    AttachmentDatabase.DataInfo result = attachmentDatabase.deduplicate(database, new AttachmentDatabase.DataInfo(freshFile, 10, new byte[32], "hash"));
+
+    assertEquals(dataFile, result.file);
+    assertArrayEquals(existingRandom, result.random);
+    assertEquals(10, result.length);
+    assertEquals("hash", result.hash);
+    assertFalse(freshFile.exists());
+    dataFile.delete();
+  }
+
+  @Test
+  public void deduplicate_newContent_keepsFreshFile() throws Exception {
+    File                        freshFile = File.createTempFile("part", ".mms");
+    AttachmentDatabase.DataInfo fresh     = new AttachmentDatabase.DataInfo(freshFile, 10, new byte[32], "hash");
+
+    when(referenceCursor.moveToFirst()).thenReturn(false);
+
+    assertSame(fresh, attachmentDatabase.deduplicate(database, fresh));
+    assertTrue(freshFile.exists());
+    freshFile.delete();
+    dataFile.delete();
+  }
+
+  @Test
+  public void deduplicate_unhashedContent_isNotLookedUp() throws Exception {
+    File                        freshFile = File.createTempFile("part", ".mms");
+    AttachmentDatabase.DataInfo fresh     = new AttachmentDatabase.DataInfo(freshFile, 10, new byte[32], null);
+
+    assertSame(fresh, attachmentDatabase.deduplicate(database, fresh));
+    assertTrue(freshFile.exists());
+    verify(database, never()).query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString(), anyString());
+    freshFile.delete();
+    dataFile.delete();
+  }
+
+  @Test
+  public void deduplicateAttachments_duplicatesPointAtOneFileAndTheRestAreDeleted() throws Exception {
+    File duplicateFile = File.createTempFile("part", ".mms");
+
+    givenUnhashedAttachment(2, duplicateFile);
+    givenHashGroup(dataFile, duplicateFile);
+    givenDataReferenced(false);
+    when(database.update(anyString(), any(ContentValues.class), anyString(), any(String[].class))).thenReturn(1);
+
+    assertEquals(2, attachmentDatabase.deduplicateAttachments(0, 10));
+
+    ArgumentCaptor<ContentValues> values = ArgumentCaptor.forClass(ContentValues.class);
+    verify(database).update(eq(AttachmentDatabase.TABLE_NAME), values.capture(), contains(" != ?"), any(String[].class));
+
+    assertEquals(dataFile.getAbsolutePath(), values.getValue().getAsString(AttachmentDatabase.DATA));
+    assertTrue(dataFile.exists());
+    assertFalse(duplicateFile.exists());
+    dataFile.delete();
+  }
+
+  @Test
+  public void deduplicateAttachments_duplicateStillReferenced_fileIsKept() throws Exception {
+    File duplicateFile = File.createTempFile("part", ".mms");
+
+    givenUnhashedAttachment(2, duplicateFile);
+    givenHashGroup(dataFile, duplicateFile);
+    givenDataReferenced(true);
+    when(database.update(anyString(), any(ContentValues.class), anyString(), any(String[].class))).thenReturn(1);
+
+    attachmentDatabase.deduplicateAttachments(0, 10);
+
+    assertTrue(dataFile.exists());
+    assertTrue(duplicateFile.exists());
+    dataFile.delete();
+    duplicateFile.delete();
+  }
+
+  @Test
+  public void deduplicateAttachments_nothingLeft_returnsMinusOne() {
+    Cursor batch = mock(Cursor.class);
+
+    when(database.query(anyString(), any(String[].class), contains(AttachmentDatabase.DATA_HASH + " IS NULL"), any(String[].class), anyString(), anyString(), anyString(), anyString())).thenReturn(batch);
+
+    assertEquals(-1, attachmentDatabase.deduplicateAttachments(0, 10));
+    verify(database, never()).update(anyString(), any(ContentValues.class), anyString(), any(String[].class));
+    dataFile.delete();
+  }
+
+  private void givenUnhashedAttachment(long rowId, File file) {
+    Cursor batch = mock(Cursor.class);
+
+    when(batch.moveToNext()).thenReturn(true, false);
+    when(batch.getLong(0)).thenReturn(rowId);
+    when(batch.getLong(1)).thenReturn(rowId);
+    when(batch.getString(2)).thenReturn(file.getAbsolutePath());
+    when(database.query(anyString(), any(String[].class), contains(AttachmentDatabase.DATA_HASH + " IS NULL"), any(String[].class), anyString(), anyString(), anyString(), anyString())).thenReturn(batch);
+  }
+
+  private void givenHashGroup(File kept, File duplicate) {
+    Cursor group = mock(Cursor.class);
+
+    when(group.moveToNext()).thenReturn(true, true, false);
+    when(group.getString(0)).thenReturn(kept.getAbsolutePath(), duplicate.getAbsolutePath());
+    when(group.getBlob(1)).thenReturn(new byte[32]);
+    when(database.query(anyString(), any(String[].class), contains(AttachmentDatabase.DATA_HASH + " = ?"), any(String[].class), anyString(), anyString(), anyString())).thenReturn(group);
+  }
+
+  private void givenDataReferenced(boolean referenced) {
+    Cursor reference = mock(Cursor.class);
+
+    when(reference.moveToFirst()).thenReturn(referenced);
+    when(database.query(anyString(), any(String[].class), eq(AttachmentDatabase.DATA + " = ?"), any(String[].class), anyString(), anyString(), anyString(), anyString())).thenReturn(reference);
+  }
+}
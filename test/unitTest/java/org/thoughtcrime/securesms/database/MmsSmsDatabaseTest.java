@@ -0,0 +1,246 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.MessagingDatabase.SyncMessageId;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.contains;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class MmsSmsDatabaseTest {
+
+  private static final Address SENDER    = Address.fromSerialized("+15555550101");
+  private static final long    THREAD_ID = 7;
+
+  private SQLiteDatabase database;
+  private Cursor         cursor;
+  private ThreadDatabase threadDatabase;
+  private MmsSmsDatabase mmsSmsDatabase;
+
+  @Before
+  public void setUp() {
+    SQLCipherOpenHelper databaseHelper = mock(SQLCipherOpenHelper.class);
+
+    database       = mock(SQLiteDatabase.class);
+    cursor         = mock(Cursor.class);
+    threadDatabase = mock(ThreadDatabase.class);
+
+    when(databaseHelper.getReadableDatabase()).thenReturn(database);
+    when(databaseHelper.getWritableDatabase()).thenReturn(database);
+    when(database.rawQuery(anyString(), any(String[].class))).thenReturn(cursor);
+
+    mmsSmsDatabase = spy(new MmsSmsDatabase(RuntimeEnvironment.application, databaseHelper));
+
+    doReturn(threadDatabase).when(mmsSmsDatabase).getThreadDatabase();
+    doReturn(mock(GroupReceiptDatabase.class)).when(mmsSmsDatabase).getGroupReceiptDatabase();
+  }
+
+  @Test
+  public void incrementDeliveryReceiptCounts_burstIsAppliedInOneTransaction() {
+    givenSentSmsMessages(new long[] { 1, 2 }, new long[] { 1000, 2000 });
+
+    mmsSmsDatabase.incrementDeliveryReceiptCounts(Arrays.asList(new SyncMessageId(SENDER, 1000),
+                                                                new SyncMessageId(SENDER, 2000)),
+                                                  System.currentTimeMillis());
+
+    verify(database, times(1)).rawQuery(anyString(), any(String[].class));
+    verify(database, times(1)).beginTransaction();
+    verify(database).execSQL(anyString(), eq(new Object[] { 1, 0, 1L }));
+    verify(database).execSQL(anyString(), eq(new Object[] { 1, 0, 2L }));
+    verify(database).setTransactionSuccessful();
+    verify(threadDatabase, times(1)).updateIncremental(THREAD_ID, 0, false);
+  }
+
+  @Test
+  public void incrementReadReceiptCounts_receiptsForSameMessage_coalescedIntoOneUpdate() {
+    givenSentSmsMessages(new long[] { 1 }, new long[] { 1000 });
+
+    mmsSmsDatabase.incrementReadReceiptCounts(Arrays.asList(new SyncMessageId(SENDER, 1000),
+                                                            new SyncMessageId(SENDER, 1000)),
+                                              System.currentTimeMillis());
+
+    verify(database, times(1)).execSQL(anyString(), any(Object[].class));
+    verify(database).execSQL(anyString(), eq(new Object[] { 0, 2, 1L }));
+  }
+
+  @Test
+  public void incrementDeliveryReceiptCounts_noMatchingMessage_keptAsEarlyReceipt() {
+    when(cursor.moveToNext()).thenReturn(false);
+
+    mmsSmsDatabase.incrementDeliveryReceiptCounts(Collections.singletonList(new SyncMessageId(SENDER, 1000)), System.currentTimeMillis());
+
+    verify(database, never()).execSQL(anyString(), any(Object[].class));
+    assertEquals(Collections.singletonMap(SENDER, 1L), mmsSmsDatabase.removeEarlyDeliveryReceipts(1000));
+  }
+
+  @Test
+  public void incrementDeliveryReceiptCounts_updateFails_exceptionPropagatesAndNothingIsCommitted() {
+    givenSentSmsMessages(new long[] { 1 }, new long[] { 1000 });
+    doThrow(new IllegalStateException()).when(database).execSQL(anyString(), any(Object[].class));
+
+    try {
+      mmsSmsDatabase.incrementDeliveryReceiptCounts(Collections.singletonList(new SyncMessageId(SENDER, 1000)), System.currentTimeMillis());
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    verify(database, never()).setTransactionSuccessful();
+    verify(database).endTransaction();
+    verify(threadDatabase, never()).updateIncremental(anyLong(), anyInt(), anyBoolean());
+    assertTrue(mmsSmsDatabase.removeEarlyDeliveryReceipts(1000).isEmpty());
+  }
+
+  @Test
+  public void getConversationSince_pageFoundByKeyBeforeOldestLoadedMessage() {
+    givenPageEnd(1500L);
+
+    mmsSmsDatabase.getConversationSince(THREAD_ID, 2000, 50);
+
+    List<String>   queries = captureQueries(2);
+    List<String[]> args    = captureArgs(2);
+
+    assertTrue(queries.get(0).contains(" < ?"));
+    assertTrue(queries.get(0).endsWith("DESC LIMIT 1 OFFSET 49"));
+    assertArrayEquals(new String[] { "7", "2000", "7", "2000" }, args.get(0));
+
+    assertTrue(queries.get(1).contains("thread_id = 7 AND date_received >= 1500"));
+    assertTrue(queries.get(1).contains("ORDER BY date_received DESC)"));
+    assertFalse(queries.get(1).contains("OFFSET"));
+  }
+
+  @Test
+  public void getConversationSince_lessThanAPageLeft_loadsRestOfConversation() {
+    givenPageEnd(null);
+
+    mmsSmsDatabase.getConversationSince(THREAD_ID, 2000, 50);
+
+    String conversationQuery = captureQueries(2).get(1);
+
+    assertTrue(conversationQuery.contains("thread_id = 7"));
+    assertFalse(conversationQuery.contains("date_received >="));
+  }
+
+  @Test
+  public void getConversationSince_noLimit_reloadsOnlyLoadedRange() {
+    mmsSmsDatabase.getConversationSince(THREAD_ID, 2000, 0);
+
+    String conversationQuery = captureQueries(1).get(0);
+
+    assertTrue(conversationQuery.contains("thread_id = 7 AND date_received >= 2000"));
+  }
+
+  @Test
+  public void hasConversationBefore_onlyLooksAtOlderMessages() {
+    givenPageEnd(1500L);
+
+    assertTrue(mmsSmsDatabase.hasConversationBefore(THREAD_ID, 2000));
+
+    assertTrue(captureQueries(1).get(0).endsWith("DESC LIMIT 1 OFFSET 0"));
+    assertArrayEquals(new String[] { "7", "2000", "7", "2000" }, captureArgs(1).get(0));
+  }
+
+  @Test
+  public void getUnreadMessages_changedThreads_onlyThoseThreadsAreRead() {
+    when(cursor.moveToNext()).thenReturn(true, false);
+    when(cursor.getLong(0)).thenReturn(MmsSmsDatabase.getUnreadKey(1, true));
+    when(cursor.getLong(1)).thenReturn(1000L);
+    when(cursor.getString(2)).thenReturn("20:128:0:0:2");
+
+    Map<Long, MmsSmsDatabase.UnreadMessage> unread = mmsSmsDatabase.getUnreadMessages(Arrays.asList(3L, 4L));
+
+    String query = captureQueries(1).get(0);
+
+    assertTrue(query.contains("FROM sms WHERE read = 0 AND notified = 0 AND thread_id IN (3,4)"));
+    assertTrue(query.contains("FROM mms WHERE read = 0 AND notified = 0 AND thread_id IN (3,4)"));
+    assertEquals(1, unread.size());
+    assertEquals(1000L, unread.get(MmsSmsDatabase.getUnreadKey(1, true)).getDateReceived());
+    assertEquals("20:128:0:0:2", unread.get(MmsSmsDatabase.getUnreadKey(1, true)).getVersion());
+  }
+
+  @Test
+  public void getUnreadMessages_allThreads_noThreadFilter() {
+    when(cursor.moveToNext()).thenReturn(false);
+
+    assertTrue(mmsSmsDatabase.getUnreadMessages(null).isEmpty());
+    assertFalse(captureQueries(1).get(0).contains("thread_id IN"));
+  }
+
+  private void givenPageEnd(Long dateReceived) {
+    Cursor keyCursor = mock(Cursor.class);
+
+    when(keyCursor.moveToFirst()).thenReturn(dateReceived != null);
+    when(keyCursor.getLong(0)).thenReturn(dateReceived != null ? dateReceived : 0);
+    when(database.rawQuery(contains("OFFSET"), any(String[].class))).thenReturn(keyCursor);
+  }
+
+  private List<String> captureQueries(int count) {
+    ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+    verify(database, times(count)).rawQuery(captor.capture(), any(String[].class));
+    return captor.getAllValues();
+  }
+
+  private List<String[]> captureArgs(int count) {
+    ArgumentCaptor<String[]> captor = ArgumentCaptor.forClass(String[].class);
+    verify(database, times(count)).rawQuery(anyString(), captor.capture());
+    return captor.getAllValues();
+  }
+
+  private void givenSentSmsMessages(long[] ids, long[] sentTimestamps) {
+    Boolean[] moreRows = new Boolean[ids.length];
+    Long[]    moreIds  = new Long[ids.length - 1];
+    Long[]    moreSent = new Long[ids.length - 1];
+
+    Arrays.fill(moreRows, true);
+    moreRows[ids.length - 1] = false;
+
+    for (int i = 1; i < ids.length; i++) {
+      moreIds[i - 1]  = ids[i];
+      moreSent[i - 1] = sentTimestamps[i];
+    }
+
+    when(cursor.moveToNext()).thenReturn(true, moreRows);
+    when(cursor.getLong(0)).thenReturn(ids[0], moreIds);
+    when(cursor.getLong(1)).thenReturn(THREAD_ID);
+    when(cursor.getString(2)).thenReturn(SENDER.serialize());
+    when(cursor.getLong(3)).thenReturn(MmsSmsColumns.Types.BASE_SENT_TYPE);
+    when(cursor.getLong(4)).thenReturn(sentTimestamps[0], moreSent);
+    when(cursor.getInt(5)).thenReturn(0);
+  }
+}
@@ -0,0 +1,99 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.RecipientDatabase.RecipientSettings;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class RecipientDatabaseTest {
+
+  private static final int ADDRESS_COLUMN = 1;
+
+  private SQLiteDatabase    database;
+  private Cursor            cursor;
+  private RecipientDatabase recipientDatabase;
+
+  @Before
+  public void setUp() {
+    SQLCipherOpenHelper databaseHelper = mock(SQLCipherOpenHelper.class);
+
+    database = mock(SQLiteDatabase.class);
+    cursor   = mock(Cursor.class);
+
+    when(databaseHelper.getReadableDatabase()).thenReturn(database);
+    when(database.query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString())).thenReturn(cursor);
+    when(cursor.getColumnIndexOrThrow(RecipientDatabase.ADDRESS)).thenReturn(ADDRESS_COLUMN);
+
+    recipientDatabase = new RecipientDatabase(null, databaseHelper);
+  }
+
+  @Test
+  public void getRecipientSettings_oneQueryForManyAddresses() {
+    when(cursor.moveToNext()).thenReturn(true, true, false);
+    when(cursor.getString(ADDRESS_COLUMN)).thenReturn("+15555550101", "+15555550102");
+
+    Map<Address, RecipientSettings> settings = recipientDatabase.getRecipientSettings(addresses(3));
+
+    assertEquals(2, settings.size());
+    assertTrue(settings.containsKey(Address.fromSerialized("+15555550101")));
+    assertTrue(settings.containsKey(Address.fromSerialized("+15555550102")));
+    verifyQueryCount(1);
+  }
+
+  @Test
+  public void getRecipientSettings_largeRequestIsChunked() {
+    when(cursor.moveToNext()).thenReturn(false);
+
+    assertTrue(recipientDatabase.getRecipientSettings(addresses(1200)).isEmpty());
+    verifyQueryCount(3);
+  }
+
+  @Test
+  public void getRecipientSettings_noAddressesNoQuery() {
+    assertTrue(recipientDatabase.getRecipientSettings(Collections.emptyList()).isEmpty());
+    verifyQueryCount(0);
+  }
+
+  private static List<Address> addresses(int count) {
+    List<Address> addresses = new ArrayList<>(count);
+
+    for (int i = 0; i < count; i++) {
+      addresses.add(Address.fromSerialized("+1555555" + String.format("%04d", 101 + i)));
+    }
+
+    return addresses;
+  }
+
+  private void verifyQueryCount(int count) {
+    if (count == 0) {
+      verify(database, never()).query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString());
+    } else {
+      verify(database, times(count)).query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString());
+    }
+  }
+}
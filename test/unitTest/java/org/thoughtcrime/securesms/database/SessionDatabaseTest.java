@@ -0,0 +1,160 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.content.ContentValues;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.whispersystems.libsignal.state.SessionRecord;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class SessionDatabaseTest {
+
+  private static final Address ADDRESS = Address.fromSerialized("+15555550101");
+
+  private SQLiteDatabase  database;
+  private Cursor          cursor;
+  private SessionDatabase sessionDatabase;
+
+  @Before
+  public void setUp() {
+    SQLCipherOpenHelper databaseHelper = mock(SQLCipherOpenHelper.class);
+
+    database = mock(SQLiteDatabase.class);
+    cursor   = mock(Cursor.class);
+
+    when(databaseHelper.getReadableDatabase()).thenReturn(database);
+    when(databaseHelper.getWritableDatabase()).thenReturn(database);
+    when(database.query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString())).thenReturn(cursor);
+
+    sessionDatabase = new SessionDatabase(null, databaseHelper);
+  }
+
+  @Test
+  public void load_secondLoadIsCached() {
+    givenStoredRecord(new SessionRecord().serialize());
+
+    assertNotNull(sessionDatabase.load(ADDRESS, 1));
+    assertNotNull(sessionDatabase.load(ADDRESS, 1));
+
+    verifyQueryCount(1);
+    assertEquals(1, sessionDatabase.getCacheHits());
+    assertEquals(1, sessionDatabase.getCacheMisses());
+  }
+
+  @Test
+  public void load_missingSessionIsCached() {
+    when(cursor.moveToFirst()).thenReturn(false);
+
+    assertNull(sessionDatabase.load(ADDRESS, 1));
+    assertNull(sessionDatabase.load(ADDRESS, 1));
+
+    verifyQueryCount(1);
+  }
+
+  @Test
+  public void store_loadsReturnCopiesOfStoredRecord() {
+    SessionRecord record = new SessionRecord();
+
+    sessionDatabase.store(ADDRESS, 1, record);
+
+    SessionRecord first  = sessionDatabase.load(ADDRESS, 1);
+    SessionRecord second = sessionDatabase.load(ADDRESS, 1);
+
+    assertNotSame(record, first);
+    assertNotSame(first, second);
+    assertArrayEquals(record.serialize(), first.serialize());
+    assertArrayEquals(record.serialize(), second.serialize());
+    verify(database).insertWithOnConflict(eq(SessionDatabase.TABLE_NAME), anyString(), any(ContentValues.class), anyInt());
+    verifyQueryCount(0);
+  }
+
+  @Test
+  public void load_changesToLoadedRecordDoNotReachCache() {
+    SessionRecord record = new SessionRecord();
+    byte[]        stored = record.serialize();
+
+    sessionDatabase.store(ADDRESS, 1, record);
+
+    record.archiveCurrentState();
+    sessionDatabase.load(ADDRESS, 1).archiveCurrentState();
+
+    SessionRecord loaded = sessionDatabase.load(ADDRESS, 1);
+
+    assertArrayEquals(stored, loaded.serialize());
+    assertEquals(0, loaded.getPreviousSessionStates().size());
+  }
+
+  @Test
+  public void load_previousStatesAreCopied() {
+    SessionRecord record = new SessionRecord();
+    record.archiveCurrentState();
+
+    sessionDatabase.store(ADDRESS, 1, record);
+
+    SessionRecord loaded = sessionDatabase.load(ADDRESS, 1);
+
+    assertEquals(1, loaded.getPreviousSessionStates().size());
+    assertNotSame(record.getPreviousSessionStates().get(0), loaded.getPreviousSessionStates().get(0));
+    assertArrayEquals(record.serialize(), loaded.serialize());
+  }
+
+  @Test
+  public void delete_invalidatesCache() {
+    sessionDatabase.store(ADDRESS, 1, new SessionRecord());
+    sessionDatabase.delete(ADDRESS, 1);
+
+    assertNull(sessionDatabase.load(ADDRESS, 1));
+    verifyQueryCount(0);
+  }
+
+  @Test
+  public void deleteAllFor_invalidatesEveryDevice() {
+    sessionDatabase.store(ADDRESS, 1, new SessionRecord());
+    sessionDatabase.store(ADDRESS, 2, new SessionRecord());
+    sessionDatabase.deleteAllFor(ADDRESS);
+
+    when(cursor.moveToFirst()).thenReturn(false);
+
+    assertNull(sessionDatabase.load(ADDRESS, 1));
+    assertNull(sessionDatabase.load(ADDRESS, 2));
+    verifyQueryCount(2);
+  }
+
+  private void givenStoredRecord(byte[] serialized) {
+    when(cursor.moveToFirst()).thenReturn(true);
+    when(cursor.getColumnIndexOrThrow(SessionDatabase.RECORD)).thenReturn(0);
+    when(cursor.getBlob(0)).thenReturn(serialized);
+  }
+
+  private void verifyQueryCount(int count) {
+    if (count == 0) {
+      verify(database, never()).query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString());
+    } else {
+      verify(database, times(count)).query(anyString(), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString());
+    }
+  }
+}
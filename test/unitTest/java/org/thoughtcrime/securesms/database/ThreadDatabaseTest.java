@@ -0,0 +1,388 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.content.ContentValues;
+
+import net.sqlcipher.Cursor;
+import net.sqlcipher.database.SQLiteDatabase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InOrder;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.helpers.SQLCipherOpenHelper;
+import org.thoughtcrime.securesms.database.model.MessageRecord;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class ThreadDatabaseTest {
+
+  private static final long THREAD_ID       = 1;
+  private static final long OTHER_THREAD_ID = 2;
+
+  private final Map<Long, ContentValues>       threads  = new HashMap<>();
+  private final Map<Long, List<MessageRecord>> messages = new HashMap<>();
+
+  private long           snippetThreadId;
+  private SQLiteDatabase database;
+  private MmsSmsDatabase mmsSmsDatabase;
+  private SmsDatabase    smsDatabase;
+  private ThreadDatabase threadDatabase;
+
+  @Before
+  public void setUp() {
+    SQLCipherOpenHelper   databaseHelper = mock(SQLCipherOpenHelper.class);
+    MmsSmsDatabase.Reader reader         = mock(MmsSmsDatabase.Reader.class);
+
+    MmsDatabase mmsDatabase = mock(MmsDatabase.class);
+
+    database       = mock(SQLiteDatabase.class);
+    mmsSmsDatabase = mock(MmsSmsDatabase.class);
+    smsDatabase    = mock(SmsDatabase.class);
+
+    when(databaseHelper.getReadableDatabase()).thenReturn(database);
+    when(databaseHelper.getWritableDatabase()).thenReturn(database);
+
+    when(database.update(eq(ThreadDatabase.TABLE_NAME), any(ContentValues.class), anyString(), any(String[].class))).thenAnswer(invocation -> {
+      long          threadId = Long.parseLong(((String[]) invocation.getArguments()[3])[0]);
+      ContentValues row      = threads.get(threadId);
+
+      if (row == null) return 0;
+
+      row.putAll((ContentValues) invocation.getArguments()[1]);
+      return 1;
+    });
+
+    when(database.delete(eq(ThreadDatabase.TABLE_NAME), anyString(), any(String[].class))).thenAnswer(invocation -> {
+      long threadId = Long.parseLong(((String[]) invocation.getArguments()[2])[0]);
+      return threads.remove(threadId) != null ? 1 : 0;
+    });
+
+    doAnswer(invocation -> {
+      Object[]      args = (Object[]) invocation.getArguments()[1];
+      ContentValues row  = threads.get((Long) args[1]);
+
+      if (row != null) {
+        row.put(ThreadDatabase.MESSAGE_COUNT, Math.max(0, row.getAsLong(ThreadDatabase.MESSAGE_COUNT) + (Integer) args[0]));
+      }
+
+      return null;
+    }).when(database).execSQL(anyString(), any(Object[].class));
+
+    when(mmsSmsDatabase.getConversationCount(anyLong())).thenAnswer(invocation -> messagesIn((Long) invocation.getArguments()[0]).size());
+    when(mmsSmsDatabase.getConversationSnippet(anyLong())).thenAnswer(invocation -> {
+      snippetThreadId = (Long) invocation.getArguments()[0];
+      return null;
+    });
+    when(mmsSmsDatabase.readerFor(isNull(android.database.Cursor.class))).thenReturn(reader);
+    when(reader.getNext()).thenAnswer(invocation -> {
+      List<MessageRecord> conversation = messagesIn(snippetThreadId);
+      return conversation.isEmpty() ? null : conversation.get(conversation.size() - 1);
+    });
+
+    when(mmsSmsDatabase.getDateReceivedAtPositionIfOlderExists(anyLong(), anyLong())).thenAnswer(invocation -> {
+      List<Long> dates    = new ArrayList<>();
+      long       position = (Long) invocation.getArguments()[1];
+
+      for (MessageRecord record : messagesIn((Long) invocation.getArguments()[0])) {
+        dates.add(record.getTimestamp());
+      }
+
+      Collections.sort(dates, Collections.reverseOrder());
+      return position + 1 < dates.size() ? dates.get((int) position) : null;
+    });
+
+    doAnswer(invocation -> {
+      long cutoff = (Long) invocation.getArguments()[1];
+
+      for (MessageRecord record : new ArrayList<>(messagesIn((Long) invocation.getArguments()[0]))) {
+        if (record.getTimestamp() < cutoff) messagesIn((Long) invocation.getArguments()[0]).remove(record);
+      }
+
+      return null;
+    }).when(smsDatabase).deleteMessagesInThreadBeforeDate(anyLong(), anyLong());
+
+    when(mmsDatabase.deleteMessagesInThreadBeforeDate(anyLong(), anyLong())).thenReturn(Collections.emptyList());
+
+    threadDatabase = spy(new ThreadDatabase(RuntimeEnvironment.application, databaseHelper));
+
+    doReturn(mmsSmsDatabase).when(threadDatabase).getMmsSmsDatabase();
+    doReturn(smsDatabase).when(threadDatabase).getSmsDatabase();
+    doReturn(mmsDatabase).when(threadDatabase).getMmsDatabase();
+    doReturn(mock(AttachmentDatabase.class)).when(threadDatabase).getAttachmentDatabase();
+  }
+
+  @Test
+  public void updateIncremental_afterInsertsAndDeletes_matchesFullUpdate() {
+    givenThread(THREAD_ID, 0);
+
+    MessageRecord first  = message("first", 1000);
+    MessageRecord second = message("second", 2000);
+    MessageRecord third  = message("third", 3000);
+
+    messagesIn(THREAD_ID).add(first);
+    assertFalse(threadDatabase.update(THREAD_ID, false));
+
+    messagesIn(THREAD_ID).add(second);
+    assertFalse(threadDatabase.updateIncremental(THREAD_ID, 1, false));
+    assertMatchesFullUpdate(THREAD_ID, 2, "second");
+
+    messagesIn(THREAD_ID).add(third);
+    assertFalse(threadDatabase.updateIncremental(THREAD_ID, 1, false));
+    assertMatchesFullUpdate(THREAD_ID, 3, "third");
+
+    messagesIn(THREAD_ID).remove(third);
+    assertFalse(threadDatabase.updateIncremental(THREAD_ID, -1, false));
+    assertMatchesFullUpdate(THREAD_ID, 2, "second");
+
+    messagesIn(THREAD_ID).remove(first);
+    assertFalse(threadDatabase.updateIncremental(THREAD_ID, -1, false));
+    assertMatchesFullUpdate(THREAD_ID, 1, "second");
+  }
+
+  @Test
+  public void updateIncremental_lastMessageDeleted_threadDeletedLikeFullUpdate() {
+    givenThread(THREAD_ID, 0);
+
+    MessageRecord only = message("only", 1000);
+
+    messagesIn(THREAD_ID).add(only);
+    threadDatabase.update(THREAD_ID, false);
+
+    messagesIn(THREAD_ID).remove(only);
+
+    assertTrue(threadDatabase.updateIncremental(THREAD_ID, -1, false));
+    assertNull(threads.get(THREAD_ID));
+  }
+
+  @Test
+  public void adjustMessageCount_neverGoesNegative() {
+    givenThread(THREAD_ID, 1);
+
+    threadDatabase.adjustMessageCount(THREAD_ID, -3);
+
+    assertEquals(0L, (long) threads.get(THREAD_ID).getAsLong(ThreadDatabase.MESSAGE_COUNT));
+  }
+
+  @Test
+  public void repairInconsistentThreads_wrongCount_recomputedFromMessages() {
+    givenThread(THREAD_ID, 5);
+    givenThread(OTHER_THREAD_ID, 1);
+
+    messagesIn(THREAD_ID).add(message("first", 1000));
+    messagesIn(THREAD_ID).add(message("second", 2000));
+    messagesIn(OTHER_THREAD_ID).add(message("other", 1500));
+    threadDatabase.update(OTHER_THREAD_ID, false);
+
+    ContentValues consistentBefore = new ContentValues(threads.get(OTHER_THREAD_ID));
+    Map<Long, Long> actualCounts   = new HashMap<>();
+    actualCounts.put(THREAD_ID, 2L);
+    actualCounts.put(OTHER_THREAD_ID, 1L);
+
+    when(mmsSmsDatabase.getConversationCounts()).thenReturn(actualCounts);
+    givenThreadCursor();
+
+    assertEquals(1, threadDatabase.repairInconsistentThreads());
+
+    ContentValues repaired = threads.get(THREAD_ID);
+    assertEquals(2L, (long) repaired.getAsLong(ThreadDatabase.MESSAGE_COUNT));
+    assertEquals("second", repaired.getAsString(ThreadDatabase.SNIPPET));
+    assertEquals(consistentBefore, threads.get(OTHER_THREAD_ID));
+  }
+
+  @Test
+  public void repairInconsistentThreads_staleSnippet_recomputedFromMessages() {
+    givenThread(THREAD_ID, 0);
+    givenThread(OTHER_THREAD_ID, 0);
+
+    MessageRecord first  = message("first", 1000);
+    MessageRecord second = message("second", 2000);
+
+    messagesIn(THREAD_ID).addAll(Arrays.asList(first, second));
+    messagesIn(OTHER_THREAD_ID).add(message("other", 1500));
+    threadDatabase.update(THREAD_ID, false);
+    threadDatabase.update(OTHER_THREAD_ID, false);
+
+    when(second.getReadReceiptCount()).thenReturn(1);
+
+    ContentValues consistentBefore = new ContentValues(threads.get(OTHER_THREAD_ID));
+    Map<Long, Long> actualCounts   = new HashMap<>();
+    actualCounts.put(THREAD_ID, 2L);
+    actualCounts.put(OTHER_THREAD_ID, 1L);
+
+    when(mmsSmsDatabase.getConversationCounts()).thenReturn(actualCounts);
+    givenThreadCursor();
+
+    assertEquals(1, threadDatabase.repairInconsistentThreads());
+    assertEquals(1, (int) threads.get(THREAD_ID).getAsInteger(ThreadDatabase.READ_RECEIPT_COUNT));
+    assertEquals(consistentBefore, threads.get(OTHER_THREAD_ID));
+  }
+
+  @Test
+  public void trimAllThreads_onlyMessagesPastLimitRemoved() {
+    givenThread(THREAD_ID, 5);
+    givenThread(OTHER_THREAD_ID, 2);
+
+    MessageRecord first  = message("first", 1000);
+    MessageRecord second = message("second", 2000);
+    MessageRecord third  = message("third", 3000);
+    MessageRecord fourth = message("fourth", 4000);
+    MessageRecord fifth  = message("fifth", 5000);
+    MessageRecord other1 = message("other1", 1500);
+    MessageRecord other2 = message("other2", 2500);
+
+    messagesIn(THREAD_ID).addAll(Arrays.asList(first, second, third, fourth, fifth));
+    messagesIn(OTHER_THREAD_ID).addAll(Arrays.asList(other1, other2));
+
+    givenThreadCursor();
+
+    threadDatabase.trimAllThreads(3, (complete, total) -> {});
+
+    assertEquals(Arrays.asList(third, fourth, fifth), messagesIn(THREAD_ID));
+    assertEquals(Arrays.asList(other1, other2), messagesIn(OTHER_THREAD_ID));
+    assertEquals(3L, (long) threads.get(THREAD_ID).getAsLong(ThreadDatabase.MESSAGE_COUNT));
+    assertEquals("fifth", threads.get(THREAD_ID).getAsString(ThreadDatabase.SNIPPET));
+  }
+
+  @Test
+  public void trimAllThreads_commitsEachThreadSeparately() {
+    givenThread(THREAD_ID, 3);
+    givenThread(OTHER_THREAD_ID, 3);
+
+    for (long threadId : new long[] { THREAD_ID, OTHER_THREAD_ID }) {
+      messagesIn(threadId).add(message("first", 1000));
+      messagesIn(threadId).add(message("second", 2000));
+      messagesIn(threadId).add(message("third", 3000));
+    }
+
+    givenThreadCursor();
+
+    threadDatabase.trimAllThreads(1, (complete, total) -> {});
+
+    InOrder transactions = inOrder(database, smsDatabase);
+
+    for (long threadId : new long[] { THREAD_ID, OTHER_THREAD_ID }) {
+      transactions.verify(database).beginTransaction();
+      transactions.verify(smsDatabase).deleteMessagesInThreadBeforeDate(threadId, 3000);
+      transactions.verify(database).setTransactionSuccessful();
+      transactions.verify(database).endTransaction();
+    }
+
+    assertEquals(1, messagesIn(THREAD_ID).size());
+    assertEquals(1, messagesIn(OTHER_THREAD_ID).size());
+  }
+
+  @Test
+  public void trimThread_shorterThanLimit_nothingDeleted() {
+    givenThread(THREAD_ID, 2);
+
+    messagesIn(THREAD_ID).add(message("first", 1000));
+    messagesIn(THREAD_ID).add(message("second", 2000));
+
+    threadDatabase.trimThread(THREAD_ID, 2);
+
+    verify(smsDatabase, never()).deleteMessagesInThreadBeforeDate(anyLong(), anyLong());
+    assertEquals(2, messagesIn(THREAD_ID).size());
+  }
+
+  private void assertMatchesFullUpdate(long threadId, long expectedCount, String expectedSnippet) {
+    ContentValues incremental = new ContentValues(threads.get(threadId));
+
+    assertEquals(expectedCount, (long) incremental.getAsLong(ThreadDatabase.MESSAGE_COUNT));
+    assertEquals(expectedSnippet, incremental.getAsString(ThreadDatabase.SNIPPET));
+
+    threadDatabase.update(threadId, false);
+
+    assertEquals(threads.get(threadId), incremental);
+  }
+
+  private void givenThread(long threadId, long messageCount) {
+    ContentValues row = new ContentValues();
+    row.put(ThreadDatabase.MESSAGE_COUNT, messageCount);
+    threads.put(threadId, row);
+  }
+
+  private void givenThreadCursor() {
+    List<Long>                rows     = Arrays.asList(THREAD_ID, OTHER_THREAD_ID);
+    AtomicReference<String[]> columns  = new AtomicReference<>();
+    AtomicInteger             position = new AtomicInteger();
+    Cursor                    cursor   = mock(Cursor.class);
+
+    when(cursor.moveToNext()).thenAnswer(invocation -> position.incrementAndGet() < rows.size());
+    when(cursor.getLong(anyInt())).thenAnswer(invocation -> {
+      Object value = valueAt(rows.get(position.get()), columns.get()[(Integer) invocation.getArguments()[0]]);
+      return value != null ? ((Number) value).longValue() : 0L;
+    });
+    when(cursor.getInt(anyInt())).thenAnswer(invocation -> {
+      Object value = valueAt(rows.get(position.get()), columns.get()[(Integer) invocation.getArguments()[0]]);
+      return value != null ? ((Number) value).intValue() : 0;
+    });
+    when(cursor.getString(anyInt())).thenAnswer(invocation -> {
+      Object value = valueAt(rows.get(position.get()), columns.get()[(Integer) invocation.getArguments()[0]]);
+      return value != null ? String.valueOf(value) : null;
+    });
+
+    when(database.query(eq(ThreadDatabase.TABLE_NAME), any(String[].class), anyString(), any(String[].class), anyString(), anyString(), anyString())).thenAnswer(invocation -> {
+      columns.set((String[]) invocation.getArguments()[1]);
+      position.set(-1);
+      return cursor;
+    });
+  }
+
+  private Object valueAt(long threadId, String column) {
+    return ThreadDatabase.ID.equals(column) ? threadId : threads.get(threadId).get(column);
+  }
+
+  private List<MessageRecord> messagesIn(long threadId) {
+    List<MessageRecord> conversation = messages.get(threadId);
+
+    if (conversation == null) {
+      conversation = new LinkedList<>();
+      messages.put(threadId, conversation);
+    }
+
+    return conversation;
+  }
+
+  private static MessageRecord message(String body, long timestamp) {
+    MessageRecord record = mock(MessageRecord.class);
+
+    when(record.getBody()).thenReturn(body);
+    when(record.getTimestamp()).thenReturn(timestamp);
+    when(record.getType()).thenReturn(MmsSmsColumns.Types.BASE_INBOX_TYPE);
+
+    return record;
+  }
+}
@@ -0,0 +1,126 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Times reading the {@link MmsSmsColumns#UNIQUE_ROW_ID} expressions over a large sms and mms
+ * history, against reading the plain row IDs from the same tables. Run it by hand;
+ * {@link UniqueRowIdTest} is what the unit suite runs.
+ */
+@Ignore("Benchmark")
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class UniqueRowIdBenchmarkTest {
+
+  private static final int MESSAGES   = 10_000;
+  private static final int ITERATIONS = 20;
+
+  private SQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    db = SQLiteDatabase.create(null);
+    db.execSQL(SmsDatabase.CREATE_TABLE);
+    db.execSQL(MmsDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentDatabase.CREATE_TABLE);
+
+    db.beginTransaction();
+    try {
+      for (long id = 1; id <= MESSAGES; id++) {
+        insertSms(id);
+        insertMms(id);
+
+        if (id % 3 == 0) insertAttachment(id * 2, id, null, true);
+        if (id % 2 == 0) insertAttachment(id * 2 + 1, id, String.valueOf(id * 1000), false);
+      }
+      db.setTransactionSuccessful();
+    } finally {
+      db.endTransaction();
+    }
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void compareRowIdsAndUniqueRowIds() {
+    String rowIds    = query(MmsSmsColumns.ID, MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID);
+    String uniqueIds = query(MmsSmsDatabase.SMS_UNIQUE_ROW_ID, MmsSmsDatabase.MMS_UNIQUE_ROW_ID);
+
+    readAll(rowIds);
+    readAll(uniqueIds);
+
+    long rowIdTime    = time(rowIds);
+    long uniqueIdTime = time(uniqueIds);
+
+    System.out.println("[UniqueRowIdBenchmarkTest] " + (MESSAGES * 2) + " rows x " + ITERATIONS +
+                       ", row ids: " + rowIdTime + " ms, unique row ids: " + uniqueIdTime + " ms");
+  }
+
+  private long time(String query) {
+    long start = System.currentTimeMillis();
+
+    for (int i = 0; i < ITERATIONS; i++) {
+      assertEquals(MESSAGES * 2, readAll(query));
+    }
+
+    return System.currentTimeMillis() - start;
+  }
+
+  private int readAll(String query) {
+    int count = 0;
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      while (cursor.moveToNext()) {
+        if (cursor.getLong(0) != 0) count++;
+      }
+    }
+
+    return count;
+  }
+
+  private static String query(String smsColumn, String mmsColumn) {
+    return "SELECT " + smsColumn + " FROM " + SmsDatabase.TABLE_NAME +
+           " UNION ALL " +
+           "SELECT " + mmsColumn + " FROM " + MmsDatabase.TABLE_NAME;
+  }
+
+  private void insertSms(long id) {
+    ContentValues values = new ContentValues();
+    values.put(SmsDatabase.ID, id);
+    values.put(SmsDatabase.THREAD_ID, 1);
+    db.insert(SmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private void insertMms(long id) {
+    ContentValues values = new ContentValues();
+    values.put(MmsDatabase.ID, id);
+    values.put(MmsDatabase.THREAD_ID, 1);
+    db.insert(MmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private void insertAttachment(long rowId, long mmsId, String fastPreflightId, boolean quote) {
+    ContentValues values = new ContentValues();
+    values.put(AttachmentDatabase.ROW_ID, rowId);
+    values.put(AttachmentDatabase.MMS_ID, mmsId);
+    values.put(AttachmentDatabase.UNIQUE_ID, rowId);
+    values.put(AttachmentDatabase.FAST_PREFLIGHT_ID, fastPreflightId);
+    values.put(AttachmentDatabase.QUOTE, quote ? 1 : 0);
+    db.insert(AttachmentDatabase.TABLE_NAME, null, values);
+  }
+}
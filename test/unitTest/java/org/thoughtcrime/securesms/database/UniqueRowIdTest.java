@@ -0,0 +1,143 @@
+package org.thoughtcrime.securesms.database;
+
+import android.app.Application;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Runs the {@link MmsSmsColumns#UNIQUE_ROW_ID} expressions that conversation queries use as item
+ * IDs against real sms, mms and part tables.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class UniqueRowIdTest {
+
+  private SQLiteDatabase db;
+
+  @Before
+  public void setUp() {
+    db = SQLiteDatabase.create(null);
+    db.execSQL(SmsDatabase.CREATE_TABLE);
+    db.execSQL(MmsDatabase.CREATE_TABLE);
+    db.execSQL(AttachmentDatabase.CREATE_TABLE);
+  }
+
+  @After
+  public void tearDown() {
+    db.close();
+  }
+
+  @Test
+  public void smsAndMmsRowsWithSameId_getDistinctIds() {
+    for (long id = 1; id <= 50; id++) {
+      insertSms(id);
+      insertMms(id);
+    }
+
+    insertAttachment(1, 3, null, false);
+    insertAttachment(2, 4, null, true);
+
+    Map<String, Long> ids = queryUniqueRowIds();
+
+    assertEquals(100, ids.size());
+    assertEquals(100, new HashSet<>(ids.values()).size());
+  }
+
+  @Test
+  public void ids_stableAcrossReloadsAndNewMessages() {
+    for (long id = 1; id <= 10; id++) {
+      insertSms(id);
+      insertMms(id);
+    }
+
+    insertAttachment(1, 2, "1234567890", false);
+    insertAttachment(2, 5, null, false);
+
+    Map<String, Long> before = queryUniqueRowIds();
+
+    for (long id = 11; id <= 20; id++) {
+      insertSms(id);
+      insertMms(id);
+      insertAttachment(id, id, String.valueOf(id * 1000), false);
+    }
+
+    Map<String, Long> after = queryUniqueRowIds();
+
+    for (Map.Entry<String, Long> entry : before.entrySet()) {
+      assertEquals(entry.getKey(), entry.getValue(), after.get(entry.getKey()));
+    }
+
+    assertEquals(40, after.size());
+    assertEquals(40, new HashSet<>(after.values()).size());
+  }
+
+  @Test
+  public void mmsWithFastPreflightAttachment_usesFirstNonQuotePreflightId() {
+    insertMms(1);
+    insertMms(2);
+
+    insertAttachment(1, 1, "111", true);
+    insertAttachment(2, 1, "222", false);
+    insertAttachment(3, 1, "333", false);
+    insertAttachment(4, 2, null, false);
+
+    Map<String, Long> ids = queryUniqueRowIds();
+
+    assertEquals(222L, (long) ids.get("mms:1"));
+    assertEquals((2L << 1) | 1, (long) ids.get("mms:2"));
+  }
+
+  private Map<String, Long> queryUniqueRowIds() {
+    String query = "SELECT 'sms', " + MmsSmsColumns.ID + ", " + MmsSmsDatabase.SMS_UNIQUE_ROW_ID + " FROM " + SmsDatabase.TABLE_NAME +
+                   " UNION ALL " +
+                   "SELECT 'mms', " + MmsDatabase.TABLE_NAME + "." + MmsDatabase.ID + ", " + MmsSmsDatabase.MMS_UNIQUE_ROW_ID + " FROM " + MmsDatabase.TABLE_NAME;
+
+    Map<String, Long> ids = new HashMap<>();
+
+    try (Cursor cursor = db.rawQuery(query, null)) {
+      while (cursor.moveToNext()) {
+        ids.put(cursor.getString(0) + ":" + cursor.getLong(1), cursor.getLong(2));
+      }
+    }
+
+    return ids;
+  }
+
+  private void insertSms(long id) {
+    ContentValues values = new ContentValues();
+    values.put(SmsDatabase.ID, id);
+    values.put(SmsDatabase.THREAD_ID, 1);
+    db.insert(SmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private void insertMms(long id) {
+    ContentValues values = new ContentValues();
+    values.put(MmsDatabase.ID, id);
+    values.put(MmsDatabase.THREAD_ID, 1);
+    db.insert(MmsDatabase.TABLE_NAME, null, values);
+  }
+
+  private void insertAttachment(long rowId, long mmsId, String fastPreflightId, boolean quote) {
+    ContentValues values = new ContentValues();
+    values.put(AttachmentDatabase.ROW_ID, rowId);
+    values.put(AttachmentDatabase.MMS_ID, mmsId);
+    values.put(AttachmentDatabase.UNIQUE_ID, rowId);
+    values.put(AttachmentDatabase.FAST_PREFLIGHT_ID, fastPreflightId);
+    values.put(AttachmentDatabase.QUOTE, quote ? 1 : 0);
+    db.insert(AttachmentDatabase.TABLE_NAME, null, values);
+  }
+}
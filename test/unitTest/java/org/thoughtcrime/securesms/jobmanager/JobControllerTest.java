@@ -0,0 +1,134 @@
+package org.thoughtcrime.securesms.jobmanager;
+
+import android.app.Application;
+
+import androidx.annotation.NonNull;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+import org.thoughtcrime.securesms.jobs.FastJobStorage;
+import org.thoughtcrime.securesms.util.Debouncer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class JobControllerTest {
+
+  private static final JsonDataSerializer serializer = new JsonDataSerializer();
+  private static final String             EMPTY_DATA = serializer.serialize(Data.EMPTY);
+
+  private FastJobStorage jobStorage;
+  private JobController  subject;
+
+  @Before
+  public void setUp() {
+    JobDatabase database = mock(JobDatabase.class);
+
+    when(database.getAllJobSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+
+    Map<String, Job.Factory> jobFactories = new HashMap<>();
+    jobFactories.put(TestJob.KEY, new TestJob.Factory());
+
+    jobStorage = new FastJobStorage(database);
+    subject    = new JobController(mock(Application.class),
+                                   jobStorage,
+                                   new JobInstantiator(jobFactories),
+                                   new ConstraintInstantiator(Collections.emptyMap()),
+                                   serializer,
+                                   job -> {},
+                                   mock(Scheduler.class),
+                                   mock(Debouncer.class),
+                                   () -> {});
+
+    jobStorage.init();
+  }
+
+  @Test
+  public void pullNextEligibleJobForExecution_lowRunnerTakesHigherJobsFirst() {
+    long now = System.currentTimeMillis();
+
+    jobStorage.insertJobs(Arrays.asList(fullSpec("low", Job.Priority.LOW, now - 1000),
+                                        fullSpec("high", Job.Priority.HIGH, now)));
+
+    assertEquals("high", subject.pullNextEligibleJobForExecution(Job.Priority.LOW).getId());
+    assertEquals("low", subject.pullNextEligibleJobForExecution(Job.Priority.LOW).getId());
+  }
+
+  @Test
+  public void pullNextEligibleJobForExecution_lowJobIsNotStarvedByNewerHigherJobs() {
+    long now = System.currentTimeMillis();
+
+    jobStorage.insertJobs(Arrays.asList(fullSpec("low", Job.Priority.LOW, now - TimeUnit.SECONDS.toMillis(20)),
+                                        fullSpec("default", Job.Priority.DEFAULT, now),
+                                        fullSpec("high", Job.Priority.HIGH, now)));
+
+    assertEquals("low", subject.pullNextEligibleJobForExecution(Job.Priority.LOW).getId());
+  }
+
+  @Test
+  public void pullNextEligibleJobForExecution_defaultRunnerPrefersHigherJobOverStarvedDefaultJob() {
+    long now = System.currentTimeMillis();
+
+    jobStorage.insertJobs(Arrays.asList(fullSpec("default", Job.Priority.DEFAULT, now - TimeUnit.SECONDS.toMillis(1)),
+                                        fullSpec("low", Job.Priority.LOW, now - TimeUnit.SECONDS.toMillis(20)),
+                                        fullSpec("high", Job.Priority.HIGH, now)));
+
+    assertEquals("high", subject.pullNextEligibleJobForExecution(Job.Priority.DEFAULT).getId());
+    assertEquals("default", subject.pullNextEligibleJobForExecution(Job.Priority.DEFAULT).getId());
+    assertEquals("low", subject.pullNextEligibleJobForExecution(Job.Priority.LOW).getId());
+  }
+
+  private static FullSpec fullSpec(@NonNull String id, @NonNull Job.Priority priority, long createTime) {
+    return new FullSpec(new JobSpec(id, TestJob.KEY, id, createTime, 0, 0, 1, 0, Job.Parameters.IMMORTAL, Job.Parameters.UNLIMITED, priority.getCode(), EMPTY_DATA, false),
+                        Collections.emptyList(),
+                        Collections.emptyList());
+  }
+
+  private static final class TestJob extends Job {
+
+    private static final String KEY = "TestJob";
+
+    private TestJob(@NonNull Parameters parameters) {
+      super(parameters);
+    }
+
+    @Override
+    public @NonNull Data serialize() {
+      return Data.EMPTY;
+    }
+
+    @Override
+    public @NonNull String getFactoryKey() {
+      return KEY;
+    }
+
+    @Override
+    public @NonNull Result run() {
+      return Result.SUCCESS;
+    }
+
+    @Override
+    public void onCanceled() {
+    }
+
+    private static final class Factory implements Job.Factory<TestJob> {
+      @Override
+      public @NonNull TestJob create(@NonNull Parameters parameters, @NonNull Data data) {
+        return new TestJob(parameters);
+      }
+    }
+  }
+}
@@ -0,0 +1,113 @@
+package org.thoughtcrime.securesms.jobs;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.thoughtcrime.securesms.database.JobDatabase;
+import org.thoughtcrime.securesms.jobmanager.Data;
+import org.thoughtcrime.securesms.jobmanager.Job;
+import org.thoughtcrime.securesms.jobmanager.impl.JsonDataSerializer;
+import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
+import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Simulates the way the JobController drains a large backlog (e.g. after a long offline period)
+ * and reports how long it takes. Ignored so it stays out of the unit suite; remove the annotation
+ * to compare timings locally. {@link FastJobStorageTest} covers the ordering it relies on.
+ */
+@Ignore("Benchmark")
+public class FastJobStorageBenchmarkTest {
+
+  private static final String EMPTY_DATA = new JsonDataSerializer().serialize(Data.EMPTY);
+
+  private static final int JOB_COUNT   = 5000;
+  private static final int QUEUE_COUNT = 10;
+
+  @Test
+  public void drainLargeBacklog() {
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(buildBacklog()));
+
+    long start = System.nanoTime();
+
+    subject.init();
+
+    long initEnd  = System.nanoTime();
+    int  drained  = 0;
+    long lastTime = -1;
+
+    List<JobSpec> pending;
+    while (!(pending = subject.getPendingJobsWithNoDependenciesInCreatedOrder(Long.MAX_VALUE)).isEmpty()) {
+      JobSpec next = pending.get(0);
+
+      assertTrue(next.getCreateTime() >= lastTime);
+      lastTime = next.getCreateTime();
+
+      subject.updateJobRunningState(next.getId(), true);
+      subject.deleteJob(next.getId());
+      drained++;
+    }
+
+    long end = System.nanoTime();
+
+    assertEquals(JOB_COUNT, drained);
+    assertEquals(0, subject.getAllJobSpecs().size());
+
+    System.out.println("[FastJobStorageBenchmarkTest] init: " + ((initEnd - start) / 1_000_000) + " ms, drain of " + JOB_COUNT + " jobs: " + ((end - initEnd) / 1_000_000) + " ms");
+  }
+
+  @Test
+  public void pullWithBlockedQueues() {
+    List<FullSpec> backlog = buildBacklog();
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(backlog));
+
+    subject.init();
+
+    for (int i = 0; i < QUEUE_COUNT; i++) {
+      subject.updateJobRunningState(backlog.get(i).getJobSpec().getId(), true);
+    }
+
+    long start = System.nanoTime();
+
+    for (int i = 0; i < JOB_COUNT; i++) {
+      assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(Long.MAX_VALUE).size());
+    }
+
+    long end = System.nanoTime();
+
+    System.out.println("[FastJobStorageBenchmarkTest] " + JOB_COUNT + " pulls with every queue blocked: " + ((end - start) / 1_000_000) + " ms");
+  }
+
+  private static List<FullSpec> buildBacklog() {
+    List<FullSpec> fullSpecs = new ArrayList<>(JOB_COUNT);
+
+    for (int i = 0; i < JOB_COUNT; i++) {
+      JobSpec jobSpec = new JobSpec("id" + i, "f", "q" + (i % QUEUE_COUNT), i, 0, 0, -1, 30000, -1, -1, Job.Priority.DEFAULT.getCode(), EMPTY_DATA, false);
+      fullSpecs.add(new FullSpec(jobSpec, Collections.emptyList(), Collections.emptyList()));
+    }
+
+    return fullSpecs;
+  }
+
+  private static JobDatabase fixedDataDatabase(List<FullSpec> fullSpecs) {
+    JobDatabase   database = mock(JobDatabase.class);
+    List<JobSpec> jobSpecs = new ArrayList<>(fullSpecs.size());
+
+    for (FullSpec fullSpec : fullSpecs) {
+      jobSpecs.add(fullSpec.getJobSpec());
+    }
+
+    when(database.getAllJobSpecs()).thenReturn(jobSpecs);
+    when(database.getAllConstraintSpecs()).thenReturn(Collections.emptyList());
+    when(database.getAllDependencySpecs()).thenReturn(Collections.emptyList());
+
+    return database;
+  }
+}
@@ -13,15 +13,21 @@ import org.thoughtcrime.securesms.jobmanager.persistence.DependencySpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.FullSpec;
 import org.thoughtcrime.securesms.jobmanager.persistence.JobSpec;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.anyListOf;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -84,10 +90,10 @@ public class FastJobStorageTest {
 
   @Test
   public void updateAllJobsToBePending_allArePending() {
-    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 1, 1, 1, 1, 1, 1, 1, EMPTY_DATA, true),
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 1, 1, 1, 1, 1, 1, 1, 1, EMPTY_DATA, true),
                                       Collections.emptyList(),
                                       Collections.emptyList());
-    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 1, 1, 1, 1, 1, 1, 1, EMPTY_DATA, true),
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 1, 1, 1, 1, 1, 1, 1, 1, EMPTY_DATA, true),
                                       Collections.emptyList(),
                                       Collections.emptyList());
 
@@ -101,13 +107,34 @@ public class FastJobStorageTest {
   }
 
   @Test
-  public void updateJobRunningState_writesToDatabase() {
-    JobDatabase    database = noopDatabase();
+  public void updateJobRunningState_writesToDatabaseOnFlush() {
+    JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
     FastJobStorage subject  = new FastJobStorage(database);
 
-    subject.updateJobRunningState("1", true);
+    subject.init();
+    subject.updateJobRunningState(DataSet1.JOB_1.getId(), true);
+
+    verify(database, never()).updateJobs(anyListOf(JobSpec.class));
+
+    subject.flush();
 
-    verify(database).updateJobRunningState("1", true);
+    verify(database).updateJobs(Collections.singletonList(subject.getJobSpec(DataSet1.JOB_1.getId())));
+  }
+
+  @Test
+  public void updateJobRunningState_writesCoalesced() {
+    JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
+    FastJobStorage subject  = new FastJobStorage(database);
+
+    subject.init();
+    subject.updateJobRunningState(DataSet1.JOB_1.getId(), true);
+    subject.updateJobRunningState(DataSet1.JOB_1.getId(), false);
+    subject.updateJobRunningState(DataSet1.JOB_2.getId(), true);
+    subject.flush();
+    subject.flush();
+
+    verify(database, times(1)).updateJobs(Arrays.asList(subject.getJobSpec(DataSet1.JOB_1.getId()),
+                                                        subject.getJobSpec(DataSet1.JOB_2.getId())));
   }
 
   @Test
@@ -123,18 +150,32 @@ public class FastJobStorageTest {
   }
 
   @Test
-  public void updateJobAfterRetry_writesToDatabase() {
-    JobDatabase    database = noopDatabase();
+  public void updateJobAfterRetry_writesToDatabaseImmediately() {
+    JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
     FastJobStorage subject  = new FastJobStorage(database);
 
-    subject.updateJobAfterRetry("1", true, 1, 10);
+    subject.init();
+    subject.updateJobAfterRetry(DataSet1.JOB_1.getId(), true, 1, 10);
 
-    verify(database).updateJobAfterRetry("1", true, 1, 10);
+    verify(database).updateJobs(Collections.singletonList(subject.getJobSpec(DataSet1.JOB_1.getId())));
+  }
+
+  @Test
+  public void updateJobAfterRetry_supersedesPendingRunningStateWrite() {
+    JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
+    FastJobStorage subject  = new FastJobStorage(database);
+
+    subject.init();
+    subject.updateJobRunningState(DataSet1.JOB_1.getId(), true);
+    subject.updateJobAfterRetry(DataSet1.JOB_1.getId(), false, 1, 10);
+    subject.flush();
+
+    verify(database, times(1)).updateJobs(anyListOf(JobSpec.class));
   }
 
   @Test
   public void updateJobAfterRetry_stateUpdated() {
-    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 3, 30000, -1, -1, EMPTY_DATA, true),
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 3, 30000, -1, -1, 2, EMPTY_DATA, true),
                                      Collections.emptyList(),
                                      Collections.emptyList());
 
@@ -149,14 +190,15 @@ public class FastJobStorageTest {
     assertFalse(job.isRunning());
     assertEquals(1, job.getRunAttempt());
     assertEquals(10, job.getNextRunAttemptTime());
+    assertEquals(2, job.getPriority());
   }
 
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_noneWhenEarlierItemInQueueInRunning() {
-    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, true),
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, true),
                                       Collections.emptyList(),
                                       Collections.emptyList());
-    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                       Collections.emptyList(),
                                       Collections.emptyList());
 
@@ -168,7 +210,7 @@ public class FastJobStorageTest {
 
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_noneWhenAllJobsAreRunning() {
-    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, true),
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, true),
                                      Collections.emptyList(),
                                      Collections.emptyList());
 
@@ -180,7 +222,7 @@ public class FastJobStorageTest {
 
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_noneWhenNextRunTimeIsAfterCurrentTime() {
-    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 10, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 10, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                      Collections.emptyList(),
                                      Collections.emptyList());
 
@@ -192,10 +234,10 @@ public class FastJobStorageTest {
 
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_noneWhenDependentOnAnotherJob() {
-    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, true),
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, true),
                                       Collections.emptyList(),
                                       Collections.emptyList());
-    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                       Collections.emptyList(),
                                       Collections.singletonList(new DependencySpec("2", "1")));
 
@@ -208,7 +250,7 @@ public class FastJobStorageTest {
 
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_singleEligibleJob() {
-    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                      Collections.emptyList(),
                                      Collections.emptyList());
 
@@ -220,10 +262,10 @@ public class FastJobStorageTest {
 
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_multipleEligibleJobs() {
-    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                       Collections.emptyList(),
                                       Collections.emptyList());
-    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                       Collections.emptyList(),
                                       Collections.emptyList());
 
@@ -236,10 +278,10 @@ public class FastJobStorageTest {
 
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_singleEligibleJobInMixedList() {
-    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, true),
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, true),
                                       Collections.emptyList(),
                                       Collections.emptyList());
-    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                       Collections.emptyList(),
                                       Collections.emptyList());
 
@@ -255,10 +297,10 @@ public class FastJobStorageTest {
 
   @Test
   public void getPendingJobsWithNoDependenciesInCreatedOrder_firstItemInQueue() {
-    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                       Collections.emptyList(),
                                       Collections.emptyList());
-    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 0, 0, 0, 0, 0, -1, -1, EMPTY_DATA, false),
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
                                       Collections.emptyList(),
                                       Collections.emptyList());
 
@@ -272,6 +314,187 @@ public class FastJobStorageTest {
     assertEquals("1", jobs.get(0).getId());
   }
 
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_earliestCreatedItemInQueue() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 2, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 1, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_nextItemInQueueAfterDelete() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, true),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 1, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_dependentEligibleAfterDelete() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, true),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.singletonList(new DependencySpec("2", "1")));
+
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+    subject.deleteJob("1");
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_excludesUnmetConstraints() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.singletonList(new ConstraintSpec("1", "c1")),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 1, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.singletonList(new ConstraintSpec("2", "c2")),
+                                      Collections.emptyList());
+    FullSpec fullSpec3 = new FullSpec(new JobSpec("3", "f3", null, 2, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2, fullSpec3)));
+    subject.init();
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10, Collections.singleton("c1"));
+
+    assertEquals(2, jobs.size());
+    assertEquals("2", jobs.get(0).getId());
+    assertEquals("3", jobs.get(1).getId());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_backlogDrainsInCreatedOrder() {
+    List<FullSpec> backlog = new ArrayList<>();
+
+    for (int i = 0; i < 100; i++) {
+      backlog.add(new FullSpec(new JobSpec("id" + i, "f", "q" + (i % 10), i, 0, 0, -1, 30000, -1, -1, 1, EMPTY_DATA, false),
+                               Collections.emptyList(),
+                               Collections.emptyList()));
+    }
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(backlog));
+    subject.init();
+
+    long lastCreateTime = -1;
+    int  drained        = 0;
+
+    List<JobSpec> pending;
+    while (!(pending = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10)).isEmpty()) {
+      Set<String> queues = new HashSet<>();
+
+      for (JobSpec jobSpec : pending) {
+        assertTrue(queues.add(jobSpec.getQueueKey()));
+      }
+
+      JobSpec next = pending.get(0);
+
+      assertEquals(lastCreateTime + 1, next.getCreateTime());
+      lastCreateTime = next.getCreateTime();
+
+      subject.updateJobRunningState(next.getId(), true);
+      subject.deleteJob(next.getId());
+      drained++;
+    }
+
+    assertEquals(100, drained);
+    assertEquals(0, subject.getAllJobSpecs().size());
+  }
+
+  @Test
+  public void getPendingJobsWithNoDependenciesInCreatedOrder_noneWhileEveryQueueIsBlocked() {
+    List<FullSpec> backlog = new ArrayList<>();
+
+    for (int i = 0; i < 20; i++) {
+      backlog.add(new FullSpec(new JobSpec("id" + i, "f", "q" + (i % 2), i, 0, 0, -1, 30000, -1, -1, 1, EMPTY_DATA, false),
+                               Collections.emptyList(),
+                               Collections.emptyList()));
+    }
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(backlog));
+    subject.init();
+
+    subject.updateJobRunningState("id0", true);
+    subject.updateJobRunningState("id1", true);
+
+    assertEquals(0, subject.getPendingJobsWithNoDependenciesInCreatedOrder(10).size());
+
+    subject.updateJobRunningState("id1", false);
+
+    List<JobSpec> jobs = subject.getPendingJobsWithNoDependenciesInCreatedOrder(10);
+
+    assertEquals(1, jobs.size());
+    assertEquals("id1", jobs.get(0).getId());
+  }
+
+  @Test
+  public void getNextPendingRunAttemptTime_earliestFutureRetry() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", null, 0, 20, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", null, 0, 15, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec3 = new FullSpec(new JobSpec("3", "f3", null, 0, 5, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2, fullSpec3)));
+    subject.init();
+
+    assertEquals(15, subject.getNextPendingRunAttemptTime(10));
+  }
+
+  @Test
+  public void getNextPendingRunAttemptTime_noneWhenBlocked() {
+    FullSpec fullSpec1 = new FullSpec(new JobSpec("1", "f1", "q", 0, 0, 0, 0, 0, -1, -1, 1, EMPTY_DATA, true),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+    FullSpec fullSpec2 = new FullSpec(new JobSpec("2", "f2", "q", 1, 20, 0, 0, 0, -1, -1, 1, EMPTY_DATA, false),
+                                      Collections.emptyList(),
+                                      Collections.emptyList());
+
+    FastJobStorage subject = new FastJobStorage(fixedDataDatabase(Arrays.asList(fullSpec1, fullSpec2)));
+    subject.init();
+
+    assertEquals(Long.MAX_VALUE, subject.getNextPendingRunAttemptTime(10));
+  }
+
   @Test
   public void deleteJobs_writesToDatabase() {
     JobDatabase    database = noopDatabase();
@@ -283,6 +506,19 @@ public class FastJobStorageTest {
     verify(database).deleteJobs(ids);
   }
 
+  @Test
+  public void deleteJobs_dropsPendingWrites() {
+    JobDatabase    database = fixedDataDatabase(DataSet1.FULL_SPECS);
+    FastJobStorage subject  = new FastJobStorage(database);
+
+    subject.init();
+    subject.updateJobRunningState(DataSet1.JOB_1.getId(), true);
+    subject.deleteJob(DataSet1.JOB_1.getId());
+    subject.flush();
+
+    verify(database, never()).updateJobs(anyListOf(JobSpec.class));
+  }
+
   @Test
   public void deleteJobs_deletesAllRelevantPieces() {
     FastJobStorage subject = new FastJobStorage(fixedDataDatabase(DataSet1.FULL_SPECS));
@@ -323,8 +559,8 @@ public class FastJobStorageTest {
   }
 
   private static final class DataSet1 {
-    static final JobSpec        JOB_1        = new JobSpec("id1", "f1", "q1", 1, 2, 3, 4, 5, 6, 7, EMPTY_DATA, false);
-    static final JobSpec        JOB_2        = new JobSpec("id2", "f2", "q2", 1, 2, 3, 4, 5, 6, 7, EMPTY_DATA, false);
+    static final JobSpec        JOB_1        = new JobSpec("id1", "f1", "q1", 1, 2, 3, 4, 5, 6, 7, 1, EMPTY_DATA, false);
+    static final JobSpec        JOB_2        = new JobSpec("id2", "f2", "q2", 1, 2, 3, 4, 5, 6, 7, 1, EMPTY_DATA, false);
     static final ConstraintSpec CONSTRAINT_1 = new ConstraintSpec("id1", "f1");
     static final ConstraintSpec CONSTRAINT_2 = new ConstraintSpec("id2", "f2");
     static final DependencySpec DEPENDENCY_2 = new DependencySpec("id2", "id1");
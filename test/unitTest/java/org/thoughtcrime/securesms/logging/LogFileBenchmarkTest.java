@@ -0,0 +1,76 @@
+package org.thoughtcrime.securesms.logging;
+
+import org.junit.Ignore;
+import org.junit.Test;
+
+import java.io.File;
+import java.security.SecureRandom;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares writing every log entry as its own record, which is how logs used to be written, with
+ * writing entries in batches. It isn't part of the unit suite, {@link LogFileTest} covers reading
+ * entries back, so drop the annotation to see the timings and file sizes.
+ */
+@Ignore("Benchmark")
+public final class LogFileBenchmarkTest {
+
+  private static final int ENTRIES = 20_000;
+
+  @Test
+  public void compareRecordPerEntryAndBatchedWrites() throws Exception {
+    byte[] secret = new byte[32];
+    new SecureRandom().nextBytes(secret);
+
+    String expected = buildExpected();
+
+    File recordPerEntry = File.createTempFile("log-", ".tmp");
+    File batched        = File.createTempFile("log-", ".tmp");
+
+    try {
+      long start = System.nanoTime();
+
+      LogFile.Writer writer = new LogFile.Writer(secret, recordPerEntry);
+      for (int i = 0; i < ENTRIES; i++) {
+        writer.writeEntry(buildEntry(i));
+        writer.flush();
+      }
+      writer.close();
+
+      long recordPerEntryEnd = System.nanoTime();
+
+      writer = new LogFile.Writer(secret, batched);
+      for (int i = 0; i < ENTRIES; i++) {
+        writer.writeEntry(buildEntry(i));
+      }
+      writer.close();
+
+      long batchedEnd = System.nanoTime();
+
+      assertEquals(expected, new LogFile.Reader(secret, recordPerEntry).readAll());
+      assertEquals(expected, new LogFile.Reader(secret, batched).readAll());
+
+      System.out.println("[LogFileBenchmarkTest] " + ENTRIES + " entries" +
+                         ", record per entry: " + ((recordPerEntryEnd - start) / 1_000_000) + " ms, " + recordPerEntry.length() + " bytes" +
+                         ", batched: " + ((batchedEnd - recordPerEntryEnd) / 1_000_000) + " ms, " + batched.length() + " bytes");
+    } finally {
+      recordPerEntry.delete();
+      batched.delete();
+    }
+  }
+
+  private static String buildExpected() {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = 0; i < ENTRIES; i++) {
+      builder.append(buildEntry(i)).append('\n');
+    }
+
+    return builder.toString();
+  }
+
+  private static String buildEntry(int i) {
+    return "2019-06-01 12:00:00.000 PDT I LogFileBenchmarkTest: Log entry number " + i;
+  }
+}
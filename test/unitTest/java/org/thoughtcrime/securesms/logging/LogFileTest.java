@@ -0,0 +1,114 @@
+package org.thoughtcrime.securesms.logging;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
+
+import static org.junit.Assert.assertEquals;
+
+public final class LogFileTest {
+
+  private byte[] secret;
+  private File   file;
+
+  @Before
+  public void setUp() throws IOException {
+    secret = new byte[32];
+    file   = File.createTempFile("log-", ".tmp");
+
+    new SecureRandom().nextBytes(secret);
+  }
+
+  @After
+  public void tearDown() {
+    file.delete();
+  }
+
+  @Test
+  public void writeEntry_readAll_sameEntries() throws IOException {
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+    writer.writeEntry("first");
+    writer.writeEntry("second");
+    writer.close();
+
+    assertEquals("first\nsecond\n", new LogFile.Reader(secret, file).readAll());
+  }
+
+  @Test
+  public void writeEntry_moreThanOneBatch_readAll_sameEntriesInOrder() throws IOException {
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    for (int i = 0; i < 2000; i++) {
+      writer.writeEntry(buildEntry(i));
+    }
+
+    writer.close();
+
+    assertEquals(buildExpected(0, 2000), new LogFile.Reader(secret, file).readAll());
+  }
+
+  @Test
+  public void writeEntry_flushedAfterEachEntry_readAll_sameEntries() throws IOException {
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+
+    for (int i = 0; i < 10; i++) {
+      writer.writeEntry(buildEntry(i));
+      writer.flush();
+    }
+
+    writer.close();
+
+    assertEquals(buildExpected(0, 10), new LogFile.Reader(secret, file).readAll());
+  }
+
+  @Test
+  public void writeEntry_secondWriterAppends_readAll_entriesOfBoth() throws IOException {
+    LogFile.Writer first = new LogFile.Writer(secret, file);
+    first.writeEntry(buildEntry(0));
+    first.close();
+
+    LogFile.Writer second = new LogFile.Writer(secret, file);
+    second.writeEntry(buildEntry(1));
+    second.close();
+
+    assertEquals(buildExpected(0, 2), new LogFile.Reader(secret, file).readAll());
+  }
+
+  @Test
+  public void flush_nothingPending_writesNothing() throws IOException {
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+    writer.flush();
+    writer.close();
+
+    assertEquals(0, file.length());
+    assertEquals("", new LogFile.Reader(secret, file).readAll());
+  }
+
+  @Test
+  public void getLogSize_includesPendingEntries() throws IOException {
+    LogFile.Writer writer = new LogFile.Writer(secret, file);
+    writer.writeEntry("pending");
+
+    assertEquals("pending".length(), writer.getLogSize());
+
+    writer.close();
+  }
+
+  private static String buildExpected(int from, int to) {
+    StringBuilder builder = new StringBuilder();
+
+    for (int i = from; i < to; i++) {
+      builder.append(buildEntry(i)).append('\n');
+    }
+
+    return builder.toString();
+  }
+
+  private static String buildEntry(int i) {
+    return "2019-06-01 12:00:00.000 PDT I LogFileTest: Log entry number " + i;
+  }
+}
@@ -0,0 +1,204 @@
+package org.thoughtcrime.securesms.notifications;
+
+import android.content.Context;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+
+public class NotificationRebuilderTest {
+
+  private Context context;
+
+  @Before
+  public void setUp() {
+    context = mock(Context.class);
+  }
+
+  @Test
+  public void request_firstRebuild_coversAllThreads() {
+    RecordingRebuild      rebuild   = new RecordingRebuild();
+    NotificationRebuilder rebuilder = new NotificationRebuilder(rebuild);
+
+    rebuilder.request(context, 5, true, 0);
+
+    assertEquals(1, rebuild.calls.size());
+    assertNull(rebuild.calls.get(0).changedThreads);
+    assertTrue(rebuild.calls.get(0).signal);
+  }
+
+  @Test
+  public void request_afterFullRebuild_onlyCoversChangedThread() {
+    RecordingRebuild      rebuild   = new RecordingRebuild();
+    NotificationRebuilder rebuilder = new NotificationRebuilder(rebuild);
+
+    rebuilder.request(context, NotificationRebuilder.ALL_THREADS, false, 0);
+    rebuilder.request(context, 7, false, 0);
+
+    assertEquals(2, rebuild.calls.size());
+    assertEquals(Collections.singleton(7L), rebuild.calls.get(1).changedThreads);
+  }
+
+  @Test
+  public void request_whileRebuilding_foldedIntoOneFollowUpRebuild() throws Exception {
+    CountDownLatch        started   = new CountDownLatch(1);
+    CountDownLatch        release   = new CountDownLatch(1);
+    RecordingRebuild      rebuild   = new RecordingRebuild(started, release);
+    NotificationRebuilder rebuilder = new NotificationRebuilder(rebuild);
+
+    rebuilder.request(context, NotificationRebuilder.ALL_THREADS, false, 0);
+    rebuild.calls.clear();
+
+    Thread first = new Thread(() -> rebuilder.request(context, 4, false, 0));
+    first.start();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    rebuilder.request(context, 5, false, 0);
+    rebuilder.request(context, 6, true, 2);
+    rebuilder.request(context, 5, false, 1);
+
+    assertEquals(1, rebuild.calls.size());
+
+    release.countDown();
+    first.join(TimeUnit.SECONDS.toMillis(5));
+    assertFalse(first.isAlive());
+
+    assertEquals(2, rebuild.calls.size());
+    assertEquals(Collections.singleton(4L), rebuild.calls.get(0).changedThreads);
+
+    Call followUp = rebuild.calls.get(1);
+    assertEquals(new HashSet<>(Arrays.asList(5L, 6L)), followUp.changedThreads);
+    assertTrue(followUp.signal);
+    assertEquals(2, followUp.reminderCount);
+  }
+
+  @Test
+  public void request_afterFailedRebuild_nextRebuildCoversAllThreads() {
+    RecordingRebuild      rebuild   = new RecordingRebuild();
+    NotificationRebuilder rebuilder = new NotificationRebuilder(rebuild);
+
+    rebuilder.request(context, NotificationRebuilder.ALL_THREADS, false, 0);
+
+    rebuild.failures = 1;
+
+    try {
+      rebuilder.request(context, 4, false, 0);
+      fail();
+    } catch (IllegalStateException e) {
+      // Expected
+    }
+
+    rebuilder.request(context, 5, false, 0);
+
+    assertEquals(3, rebuild.calls.size());
+    assertNull(rebuild.calls.get(2).changedThreads);
+  }
+
+  @Test
+  public void request_foldedIntoFailedRebuild_followUpStillRuns() throws Exception {
+    CountDownLatch             started   = new CountDownLatch(1);
+    CountDownLatch             release   = new CountDownLatch(1);
+    RecordingRebuild           rebuild   = new RecordingRebuild(started, release);
+    NotificationRebuilder      rebuilder = new NotificationRebuilder(rebuild);
+    AtomicReference<Throwable> thrown    = new AtomicReference<>();
+
+    rebuilder.request(context, NotificationRebuilder.ALL_THREADS, false, 0);
+    rebuild.calls.clear();
+    rebuild.failures = 1;
+
+    Thread first = new Thread(() -> {
+      try {
+        rebuilder.request(context, 4, false, 0);
+      } catch (IllegalStateException e) {
+        thrown.set(e);
+      }
+    });
+    first.start();
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+
+    rebuilder.request(context, 5, true, 1);
+
+    release.countDown();
+    first.join(TimeUnit.SECONDS.toMillis(5));
+    assertFalse(first.isAlive());
+
+    assertNotNull(thrown.get());
+    assertEquals(2, rebuild.calls.size());
+
+    Call followUp = rebuild.calls.get(1);
+    assertNull(followUp.changedThreads);
+    assertTrue(followUp.signal);
+    assertEquals(1, followUp.reminderCount);
+  }
+
+  private static final class RecordingRebuild implements NotificationRebuilder.Rebuild {
+
+    private final List<Call>     calls = Collections.synchronizedList(new LinkedList<>());
+    private final CountDownLatch started;
+    private final CountDownLatch release;
+
+    private volatile int failures;
+
+    private RecordingRebuild() {
+      this(null, null);
+    }
+
+    private RecordingRebuild(@Nullable CountDownLatch started, @Nullable CountDownLatch release) {
+      this.started = started;
+      this.release = release;
+    }
+
+    @Override
+    public void rebuild(@NonNull Context context, boolean signal, int reminderCount, @Nullable Set<Long> changedThreads) {
+      calls.add(new Call(signal, reminderCount, changedThreads == null ? null : new HashSet<>(changedThreads)));
+
+      if (started != null && started.getCount() > 0 && changedThreads != null) {
+        started.countDown();
+
+        try {
+          release.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          throw new AssertionError(e);
+        }
+      }
+
+      if (failures > 0) {
+        failures--;
+        throw new IllegalStateException();
+      }
+    }
+  }
+
+  private static final class Call {
+
+    private final boolean   signal;
+    private final int       reminderCount;
+    private final Set<Long> changedThreads;
+
+    private Call(boolean signal, int reminderCount, @Nullable Set<Long> changedThreads) {
+      this.signal         = signal;
+      this.reminderCount  = reminderCount;
+      this.changedThreads = changedThreads;
+    }
+  }
+}
@@ -0,0 +1,215 @@
+package org.thoughtcrime.securesms.search;
+
+import android.app.Application;
+import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.contacts.ContactAccessor;
+import org.thoughtcrime.securesms.contacts.ContactsDatabase;
+import org.thoughtcrime.securesms.database.DatabaseContentProviders;
+import org.thoughtcrime.securesms.database.SearchDatabase;
+import org.thoughtcrime.securesms.database.ThreadDatabase;
+import org.thoughtcrime.securesms.search.model.SearchResult;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class SearchRepositoryTest {
+
+  private SearchDatabase   searchDatabase;
+  private List<Runnable>   tasks;
+  private ContentObserver  observer;
+  private SearchRepository repository;
+
+  @Before
+  public void setUp() {
+    searchDatabase = mock(SearchDatabase.class);
+    tasks          = new LinkedList<>();
+    repository     = new SearchRepository(RuntimeEnvironment.application,
+                                          searchDatabase,
+                                          mock(ContactsDatabase.class),
+                                          mock(ThreadDatabase.class),
+                                          mock(ContactAccessor.class),
+                                          tasks::add);
+    observer       = mock(ContentObserver.class);
+
+    repository.registerContentObserver(observer);
+
+    when(searchDatabase.queryMessages(anyString(), any(Collection.class), any(Collection.class))).thenAnswer(invocation -> emptyMessagesCursor());
+  }
+
+  @Test
+  public void query_extendingCompleteMatchesOnlySearchesThem() {
+    givenMatches(new long[] { 1, 2 }, new long[] { 7 });
+
+    query("hel");
+    query("hell");
+
+    ArgumentCaptor<Collection> smsIds = ArgumentCaptor.forClass(Collection.class);
+    ArgumentCaptor<Collection> mmsIds = ArgumentCaptor.forClass(Collection.class);
+
+    verify(searchDatabase).queryMessageIds(eq("hell"), smsIds.capture(), mmsIds.capture(), anyInt());
+    assertEquals(new HashSet<>(Arrays.asList(1L, 2L)), new HashSet<>(smsIds.getValue()));
+    assertEquals(Collections.singleton(7L), new HashSet<>(mmsIds.getValue()));
+  }
+
+  @Test
+  public void query_unrelatedQuerySearchesEverything() {
+    givenMatches(new long[] { 1, 2 }, new long[] { 7 });
+
+    query("hel");
+    query("bye");
+
+    ArgumentCaptor<Collection> smsIds = ArgumentCaptor.forClass(Collection.class);
+
+    verify(searchDatabase).queryMessageIds(eq("bye"), smsIds.capture(), any(Collection.class), anyInt());
+    assertNull(smsIds.getValue());
+  }
+
+  @Test
+  public void query_repeatedQuerySearchesEverything() {
+    givenMatches(new long[] { 1 }, new long[0]);
+
+    query("hel");
+    query("hel");
+
+    ArgumentCaptor<Collection> smsIds = ArgumentCaptor.forClass(Collection.class);
+
+    verify(searchDatabase, times(2)).queryMessageIds(eq("hel"), smsIds.capture(), any(Collection.class), anyInt());
+    assertNull(smsIds.getAllValues().get(1));
+  }
+
+  @Test
+  public void query_afterMessagesChangeSearchesEverything() {
+    givenMatches(new long[] { 1, 2 }, new long[] { 7 });
+
+    query("hel");
+    RuntimeEnvironment.application.getContentResolver().notifyChange(DatabaseContentProviders.ConversationList.CONTENT_URI, null);
+    query("hell");
+
+    ArgumentCaptor<Collection> smsIds = ArgumentCaptor.forClass(Collection.class);
+    ArgumentCaptor<Collection> mmsIds = ArgumentCaptor.forClass(Collection.class);
+
+    verify(searchDatabase).queryMessageIds(eq("hell"), smsIds.capture(), mmsIds.capture(), anyInt());
+    assertNull(smsIds.getValue());
+    assertNull(mmsIds.getValue());
+  }
+
+  @Test
+  public void query_withoutObserverSearchesEverything() {
+    givenMatches(new long[] { 1, 2 }, new long[] { 7 });
+
+    repository.unregisterContentObserver(observer);
+
+    query("hel");
+    query("hell");
+
+    ArgumentCaptor<Collection> smsIds = ArgumentCaptor.forClass(Collection.class);
+
+    verify(searchDatabase).queryMessageIds(eq("hell"), smsIds.capture(), any(Collection.class), anyInt());
+    assertNull(smsIds.getValue());
+  }
+
+  @Test
+  public void query_extendingMatchesOnlyRestrictsCompleteTables() {
+    long[] smsIds = new long[250];
+    for (int i = 0; i < smsIds.length; i++) smsIds[i] = i + 1;
+
+    givenMatches(smsIds, new long[] { 7 });
+
+    query("hel");
+    query("hell");
+
+    ArgumentCaptor<Collection> smsCaptor = ArgumentCaptor.forClass(Collection.class);
+    ArgumentCaptor<Collection> mmsCaptor = ArgumentCaptor.forClass(Collection.class);
+
+    verify(searchDatabase).queryMessageIds(eq("hell"), smsCaptor.capture(), mmsCaptor.capture(), eq(250));
+    assertNull(smsCaptor.getValue());
+    assertNotNull(mmsCaptor.getValue());
+    assertEquals(Collections.singleton(7L), new HashSet<>(mmsCaptor.getValue()));
+  }
+
+  @Test
+  public void query_matchesAreLoadedAndDeliveredInPages() {
+    long[] smsIds = new long[120];
+    for (int i = 0; i < smsIds.length; i++) smsIds[i] = i + 1;
+
+    givenMatches(smsIds, new long[0]);
+
+    assertEquals(3, query("hel").size());
+    verify(searchDatabase, times(3)).queryMessages(eq("hel"), any(Collection.class), any(Collection.class));
+  }
+
+  @Test
+  public void query_newQueryCancelsQueuedQuery() {
+    givenMatches(new long[] { 1 }, new long[0]);
+
+    List<SearchResult> first  = new LinkedList<>();
+    List<SearchResult> second = new LinkedList<>();
+
+    repository.query("hel", first::add);
+    repository.query("bye", second::add);
+    runTasks();
+
+    assertEquals(0, first.size());
+    assertEquals(1, second.size());
+    verify(searchDatabase, never()).queryMessageIds(eq("hel"), any(Collection.class), any(Collection.class), anyInt());
+  }
+
+  private List<SearchResult> query(String query) {
+    List<SearchResult> results = new LinkedList<>();
+
+    repository.query(query, results::add);
+    runTasks();
+
+    return results;
+  }
+
+  private void runTasks() {
+    while (!tasks.isEmpty()) {
+      tasks.remove(0).run();
+    }
+  }
+
+  private void givenMatches(long[] smsIds, long[] mmsIds) {
+    when(searchDatabase.queryMessageIds(anyString(), any(Collection.class), any(Collection.class), anyInt())).thenAnswer(invocation -> {
+      MatrixCursor cursor = new MatrixCursor(new String[] { SearchDatabase.MESSAGE_ID, SearchDatabase.IS_MMS });
+
+      for (long id : smsIds) cursor.addRow(new Object[] { id, 0 });
+      for (long id : mmsIds) cursor.addRow(new Object[] { id, 1 });
+
+      return cursor;
+    });
+  }
+
+  private static Cursor emptyMessagesCursor() {
+    return new MatrixCursor(new String[] { SearchDatabase.CONVERSATION_ADDRESS, SearchDatabase.MESSAGE_ADDRESS, SearchDatabase.SNIPPET });
+  }
+}
@@ -0,0 +1,162 @@
+package org.thoughtcrime.securesms.service;
+
+import android.app.Application;
+import android.database.MatrixCursor;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+import org.robolectric.annotation.Config;
+import org.thoughtcrime.securesms.database.MmsDatabase;
+import org.thoughtcrime.securesms.database.MmsSmsColumns;
+import org.thoughtcrime.securesms.database.MmsSmsDatabase;
+import org.thoughtcrime.securesms.database.SmsDatabase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, application = Application.class)
+public final class ExpiringMessageManagerTest {
+
+  private static final long NOW = 1_000_000;
+
+  private final List<StoredExpiration> stored = new ArrayList<>();
+
+  private SmsDatabase            smsDatabase;
+  private MmsDatabase            mmsDatabase;
+  private MmsSmsDatabase         mmsSmsDatabase;
+  private ExpiringMessageManager manager;
+
+  @Before
+  public void setUp() {
+    smsDatabase    = mock(SmsDatabase.class);
+    mmsDatabase    = mock(MmsDatabase.class);
+    mmsSmsDatabase = mock(MmsSmsDatabase.class);
+
+    when(mmsSmsDatabase.getExpiringMessages(anyLong(), anyInt())).thenAnswer(invocation -> {
+      long         expiresBefore = (Long) invocation.getArguments()[0];
+      int          limit         = (Integer) invocation.getArguments()[1];
+      MatrixCursor cursor        = new MatrixCursor(new String[] { MmsSmsColumns.ID, MmsSmsDatabase.TRANSPORT, MmsSmsDatabase.EXPIRES_AT });
+
+      for (StoredExpiration expiration : stored) {
+        if (expiration.expiresAt <= expiresBefore && cursor.getCount() < limit) {
+          cursor.addRow(new Object[] { expiration.id, expiration.mms ? MmsSmsDatabase.MMS_TRANSPORT : MmsSmsDatabase.SMS_TRANSPORT, expiration.expiresAt });
+        }
+      }
+
+      return cursor;
+    });
+
+    manager = new ExpiringMessageManager(RuntimeEnvironment.application, smsDatabase, mmsDatabase, mmsSmsDatabase, runnable -> {});
+  }
+
+  @Test
+  public void loadHorizon_onlyLoadsExpirationsInsideHorizon() {
+    givenStored(1, false, NOW + 1000);
+    givenStored(2, true, NOW + ExpiringMessageManager.HORIZON_MILLIS);
+    givenStored(3, false, NOW + ExpiringMessageManager.HORIZON_MILLIS + 1);
+
+    manager.loadHorizon(NOW);
+    manager.deleteExpired(Long.MAX_VALUE);
+
+    verify(mmsSmsDatabase).getExpiringMessages(NOW + ExpiringMessageManager.HORIZON_MILLIS, ExpiringMessageManager.MAX_LOADED);
+    verify(smsDatabase, times(1)).deleteMessages(any(List.class));
+    verify(smsDatabase).deleteMessages(Collections.singletonList(1L));
+    verify(mmsDatabase, times(1)).deleteMessages(any(List.class));
+    verify(mmsDatabase).deleteMessages(Collections.singletonList(2L));
+  }
+
+  @Test
+  public void loadHorizon_moreThanMaxLoaded_horizonEndsAtLastLoaded() {
+    for (int i = 0; i < ExpiringMessageManager.MAX_LOADED + 10; i++) {
+      givenStored(i, false, NOW + i);
+    }
+
+    manager.loadHorizon(NOW);
+
+    long lastLoaded = NOW + ExpiringMessageManager.MAX_LOADED - 1;
+
+    manager.scheduleDeletion(5000, true, lastLoaded, 1);
+    manager.scheduleDeletion(5001, true, lastLoaded, 0);
+    manager.deleteExpired(Long.MAX_VALUE);
+
+    verify(mmsDatabase).deleteMessages(Collections.singletonList(5001L));
+  }
+
+  @Test
+  public void scheduleDeletion_afterLoad_onlyKeepsExpirationsInsideHorizon() {
+    manager.loadHorizon(NOW);
+
+    manager.scheduleDeletion(1, false, NOW, ExpiringMessageManager.HORIZON_MILLIS + 1);
+    manager.scheduleDeletion(2, true, NOW, 1000);
+    manager.deleteExpired(Long.MAX_VALUE);
+
+    verify(smsDatabase, never()).deleteMessages(any(List.class));
+    verify(mmsDatabase).deleteMessages(Collections.singletonList(2L));
+  }
+
+  @Test
+  public void scheduleDeletion_whileLoading_keptEvenBeyondHorizon() {
+    manager.scheduleDeletion(1, false, NOW, ExpiringMessageManager.HORIZON_MILLIS + 1);
+    manager.loadHorizon(NOW);
+    manager.deleteExpired(Long.MAX_VALUE);
+
+    verify(smsDatabase).deleteMessages(Collections.singletonList(1L));
+  }
+
+  @Test
+  public void deleteExpired_deletesExactlyExpiredSetInOneBatchPerTable() {
+    manager.scheduleDeletion(1, false, NOW, -10);
+    manager.scheduleDeletion(2, false, NOW, 0);
+    manager.scheduleDeletion(3, true, NOW, -5);
+    manager.scheduleDeletion(4, false, NOW, 1);
+    manager.scheduleDeletion(5, true, NOW, 1000);
+
+    manager.deleteExpired(NOW);
+
+    verify(smsDatabase, times(1)).deleteMessages(any(List.class));
+    verify(smsDatabase).deleteMessages(Arrays.asList(1L, 2L));
+    verify(mmsDatabase, times(1)).deleteMessages(any(List.class));
+    verify(mmsDatabase).deleteMessages(Collections.singletonList(3L));
+
+    manager.deleteExpired(NOW);
+
+    verify(smsDatabase, times(1)).deleteMessages(any(List.class));
+    verify(mmsDatabase, times(1)).deleteMessages(any(List.class));
+
+    manager.deleteExpired(NOW + 1000);
+
+    verify(smsDatabase).deleteMessages(Collections.singletonList(4L));
+    verify(mmsDatabase).deleteMessages(Collections.singletonList(5L));
+  }
+
+  private void givenStored(long id, boolean mms, long expiresAt) {
+    stored.add(new StoredExpiration(id, mms, expiresAt));
+  }
+
+  private static final class StoredExpiration {
+    private final long    id;
+    private final boolean mms;
+    private final long    expiresAt;
+
+    private StoredExpiration(long id, boolean mms, long expiresAt) {
+      this.id        = id;
+      this.mms       = mms;
+      this.expiresAt = expiresAt;
+    }
+  }
+}